@@ -217,6 +217,16 @@ public final class Field {
     return field.getJavaType() == FieldDescriptor.JavaType.LONG && !isInt52();
   }
 
+  /**
+   * Gets whether the field is of type float, which JSON streams read as a
+   * double.
+   *
+   * @return whether the field is a float
+   */
+  public boolean isFloat() {
+    return field.getJavaType() == FieldDescriptor.JavaType.FLOAT;
+  }
+
   //
   // These map directly to the .proto definitions (except for isPrimitive, but that's pretty
   // self explanatory).
@@ -3,6 +3,7 @@ package org.swellrt.beta.client;
 import java.util.Collections;
 
 import org.swellrt.beta.client.wave.RemoteViewServiceMultiplexer;
+import org.swellrt.beta.client.wave.RemoteWaveViewService;
 import org.swellrt.beta.client.wave.WaveDeps;
 import org.swellrt.beta.client.wave.WaveLoader;
 import org.swellrt.beta.common.ContextStatus;
@@ -167,6 +168,11 @@ public class WaveContext implements UnsavedDataListener, TurbulenceListener, Con
 
   @Override
   public void onFailure(ChannelException e) {
+    // The channel reopens the wave by itself after the updates are lost while
+    // reconnecting, resynchronizing it from the versions it knows.
+    if (RemoteWaveViewService.isResync(e)) {
+      return;
+    }
     this.lastException = e;
     this.state = ERROR;
     // If an exception occurs during stage loader (WaveLoader)
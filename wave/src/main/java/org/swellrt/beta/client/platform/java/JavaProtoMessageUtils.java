@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.swellrt.beta.client.platform.java;
+
+import org.waveprotocol.box.common.comms.ProtocolAuthenticate;
+import org.waveprotocol.box.common.comms.ProtocolOpenRequest;
+import org.waveprotocol.box.common.comms.ProtocolSubmitRequest;
+import org.waveprotocol.box.common.comms.ProtocolSubmitResponse;
+import org.waveprotocol.box.common.comms.ProtocolWaveletUpdate;
+import org.waveprotocol.box.common.comms.WaveClientRpc;
+import org.waveprotocol.box.common.comms.proto.ProtocolAuthenticateProtoImpl;
+import org.waveprotocol.box.common.comms.proto.ProtocolOpenRequestProtoImpl;
+import org.waveprotocol.box.common.comms.proto.ProtocolSubmitRequestProtoImpl;
+import org.waveprotocol.box.common.comms.proto.ProtocolSubmitResponseProtoImpl;
+import org.waveprotocol.box.common.comms.proto.ProtocolWaveletUpdateProtoImpl;
+import org.waveprotocol.box.server.rpc.Rpc;
+import org.waveprotocol.wave.communication.proto.ProtoMessageFrame;
+import org.waveprotocol.wave.concurrencycontrol.common.ChannelException;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+
+/**
+ * Protocol message utils for the binary websocket subprotocol
+ * {@link ProtoMessageFrame#SUBPROTOCOL}. Messages travel as protobuf frames
+ * instead of JSON; the rest is shared with {@link JavaProtocolMessageUtils}.
+ */
+public class JavaProtoMessageUtils extends JavaProtocolMessageUtils {
+
+  private static final String PB_WAVELET_UPDATE =
+      WaveClientRpc.ProtocolWaveletUpdate.getDescriptor().getFullName();
+  private static final String PB_SUBMIT_RESPONSE =
+      WaveClientRpc.ProtocolSubmitResponse.getDescriptor().getFullName();
+  private static final String PB_AUTH_RESULT =
+      WaveClientRpc.ProtocolAuthenticationResult.getDescriptor().getFullName();
+  private static final String PB_RPC_FINISHED = Rpc.RpcFinished.getDescriptor().getFullName();
+
+  public static final class ProtoMessageWrapper implements MessageWrapper {
+
+    private final int sequenceNumber;
+    private final String messageType;
+    private final Message message;
+    private final ProtoMessageFrame frame;
+
+    private ProtoMessageWrapper(int sequenceNumber, Message message) {
+      this.sequenceNumber = sequenceNumber;
+      this.messageType = message.getDescriptorForType().getFullName();
+      this.message = message;
+      this.frame = null;
+    }
+
+    private ProtoMessageWrapper(ProtoMessageFrame frame) {
+      this.sequenceNumber = frame.getSequenceNumber();
+      this.messageType = frame.getMessageType();
+      this.message = null;
+      this.frame = frame;
+    }
+
+    public byte[] toBytes() {
+      return ProtoMessageFrame.encode(sequenceNumber, message);
+    }
+
+    @SuppressWarnings("unchecked")
+    <M extends Message> M parse(M prototype) {
+      try {
+        return message != null ? (M) message : frame.parse(prototype);
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public int getSequenceNumber() {
+      return sequenceNumber;
+    }
+
+    @Override
+    public String getMessageType() {
+      return messageType;
+    }
+
+    @Override
+    public Object getMessage() {
+      return message != null ? message : frame;
+    }
+
+    @Override
+    public boolean isProtocolWaveletUpdate() {
+      return PB_WAVELET_UPDATE.equals(messageType);
+    }
+
+    @Override
+    public boolean isProtocolSubmitResponse() {
+      return PB_SUBMIT_RESPONSE.equals(messageType);
+    }
+
+    @Override
+    public boolean isProtocolAuthenticationResult() {
+      return PB_AUTH_RESULT.equals(messageType);
+    }
+
+    @Override
+    public boolean isRpcFinished() {
+      return PB_RPC_FINISHED.equals(messageType);
+    }
+
+  }
+
+  public static final class ProtoRpcFinished implements RpcFinished {
+
+    private final Rpc.RpcFinished message;
+
+    protected ProtoRpcFinished(Rpc.RpcFinished message) {
+      this.message = message;
+    }
+
+    public boolean hasFailed() {
+      return message.getFailed();
+    }
+
+    public boolean hasErrorText() {
+      return message.hasErrorText();
+    }
+
+    public String getErrorText() {
+      return message.getErrorText();
+    }
+
+    public ChannelException getChannelException() {
+      ChannelException e = null;
+      if (hasErrorText()) {
+        e = ChannelException.deserialize(getErrorText());
+      }
+      return e;
+    }
+
+  }
+
+  @Override
+  public MessageWrapper parseFrame(Object frame) throws ParseException {
+    if (!(frame instanceof byte[])) {
+      throw new ParseException();
+    }
+    byte[] data = (byte[]) frame;
+    try {
+      return new ProtoMessageWrapper(ProtoMessageFrame.decode(data, 0, data.length));
+    } catch (IOException e) {
+      throw new ParseException();
+    }
+  }
+
+  @Override
+  public String describeFrame(Object frame) {
+    if (frame instanceof byte[]) {
+      return "binary frame of " + ((byte[]) frame).length + " bytes, subprotocol "
+          + ProtoMessageFrame.SUBPROTOCOL;
+    }
+    return super.describeFrame(frame);
+  }
+
+  @Override
+  public Object toFrame(MessageWrapper messageWrapper) {
+    return ((ProtoMessageWrapper) messageWrapper).toBytes();
+  }
+
+  @Override
+  public ProtocolWaveletUpdate unwrapWaveletUpdate(MessageWrapper message) {
+    return new ProtocolWaveletUpdateProtoImpl(((ProtoMessageWrapper) message)
+        .parse(WaveClientRpc.ProtocolWaveletUpdate.getDefaultInstance()));
+  }
+
+  @Override
+  public ProtocolSubmitResponse unwrapSubmitResponse(MessageWrapper message) {
+    return new ProtocolSubmitResponseProtoImpl(((ProtoMessageWrapper) message)
+        .parse(WaveClientRpc.ProtocolSubmitResponse.getDefaultInstance()));
+  }
+
+  @Override
+  public RpcFinished unwrapRpcFinished(MessageWrapper message) {
+    return new ProtoRpcFinished(
+        ((ProtoMessageWrapper) message).parse(Rpc.RpcFinished.getDefaultInstance()));
+  }
+
+  @Override
+  public MessageWrapper wrap(int seqNum, ProtocolSubmitRequest message) {
+    return new ProtoMessageWrapper(seqNum, new ProtocolSubmitRequestProtoImpl(message).getPB());
+  }
+
+  @Override
+  public MessageWrapper wrap(int seqNum, ProtocolAuthenticate message) {
+    return new ProtoMessageWrapper(seqNum, new ProtocolAuthenticateProtoImpl(message).getPB());
+  }
+
+  @Override
+  public MessageWrapper wrap(int seqNum, ProtocolOpenRequest message) {
+    return new ProtoMessageWrapper(seqNum, new ProtocolOpenRequestProtoImpl(message).getPB());
+  }
+
+  @Override
+  public String toJson(MessageWrapper messageWrapper) {
+    throw new IllegalStateException("Binary messages have no JSON form");
+  }
+
+}
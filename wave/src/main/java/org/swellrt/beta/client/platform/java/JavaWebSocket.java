@@ -1,15 +1,25 @@
 package org.swellrt.beta.client.platform.java;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.handshake.ServerHandshake;
+import org.swellrt.beta.client.wave.ws.BinaryWebSocket;
 import org.swellrt.beta.client.wave.ws.CloseEvent;
 import org.swellrt.beta.client.wave.ws.Event;
 import org.swellrt.beta.client.wave.ws.MessageEvent;
 import org.swellrt.beta.client.wave.ws.WebSocket;
 
-public class JavaWebSocket implements WebSocket {
+public class JavaWebSocket implements BinaryWebSocket {
+
+  private static final String SUBPROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+
+  /** The subprotocol to request, or null for the default JSON protocol */
+  private final String subprotocol;
 
   WebSocketClient cc;
 
@@ -20,12 +30,24 @@ public class JavaWebSocket implements WebSocket {
 
   int readyState = WebSocket.CLOSED;
 
+  public JavaWebSocket() {
+    this(null);
+  }
+
+  public JavaWebSocket(String subprotocol) {
+    this.subprotocol = subprotocol;
+  }
+
   @Override
   public void connect(String server) throws Exception {
 
     readyState = WebSocket.CONNECTING;
 
-    cc = new WebSocketClient(new URI(server)) {
+    Map<String, String> headers = subprotocol != null
+        ? Collections.singletonMap(SUBPROTOCOL_HEADER, subprotocol)
+        : Collections.<String, String> emptyMap();
+
+    cc = new WebSocketClient(new URI(server), new Draft_6455(), headers, 0) {
 
       @Override
       public void onOpen(ServerHandshake handshakedata) {
@@ -43,6 +65,17 @@ public class JavaWebSocket implements WebSocket {
         onmessage.exec(event);
       }
 
+      @Override
+      public void onMessage(ByteBuffer bytes) {
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(data);
+        MessageEvent event = new MessageEvent() {
+        };
+        event.data = data;
+        event.type = "message";
+        onmessage.exec(event);
+      }
+
       @Override
       public void onClose(int code, String reason, boolean remote) {
         readyState = WebSocket.CLOSED;
@@ -73,6 +106,11 @@ public class JavaWebSocket implements WebSocket {
     cc.send(data);
   }
 
+  @Override
+  public void send(byte[] data) {
+    cc.send(data);
+  }
+
   @Override
   public void close() {
     readyState = WebSocket.CLOSING;
@@ -22,6 +22,7 @@ import org.swellrt.beta.model.java.JavaModelFactory;
 import org.waveprotocol.wave.client.common.util.RgbColor;
 import org.waveprotocol.wave.client.wave.DiffData;
 import org.waveprotocol.wave.client.wave.DiffProvider;
+import org.waveprotocol.wave.communication.proto.ProtoMessageFrame;
 import org.waveprotocol.wave.concurrencycontrol.common.TurbulenceListener;
 import org.waveprotocol.wave.concurrencycontrol.common.UnsavedDataListener;
 import org.waveprotocol.wave.model.id.IdGenerator;
@@ -36,14 +37,23 @@ import com.google.gwt.core.client.Callback;
 public class Swell {
 
   public static ServiceFrontend getService(String serverAddress) {
+    return getService(serverAddress, false);
+  }
+
+  /**
+   * @param binaryProtocol exchange wave messages as binary protobuf frames
+   *        instead of JSON
+   */
+  public static ServiceFrontend getService(String serverAddress, boolean binaryProtocol) {
 
-    Swell c = new Swell(serverAddress);
+    Swell c = new Swell(serverAddress, binaryProtocol);
     c.start();
     return c.getService();
 
   }
 
   private final String serverAddress;
+  private final boolean binaryProtocol;
 
   ServiceContext context;
   ServiceFrontend service;
@@ -52,8 +62,9 @@ public class Swell {
     return service;
   }
 
-  private Swell(String serverAddress) {
+  private Swell(String serverAddress, boolean binaryProtocol) {
     this.serverAddress = serverAddress;
+    this.binaryProtocol = binaryProtocol;
   }
 
   private void start() {
@@ -80,7 +91,8 @@ public class Swell {
       }
     };
 
-    WaveDeps.protocolMessageUtils = new JavaProtocolMessageUtils();
+    WaveDeps.protocolMessageUtils =
+        binaryProtocol ? new JavaProtoMessageUtils() : new JavaProtocolMessageUtils();
 
     WaveDeps.logFactory = new Log.Factory() {
 
@@ -94,7 +106,8 @@ public class Swell {
 
       @Override
       public WebSocket create() {
-        return new JavaWebSocket();
+        return binaryProtocol ? new JavaWebSocket(ProtoMessageFrame.SUBPROTOCOL)
+            : new JavaWebSocket();
       }
     };
 
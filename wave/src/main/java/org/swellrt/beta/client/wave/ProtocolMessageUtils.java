@@ -94,6 +94,31 @@ public abstract class ProtocolMessageUtils {
 
   public abstract String toJson(MessageWrapper messageWrapper);
 
+  /**
+   * Parses a received message. Platforms using a binary websocket protocol
+   * override this to handle byte array frames.
+   */
+  public MessageWrapper parseFrame(Object frame) throws ParseException {
+    return parseWrapper((String) frame);
+  }
+
+  /**
+   * Describes a received message for logging. Platforms using a binary
+   * websocket protocol override this to tell the length and subprotocol of
+   * byte array frames.
+   */
+  public String describeFrame(Object frame) {
+    return String.valueOf(frame);
+  }
+
+  /**
+   * Serializes a message to send, a JSON string unless the platform overrides
+   * this for a binary websocket protocol.
+   */
+  public Object toFrame(MessageWrapper messageWrapper) {
+    return toJson(messageWrapper);
+  }
+
   public String serialize(WaveletName waveletName) {
     return RemoteViewServiceMultiplexer.serialize(waveletName);
   }
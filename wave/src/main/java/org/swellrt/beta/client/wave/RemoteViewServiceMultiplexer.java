@@ -19,12 +19,16 @@
 
 package org.swellrt.beta.client.wave;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.waveprotocol.box.common.comms.ProtocolOpenRequest;
 import org.waveprotocol.box.common.comms.ProtocolSubmitRequest;
 import org.waveprotocol.box.common.comms.ProtocolWaveletUpdate;
+import org.waveprotocol.box.common.comms.WaveletVersion;
 import org.waveprotocol.box.common.comms.impl.ProtocolOpenRequestImpl;
+import org.waveprotocol.box.common.comms.impl.WaveletVersionImpl;
 import org.waveprotocol.wave.concurrencycontrol.common.ChannelException;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.InvalidIdException;
@@ -33,6 +37,7 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.wave.model.version.HashedVersion;
 
 /**
  * Distributes the incoming update stream (from wave-in-a-box's client/server
@@ -135,13 +140,26 @@ public final class RemoteViewServiceMultiplexer implements WaveWebSocketCallback
 
   }
 
+  /** Tells every wave stream to resynchronize */
+  @Override
+  public void onResync() {
+    // Streams reopen, and so register again, while being notified.
+    for (WaveWebSocketCallback stream : new ArrayList<WaveWebSocketCallback>(streams.values())) {
+      stream.onResync();
+    }
+  }
+
   /**
    * Opens a wave stream.
    *
    * @param id wave to open
+   * @param knownWavelets versions of the wavelets already known, the server
+   *        sends the deltas from the newest version of each it recognizes
+   *        instead of a snapshot
    * @param stream handler to updates directed at that wave
    */
-  public void open(WaveId id, IdFilter filter, WaveWebSocketCallback stream) {
+  public void open(WaveId id, IdFilter filter, Map<WaveletId, List<HashedVersion>> knownWavelets,
+      WaveWebSocketCallback stream) {
     // Prepare to receive updates for the new stream.
     streams.put(id, stream);
 
@@ -158,6 +176,15 @@ public final class RemoteViewServiceMultiplexer implements WaveWebSocketCallback
     for (WaveletId wid : filter.getIds()) {
       request.addWaveletIdPrefix(wid.getId());
     }
+    for (Map.Entry<WaveletId, List<HashedVersion>> known : knownWavelets.entrySet()) {
+      String waveletId = ModernIdSerialiser.INSTANCE.serialiseWaveletId(known.getKey());
+      for (HashedVersion knownVersion : known.getValue()) {
+        WaveletVersion version = new WaveletVersionImpl();
+        version.setWaveletId(waveletId);
+        version.setHashedVersion(WaveDeps.protocolMessageUtils.serialize(knownVersion));
+        request.addKnownWavelet(version);
+      }
+    }
     socket.open(request);
   }
 
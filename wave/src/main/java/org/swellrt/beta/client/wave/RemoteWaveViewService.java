@@ -34,6 +34,8 @@ import org.waveprotocol.box.common.comms.impl.ProtocolWaveletUpdateImpl;
 import org.waveprotocol.box.stat.AsyncCallContext;
 import org.waveprotocol.box.webclient.common.WaveletOperationSerializer;
 import org.waveprotocol.wave.concurrencycontrol.channel.WaveViewService;
+import org.waveprotocol.wave.concurrencycontrol.common.ChannelException;
+import org.waveprotocol.wave.concurrencycontrol.common.Recoverable;
 import org.waveprotocol.wave.concurrencycontrol.common.ResponseCode;
 import org.waveprotocol.wave.federation.ProtocolHashedVersion;
 import org.waveprotocol.wave.federation.ProtocolWaveletDelta;
@@ -63,6 +65,9 @@ public final class RemoteWaveViewService implements WaveViewService, WaveWebSock
 
   static final Log LOG = Log.get(RemoteWaveViewService.class);
 
+  /** Message of the exception telling the updates lost while reconnecting. */
+  private static final String RESYNC_MESSAGE = "Updates lost while reconnecting";
+
   /**
    * Provides an update notification by lazily extracting and deserializing
    * components out of a serialized update message.
@@ -195,7 +200,7 @@ public final class RemoteWaveViewService implements WaveViewService, WaveWebSock
     this.callback = callback;
 
     openContext = AsyncCallContext.start("ProtocolOpenRequest");
-    mux.open(waveId, filter, this);
+    mux.open(waveId, filter, knownWavelets, this);
   }
 
   @Override
@@ -274,6 +279,27 @@ public final class RemoteWaveViewService implements WaveViewService, WaveWebSock
     callback.onException(message.getChannelException());
   }
 
+  @Override
+  public void onResync() {
+    // The view channel reconnects on recoverable exceptions, reopening the
+    // wave from the versions it knows.
+    callback.onException(new ChannelException(ResponseCode.WEBSOCKET_ERROR, RESYNC_MESSAGE, null,
+        Recoverable.RECOVERABLE, waveId, null));
+  }
+
+  /**
+   * @return true if the exception, or one it wraps, tells the updates lost
+   *         while reconnecting, which are resynchronized by reopening the wave.
+   */
+  public static boolean isResync(ChannelException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof ChannelException && RESYNC_MESSAGE.equals(t.getMessage())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private WaveViewServiceUpdateImpl deserialize(ProtocolWaveletUpdate update) {
     return new WaveViewServiceUpdateImpl(update);
   }
@@ -303,10 +329,14 @@ public final class RemoteWaveViewService implements WaveViewService, WaveWebSock
       // Bad code. See WAVE-446
       // Workaround is implemented in the server side (WaveViewService)
       //
+      // An empty delta tells a reconnection, and ends at its own signed version
+      // rather than at the current one.
+      //
       List<TransformedWaveletDelta> parsed = new ArrayList<TransformedWaveletDelta>();
       for (int i = 0; i < deltas.size(); i++) {
-        ProtocolHashedVersion thisEnd = //
-            i < deltas.size() - 1 ? deltas.get(i + 1).getHashedVersion() : end;
+        ProtocolHashedVersion thisEnd = deltas.get(i).getOperationSize() == 0
+            ? deltas.get(i).getHashedVersion()
+            : i < deltas.size() - 1 ? deltas.get(i + 1).getHashedVersion() : end;
         parsed.add(deserialize(deltas.get(i), thisEnd));
       }
       return parsed;
@@ -36,13 +36,17 @@ public interface WaveSocket {
     void onDisconnect();
     /** Only for fatal errors that force client to restart */
     void onError(String reason); 
-    void onMessage(String message);
+    /** A received message, a string or a byte array for binary frames */
+    void onMessage(Object message);
+    /** Messages were lost while reconnecting, open waves must be resynchronized */
+    void onResync();
     /** When network is to slow (heartbeat ack is timeout) */ 
     void onTurbulence(boolean finished);
   }
   
   void connect();
   void disconnect();
-  void sendMessage(String message);
+  /** Sends a message, a string or a byte array for binary frames */
+  void sendMessage(Object message);
 
 }
@@ -4,6 +4,7 @@ import java.util.Queue;
 
 import org.swellrt.beta.client.ServiceConfig;
 import org.swellrt.beta.client.wave.Log.Level;
+import org.swellrt.beta.client.wave.ws.BinaryWebSocket;
 import org.swellrt.beta.client.wave.ws.CloseEvent;
 import org.swellrt.beta.client.wave.ws.Event;
 import org.swellrt.beta.client.wave.ws.MessageEvent;
@@ -34,6 +35,8 @@ import org.waveprotocol.wave.model.util.CollectionUtils;
  * <li>Send reconnection message with recvCount, and reset recvCount
  * <li>On received reconnection message: discard the specified n oldest messages
  * from the setMessages queue. Sent rest of the queue.
+ * <li>The server answers with a resynchronization message instead if it has
+ * dropped messages we didn't receive.
  *
  *
  * @author pablojan (pablojan@gmail.com)
@@ -50,6 +53,8 @@ public class WaveSocketWS implements WaveSocket {
 
   private static final String RECONNECTION_DATA_PREFIX = "rc:";
 
+  private static final String RESYNC_DATA_PREFIX = "rs:";
+
   private static final int HEARTBEAT_INTERVAL = ServiceConfig.websocketHeartbeatInterval();
 
   private static final int HEARTBEAT_TIMEOUT = ServiceConfig.websocketHeartbeatTimeout();
@@ -100,7 +105,7 @@ public class WaveSocketWS implements WaveSocket {
 
   private boolean connectedAtLeastOnce = false;
 
-  private final Queue<String> sentMessages = CollectionUtils.createQueue();
+  private final Queue<Object> sentMessages = CollectionUtils.createQueue();
   private int recvCount = 0;
 
   public WaveSocketWS(String serverUrl, String connectionToken, WaveSocketCallback callback) {
@@ -193,22 +198,33 @@ public class WaveSocketWS implements WaveSocket {
     ws.onMessage(new Function<MessageEvent>() {
       @Override
       public void exec(MessageEvent e) {
-        String data = (String) e.data;
+        Object data = e.data;
 
         if (data != null) {
 
-          if (data.startsWith(RECONNECTION_DATA_PREFIX)) {
-            handleReconnectionMessage(data);
-            return;
-          }
-
-          if (data.startsWith(HEARTBEAT_DATA_PREFIX)) {
-            handleHeartbeatMessage(data);
-            return;
+          // Control messages are always text, even on binary protocols
+          if (data instanceof String) {
+            String text = (String) data;
+
+            if (text.startsWith(RECONNECTION_DATA_PREFIX)) {
+              handleReconnectionMessage(text);
+              return;
+            }
+
+            if (text.startsWith(HEARTBEAT_DATA_PREFIX)) {
+              handleHeartbeatMessage(text);
+              return;
+            }
+
+            if (text.startsWith(RESYNC_DATA_PREFIX)) {
+              LOG.info("reconnection: messages lost, resync");
+              callback.onResync();
+              return;
+            }
           }
 
           recvCount++;
-          callback.onMessage((String) e.data);
+          callback.onMessage(data);
 
         }
 
@@ -225,9 +241,18 @@ public class WaveSocketWS implements WaveSocket {
   }
 
   @Override
-  public void sendMessage(String message) {
+  public void sendMessage(Object message) {
     sentMessages.add(message);
-    ws.send(message);
+    send(message);
+  }
+
+  private void send(Object message) {
+    if (message instanceof byte[]) {
+      // Only platforms with binary websockets produce byte array messages
+      ((BinaryWebSocket) ws).send((byte[]) message);
+    } else {
+      ws.send((String) message);
+    }
   }
 
   /**
@@ -245,7 +270,7 @@ public class WaveSocketWS implements WaveSocket {
 
       int rs = 0;
       while (!sentMessages.isEmpty()) {
-        ws.send(sentMessages.poll());
+        send(sentMessages.poll());
         rs++;
       }
 
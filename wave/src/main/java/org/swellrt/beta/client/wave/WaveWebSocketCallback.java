@@ -32,4 +32,10 @@ public interface WaveWebSocketCallback {
   void onWaveletUpdate(ProtocolWaveletUpdate message);
   
   void onFinished(ProtocolMessageUtils.RpcFinished message);
+
+  /**
+   * Updates were lost while the websocket reconnected, the wave must be
+   * reopened from the known versions.
+   */
+  void onResync();
 }
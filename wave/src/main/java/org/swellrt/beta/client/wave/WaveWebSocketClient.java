@@ -246,16 +246,16 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
 
 
   @Override
-  public void onMessage(final String message) {
+  public void onMessage(final Object message) {
 
 
-    LOG.debug("received JSON message " + message);
+    LOG.debug("received message " + messageUtils.describeFrame(message));
     Timer timer = Timing.start("deserialize message");
     MessageWrapper wrapper;
     try {
-      wrapper = messageUtils.parseWrapper(message);
+      wrapper = messageUtils.parseFrame(message);
     } catch (ParseException e) {
-      LOG.severe("invalid JSON message " + message, e);
+      LOG.severe("invalid message " + message, e);
       return;
     } finally {
       Timing.stop(timer);
@@ -325,14 +325,14 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
     switch (connectState) {
       case CONNECTED:
         Timer timing = Timing.start("serialize message");
-        String json;
+        Object frame;
         try {
-          json = messageUtils.toJson(message);
+          frame = messageUtils.toFrame(message);
         } finally {
           Timing.stop(timing);
         }
-      LOG.debug("Sending JSON data " + json);
-        socket.sendMessage(json);
+      LOG.debug("Sending data " + frame);
+        socket.sendMessage(frame);
         break;
       default:
         messages.add(message);
@@ -361,6 +361,12 @@ public class WaveWebSocketClient implements WaveSocket.WaveSocketCallback {
     setState(ConnectState.ERROR, new ChannelException(reason, Recoverable.NOT_RECOVERABLE));
   }
 
+  @Override
+  public void onResync() {
+    if (callback != null)
+      callback.onResync();
+  }
+
   @Override
   public void onTurbulence(boolean finished) {
     if (!finished) {
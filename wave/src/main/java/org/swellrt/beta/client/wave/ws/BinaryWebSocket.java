@@ -0,0 +1,11 @@
+package org.swellrt.beta.client.wave.ws;
+
+/**
+ * A {@link WebSocket} which can also send binary frames, for the binary
+ * protobuf protocol. Browsers only use the JSON protocol, so only the Java
+ * platform implements it.
+ */
+public interface BinaryWebSocket extends WebSocket {
+
+  void send(byte[] data);
+}
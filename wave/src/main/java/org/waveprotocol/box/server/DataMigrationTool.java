@@ -101,6 +101,7 @@ public class DataMigrationTool {
     System.out.println(msg + "\n");
     System.out.println("Use: DataMigrationTool <data type> <source options> <target options>\n");
     System.out.println("supported data types : deltas");
+    System.out.println("supported delta store types : memory, file, segmented, mongodb");
     System.out
         .println("source options example : core.delta_store_type=file," +
                    "core.delta_store_directory=_deltas");
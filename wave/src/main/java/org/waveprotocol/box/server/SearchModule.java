@@ -21,13 +21,19 @@ package org.waveprotocol.box.server;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.typesafe.config.Config;
 import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.persistence.lucene.FSIndexDirectory;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
+import org.waveprotocol.box.server.persistence.lucene.RAMIndexDirectory;
 import org.waveprotocol.box.server.waveserver.*;
 
+import java.io.IOException;
+
 /**
  * @author yurize@apache.org (Yuri Zelikov)
  */
@@ -35,15 +41,20 @@ public class SearchModule extends AbstractModule {
 
   private final String searchType;
   private final String indexDirectory;
+  private final String textSearchType;
+  private final String textIndexDirectory;
 
   @Inject
   public SearchModule(Config config) {
     this.searchType = config.getString("core.search_type");
     this.indexDirectory = config.getString("core.index_directory");
+    this.textSearchType = config.getString("core.text_search_type");
+    this.textIndexDirectory = config.getString("core.text_index_directory");
   }
 
   @Override
   public void configure() {
+    bindFullTextIndex();
     if ("lucene".equals(searchType)) {
       bind(SearchProvider.class).to(SimpleSearchProviderImpl.class).in(Singleton.class);
       bind(PerUserWaveViewProvider.class).to(LucenePerUserWaveViewHandlerImpl.class).in(
@@ -53,7 +64,9 @@ public class SearchModule extends AbstractModule {
       bind(PerUserWaveViewHandler.class).to(LucenePerUserWaveViewHandlerImpl.class).in(
           Singleton.class);
       bind(IndexDirectory.class).to(FSIndexDirectory.class);
-      if (!FileUtils.isDirExistsAndNonEmpty(indexDirectory)) {
+      if (!isCurrentFormatIndex(indexDirectory)) {
+        // Runs from ServerMain.initializeSearch before the first commit
+        // replaces an index of an older format.
         bind(WaveIndexer.class).to(LuceneWaveIndexerImpl.class);
       } else {
         bind(WaveIndexer.class).to(NoOpWaveIndexerImpl.class);
@@ -75,8 +88,58 @@ public class SearchModule extends AbstractModule {
       bind(PerUserWaveViewHandler.class).to(MemoryPerUserWaveViewHandlerImpl.class).in(
           Singleton.class);
       bind(WaveIndexer.class).to(MemoryWaveIndexerImpl.class).in(Singleton.class);
+    } else if ("store".equals(searchType)) {
+      bind(SearchProvider.class).to(SimpleSearchProviderImpl.class).in(Singleton.class);
+      bind(PerUserWaveViewProvider.class).to(StorePerUserWaveViewHandlerImpl.class).in(
+          Singleton.class);
+      bind(PerUserWaveViewBus.Listener.class).to(StorePerUserWaveViewHandlerImpl.class).in(
+          Singleton.class);
+      bind(PerUserWaveViewHandler.class).to(StorePerUserWaveViewHandlerImpl.class).in(
+          Singleton.class);
+      bind(WaveIndexer.class).to(StoreWaveIndexerImpl.class).in(Singleton.class);
     } else {
       throw new RuntimeException("Unknown search type: " + searchType);
     }
   }
+
+  /**
+   * Returns whether a directory holds a per user wave view index of the current
+   * format, which doesn't need to be built from the wavelets.
+   */
+  private static boolean isCurrentFormatIndex(String indexDirectory) {
+    if (!FileUtils.isDirExistsAndNonEmpty(indexDirectory)) {
+      return false;
+    }
+    try (FSIndexDirectory directory = new FSIndexDirectory(indexDirectory)) {
+      return LucenePerUserWaveViewHandlerImpl.isCurrentFormat(directory);
+    } catch (IOException e) {
+      throw new IndexException(e);
+    }
+  }
+
+  private void bindFullTextIndex() {
+    if ("lucene".equals(textSearchType) || "memory".equals(textSearchType)) {
+      bind(FullTextIndex.class).to(LuceneFullTextIndexImpl.class).in(Singleton.class);
+      // Indexes the existing waves unless the index records they're indexed.
+      bind(WaveIndexer.class).annotatedWith(Names.named(FullTextWaveIndexerImpl.INDEXER))
+          .to(FullTextWaveIndexerImpl.class);
+    } else if ("none".equals(textSearchType)) {
+      bind(FullTextIndex.class).to(NoOpFullTextIndexImpl.class).in(Singleton.class);
+      bind(WaveIndexer.class).annotatedWith(Names.named(FullTextWaveIndexerImpl.INDEXER))
+          .to(NoOpWaveIndexerImpl.class);
+    } else {
+      throw new RuntimeException("Unknown text search type: " + textSearchType);
+    }
+  }
+
+  @Provides
+  @Singleton
+  @Named(LuceneFullTextIndexImpl.INDEX_DIRECTORY)
+  protected IndexDirectory provideFullTextIndexDirectory() {
+    if ("lucene".equals(textSearchType)) {
+      return new FSIndexDirectory(textIndexDirectory);
+    } else {
+      return new RAMIndexDirectory();
+    }
+  }
 }
@@ -49,11 +49,16 @@ import org.waveprotocol.box.server.shutdown.Shutdownable;
 import org.waveprotocol.box.server.stat.RequestScopeFilter;
 import org.waveprotocol.box.server.stat.StatuszServlet;
 import org.waveprotocol.box.server.stat.TimingFilter;
+import org.waveprotocol.box.server.waveserver.FullTextIndex;
+import org.waveprotocol.box.server.waveserver.FullTextWaveIndexerImpl;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewDistpatcher;
 import org.waveprotocol.box.server.waveserver.WaveBus;
+import org.waveprotocol.box.server.waveserver.WaveDigester;
+import org.waveprotocol.box.server.waveserver.WaveIndexer;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.box.server.waveserver.WaveletWarmUp;
 import org.waveprotocol.box.stat.StatService;
 import org.waveprotocol.wave.crypto.CertPathStore;
 import org.waveprotocol.wave.federation.FederationTransport;
@@ -141,6 +146,7 @@ public class ServerMain {
     // initializeSearch(injector, waveBus);
     initializeShutdownHandler(server);
     initializeSwellRt(injector, waveBus);
+    initializeWarmUp(injector);
 
     LOG.info("Starting server");
     server.startWebSocketServer(injector);
@@ -251,9 +257,17 @@ public class ServerMain {
     PerUserWaveViewBus.Listener listener = injector.getInstance(PerUserWaveViewBus.Listener.class);
     waveViewDistpatcher.addListener(listener);
     waveBus.subscribe(waveViewDistpatcher);
+    waveBus.subscribe(injector.getInstance(WaveDigester.class));
+    waveBus.subscribe(injector.getInstance(FullTextIndex.class));
 
-    // WaveIndexer waveIndexer = injector.getInstance(WaveIndexer.class);
-    // waveIndexer.remakeIndex();
+    WaveIndexer waveIndexer = injector.getInstance(WaveIndexer.class);
+    waveIndexer.remakeIndex();
+
+    // Starts indexing the text of the existing waves on the index executor,
+    // unless the full text index has them all.
+    WaveIndexer fullTextIndexer = injector.getInstance(
+        Key.get(WaveIndexer.class, Names.named(FullTextWaveIndexerImpl.INDEXER)));
+    fullTextIndexer.remakeIndex();
   }
 
   private static void initializeShutdownHandler(final ServerRpcProvider server) {
@@ -266,6 +280,11 @@ public class ServerMain {
     }, ServerMain.class.getSimpleName(), ShutdownPriority.Server);
   }
 
+  private static void initializeWarmUp(Injector injector) {
+    WaveletWarmUp warmUp = injector.getInstance(WaveletWarmUp.class);
+    warmUp.start();
+  }
+
   private static void initializeSwellRt(Injector injector, WaveBus waveBus) {
 
   }
@@ -31,6 +31,8 @@ import org.waveprotocol.box.server.authentication.SessionManagerImpl;
 import org.waveprotocol.box.server.frontend.ClientFrontend;
 import org.waveprotocol.box.server.frontend.ClientFrontendImpl;
 import org.waveprotocol.box.server.frontend.WaveletInfo;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
+import org.waveprotocol.box.server.robots.register.RobotRegistrarImpl;
 import org.waveprotocol.box.server.rpc.ProtoSerializer;
 import org.waveprotocol.box.server.rpc.ServerRpcProvider;
 import org.waveprotocol.box.server.rpc.WebSocketChannel;
@@ -95,7 +97,7 @@ public class ServerModule extends AbstractModule {
 
     bind(ServerRpcProvider.class).in(Singleton.class);
 
-    // bind(RobotRegistrar.class).to(RobotRegistrarImpl.class);
+    bind(RobotRegistrar.class).to(RobotRegistrarImpl.class).in(Singleton.class);
 
     requestStaticInjection(WebSocketChannel.class);
   }
@@ -139,10 +141,11 @@ public class ServerModule extends AbstractModule {
   
   @Provides
   @Singleton
-  public ClientFrontend provideClientFrontend(WaveBus waveBus, HashedVersionFactory hashFactory, WaveletProvider provider, @Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) String waveDomain) {
+  public ClientFrontend provideClientFrontend(WaveBus waveBus, HashedVersionFactory hashFactory, WaveletProvider provider, @Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) String waveDomain, Config config) {
 	WaveletInfo waveletInfo = WaveletInfo.create(hashFactory, provider);
+    int maxResyncDeltas = config.getInt("core.resync_max_deltas");
     try {
-		return ClientFrontendImpl.create(provider, waveBus, waveletInfo, waveDomain);
+		return ClientFrontendImpl.create(provider, waveBus, waveletInfo, waveDomain, maxResyncDeltas);
 	} catch (WaveServerException e) {
 		e.printStackTrace();
 		throw new IllegalStateException(e);
@@ -21,6 +21,7 @@ package org.waveprotocol.box.server.common;
 
 import org.waveprotocol.box.common.comms.WaveClientRpc.DocumentSnapshot;
 import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.util.CompactDocument;
 import org.waveprotocol.wave.model.document.operation.DocInitialization;
 import org.waveprotocol.wave.model.document.operation.DocOp;
 import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
@@ -39,7 +40,6 @@ import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.model.wave.data.impl.EmptyWaveletSnapshot;
-import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
 import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
 
 import java.util.Collection;
@@ -100,8 +100,7 @@ public class SnapshotSerializer {
   public static ObservableWaveletData deserializeWavelet(WaveletSnapshot snapshot, WaveId waveId)
       throws OperationException, InvalidParticipantAddress, InvalidIdException {
     ObservableWaveletData.Factory<? extends ObservableWaveletData> factory =
-        WaveletDataImpl.Factory.create(
-            ObservablePluggableMutableDocument.createFactory(SchemaCollection.empty()));
+        WaveletDataImpl.Factory.create(CompactDocument.createFactory(SchemaCollection.empty()));
 
     ParticipantId author = ParticipantId.of(snapshot.getCreator());
     WaveletId waveletId = ModernIdSerialiser.INSTANCE.deserialiseWaveletId(snapshot.getWaveletId());
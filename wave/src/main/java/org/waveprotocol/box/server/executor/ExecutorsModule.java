@@ -67,8 +67,10 @@ public class ExecutorsModule extends AbstractModule {
   @Provides
   @Singleton
   @IndexExecutor
-  protected Executor provideIndexExecutor(Provider<RequestScopeExecutor> executorProvider) {
-    return provideThreadPoolExecutor(executorProvider, 1, IndexExecutor.class.getSimpleName());
+  protected ScheduledExecutorService provideIndexExecutor(
+      Provider<ScheduledRequestScopeExecutor> executorProvider) {
+    return provideScheduledThreadPoolExecutor(executorProvider, 1, IndexExecutor.class
+        .getSimpleName());
   }
 
   @Provides
@@ -61,6 +61,19 @@ public interface ClientFrontend {
         List<TransformedWaveletDelta> deltas, @Nullable HashedVersion committedVersion,
         @Nullable Boolean marker, String channelId);
 
+    /**
+     * Called when a wavelet known by the client is resynchronized, before the
+     * deltas the client misses are received.
+     *
+     * @param waveletName wavelet being resynchronized
+     * @param connectVersion signed version the client reconnects at
+     * @param currentVersion signed current version of the wavelet
+     * @param committedVersion commit notice
+     * @param channelId channel id
+     */
+    void onReconnect(WaveletName waveletName, HashedVersion connectVersion,
+        HashedVersion currentVersion, HashedVersion committedVersion, String channelId);
+
     /**
      * Called when the stream fails. No further updates will be received.
      */
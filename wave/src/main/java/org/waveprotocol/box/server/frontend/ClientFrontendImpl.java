@@ -20,11 +20,16 @@
 package org.waveprotocol.box.server.frontend;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.common.comms.WaveClientRpc;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.waveserver.WaveBus;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
@@ -34,6 +39,8 @@ import org.waveprotocol.wave.concurrencycontrol.common.Recoverable;
 import org.waveprotocol.wave.concurrencycontrol.common.ResponseCode;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.IdFilter;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -48,6 +55,8 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 
@@ -56,6 +65,11 @@ import com.google.common.collect.Sets;
  *
  * When a wavelet is added and it's not at version 0, buffer updates until a
  * request for the wavelet's history has completed.
+ *
+ * A client reopening a wave may tell the versions of the wavelets it already
+ * knows. Such a wavelet is resynchronized with the deltas the client misses,
+ * if the server recognizes the version and there are no more than
+ * maxResyncDeltas of them. Otherwise the client gets a snapshot.
  */
 public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
   private static final Log LOG = Log.get(ClientFrontendImpl.class);
@@ -66,6 +80,9 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
   private final WaveletInfo waveletInfo;
   private final String waveDomain;
 
+  /** Max number of deltas sent to resynchronize a known wavelet. */
+  private final int maxResyncDeltas;
+
   /**
    * The legacy "@domain.com" meta participant. It grants access for anyone
    * registered but non anonymous accounts.
@@ -84,10 +101,11 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
    * @throws WaveServerException if the server fails during initialization.
    */
   public static ClientFrontendImpl create(WaveletProvider waveletProvider, WaveBus wavebus,
-      WaveletInfo waveletInfo, String waveDomain) throws WaveServerException {
+      WaveletInfo waveletInfo, String waveDomain, int maxResyncDeltas)
+      throws WaveServerException {
 
     ClientFrontendImpl impl =
-        new ClientFrontendImpl(waveletProvider, waveletInfo, waveDomain);
+        new ClientFrontendImpl(waveletProvider, waveletInfo, waveDomain, maxResyncDeltas);
 
     wavebus.subscribe(impl);
     return impl;
@@ -98,12 +116,16 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
    *
    * @param waveletProvider
    * @param waveDomain the server wave domain. It is assumed that the wave domain is valid.
+   * @param maxResyncDeltas max number of deltas sent to resynchronize a wavelet
+   *        known by the client, instead of a snapshot.
    */
   @VisibleForTesting
-  ClientFrontendImpl(WaveletProvider waveletProvider, WaveletInfo waveletInfo, String waveDomain) {
+  ClientFrontendImpl(WaveletProvider waveletProvider, WaveletInfo waveletInfo, String waveDomain,
+      int maxResyncDeltas) {
     this.waveletProvider = waveletProvider;
     this.waveletInfo = waveletInfo;
     this.waveDomain = waveDomain;
+    this.maxResyncDeltas = maxResyncDeltas;
     this.anyoneRegistered = ParticipantIdUtil.makeAnyoneRegistered(waveDomain);
     this.anyoneUniversal = ParticipantIdUtil.makeAnyoneUniversal(waveDomain);
   }
@@ -120,10 +142,7 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
       return;
     }
 
-    if (!knownWavelets.isEmpty()) {
-      openListener.onFailure(new ChannelException(ResponseCode.INTERNAL_ERROR, "Known wavelets not supported", null, Recoverable.NOT_RECOVERABLE, waveId, null));
-      return;
-    }
+    Map<WaveletId, List<HashedVersion>> knownVersions = knownVersionsOf(knownWavelets);
 
     boolean isNewWave = false;
     try {
@@ -157,15 +176,10 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
       waveletInfo.notifyAddedImplcitParticipant(waveletName, loggedInUser);
       // The WaveletName by which the waveletProvider knows the relevant deltas
 
-      // TODO(anorth): if the client provides known wavelets, calculate
-      // where to start sending deltas from.
-
-
       CommittedWaveletSnapshot snapshotToSend;
 
-      // Send a snapshot of the current state.
-      // TODO(anorth): calculate resync point if the client already knows
-      // a snapshot.
+      // Send a snapshot of the current state, unless the client knows the
+      // wavelet and can be resynchronized with the deltas it misses.
       try {
         snapshotToSend = waveletProvider.getSnapshot(waveletName);
       } catch (WaveServerException e) {
@@ -174,6 +188,12 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
         return;
       }
 
+      if (snapshotToSend != null && knownVersions.containsKey(waveletId)
+          && resync(waveletName, knownVersions.get(waveletId), snapshotToSend, channelId,
+              openListener)) {
+        continue;
+      }
+
       LOG.info("snapshot in response is: " + (snapshotToSend != null));
       if (snapshotToSend == null) {
         // Send deltas.
@@ -209,6 +229,113 @@ public class ClientFrontendImpl implements ClientFrontend, WaveBus.Subscriber {
     }
   }
 
+  /**
+   * @return the versions of the known wavelets the client sent, newest first,
+   *         ignoring those with an invalid id.
+   */
+  private static Map<WaveletId, List<HashedVersion>> knownVersionsOf(
+      Collection<WaveClientRpc.WaveletVersion> knownWavelets) {
+    Map<WaveletId, List<HashedVersion>> knownVersions = Maps.newHashMap();
+    for (WaveClientRpc.WaveletVersion known : knownWavelets) {
+      WaveletId waveletId;
+      try {
+        waveletId = ModernIdSerialiser.INSTANCE.deserialiseWaveletId(known.getWaveletId());
+      } catch (InvalidIdException e) {
+        LOG.info("Ignoring known wavelet with invalid id " + known.getWaveletId());
+        continue;
+      }
+      List<HashedVersion> versions = knownVersions.get(waveletId);
+      if (versions == null) {
+        versions = Lists.newArrayList();
+        knownVersions.put(waveletId, versions);
+      }
+      versions.add(CoreWaveletOperationSerializer.deserialize(known.getHashedVersion()));
+    }
+    for (List<HashedVersion> versions : knownVersions.values()) {
+      Collections.sort(versions, Collections.reverseOrder());
+    }
+    return knownVersions;
+  }
+
+  /**
+   * Resynchronizes a wavelet known by the client from the newest of its known
+   * versions which is in the wavelet history, as the client concurrency
+   * control does when it reconnects.
+   *
+   * @return true if the wavelet was resynchronized, false if none of the known
+   *         versions can be resynchronized from
+   */
+  private boolean resync(WaveletName waveletName, List<HashedVersion> knownVersions,
+      CommittedWaveletSnapshot currentSnapshot, String channelId, OpenListener openListener) {
+    HashedVersion currentVersion = currentSnapshot.snapshot.getHashedVersion();
+    for (HashedVersion knownVersion : knownVersions) {
+      List<TransformedWaveletDelta> missingDeltas =
+          getMissingDeltas(waveletName, knownVersion, currentVersion);
+      if (missingDeltas != null) {
+        LOG.info("resynchronizing " + waveletName + " from version " + knownVersion.getVersion()
+            + " with " + missingDeltas.size() + " deltas");
+        sendResync(waveletName, knownVersion, currentSnapshot, missingDeltas, channelId,
+            openListener);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the deltas a client knowing a wavelet at some version misses.
+   *
+   * @return the deltas from the known version to the current version, or null
+   *         if the known version is not in the wavelet history or more than
+   *         {@link #maxResyncDeltas} deltas are missing.
+   */
+  private List<TransformedWaveletDelta> getMissingDeltas(WaveletName waveletName,
+      HashedVersion knownVersion, HashedVersion currentVersion) {
+    if (knownVersion.equals(currentVersion)) {
+      return Lists.newArrayList();
+    }
+    if (knownVersion.getVersion() >= currentVersion.getVersion()) {
+      return null;
+    }
+    final List<TransformedWaveletDelta> deltas = Lists.newArrayList();
+    try {
+      waveletProvider.getHistory(waveletName, knownVersion, currentVersion,
+          new Receiver<TransformedWaveletDelta>() {
+            @Override
+            public boolean put(TransformedWaveletDelta delta) {
+              deltas.add(delta);
+              return deltas.size() <= maxResyncDeltas;
+            }
+          });
+    } catch (WaveServerException e) {
+      // Most likely the client's version has an unknown hash.
+      LOG.info("Cannot resynchronize " + waveletName + " from version " + knownVersion, e);
+      return null;
+    }
+    if (deltas.size() > maxResyncDeltas || deltas.isEmpty()
+        || !deltas.get(deltas.size() - 1).getResultingVersion().equals(currentVersion)) {
+      return null;
+    }
+    return deltas;
+  }
+
+  /**
+   * Resynchronizes a wavelet known by the client. The first update tells the
+   * version the client reconnects at and the current version, so the client
+   * can reconcile the deltas it has not seen acknowledged, and each missing
+   * delta follows in its own update (see WAVE-446 in
+   * {@link WaveViewSubscription}).
+   */
+  private static void sendResync(WaveletName waveletName, HashedVersion knownVersion,
+      CommittedWaveletSnapshot currentSnapshot, List<TransformedWaveletDelta> missingDeltas,
+      String channelId, OpenListener openListener) {
+    openListener.onReconnect(waveletName, knownVersion,
+        currentSnapshot.snapshot.getHashedVersion(), currentSnapshot.committedVersion, channelId);
+    for (TransformedWaveletDelta delta : missingDeltas) {
+      openListener.onUpdate(waveletName, null, DeltaSequence.of(delta), null, null, channelId);
+    }
+  }
+
   private String generateChannelID() {
     return "ch" + channel_counter.addAndGet(1);
   }
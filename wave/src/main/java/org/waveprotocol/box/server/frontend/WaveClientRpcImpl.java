@@ -20,6 +20,8 @@
 package org.waveprotocol.box.server.frontend;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 
@@ -37,6 +39,7 @@ import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListe
 import org.waveprotocol.wave.concurrencycontrol.common.ChannelException;
 import org.waveprotocol.wave.concurrencycontrol.common.Recoverable;
 import org.waveprotocol.wave.concurrencycontrol.common.ResponseCode;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.InvalidIdException;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
@@ -50,6 +53,7 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -66,6 +70,14 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
   private final ClientFrontend frontend;
   private final boolean handleAuthentication;
 
+  /**
+   * Serialized form of recently broadcast deltas, keyed by delta identity. The
+   * same delta is delivered to every channel open on its wavelet; sharing the
+   * serialized instance lets the transport encode it once for all of them.
+   */
+  private final Cache<TransformedWaveletDelta, ProtocolWaveletDelta> serializedDeltas =
+      CacheBuilder.newBuilder().weakKeys().expireAfterAccess(1, TimeUnit.MINUTES).build();
+
   /**
    * Creates a new RPC interface to the front-end.
    *
@@ -121,7 +133,7 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
             for (TransformedWaveletDelta d : deltas) {
               // TODO(anorth): Add delta application metadata to the result
               // when the c/s protocol supports it.
-              builder.addAppliedDelta(CoreWaveletOperationSerializer.serialize(d));
+              builder.addAppliedDelta(serialize(d));
             }
             if (!deltas.isEmpty()) {
               builder.setResultingVersion(CoreWaveletOperationSerializer.serialize(
@@ -145,9 +157,39 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
             }
             done.run(builder.build());
           }
+
+          @Override
+          public void onReconnect(WaveletName waveletName, HashedVersion connectVersion,
+              HashedVersion currentVersion, HashedVersion committedVersion, String channel_id) {
+            // The reconnection is told by an empty delta at the signed connect
+            // version, while the resulting version is the current one.
+            ProtocolWaveletDelta reconnect = ProtocolWaveletDelta.newBuilder()
+                .setAuthor(loggedInUser.getAddress())
+                .setHashedVersion(CoreWaveletOperationSerializer.serialize(connectVersion))
+                .build();
+            ProtocolWaveletUpdate.Builder builder = ProtocolWaveletUpdate.newBuilder();
+            if (channel_id != null) {
+              builder.setChannelId(channel_id);
+            }
+            builder.setWaveletName(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
+            builder.addAppliedDelta(reconnect);
+            builder.setResultingVersion(CoreWaveletOperationSerializer.serialize(currentVersion));
+            builder.setCommitNotice(CoreWaveletOperationSerializer.serialize(committedVersion));
+            done.run(builder.build());
+          }
         });
   }
 
+  /** Serializes a delta, sharing the result between channels. */
+  private ProtocolWaveletDelta serialize(TransformedWaveletDelta delta) {
+    ProtocolWaveletDelta serialized = serializedDeltas.getIfPresent(delta);
+    if (serialized == null) {
+      serialized = CoreWaveletOperationSerializer.serialize(delta);
+      serializedDeltas.put(delta, serialized);
+    }
+    return serialized;
+  }
+
   @Override
   public void submit(RpcController controller, ProtocolSubmitRequest request,
       final RpcCallback<ProtocolSubmitResponse> done) {
@@ -87,6 +87,15 @@ public class FakeClientFrontend implements ClientFrontend, WaveBus.Subscriber {
     }
   }
 
+  /** Reports the resynchronization of a wavelet known by the client */
+  public void doReconnect(WaveletName waveletName, HashedVersion connectVersion,
+      HashedVersion currentVersion, HashedVersion committedVersion) {
+    OpenListener listener = openListeners.get(waveletName.waveId);
+    if (listener != null) {
+      listener.onReconnect(waveletName, connectVersion, currentVersion, committedVersion, null);
+    }
+  }
+
   @Override
   public void openRequest(ParticipantId participant, WaveId waveId, IdFilter waveletIdFilter,
       Collection<WaveClientRpc.WaveletVersion> knownWavelets, OpenListener openListener) {
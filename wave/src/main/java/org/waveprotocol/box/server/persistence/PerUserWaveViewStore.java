@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.List;
+
+/**
+ * Stores the inverted index of the wavelets each participant takes part in,
+ * which are the per user wave views of the search.
+ */
+public interface PerUserWaveViewStore {
+
+  /**
+   * Adds a wavelet to the view of a participant, or updates its last modified
+   * time if it's already in the view.
+   */
+  void putWavelet(ParticipantId participant, WaveletName waveletName, long lastModifiedTime)
+      throws PersistenceException;
+
+  /**
+   * Removes a wavelet from the view of a participant. Does nothing if it's not
+   * in the view.
+   */
+  void removeWavelet(ParticipantId participant, WaveletName waveletName)
+      throws PersistenceException;
+
+  /**
+   * Returns a page of the view of a participant, the most recently modified
+   * wavelets first.
+   *
+   * @param participant the participant.
+   * @param startAt the index of the first wavelet to return.
+   * @param numResults the maximum number of wavelets to return.
+   */
+  List<WaveletName> getWavelets(ParticipantId participant, int startAt, int numResults)
+      throws PersistenceException;
+
+  /**
+   * Returns whether the views of all the wavelets stored before the store was
+   * in use have been added, see {@link #setBackfilled()}.
+   */
+  boolean isBackfilled() throws PersistenceException;
+
+  /**
+   * Records that the views of all the wavelets stored before the store was in
+   * use have been added, so they're not added again on the next start.
+   */
+  void setBackfilled() throws PersistenceException;
+}
@@ -23,8 +23,11 @@ import org.waveprotocol.box.server.persistence.file.FileAccountAttachmentStore;
 import org.waveprotocol.box.server.persistence.file.FileAccountStore;
 import org.waveprotocol.box.server.persistence.file.FileAttachmentStore;
 import org.waveprotocol.box.server.persistence.file.FileDeltaStore;
+import org.waveprotocol.box.server.persistence.file.FilePerUserWaveViewStore;
 import org.waveprotocol.box.server.persistence.file.FileSignerInfoStore;
+import org.waveprotocol.box.server.persistence.file.SegmentedDeltaStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryStore;
 import org.waveprotocol.box.server.persistence.mongodb.MongoDbProvider;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
@@ -50,6 +53,10 @@ import com.typesafe.config.Config;
  *<p>
  *The valid names for the account store are 'memory', 'file' and 'mongodb'.
  *
+ *<p>
+ *The valid names for the per user wave view store are 'memory', 'file' and
+ *'mongodb'.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class PersistenceModule extends AbstractModule {
@@ -62,6 +69,8 @@ public class PersistenceModule extends AbstractModule {
 
   private final String deltaStoreType;
 
+  private final String perUserWaveViewStoreType;
+
   private MongoDbProvider mongoDbProvider;
 
   private final String mongoDBHost;
@@ -70,6 +79,8 @@ public class PersistenceModule extends AbstractModule {
 
   private final String mongoDBdatabase;
 
+  private final Config config;
+
 
   @Inject
   public PersistenceModule(Config config) {
@@ -77,9 +88,11 @@ public class PersistenceModule extends AbstractModule {
     this.attachmentStoreType = config.getString("core.attachment_store_type");
     this.accountStoreType = config.getString("core.account_store_type");
     this.deltaStoreType = config.getString("core.delta_store_type");
+    this.perUserWaveViewStoreType = config.getString("core.per_user_wave_view_store_type");
     this.mongoDBHost = config.getString("core.mongodb_host");
     this.mongoDBPort = config.getString("core.mongodb_port");
     this.mongoDBdatabase = config.getString("core.mongodb_database");
+    this.config = config;
   }
 
   /**
@@ -88,7 +101,7 @@ public class PersistenceModule extends AbstractModule {
   @Provides
   public MongoDbProvider getMongoDbProvider() {
     if (mongoDbProvider == null) {
-      mongoDbProvider = new MongoDbProvider(mongoDBHost, mongoDBPort, mongoDBdatabase);
+      mongoDbProvider = new MongoDbProvider(mongoDBHost, mongoDBPort, mongoDBdatabase, config);
     }
     return mongoDbProvider;
   }
@@ -99,6 +112,7 @@ public class PersistenceModule extends AbstractModule {
     bindAttachmentStore();
     bindAccountStore();
     bindDeltaStore();
+    bindPerUserWaveViewStore();
     bindOtherStores();
   }
 
@@ -157,6 +171,9 @@ public class PersistenceModule extends AbstractModule {
     } else if (deltaStoreType.equalsIgnoreCase("file")) {
       bind(DeltaStore.class).to(FileDeltaStore.class).in(Singleton.class);
       bind(DeltaStoreTransient.class).to(MemoryDeltaStore.class).in(Singleton.class);
+    } else if (deltaStoreType.equalsIgnoreCase("segmented")) {
+      bind(DeltaStore.class).to(SegmentedDeltaStore.class).in(Singleton.class);
+      bind(DeltaStoreTransient.class).to(MemoryDeltaStore.class).in(Singleton.class);
     } else if (deltaStoreType.equalsIgnoreCase("mongodb")) {
 
       MongoDbProvider mongoDbProvider = getMongoDbProvider();
@@ -169,6 +186,21 @@ public class PersistenceModule extends AbstractModule {
     }
   }
 
+  private void bindPerUserWaveViewStore() {
+    if (perUserWaveViewStoreType.equalsIgnoreCase("memory")) {
+      bind(PerUserWaveViewStore.class).to(MemoryPerUserWaveViewStore.class).in(Singleton.class);
+    } else if (perUserWaveViewStoreType.equalsIgnoreCase("file")) {
+      bind(PerUserWaveViewStore.class).to(FilePerUserWaveViewStore.class).in(Singleton.class);
+    } else if (perUserWaveViewStoreType.equalsIgnoreCase("mongodb")) {
+      MongoDbProvider mongoDbProvider = getMongoDbProvider();
+      bind(PerUserWaveViewStore.class).toInstance(
+          mongoDbProvider.provideMongoDbPerUserWaveViewStore());
+    } else {
+      throw new RuntimeException(
+          "Invalid per user wave view store type: '" + perUserWaveViewStoreType + "'");
+    }
+  }
+
   private void bindOtherStores() {
     if (deltaStoreType.equalsIgnoreCase("mongodb")) {
       MongoDbProvider mongoDbProvider = getMongoDbProvider();
@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.protobuf.ByteString;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Positioned reads over a deltas file.
+ *
+ * Two implementations are provided: one reading through a {@link RandomAccessFile} and one
+ * reading from a read-only memory mapping of the file. The mapping is extended on demand as the
+ * file grows, so the mapped reader can be used while deltas are appended to the file.
+ *
+ * Like {@link FileDeltaCollection}, readers are <em>not</em> multithread-safe.
+ */
+abstract class DeltaFileReader {
+
+  /** Largest region that fits in a single mapping. */
+  private static final long MAX_MAPPED_LENGTH = Integer.MAX_VALUE;
+
+  /**
+   * Creates a reader sharing the file pointer of the given file.
+   */
+  static DeltaFileReader of(RandomAccessFile file) {
+    return new StreamReader(file);
+  }
+
+  /**
+   * Creates a reader over a read-only memory mapping of the given file. Files larger than
+   * a single mapping are read through the channel beyond the mapped region.
+   */
+  static DeltaFileReader mapped(RandomAccessFile file) {
+    return new MappedReader(file.getChannel());
+  }
+
+  /** @return the current position in the file. */
+  abstract long position() throws IOException;
+
+  /** Moves to the given position of the file. */
+  abstract void seek(long position) throws IOException;
+
+  /** @return the length of the file. */
+  abstract long length() throws IOException;
+
+  /** Reads a big-endian int at the current position. */
+  abstract int readInt() throws IOException;
+
+  /** Reads the given number of bytes at the current position. */
+  abstract ByteString readBytes(int length) throws IOException;
+
+  /** Skips the given number of bytes. */
+  void skipBytes(int length) throws IOException {
+    seek(position() + length);
+  }
+
+  /**
+   * @return how many of the given number of bytes after the current position are beyond the
+   *         end of the file.
+   */
+  long missingBytes(long length) throws IOException {
+    return position() + length - length();
+  }
+
+  /**
+   * Reads through the file pointer of a {@link RandomAccessFile}.
+   */
+  private static class StreamReader extends DeltaFileReader {
+    private final RandomAccessFile file;
+
+    StreamReader(RandomAccessFile file) {
+      this.file = file;
+    }
+
+    @Override
+    long position() throws IOException {
+      return file.getFilePointer();
+    }
+
+    @Override
+    void seek(long position) throws IOException {
+      file.seek(position);
+    }
+
+    @Override
+    long length() throws IOException {
+      return file.length();
+    }
+
+    @Override
+    int readInt() throws IOException {
+      return file.readInt();
+    }
+
+    @Override
+    ByteString readBytes(int length) throws IOException {
+      byte[] bytes = new byte[length];
+      file.readFully(bytes);
+      return ByteString.copyFrom(bytes);
+    }
+  }
+
+  /**
+   * Reads from a memory mapping of the file, avoiding a system call per read.
+   */
+  private static class MappedReader extends DeltaFileReader {
+    private final FileChannel channel;
+    private MappedByteBuffer mapping;
+    private long position;
+
+    /** Length of the file when it was last checked. */
+    private long size;
+
+    MappedReader(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    long position() {
+      return position;
+    }
+
+    @Override
+    void seek(long position) {
+      this.position = position;
+    }
+
+    @Override
+    long length() throws IOException {
+      size = channel.size();
+      return size;
+    }
+
+    @Override
+    long missingBytes(long length) throws IOException {
+      // Only ask the file for its length if the bytes aren't known to be there.
+      long missing = position + length - size;
+      return missing > 0 ? super.missingBytes(length) : missing;
+    }
+
+    @Override
+    int readInt() throws IOException {
+      int value = region(4).getInt();
+      position += 4;
+      return value;
+    }
+
+    @Override
+    ByteString readBytes(int length) throws IOException {
+      ByteString bytes = ByteString.copyFrom(region(length));
+      position += length;
+      return bytes;
+    }
+
+    /**
+     * Returns a buffer holding the given number of bytes at the current position. The buffer
+     * is a view of the mapping whenever the bytes are mapped.
+     */
+    private ByteBuffer region(int length) throws IOException {
+      long end = position + length;
+      if (mapping == null || (end > mapping.capacity() && mapping.capacity() < MAX_MAPPED_LENGTH)) {
+        mapping = channel.map(MapMode.READ_ONLY, 0, Math.min(length(), MAX_MAPPED_LENGTH));
+      }
+      if (end <= mapping.capacity()) {
+        ByteBuffer view = mapping.duplicate();
+        view.position((int) position);
+        view.limit((int) end);
+        return view;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+}
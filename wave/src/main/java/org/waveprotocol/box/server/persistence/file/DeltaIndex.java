@@ -19,14 +19,23 @@
 
 package org.waveprotocol.box.server.persistence.file;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
 import org.waveprotocol.wave.model.util.Pair;
+import org.waveprotocol.wave.util.logging.Log;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * An index for quickly accessing deltas. The index is an array of longs, one for each version.
@@ -36,6 +45,14 @@ import java.io.RandomAccessFile;
  *
  * Internal format:
  *
+ * The file starts with a header which records how much of the deltas file is covered by the
+ * index, how many records were committed and a CRC32 checksum of those records. The header lets
+ * an existing index be trusted when the collection is reopened, so only deltas appended after
+ * the last commit (for instance, after a crash) have to be scanned.
+ * <pre>
+ * Header: | magic (4) | version (4) | deltas length (8) | records (8) | checksum (8) |
+ * </pre>
+ *
  * Let's assume that operations are 10 bytes long. Deltas are separated by |.
  * <pre>
  * Deltas:    |  0  1  2 |  3 |  4  5 |
@@ -48,34 +65,103 @@ import java.io.RandomAccessFile;
  * the delta containing the op, so that finding the delta leading to a version is easy: just read
  * the previous index entry.
  *
+ * The index can optionally be read through a read-only memory mapping of its records, so a
+ * lookup costs no system call. The mapping is extended on demand as records are added.
+ *
  * @author josephg@google.com (Joseph Gentle)
  */
 public class DeltaIndex {
   /** Returned from methods when there is no record for a specified version. */
   public static final int NO_RECORD_FOR_VERSION = -1;
 
+  private static final Log LOG = Log.get(DeltaIndex.class);
+
+  private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'I', 'D', 'X'};
+  private static final int FILE_PROTOCOL_VERSION = 1;
+  private static final int HEADER_LENGTH = 32;
+
   private static final int RECORD_LENGTH = 8;
+
+  /** Largest number of records that fit in a single mapping. */
+  private static final long MAX_MAPPED_RECORDS = Integer.MAX_VALUE / RECORD_LENGTH;
+
+  /** Size of the chunks read while verifying the checksum of an existing index. */
+  private static final int CHECKSUM_BUFFER_LENGTH = 64 * 1024;
+
+  @Stat(name = "delta-index-full-rebuilds",
+      help = "Number of delta indexes rebuilt from the whole deltas file")
+  @VisibleForTesting
+  static final AtomicLong fullRebuilds = new AtomicLong();
+
+  @Stat(name = "delta-index-tail-repairs",
+      help = "Number of delta indexes completed from the last indexed offset")
+  @VisibleForTesting
+  static final AtomicLong tailRepairs = new AtomicLong();
+
+  @Stat(name = "delta-index-reuses",
+      help = "Number of delta indexes reused without scanning the deltas file")
+  private static final AtomicLong reuses = new AtomicLong();
+
+  static {
+    Statistic.trackClass(DeltaIndex.class);
+  }
+
   private final File fileRef;
+  private final boolean memoryMapped;
   private RandomAccessFile file;
 
+  /** Running checksum of the records in the index. */
+  private CRC32 checksum;
+
+  /** Number of records in the index. */
+  private long recordCount;
+
+  /** Mapped records, if the index is memory mapped. */
+  private LongBuffer mappedRecords;
+
   public DeltaIndex(File indexFile) {
+    this(indexFile, false);
+  }
+
+  /**
+   * @param indexFile the index file
+   * @param memoryMapped whether lookups read from a memory mapping of the index
+   */
+  public DeltaIndex(File indexFile, boolean memoryMapped) {
     this.fileRef = indexFile;
+    this.memoryMapped = memoryMapped;
   }
 
   /**
-   * Open the index.
+   * Open the index. An existing index is reused if its header matches the deltas file;
+   * deltas written after the last commit are indexed from the last indexed offset onward.
+   * Otherwise the index is rebuilt.
    *
    * @param baseCollection the collection which the index indexes.
    * @throws IOException
    */
   public void openForCollection(FileDeltaCollection baseCollection) throws IOException {
-    if (!fileRef.exists()) {
-      fileRef.mkdirs();
-      rebuildIndexFromDeltas(baseCollection);
-    } else {
-      // TODO(josephg): For now, we just rebuild the index anyway.
-      rebuildIndexFromDeltas(baseCollection);
+    long deltasLength = baseCollection.getDeltasFileLength();
+    long indexedDeltasLength = -1;
+    if (fileRef.exists()) {
+      file = FileUtils.getOrCreateFile(fileRef);
+      indexedDeltasLength = readAndVerifyHeader();
     }
+
+    if (indexedDeltasLength == deltasLength) {
+      reuses.incrementAndGet();
+      return;
+    }
+    if (indexedDeltasLength >= 0 && indexedDeltasLength < deltasLength) {
+      tailRepairs.incrementAndGet();
+      if (indexTail(baseCollection, indexedDeltasLength)) {
+        return;
+      }
+    }
+    if (deltasLength > FileDeltaCollection.FILE_HEADER_LENGTH) {
+      fullRebuilds.incrementAndGet();
+    }
+    rebuildIndexFromDeltas(baseCollection);
   }
 
   private void checkOpen() {
@@ -98,10 +184,144 @@ public class DeltaIndex {
     }
 
     file = FileUtils.getOrCreateFile(fileRef);
+    file.setLength(HEADER_LENGTH);
+    checksum = new CRC32();
+    recordCount = 0;
+    mappedRecords = null;
+
+    for (Pair<Pair<Long, Integer>, Long> pair :
+        collection.getOffsetsIterator(FileDeltaCollection.FILE_HEADER_LENGTH)) {
+      addDelta(pair.first.first, pair.first.second, pair.second);
+    }
+  }
 
-    for (Pair<Pair<Long, Integer>, Long> pair : collection.getOffsetsIterator()) {
+  /**
+   * Indexes the deltas stored after the given offset, which must be the end of the last
+   * indexed delta.
+   *
+   * @return false if the deltas in the tail don't follow the indexed ones.
+   */
+  private boolean indexTail(FileDeltaCollection collection, long offset) throws IOException {
+    long length = length();
+    if (length > 0 && collection.getDeltaEndOffset(getOffsetForEndVersion(length)) != offset) {
+      LOG.warning("Last delta indexed by " + fileRef + " doesn't end at its committed length");
+      return false;
+    }
+    for (Pair<Pair<Long, Integer>, Long> pair : collection.getOffsetsIterator(offset)) {
+      if (pair.first.first != length()) {
+        LOG.warning("Delta at offset " + pair.second + " of " + fileRef
+            + " does not follow the indexed deltas");
+        return false;
+      }
       addDelta(pair.first.first, pair.first.second, pair.second);
     }
+    return true;
+  }
+
+  /**
+   * Reads the header of an existing index and checks the stored records against the stored
+   * checksum. Uncommitted records are dropped.
+   *
+   * @return the length of the deltas file covered by the index, or -1 if the index can't be
+   *         trusted.
+   */
+  private long readAndVerifyHeader() throws IOException {
+    if (file.length() < HEADER_LENGTH) {
+      return -1;
+    }
+    file.seek(0);
+    byte[] magic = new byte[FILE_MAGIC_BYTES.length];
+    file.readFully(magic);
+    if (!Arrays.equals(FILE_MAGIC_BYTES, magic) || file.readInt() != FILE_PROTOCOL_VERSION) {
+      return -1;
+    }
+    long indexedDeltasLength = file.readLong();
+    long records = file.readLong();
+    long storedChecksum = file.readLong();
+    if (indexedDeltasLength < FileDeltaCollection.FILE_HEADER_LENGTH || records < 0
+        || HEADER_LENGTH + records * RECORD_LENGTH > file.length()) {
+      return -1;
+    }
+
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[CHECKSUM_BUFFER_LENGTH];
+    long remaining = records * RECORD_LENGTH;
+    while (remaining > 0) {
+      int read = (int) Math.min(buffer.length, remaining);
+      file.readFully(buffer, 0, read);
+      crc.update(buffer, 0, read);
+      remaining -= read;
+    }
+    if (crc.getValue() != storedChecksum) {
+      LOG.warning("Checksum mismatch in delta index " + fileRef);
+      return -1;
+    }
+
+    file.setLength(HEADER_LENGTH + records * RECORD_LENGTH);
+    checksum = crc;
+    recordCount = records;
+    return indexedDeltasLength;
+  }
+
+  /**
+   * A state of the index which can be committed later on, once the deltas it covers are
+   * durably stored.
+   */
+  static final class Checkpoint {
+    private final long deltasLength;
+    private final long records;
+    private final long checksum;
+
+    private Checkpoint(long deltasLength, long records, long checksum) {
+      this.deltasLength = deltasLength;
+      this.records = records;
+      this.checksum = checksum;
+    }
+
+    /** @return true if this checkpoint covers more records than the given one. */
+    boolean isAfter(Checkpoint other) {
+      return other == null || records > other.records;
+    }
+  }
+
+  /**
+   * Captures the current state of the index.
+   *
+   * @param deltasLength length of the deltas file covered by the index.
+   */
+  Checkpoint checkpoint(long deltasLength) {
+    checkOpen();
+    return new Checkpoint(deltasLength, recordCount, checksum.getValue());
+  }
+
+  /**
+   * Records in the header that the index covers the deltas file up to the given length. Until
+   * the index is committed, records added since the last commit are reindexed from the deltas
+   * file on the next open.
+   *
+   * @param deltasLength length of the deltas file covered by the index.
+   * @throws IOException
+   */
+  public void commit(long deltasLength) throws IOException {
+    commit(checkpoint(deltasLength));
+  }
+
+  /**
+   * Records a previously captured state of the index in the header.
+   *
+   * @throws IOException
+   */
+  void commit(Checkpoint checkpoint) throws IOException {
+    checkOpen();
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.put(FILE_MAGIC_BYTES);
+    header.putInt(FILE_PROTOCOL_VERSION);
+    header.putLong(checkpoint.deltasLength);
+    header.putLong(checkpoint.records);
+    header.putLong(checkpoint.checksum);
+    file.seek(0);
+    file.write(header.array());
   }
 
   /**
@@ -112,10 +332,10 @@ public class DeltaIndex {
    * @throws IOException
    */
   public long getOffsetForVersion(long version) throws IOException {
-    if (!seekToPosition(version)) {
+    if (!isValidPosition(version)) {
       return NO_RECORD_FOR_VERSION;
     }
-    long offset = file.readLong();
+    long offset = readRecord(version);
     return offset < 0 ? NO_RECORD_FOR_VERSION : offset;
   }
 
@@ -127,41 +347,44 @@ public class DeltaIndex {
    * @throws IOException
    */
   public long getOffsetForEndVersion(long version) throws IOException {
-    if (!seekToPosition(version - 1)) {
+    if (!isValidPosition(version - 1)) {
       return NO_RECORD_FOR_VERSION;
     }
-    long offset = file.readLong();
-    try {
-      if (file.readLong() < 0) {
-        // user tried to read something which isn't an end version
-        return NO_RECORD_FOR_VERSION;
-      }
-    } catch (EOFException e) {
-      // it's ok to hit the end of the file, for the last end version
+    long offset = readRecord(version - 1);
+    // it's ok to hit the end of the index, for the last end version
+    if (isValidPosition(version) && readRecord(version) < 0) {
+      // user tried to read something which isn't an end version
+      return NO_RECORD_FOR_VERSION;
     }
     return offset < 0 ? ~offset : offset;
   }
 
   /**
-   * Seeks to the corresponding version, if it is valid.
-   *
-   * @param version version to seek to.
-   * @return true iff the position is valid
-   * @throws IOException
+   * @param version version to look up.
+   * @return true iff the index has a record for the version
    */
-  private boolean seekToPosition(long version) throws IOException {
-    if (version < 0) {
-      return false;
-    }
+  private boolean isValidPosition(long version) {
     checkOpen();
+    return version >= 0 && version < recordCount;
+  }
 
-    long position = version * RECORD_LENGTH;
-    if (position >= file.length()) {
-      return false;
+  /**
+   * Reads the record of a version, which must be in the index.
+   */
+  private long readRecord(long version) throws IOException {
+    if (memoryMapped) {
+      if (mappedRecords == null
+          || (version >= mappedRecords.limit() && mappedRecords.limit() < MAX_MAPPED_RECORDS)) {
+        long records = Math.min(recordCount, MAX_MAPPED_RECORDS);
+        mappedRecords = file.getChannel()
+            .map(MapMode.READ_ONLY, HEADER_LENGTH, records * RECORD_LENGTH).asLongBuffer();
+      }
+      if (version < mappedRecords.limit()) {
+        return mappedRecords.get((int) version);
+      }
     }
-
-    file.seek(position);
-    return true;
+    file.seek(HEADER_LENGTH + version * RECORD_LENGTH);
+    return file.readLong();
   }
 
   /**
@@ -175,17 +398,21 @@ public class DeltaIndex {
       throws IOException {
     checkOpen();
 
-    long position = version * RECORD_LENGTH;
+    long position = HEADER_LENGTH + version * RECORD_LENGTH;
     // We're expected to append the new delta
     long fileLength = file.length();
     Preconditions.checkState(position == fileLength,
         "position = %d, file=%d", position, fileLength);
-    file.seek(position);
-    file.writeLong(offset);
+    ByteBuffer records = ByteBuffer.allocate(Math.max(numOperations, 1) * RECORD_LENGTH);
+    records.putLong(offset);
     // fill in the additional positions with the 1-complement of the offset,
     for (int i = 1; i < numOperations; i++) {
-      file.writeLong(~offset);
+      records.putLong(~offset);
     }
+    checksum.update(records.array());
+    file.seek(position);
+    file.write(records.array());
+    recordCount += records.capacity() / RECORD_LENGTH;
   }
 
   /**
@@ -193,21 +420,14 @@ public class DeltaIndex {
    */
   public long length() {
     checkOpen();
-
-    long fileLength;
-    try {
-      fileLength = file.length();
-    } catch (IOException e) {
-      // This shouldn't happen in practice.
-      throw new RuntimeException("IO error reading index file length", e);
-    }
-    return fileLength / RECORD_LENGTH;
+    return recordCount;
   }
 
   public void close() throws IOException {
     if (file != null) {
       file.close();
       file = null;
+      mappedRecords = null;
     }
   }
 }
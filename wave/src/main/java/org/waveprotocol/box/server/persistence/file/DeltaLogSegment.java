@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * The segment deltas are appended to. Records are written uncompressed, each one framed by its
+ * length, the resulting version of its delta and a checksum, so the index is rebuilt by scanning
+ * the segment when it is opened, and a partially written record at the end is dropped.
+ *
+ * Header: | magic (4) | version (4) |
+ * Frame: | record length (4) | resulting version (8) | CRC32 of the record (4) |
+ */
+class DeltaLogSegment extends DeltaSegment {
+  private static final Log LOG = Log.get(DeltaLogSegment.class);
+
+  private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'S', 'L', 'G'};
+  private static final int FILE_PROTOCOL_VERSION = 1;
+  private static final int FILE_HEADER_LENGTH = 8;
+
+  private static final int FRAME_LENGTH = 16;
+
+  private final File path;
+  private final RandomAccessFile file;
+
+  /**
+   * Opens a log segment, creating it if it doesn't exist. Trailing junk left by an interrupted
+   * write is truncated.
+   *
+   * @param path the segment file
+   * @param startVersion version the first delta of the segment is applied at
+   */
+  static DeltaLogSegment open(File path, long startVersion) throws IOException {
+    DeltaLogSegment segment =
+        new DeltaLogSegment(path, FileUtils.getOrCreateFile(path), startVersion);
+    try {
+      segment.scan();
+    } catch (IOException e) {
+      segment.close();
+      throw e;
+    }
+    return segment;
+  }
+
+  private DeltaLogSegment(File path, RandomAccessFile file, long startVersion) {
+    super(startVersion, FRAME_LENGTH);
+    this.path = path;
+    this.file = file;
+  }
+
+  /**
+   * Checks the header and indexes the valid records of the segment.
+   */
+  private void scan() throws IOException {
+    if (file.length() < FILE_HEADER_LENGTH) {
+      file.setLength(0);
+      file.write(FILE_MAGIC_BYTES);
+      file.writeInt(FILE_PROTOCOL_VERSION);
+    } else {
+      byte[] magic = new byte[4];
+      file.seek(0);
+      file.readFully(magic);
+      if (!Arrays.equals(FILE_MAGIC_BYTES, magic) || file.readInt() != FILE_PROTOCOL_VERSION) {
+        throw new IOException("Invalid delta log segment header in " + path);
+      }
+    }
+
+    initIndex(FILE_HEADER_LENGTH);
+    long length = file.length();
+    long position = FILE_HEADER_LENGTH;
+    long lastVersion = getStartVersion();
+    CRC32 crc = new CRC32();
+    while (position + FRAME_LENGTH <= length) {
+      file.seek(position);
+      int recordLength = file.readInt();
+      long resultingVersion = file.readLong();
+      int checksum = file.readInt();
+      if (recordLength < 4 || position + FRAME_LENGTH + recordLength > length
+          || resultingVersion <= lastVersion) {
+        break;
+      }
+      byte[] record = new byte[recordLength];
+      file.readFully(record);
+      crc.reset();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      position += FRAME_LENGTH + recordLength;
+      addToIndex(resultingVersion, position);
+      lastVersion = resultingVersion;
+    }
+
+    if (position < length) {
+      LOG.warning("Truncating " + (length - position) + " bytes of trailing junk in " + path);
+      file.setLength(position);
+    }
+  }
+
+  /**
+   * Appends deltas to the segment, without forcing them to disk.
+   *
+   * @return the number of bytes written.
+   */
+  long append(Collection<WaveletDeltaRecord> deltas) throws IOException {
+    long start = getEndOffset();
+    long position = start;
+    CRC32 crc = new CRC32();
+    for (WaveletDeltaRecord delta : deltas) {
+      byte[] record = encodeRecord(delta);
+      crc.reset();
+      crc.update(record);
+      ByteBuffer frame = ByteBuffer.allocate(FRAME_LENGTH + record.length);
+      frame.putInt(record.length);
+      frame.putLong(delta.getResultingVersion().getVersion());
+      frame.putInt((int) crc.getValue());
+      frame.put(record);
+      file.seek(position);
+      file.write(frame.array());
+      position += frame.capacity();
+      addToIndex(delta.getResultingVersion().getVersion(), position);
+    }
+    return position - start;
+  }
+
+  @Override
+  protected ByteBuffer readBytes(long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    file.seek(offset);
+    file.readFully(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /** @return the channel of the segment file, to force it to disk. */
+  FileChannel getChannel() {
+    return file.getChannel();
+  }
+
+  /** @return the segment file. */
+  File getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
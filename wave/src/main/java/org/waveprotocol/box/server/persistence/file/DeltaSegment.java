@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.waveserver.AppliedDeltaUtil;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A contiguous run of the deltas of a wavelet, stored in a single file of a
+ * {@link SegmentedDeltaCollection}.
+ *
+ * A segment keeps an index of the versions its deltas are applied at and of the offsets of
+ * their records, so a delta is found by binary search on the version.
+ *
+ * A record is: | applied delta length (4) | applied delta | transformed delta |. Segments may
+ * frame records with a fixed number of extra bytes, which the offsets include.
+ *
+ * Like {@link FileDeltaCollection}, segments are <em>not</em> multithread-safe.
+ */
+abstract class DeltaSegment implements Closeable {
+
+  private static final int INITIAL_INDEX_CAPACITY = 16;
+
+  /** Version the first delta of the segment is applied at. */
+  private final long startVersion;
+
+  /** Bytes preceding each record in the segment. */
+  private final int frameLength;
+
+  /**
+   * versions[i] is the version delta i is applied at, versions[size] is the resulting version
+   * of the last delta.
+   */
+  private long[] versions;
+
+  /** offsets[i] is the offset of record i, offsets[size] is the end of the last record. */
+  private long[] offsets;
+
+  /** Number of deltas in the segment. */
+  private int size;
+
+  DeltaSegment(long startVersion, int frameLength) {
+    this.startVersion = startVersion;
+    this.frameLength = frameLength;
+  }
+
+  /** Starts an empty index, with the first record at the given offset. */
+  protected void initIndex(long firstRecordOffset) {
+    versions = new long[INITIAL_INDEX_CAPACITY];
+    offsets = new long[INITIAL_INDEX_CAPACITY];
+    versions[0] = startVersion;
+    offsets[0] = firstRecordOffset;
+    size = 0;
+  }
+
+  /** Replaces the index with one read from storage. */
+  protected void setIndex(long[] versions, long[] offsets, int size) {
+    Preconditions.checkArgument(versions.length > size && offsets.length > size,
+        "Index arrays too short");
+    Preconditions.checkArgument(versions[0] == startVersion, "Index starts at wrong version");
+    this.versions = versions;
+    this.offsets = offsets;
+    this.size = size;
+  }
+
+  /** Adds a record ending at the given offset to the index. */
+  protected void addToIndex(long resultingVersion, long endOffset) {
+    Preconditions.checkArgument(resultingVersion > versions[size], "Versions must increase");
+    if (size + 2 > versions.length) {
+      versions = Arrays.copyOf(versions, versions.length * 2);
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    size++;
+    versions[size] = resultingVersion;
+    offsets[size] = endOffset;
+  }
+
+  /**
+   * Makes sure the index is available. Segments loading their index lazily override this.
+   */
+  protected void loadIndex() throws IOException {
+  }
+
+  /**
+   * Reads the given bytes of the segment.
+   */
+  protected abstract ByteBuffer readBytes(long offset, int length) throws IOException;
+
+  /** @return the version the first delta of the segment is applied at. */
+  long getStartVersion() {
+    return startVersion;
+  }
+
+  /** @return the resulting version of the last delta, or the start version if empty. */
+  long getEndVersion() throws IOException {
+    loadIndex();
+    return versions[size];
+  }
+
+  /** @return the number of deltas in the segment. */
+  int size() throws IOException {
+    loadIndex();
+    return size;
+  }
+
+  /** @return the offset where the next record starts. */
+  long getEndOffset() throws IOException {
+    loadIndex();
+    return offsets[size];
+  }
+
+  /** @return the position of the delta applied at the given version, or -1. */
+  int indexOf(long appliedAtVersion) throws IOException {
+    loadIndex();
+    int i = Arrays.binarySearch(versions, 0, size, appliedAtVersion);
+    return i >= 0 ? i : -1;
+  }
+
+  /** @return the position of the delta resulting in the given version, or -1. */
+  int indexOfEndVersion(long resultingVersion) throws IOException {
+    loadIndex();
+    int i = Arrays.binarySearch(versions, 1, size + 1, resultingVersion);
+    return i >= 1 ? i - 1 : -1;
+  }
+
+  /** @return the version delta i is applied at. */
+  long appliedAtVersion(int i) throws IOException {
+    loadIndex();
+    Preconditions.checkElementIndex(i, size);
+    return versions[i];
+  }
+
+  /** @return the resulting version of delta i. */
+  long resultingVersion(int i) throws IOException {
+    loadIndex();
+    Preconditions.checkElementIndex(i, size);
+    return versions[i + 1];
+  }
+
+  /** Reads delta i. */
+  WaveletDeltaRecord read(int i) throws IOException {
+    return decodeRecord(readRecord(i));
+  }
+
+  /** Reads the undecoded record of delta i. */
+  ByteBuffer readRecord(int i) throws IOException {
+    loadIndex();
+    Preconditions.checkElementIndex(i, size);
+    long offset = offsets[i] + frameLength;
+    return readBytes(offset, (int) (offsets[i + 1] - offset));
+  }
+
+  /**
+   * Encodes a delta as a record.
+   */
+  static byte[] encodeRecord(WaveletDeltaRecord delta) {
+    byte[] applied =
+        delta.getAppliedDelta() != null ? delta.getAppliedDelta().getByteArray() : new byte[0];
+    byte[] transformed =
+        ProtoDeltaStoreDataSerializer.serialize(delta.getTransformedDelta()).toByteArray();
+    ByteBuffer record = ByteBuffer.allocate(4 + applied.length + transformed.length);
+    record.putInt(applied.length);
+    record.put(applied);
+    record.put(transformed);
+    return record.array();
+  }
+
+  /**
+   * Decodes a record.
+   */
+  static WaveletDeltaRecord decodeRecord(ByteBuffer record) throws IOException {
+    int appliedLength = record.getInt();
+    if (appliedLength < 0 || appliedLength > record.remaining()) {
+      throw new IOException("Invalid delta record");
+    }
+    try {
+      ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta = null;
+      if (appliedLength > 0) {
+        appliedDelta = ByteStringMessage.parseProtocolAppliedWaveletDelta(
+            ByteString.copyFrom(record, appliedLength));
+      }
+      TransformedWaveletDelta transformedDelta = ProtoDeltaStoreDataSerializer.deserialize(
+          ProtoTransformedWaveletDelta.parseFrom(ByteString.copyFrom(record)));
+      return new WaveletDeltaRecord(AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta),
+          appliedDelta, transformedDelta);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -27,6 +27,7 @@ import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
 
 import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
@@ -51,7 +52,10 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
@@ -65,6 +69,16 @@ import com.google.protobuf.InvalidProtocolBufferException;
  * A particular FileDeltaCollection instance assumes that it's <em>the only one</em> reading and
  * writing a particular wavelet. The methods are <em>not</em> multithread-safe.
  *
+ * Deltas and the index can optionally be read through memory mappings of the files instead of
+ * seeking and reading the files for each record (see {@link DeltaFileReader}).
+ *
+ * Appended deltas are forced to disk through a {@link GroupCommitter}, which may batch the fsync
+ * calls of several appends. The index header is only committed up to the deltas known to be
+ * durable.
+ *
+ * The latest snapshot and contributions of the wavelet are checkpointed beside the deltas file
+ * (see {@link WaveletCheckpoint}), so loading the wavelet only replays the deltas after them.
+ *
  * See this document for design specifics:
  * https://sites.google.com/a/waveprotocol.org/wave-protocol/protocol/design-proposals/wave-store-design-for-wave-in-a-box
  *
@@ -73,10 +87,12 @@ import com.google.protobuf.InvalidProtocolBufferException;
 public class FileDeltaCollection implements DeltasAccess {
   public static final String DELTAS_FILE_SUFFIX = ".deltas";
   public static final String INDEX_FILE_SUFFIX = ".index";
+  public static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+  public static final String CONTRIBUTIONS_FILE_SUFFIX = ".contributions";
 
   private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'A', 'V', 'E'};
   private static final int FILE_PROTOCOL_VERSION = 1;
-  private static final int FILE_HEADER_LENGTH = 8;
+  static final int FILE_HEADER_LENGTH = 8;
 
   private static final int DELTA_PROTOCOL_VERSION = 1;
 
@@ -85,6 +101,17 @@ public class FileDeltaCollection implements DeltasAccess {
   private final WaveletName waveletName;
   private final RandomAccessFile file;
   private final DeltaIndex index;
+  private DeltaFileReader reader;
+  private final GroupCommitter committer;
+
+  /** Snapshot and contributions checkpoint, null if the collection has no backing path. */
+  private final WaveletCheckpoint checkpoint;
+
+  /** The latest index state whose deltas are durably stored. */
+  private volatile DeltaIndex.Checkpoint durableCheckpoint;
+
+  /** The index state last written to the index header. */
+  private DeltaIndex.Checkpoint committedCheckpoint;
 
   private HashedVersion endVersion;
   private boolean isOpen;
@@ -135,17 +162,54 @@ public class FileDeltaCollection implements DeltasAccess {
    */
   public static FileDeltaCollection open(WaveletName waveletName, String basePath)
       throws IOException {
+    return open(waveletName, basePath, false);
+  }
+
+  /**
+   * Opens a file delta collection.
+   *
+   * @param waveletName name of the wavelet to open
+   * @param basePath base path of files
+   * @param memoryMapped whether deltas and index are read through memory mappings
+   * @return an open collection
+   * @throws IOException
+   */
+  public static FileDeltaCollection open(WaveletName waveletName, String basePath,
+      boolean memoryMapped) throws IOException {
+    return open(waveletName, basePath, memoryMapped, GroupCommitter.IMMEDIATE);
+  }
+
+  /**
+   * Opens a file delta collection.
+   *
+   * @param waveletName name of the wavelet to open
+   * @param basePath base path of files
+   * @param memoryMapped whether deltas and index are read through memory mappings
+   * @param committer forces appended deltas to disk
+   * @return an open collection
+   * @throws IOException
+   */
+  static FileDeltaCollection open(WaveletName waveletName, String basePath,
+      boolean memoryMapped, GroupCommitter committer) throws IOException {
     Preconditions.checkNotNull(waveletName, "null wavelet name");
 
     RandomAccessFile deltaFile = FileUtils.getOrCreateFile(deltasFile(basePath, waveletName));
     setOrCheckFileHeader(deltaFile);
-    DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName));
+    DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName), memoryMapped);
 
-    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index);
+    FileDeltaCollection collection =
+        new FileDeltaCollection(waveletName, deltaFile, index, committer,
+            new WaveletCheckpoint(waveletName, snapshotFile(basePath, waveletName),
+                contributionsFile(basePath, waveletName)));
 
     index.openForCollection(collection);
     collection.initializeEndVersionAndTruncateTrailingJunk();
 
+    // Map the deltas file only once trailing junk is truncated.
+    if (memoryMapped) {
+      collection.reader = DeltaFileReader.mapped(deltaFile);
+    }
+
     return collection;
   }
 
@@ -167,9 +231,13 @@ public class FileDeltaCollection implements DeltasAccess {
     File index = indexFile(basePath, waveletName);
     if (index.exists()) {
       if (!index.delete()) {
-        error += "Could not delete index file: " + index.getAbsolutePath();
+        error += "Could not delete index file: " + index.getAbsolutePath() + ". ";
       }
     }
+
+    File snapshot = snapshotFile(basePath, waveletName);
+    File contributions = contributionsFile(basePath, waveletName);
+    error += new WaveletCheckpoint(waveletName, snapshot, contributions).delete();
     if (!error.isEmpty()) {
       throw new PersistenceException(error);
     }
@@ -184,9 +252,17 @@ public class FileDeltaCollection implements DeltasAccess {
    */
   public FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
       DeltaIndex index) {
+    this(waveletName, deltaFile, index, GroupCommitter.IMMEDIATE, null);
+  }
+
+  private FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
+      DeltaIndex index, GroupCommitter committer, WaveletCheckpoint checkpoint) {
     this.waveletName = waveletName;
     this.file = deltaFile;
     this.index = index;
+    this.committer = committer;
+    this.checkpoint = checkpoint;
+    this.reader = DeltaFileReader.of(deltaFile);
     this.isOpen = true;
     lifeCycle.start();
   }
@@ -262,22 +338,54 @@ public class FileDeltaCollection implements DeltasAccess {
   @Override
   public long getDeltasInRange(long startVersion, long endVersion,
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
-    checkIsOpen();
-
-    if (this.endVersion == null) return 0;
-
-    Preconditions.checkState(0 <= startVersion && startVersion < endVersion
-        && endVersion <= this.endVersion.getVersion(),
-        "Invalid delta range");
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
 
-    long version = startVersion;
-    while (seekToRecord(version) && version <= endVersion) {
-      if (!receiver.put(readRecord())) {
-        throw new IllegalStateException("Error processing deltas from file");
+      if (this.endVersion == null) return 0;
+
+      Preconditions.checkState(0 <= startVersion && 0 <= endVersion
+          && startVersion != endVersion
+          && Math.max(startVersion, endVersion) <= this.endVersion.getVersion(),
+          "Invalid delta range");
+
+      long count = 0;
+      if (startVersion < endVersion) {
+        // Records are stored in version order, so after looking up the first one
+        // the range is read sequentially.
+        if (!seekToRecord(startVersion)) {
+          return 0;
+        }
+        long version = startVersion;
+        while (version < endVersion) {
+          WaveletDeltaRecord record = readRecord();
+          if (record.getResultingVersion().getVersion() > endVersion) {
+            break;
+          }
+          count++;
+          if (!receiver.put(record)) {
+            throw new IllegalStateException("Error processing deltas from file");
+          }
+          version = record.getResultingVersion().getVersion();
+        }
+      } else {
+        long version = startVersion;
+        while (version > endVersion && seekToEndRecord(version)) {
+          WaveletDeltaRecord record = readRecord();
+          if (record.getAppliedAtVersion().getVersion() < endVersion) {
+            break;
+          }
+          count++;
+          if (!receiver.put(record)) {
+            throw new IllegalStateException("Error processing deltas from file");
+          }
+          version = record.getAppliedAtVersion().getVersion();
+        }
       }
-      version++;
+      return count;
+    } finally {
+      lifeCycle.leave();
     }
-    return version--;
   }
 
   @Override
@@ -295,6 +403,10 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public void close() throws IOException {
+    if (isOpen) {
+      committer.flush(file.getChannel());
+      commitDurableIndex();
+    }
     file.close();
     index.close();
     endVersion = null;
@@ -303,10 +415,25 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
+    try {
+      appendAsync(deltas).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(e);
+    } catch (ExecutionException e) {
+      throw new PersistenceException(e.getCause());
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> appendAsync(Collection<WaveletDeltaRecord> deltas)
+      throws PersistenceException {
     lifeCycle.enter();
     checkIsOpen();
     try {
-      file.seek(file.length());
+      commitDurableIndex();
+      long startLength = file.length();
+      file.seek(startLength);
 
       WaveletDeltaRecord lastDelta = null;
       for (WaveletDeltaRecord delta : deltas) {
@@ -317,9 +444,27 @@ public class FileDeltaCollection implements DeltasAccess {
         lastDelta = delta;
       }
 
-      // fsync() before returning.
-      file.getChannel().force(true);
+      long length = file.length();
+      final DeltaIndex.Checkpoint checkpoint = index.checkpoint(length);
       endVersion = lastDelta.getTransformedDelta().getResultingVersion();
+
+      ListenableFuture<Void> durable = committer.sync(file.getChannel(), length - startLength);
+      Futures.addCallback(durable, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+          if (checkpoint.isAfter(durableCheckpoint)) {
+            durableCheckpoint = checkpoint;
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          // The index header stays at the last durable deltas.
+        }
+      }, MoreExecutors.directExecutor());
+      // Commits right away when the committer forced the deltas inline.
+      commitDurableIndex();
+      return durable;
     } catch (IOException e) {
       throw new PersistenceException(e);
     } finally {
@@ -327,6 +472,17 @@ public class FileDeltaCollection implements DeltasAccess {
     }
   }
 
+  /**
+   * Writes the latest durable index state to the index header, if it changed.
+   */
+  private void commitDurableIndex() throws IOException {
+    DeltaIndex.Checkpoint checkpoint = durableCheckpoint;
+    if (checkpoint != null && checkpoint != committedCheckpoint) {
+      index.commit(checkpoint);
+      committedCheckpoint = checkpoint;
+    }
+  }
+
   @Override
   public boolean isEmpty() {
     checkIsOpen();
@@ -334,12 +490,42 @@ public class FileDeltaCollection implements DeltasAccess {
   }
 
   /**
-   * Creates a new iterator to move over the positions of the deltas in the file.
+   * @return the length of the deltas file in bytes, including its header.
+   */
+  long getDeltasFileLength() throws IOException {
+    checkIsOpen();
+    return file.length();
+  }
+
+  /**
+   * Reads the header of the delta stored at the given offset.
+   *
+   * @return the offset following the delta, or -1 if there's no valid delta at the offset.
+   */
+  long getDeltaEndOffset(long offset) throws IOException {
+    checkIsOpen();
+    if (offset < FILE_HEADER_LENGTH || offset + DeltaHeader.HEADER_LENGTH > reader.length()) {
+      return -1;
+    }
+    reader.seek(offset);
+    try {
+      DeltaHeader header = readDeltaHeader();
+      return reader.position() + header.appliedDeltaLength + header.transformedDeltaLength;
+    } catch (IOException e) {
+      LOG.warning("No valid delta at offset " + offset + " of " + waveletName, e);
+      return -1;
+    }
+  }
+
+  /**
+   * Creates a new iterator to move over the positions of the deltas in the file, starting at
+   * the delta stored at the given offset.
    *
    * Each pair returned is ((version, numOperations), offset).
    * @throws IOException
    */
-  Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator() throws IOException {
+  Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator(final long startPosition)
+      throws IOException {
     checkIsOpen();
 
     return new Iterable<Pair<Pair<Long, Integer>, Long>>() {
@@ -347,7 +533,7 @@ public class FileDeltaCollection implements DeltasAccess {
       public Iterator<Pair<Pair<Long, Integer>, Long>> iterator() {
         return new Iterator<Pair<Pair<Long, Integer>, Long>>() {
           Pair<Pair<Long, Integer>, Long> nextRecord;
-          long nextPosition = FILE_HEADER_LENGTH;
+          long nextPosition = startPosition;
 
           @Override
           public void remove() {
@@ -368,7 +554,7 @@ public class FileDeltaCollection implements DeltasAccess {
             // We need to actually read the record here because hasNext() should return false
             // if there's any incomplete data at the end of the file.
             try {
-              if (file.length() <= nextPosition) {
+              if (reader.length() <= nextPosition) {
                 // End of file.
                 return false;
               }
@@ -379,11 +565,11 @@ public class FileDeltaCollection implements DeltasAccess {
             if (nextRecord == null) {
               // Read the next record
               try {
-                file.seek(nextPosition);
+                reader.seek(nextPosition);
                 TransformedWaveletDelta transformed = readTransformedDeltaFromRecord();
                 nextRecord = Pair.of(Pair.of(transformed.getAppliedAtVersion(),
                         transformed.size()), nextPosition);
-                nextPosition = file.getFilePointer();
+                nextPosition = reader.position();
               } catch (IOException e) {
                 // The next entry is invalid. There was probably a write error / crash.
                 LOG.severe("Error reading delta file for " + waveletName + " starting at " +
@@ -411,6 +597,18 @@ public class FileDeltaCollection implements DeltasAccess {
     return new File(basePath, waveletPathPrefix + INDEX_FILE_SUFFIX);
   }
 
+  @VisibleForTesting
+  static final File snapshotFile(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + SNAPSHOT_FILE_SUFFIX);
+  }
+
+  @VisibleForTesting
+  static final File contributionsFile(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + CONTRIBUTIONS_FILE_SUFFIX);
+  }
+
   /**
    * Checks that a file has a valid deltas header, adding the header if the
    * file is shorter than the header.
@@ -466,7 +664,7 @@ public class FileDeltaCollection implements DeltasAccess {
       // There's no record for the specified version.
       return false;
     } else {
-      file.seek(offset);
+      reader.seek(offset);
       return true;
     }
   }
@@ -495,7 +693,7 @@ public class FileDeltaCollection implements DeltasAccess {
 
     ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
         readAppliedDelta(header.appliedDeltaLength);
-    file.skipBytes(header.transformedDeltaLength);
+    reader.skipBytes(header.transformedDeltaLength);
 
     return appliedDelta;
   }
@@ -506,7 +704,7 @@ public class FileDeltaCollection implements DeltasAccess {
   private TransformedWaveletDelta readTransformedDeltaFromRecord() throws IOException {
     DeltaHeader header = readDeltaHeader();
 
-    file.skipBytes(header.appliedDeltaLength);
+    reader.skipBytes(header.appliedDeltaLength);
     TransformedWaveletDelta transformedDelta = readTransformedWaveletDelta(
         header.transformedDeltaLength);
 
@@ -518,17 +716,16 @@ public class FileDeltaCollection implements DeltasAccess {
 
   /** Read a header from the file. Does not move the file pointer before reading. */
   private DeltaHeader readDeltaHeader() throws IOException {
-    int version = file.readInt();
+    int version = reader.readInt();
     if (version != DELTA_PROTOCOL_VERSION) {
       throw new IOException("Delta header invalid");
     }
-    int appliedDeltaLength = file.readInt();
-    int transformedDeltaLength = file.readInt();
+    int appliedDeltaLength = reader.readInt();
+    int transformedDeltaLength = reader.readInt();
     DeltaHeader deltaHeader = new DeltaHeader(version, appliedDeltaLength, transformedDeltaLength);
     deltaHeader.checkVersion();
     // Verify the file size.
-    long remaining = file.length() - file.getFilePointer();
-    long missing = (appliedDeltaLength + transformedDeltaLength) - remaining;
+    long missing = reader.missingBytes(appliedDeltaLength + transformedDeltaLength);
     if (missing > 0) {
       throw new IOException("File is corrupted, missing " + missing + " bytes");
     }
@@ -554,10 +751,8 @@ public class FileDeltaCollection implements DeltasAccess {
       return null;
     }
 
-    byte[] bytes = new byte[length];
-    file.readFully(bytes);
     try {
-      return ByteStringMessage.parseProtocolAppliedWaveletDelta(ByteString.copyFrom(bytes));
+      return ByteStringMessage.parseProtocolAppliedWaveletDelta(reader.readBytes(length));
     } catch (InvalidProtocolBufferException e) {
       throw new IOException(e);
     }
@@ -586,11 +781,9 @@ public class FileDeltaCollection implements DeltasAccess {
       throw new IOException("Invalid delta length");
     }
 
-    byte[] bytes = new byte[transformedDeltaLength];
-    file.readFully(bytes);
     ProtoTransformedWaveletDelta delta;
     try {
-      delta = ProtoTransformedWaveletDelta.parseFrom(bytes);
+      delta = ProtoTransformedWaveletDelta.parseFrom(reader.readBytes(transformedDeltaLength));
     } catch (InvalidProtocolBufferException e) {
       throw new IOException(e);
     }
@@ -630,7 +823,8 @@ public class FileDeltaCollection implements DeltasAccess {
   }
 
   /**
-   * Reads the last complete record in the deltas file and truncates any trailing junk.
+   * Reads the last complete record in the deltas file, truncates any trailing junk and commits
+   * the index.
    */
   private void initializeEndVersionAndTruncateTrailingJunk() throws IOException {
     long numRecords = index.length();
@@ -638,10 +832,12 @@ public class FileDeltaCollection implements DeltasAccess {
       endVersion = getDeltaByEndVersion(numRecords).getResultingVersion();
     } else {
       endVersion = null;
+      reader.seek(FILE_HEADER_LENGTH);
     }
-    // The file's position should be at the end. Truncate any
+    // The reader's position should be at the end. Truncate any
     // trailing junk such as from a partially completed write.
-    file.setLength(file.getFilePointer());
+    file.setLength(reader.position());
+    index.commit(file.length());
   }
 
   @Override
@@ -651,14 +847,17 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public Snapshot loadSnapshot() throws PersistenceException {
-    // Not supported!
-    return null;
+    checkIsOpen();
+    return checkpoint != null ? checkpoint.loadSnapshot() : null;
   }
 
   @Override
   public void storeSnapshot(WaveletData waveletData)
       throws PersistenceException {
-    // No-op
+    checkIsOpen();
+    if (checkpoint != null) {
+      checkpoint.storeSnapshot(waveletData);
+    }
   }
 
   @Override
@@ -668,20 +867,23 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public WaveletContributions loadContributions() throws PersistenceException {
-    // Not supported!
-    return null;
+    checkIsOpen();
+    return checkpoint != null ? checkpoint.loadContributions() : null;
   }
 
   @Override
   public WaveletContributions loadContributionsForVersion(long version)
       throws PersistenceException {
-    // Not supported!
-    return null;
+    checkIsOpen();
+    return checkpoint != null ? checkpoint.loadContributions(this, version) : null;
   }
 
   @Override
   public void storeContributions(WaveletContributions contributions) throws PersistenceException {
-    // Not supported!
+    checkIsOpen();
+    if (checkpoint != null) {
+      checkpoint.storeContributions(contributions);
+    }
   }
 
 
@@ -24,6 +24,9 @@ import com.google.inject.Inject;
 import com.typesafe.config.Config;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.stat.Timed;
 import org.waveprotocol.wave.model.id.WaveId;
@@ -56,18 +59,44 @@ public class FileDeltaStore implements DeltaStore {
   /**
    * The directory in which the wavelets are stored
    */
-  final private String basePath;
+  final protected String basePath;
+
+  /**
+   * Whether deltas are read through memory mappings of the files
+   */
+  final private boolean memoryMapped;
+
+  /**
+   * Forces appended deltas to disk, batching the fsync calls of concurrent appends
+   */
+  final protected GroupCommitter committer;
 
   @Inject
   public FileDeltaStore(Config config) {
     this.basePath = config.getString("core.delta_store_directory");
+    this.memoryMapped = config.getBoolean("core.delta_store_memory_mapped");
+
+    long commitWindow = config.getLong("core.delta_store_group_commit_window_ms");
+    if (commitWindow > 0) {
+      long commitBytes = config.getBytes("core.delta_store_group_commit_bytes");
+      this.committer = new GroupCommitter(commitWindow, commitBytes);
+      new LifeCycle(FileDeltaStore.class.getSimpleName(), ShutdownPriority.Storage,
+          new Shutdownable() {
+            @Override
+            public void shutdown() throws Exception {
+              committer.shutdown();
+            }
+          }).start();
+    } else {
+      this.committer = GroupCommitter.IMMEDIATE;
+    }
   }
 
   @Timed
   @Override
-  public FileDeltaCollection open(WaveletName waveletName) throws PersistenceException {
+  public DeltasAccess open(WaveletName waveletName) throws PersistenceException {
     try {
-      return FileDeltaCollection.open(waveletName, basePath);
+      return FileDeltaCollection.open(waveletName, basePath, memoryMapped, committer);
     } catch (IOException e) {
       throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
     }
@@ -78,6 +107,13 @@ public class FileDeltaStore implements DeltaStore {
     FileDeltaCollection.delete(waveletName, basePath);
   }
 
+  /**
+   * @return the suffix of the file or directory holding the deltas of a wavelet.
+   */
+  protected String getCollectionSuffix() {
+    return FileDeltaCollection.DELTAS_FILE_SUFFIX;
+  }
+
   @Timed
   @Override
   public ImmutableSet<WaveletId> lookup(WaveId waveId) throws PersistenceException {
@@ -90,7 +126,7 @@ public class FileDeltaStore implements DeltaStore {
     File[] deltaFiles = waveDir.listFiles(new FilenameFilter() {
       @Override
       public boolean accept(File dir, String name) {
-        return name.endsWith(FileDeltaCollection.DELTAS_FILE_SUFFIX);
+        return name.endsWith(getCollectionSuffix());
       }
     });
 
@@ -98,9 +134,9 @@ public class FileDeltaStore implements DeltaStore {
     for(File deltaFile : deltaFiles) {
       String name = deltaFile.getName();
       String encodedWaveletId =
-          name.substring(0, name.lastIndexOf(FileDeltaCollection.DELTAS_FILE_SUFFIX));
+          name.substring(0, name.lastIndexOf(getCollectionSuffix()));
       WaveletId waveletId = FileUtils.waveletIdFromPathSegment(encodedWaveletId);
-        FileDeltaCollection deltas = open(WaveletName.of(waveId, waveletId));
+        DeltasAccess deltas = open(WaveletName.of(waveId, waveletId));
         HashedVersion endVersion = deltas.getEndVersion();
         if (endVersion != null && endVersion.getVersion() > 0) {
           results.add(waveletId);
@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A flat file based implementation of {@link PerUserWaveViewStore}.
+ *
+ * The view of each participant is kept in its own file, as a journal of
+ * changes appended to it: a line "<last modified time> <wavelet name>" for a
+ * wavelet added or modified, and a line "- <wavelet name>" for a wavelet
+ * removed. The journal is read when the view is accessed and isn't in memory,
+ * and is compacted when it's much longer than the view. An empty "backfilled"
+ * file in the same directory records that the views of the existing wavelets
+ * have been added.
+ *
+ * The views in memory are bounded by their total number of wavelets, the least
+ * recently used views are evicted first.
+ */
+public class FilePerUserWaveViewStore extends MemoryPerUserWaveViewStore {
+
+  private static final Log LOG = Log.get(FilePerUserWaveViewStore.class);
+
+  private static final String VIEW_FILE_EXTENSION = ".view";
+
+  private static final String REMOVED_PREFIX = "- ";
+
+  private static final String BACKFILLED_FILE = "backfilled";
+
+  /** Journals aren't compacted until they have at least this many lines. */
+  private static final int MIN_COMPACTION_LENGTH = 100;
+
+  private final String basePath;
+
+  /** The maximum number of wavelets in the views kept in memory. */
+  private final long cacheWavelets;
+
+  /** The views in memory, in access order. */
+  private final LinkedHashMap<ParticipantId, View> views;
+
+  /** The number of lines in the journal of each view in memory. */
+  private final Map<ParticipantId, Integer> journalLengths = Maps.newHashMap();
+
+  /** The total number of wavelets in the views in memory. */
+  private long cachedWavelets = 0;
+
+  private boolean dirChecked = false;
+
+  @Inject
+  public FilePerUserWaveViewStore(Config config) {
+    this(config, new LinkedHashMap<ParticipantId, View>(16, 0.75f, true));
+  }
+
+  private FilePerUserWaveViewStore(Config config, LinkedHashMap<ParticipantId, View> views) {
+    super(views);
+    this.views = views;
+    this.basePath = config.getString("core.per_user_wave_view_store_directory");
+    this.cacheWavelets = config.getLong("core.per_user_wave_view_store_cache_wavelets");
+  }
+
+  @Override
+  public synchronized void putWavelet(ParticipantId participant, WaveletName waveletName,
+      long lastModifiedTime) throws PersistenceException {
+    View view = getView(participant);
+    Long previous = view.get(waveletName);
+    if (previous == null || previous != lastModifiedTime) {
+      append(participant,
+          lastModifiedTime + " " + ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
+      view.put(waveletName, lastModifiedTime);
+      if (previous == null) {
+        cachedWavelets++;
+      }
+      maybeCompact(participant);
+    }
+    evictViews();
+  }
+
+  @Override
+  public synchronized void removeWavelet(ParticipantId participant, WaveletName waveletName)
+      throws PersistenceException {
+    View view = getView(participant);
+    if (view.contains(waveletName)) {
+      append(participant,
+          REMOVED_PREFIX + ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
+      view.remove(waveletName);
+      cachedWavelets--;
+      maybeCompact(participant);
+    }
+    evictViews();
+  }
+
+  @Override
+  public synchronized List<WaveletName> getWavelets(ParticipantId participant, int startAt,
+      int numResults) throws PersistenceException {
+    List<WaveletName> wavelets = super.getWavelets(participant, startAt, numResults);
+    evictViews();
+    return wavelets;
+  }
+
+  @Override
+  public synchronized boolean isBackfilled() throws PersistenceException {
+    return new File(basePath, BACKFILLED_FILE).exists();
+  }
+
+  @Override
+  public synchronized void setBackfilled() throws PersistenceException {
+    checkDir();
+    File backfilledFile = new File(basePath, BACKFILLED_FILE);
+    try {
+      backfilledFile.createNewFile();
+    } catch (IOException e) {
+      LOG.severe("Failed to create file: " + backfilledFile.getAbsolutePath(), e);
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  protected View getView(ParticipantId participant) throws PersistenceException {
+    View view = getViewIfPresent(participant);
+    if (view == null) {
+      view = readView(participant);
+      setView(participant, view);
+      cachedWavelets += view.size();
+    }
+    return view;
+  }
+
+  /**
+   * Evicts the least recently used views from memory until their wavelets fit
+   * in the cache. Called once an operation is done with the view, which may be
+   * evicted too. Evicted views are read again from their journals.
+   */
+  private void evictViews() {
+    Iterator<Map.Entry<ParticipantId, View>> it = views.entrySet().iterator();
+    while (cachedWavelets > cacheWavelets && it.hasNext()) {
+      Map.Entry<ParticipantId, View> eldest = it.next();
+      cachedWavelets -= eldest.getValue().size();
+      journalLengths.remove(eldest.getKey());
+      it.remove();
+    }
+  }
+
+  private File participantIdToFile(ParticipantId participant) {
+    return new File(basePath, FileUtils.toFilenameFriendlyString(participant.getAddress())
+        + VIEW_FILE_EXTENSION);
+  }
+
+  private View readView(ParticipantId participant) throws PersistenceException {
+    View view = new View();
+    File viewFile = participantIdToFile(participant);
+    int journalLength = 0;
+    if (viewFile.exists()) {
+      try (BufferedReader reader =
+          Files.newBufferedReader(viewFile.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          journalLength++;
+          int separator = line.indexOf(' ');
+          if (separator < 0) {
+            LOG.warning("Skipping invalid line in " + viewFile + ": " + line);
+            continue;
+          }
+          try {
+            WaveletName waveletName =
+                ModernIdSerialiser.INSTANCE.deserialiseWaveletName(line.substring(separator + 1));
+            if (line.startsWith(REMOVED_PREFIX)) {
+              view.remove(waveletName);
+            } else {
+              view.put(waveletName, Long.parseLong(line.substring(0, separator)));
+            }
+          } catch (InvalidIdException | NumberFormatException e) {
+            LOG.warning("Skipping invalid line in " + viewFile + ": " + line, e);
+          }
+        }
+      } catch (IOException e) {
+        LOG.severe("Failed to read wave view from file: " + viewFile.getAbsolutePath(), e);
+        throw new PersistenceException(e);
+      }
+    }
+    journalLengths.put(participant, journalLength);
+    return view;
+  }
+
+  /**
+   * Appends a change to the journal of a view. It's called before the change
+   * is applied to the view in memory, so a failed write leaves both as they
+   * were.
+   */
+  private void append(ParticipantId participant, String line) throws PersistenceException {
+    checkDir();
+    File viewFile = participantIdToFile(participant);
+    try (BufferedWriter writer = Files.newBufferedWriter(viewFile.toPath(),
+        StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      writer.write(line);
+      writer.newLine();
+    } catch (IOException e) {
+      LOG.severe("Failed to write wave view to file: " + viewFile.getAbsolutePath(), e);
+      throw new PersistenceException(e);
+    }
+    journalLengths.put(participant, journalLengths.get(participant) + 1);
+  }
+
+  private void checkDir() throws PersistenceException {
+    if (!dirChecked) {
+      FileUtils.createDirIfNotExists(basePath, "per user wave view store");
+      dirChecked = true;
+    }
+  }
+
+  /**
+   * Compacts the journal of a view if it's much longer than the view. A failed
+   * compaction is only logged, the journal is still complete.
+   */
+  private void maybeCompact(ParticipantId participant) {
+    int viewSize = getViewIfPresent(participant).size();
+    if (journalLengths.get(participant) > 2 * viewSize + MIN_COMPACTION_LENGTH) {
+      File viewFile = participantIdToFile(participant);
+      try {
+        compact(participant, viewFile);
+        journalLengths.put(participant, viewSize);
+      } catch (IOException e) {
+        LOG.warning("Failed to compact wave view file: " + viewFile.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal of a view with a line for each wavelet in the view.
+   */
+  private void compact(ParticipantId participant, File viewFile) throws IOException {
+    File tmpFile = new File(viewFile.getPath() + ".tmp");
+    try (BufferedWriter writer =
+        Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+      for (Map.Entry<WaveletName, Long> entry : getViewIfPresent(participant).entries()) {
+        writer.write(entry.getValue() + " "
+            + ModernIdSerialiser.INSTANCE.serialiseWaveletName(entry.getKey()));
+        writer.newLine();
+      }
+    }
+    Files.move(tmpFile.toPath(), viewFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches the fsync calls of the file delta store.
+ *
+ * Writers register the files they have written to and get a future which completes once the
+ * data is forced to disk. Registered files are forced together once the commit window elapses
+ * or once the registered writes exceed a byte budget, so each file is forced once per window no
+ * matter how many appends it received.
+ *
+ * A commit window of zero disables batching: files are forced in the calling thread.
+ */
+class GroupCommitter {
+  private static final Log LOG = Log.get(GroupCommitter.class);
+
+  /** Forces every write in the writing thread. */
+  static final GroupCommitter IMMEDIATE = new GroupCommitter(0, 0);
+
+  /**
+   * The writes pending to be forced to a file.
+   */
+  private static class PendingSync {
+    final List<SettableFuture<Void>> futures = Lists.newArrayList();
+    long bytes;
+  }
+
+  private final long windowMillis;
+  private final long maxPendingBytes;
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Held while forcing files, so a file isn't closed while a commit forces it. Acquired before
+   * the lock on this.
+   */
+  private final Object forceLock = new Object();
+
+  /** Files with writes waiting to be forced, in registration order. Guarded by this. */
+  private Map<FileChannel, PendingSync> pending = Maps.newLinkedHashMap();
+
+  /** Bytes written to the pending files. Guarded by this. */
+  private long pendingBytes;
+
+  /** The scheduled commit of the pending files, if any. Guarded by this. */
+  private ScheduledFuture<?> scheduledCommit;
+
+  private final Runnable commitTask = new Runnable() {
+    @Override
+    public void run() {
+      commit();
+    }
+  };
+
+  /**
+   * @param windowMillis how long writes may wait to be forced, zero to force on every write.
+   * @param maxPendingBytes bytes written after which pending files are forced immediately.
+   */
+  GroupCommitter(long windowMillis, long maxPendingBytes) {
+    this.windowMillis = windowMillis;
+    this.maxPendingBytes = maxPendingBytes;
+    this.executor = windowMillis > 0
+        ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat(GroupCommitter.class.getSimpleName()).setDaemon(true).build())
+        : null;
+  }
+
+  /**
+   * Registers a write to a file.
+   *
+   * @param channel the file written to.
+   * @param bytes the number of bytes written.
+   * @return a future which completes once the written data is durably stored, or fails with
+   *         the {@link IOException} thrown while forcing the file.
+   */
+  ListenableFuture<Void> sync(FileChannel channel, long bytes) {
+    if (executor == null || executor.isShutdown()) {
+      try {
+        channel.force(true);
+        return Futures.immediateFuture(null);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+
+    SettableFuture<Void> future = SettableFuture.create();
+    synchronized (this) {
+      PendingSync sync = pending.get(channel);
+      if (sync == null) {
+        sync = new PendingSync();
+        pending.put(channel, sync);
+      }
+      sync.futures.add(future);
+      sync.bytes += bytes;
+      pendingBytes += bytes;
+
+      if (pendingBytes >= maxPendingBytes) {
+        if (scheduledCommit != null) {
+          scheduledCommit.cancel(false);
+        }
+        scheduledCommit = null;
+        executor.execute(commitTask);
+      } else if (scheduledCommit == null) {
+        scheduledCommit = executor.schedule(commitTask, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Forces the pending writes to a file in the calling thread. Used before the file is closed.
+   */
+  void flush(FileChannel channel) {
+    synchronized (forceLock) {
+      PendingSync sync;
+      synchronized (this) {
+        sync = pending.remove(channel);
+        if (sync != null) {
+          pendingBytes -= sync.bytes;
+        }
+      }
+      if (sync != null) {
+        force(channel, sync);
+      }
+    }
+  }
+
+  /**
+   * Forces all the pending files.
+   */
+  private void commit() {
+    synchronized (forceLock) {
+      Map<FileChannel, PendingSync> batch;
+      synchronized (this) {
+        batch = pending;
+        pending = Maps.newLinkedHashMap();
+        pendingBytes = 0;
+        scheduledCommit = null;
+      }
+      for (Map.Entry<FileChannel, PendingSync> entry : batch.entrySet()) {
+        force(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private static void force(FileChannel channel, PendingSync sync) {
+    try {
+      channel.force(true);
+      for (SettableFuture<Void> future : sync.futures) {
+        future.set(null);
+      }
+    } catch (IOException e) {
+      LOG.severe("Failed to force deltas file", e);
+      for (SettableFuture<Void> future : sync.futures) {
+        future.setException(e);
+      }
+    }
+  }
+
+  /**
+   * Forces the pending files and stops the commit thread.
+   */
+  void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+      commit();
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An immutable segment holding deltas which are no longer appended to. The records are stored
+ * back to back and compressed as a whole with Deflate, after an uncompressed index.
+ *
+ * Only the index is read when a delta is looked up; the records are decompressed the first time
+ * one of them is read and kept while memory allows.
+ *
+ * Header: | magic (4) | version (4) | codec (4) | deltas (4) | CRC32 of the records (8) |
+ * Index: | versions (8 * (deltas + 1)) | offsets (8 * (deltas + 1)) |
+ */
+class SealedDeltaSegment extends DeltaSegment {
+  private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'S', 'E', 'G'};
+  private static final int FILE_PROTOCOL_VERSION = 1;
+  private static final int FILE_HEADER_LENGTH = 24;
+
+  /** Records compressed with Deflate. */
+  private static final int CODEC_DEFLATE = 1;
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  @Stat(name = "delta-segments-sealed", help = "Number of delta segments sealed")
+  private static final AtomicLong segmentsSealed = new AtomicLong();
+
+  @Stat(name = "delta-segments-decompressed",
+      help = "Number of times the records of a sealed delta segment were decompressed")
+  private static final AtomicLong segmentsDecompressed = new AtomicLong();
+
+  static {
+    Statistic.trackClass(SealedDeltaSegment.class);
+  }
+
+  private final File path;
+  private boolean indexLoaded;
+  private long payloadChecksum;
+  private long payloadPosition;
+  private SoftReference<ByteBuffer> payload = new SoftReference<ByteBuffer>(null);
+
+  /**
+   * Opens a sealed segment. Nothing is read until a delta is looked up.
+   *
+   * @param path the segment file
+   * @param startVersion version the first delta of the segment is applied at
+   */
+  static SealedDeltaSegment open(File path, long startVersion) {
+    return new SealedDeltaSegment(path, startVersion);
+  }
+
+  /**
+   * Writes the deltas of a segment to a sealed segment. The sealed segment is forced to disk
+   * and atomically moved in place, so it either holds all the deltas or doesn't exist.
+   *
+   * @param path the sealed segment file
+   * @param source the segment to seal
+   * @return the sealed segment
+   */
+  static SealedDeltaSegment write(File path, DeltaSegment source) throws IOException {
+    int size = source.size();
+    long[] versions = new long[size + 1];
+    long[] offsets = new long[size + 1];
+    ByteArrayOutputStream records = new ByteArrayOutputStream(
+        (int) Math.min(source.getEndOffset(), Integer.MAX_VALUE));
+    for (int i = 0; i < size; i++) {
+      versions[i] = source.appliedAtVersion(i);
+      offsets[i] = records.size();
+      ByteBuffer record = source.readRecord(i);
+      records.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+    }
+    versions[size] = source.getEndVersion();
+    offsets[size] = records.size();
+
+    byte[] recordBytes = records.toByteArray();
+    ByteBuffer index = ByteBuffer.allocate(16 * (size + 1));
+    LongBuffer indexLongs = index.asLongBuffer();
+    indexLongs.put(versions);
+    indexLongs.put(offsets);
+    CRC32 crc = new CRC32();
+    crc.update(recordBytes);
+
+    File tempPath = new File(path.getPath() + TEMP_FILE_SUFFIX);
+    FileOutputStream fileStream = new FileOutputStream(tempPath);
+    try {
+      DataOutputStream out = new DataOutputStream(fileStream);
+      out.write(FILE_MAGIC_BYTES);
+      out.writeInt(FILE_PROTOCOL_VERSION);
+      out.writeInt(CODEC_DEFLATE);
+      out.writeInt(size);
+      out.writeLong(crc.getValue());
+      out.write(index.array());
+      Deflater deflater = new Deflater();
+      try {
+        DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater);
+        compressed.write(recordBytes);
+        compressed.finish();
+      } finally {
+        deflater.end();
+      }
+      fileStream.getChannel().force(true);
+    } finally {
+      fileStream.close();
+    }
+    Files.move(tempPath.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    segmentsSealed.incrementAndGet();
+
+    SealedDeltaSegment segment = new SealedDeltaSegment(path, source.getStartVersion());
+    segment.setIndex(versions, offsets, size);
+    segment.indexLoaded = true;
+    segment.payloadChecksum = crc.getValue();
+    segment.payloadPosition = FILE_HEADER_LENGTH + index.capacity();
+    segment.payload = new SoftReference<ByteBuffer>(ByteBuffer.wrap(recordBytes));
+    return segment;
+  }
+
+  /**
+   * @return true if the file is a temporary file left by an interrupted {@link #write}.
+   */
+  static boolean isTemporaryFile(String name) {
+    return name.endsWith(TEMP_FILE_SUFFIX);
+  }
+
+  private SealedDeltaSegment(File path, long startVersion) {
+    super(startVersion, 0);
+    this.path = path;
+  }
+
+  @Override
+  protected void loadIndex() throws IOException {
+    if (indexLoaded) {
+      return;
+    }
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      byte[] magic = new byte[4];
+      file.readFully(magic);
+      if (!Arrays.equals(FILE_MAGIC_BYTES, magic) || file.readInt() != FILE_PROTOCOL_VERSION) {
+        throw new IOException("Invalid sealed delta segment header in " + path);
+      }
+      int codec = file.readInt();
+      if (codec != CODEC_DEFLATE) {
+        throw new IOException("Unsupported sealed delta segment codec " + codec + " in " + path);
+      }
+      int size = file.readInt();
+      if (size < 0 || FILE_HEADER_LENGTH + 16L * (size + 1) > file.length()) {
+        throw new IOException("Invalid sealed delta segment index in " + path);
+      }
+      payloadChecksum = file.readLong();
+
+      byte[] indexBytes = new byte[16 * (size + 1)];
+      file.readFully(indexBytes);
+      LongBuffer index = ByteBuffer.wrap(indexBytes).asLongBuffer();
+      long[] versions = new long[size + 1];
+      long[] offsets = new long[size + 1];
+      index.get(versions);
+      index.get(offsets);
+      setIndex(versions, offsets, size);
+      payloadPosition = FILE_HEADER_LENGTH + indexBytes.length;
+      indexLoaded = true;
+    } finally {
+      file.close();
+    }
+  }
+
+  @Override
+  protected ByteBuffer readBytes(long offset, int length) throws IOException {
+    ByteBuffer records = getPayload();
+    ByteBuffer bytes = records.duplicate();
+    bytes.position((int) offset);
+    bytes.limit((int) offset + length);
+    return bytes.slice();
+  }
+
+  /**
+   * Returns the decompressed records, decompressing them if they were released.
+   */
+  private ByteBuffer getPayload() throws IOException {
+    ByteBuffer records = payload.get();
+    if (records != null) {
+      return records;
+    }
+
+    loadIndex();
+    byte[] compressed;
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      compressed = new byte[(int) (file.length() - payloadPosition)];
+      file.seek(payloadPosition);
+      file.readFully(compressed);
+    } finally {
+      file.close();
+    }
+
+    byte[] recordBytes = new byte[(int) getEndOffset()];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int inflated = 0;
+      while (inflated < recordBytes.length && !inflater.finished()) {
+        int n = inflater.inflate(recordBytes, inflated, recordBytes.length - inflated);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+      if (inflated != recordBytes.length) {
+        throw new IOException("Truncated sealed delta segment " + path);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted sealed delta segment " + path, e);
+    } finally {
+      inflater.end();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(recordBytes);
+    if (crc.getValue() != payloadChecksum) {
+      throw new IOException("Checksum mismatch in sealed delta segment " + path);
+    }
+
+    segmentsDecompressed.incrementAndGet();
+    records = ByteBuffer.wrap(recordBytes);
+    payload = new SoftReference<ByteBuffer>(records);
+    return records;
+  }
+
+  @Override
+  public void close() {
+    payload.clear();
+  }
+}
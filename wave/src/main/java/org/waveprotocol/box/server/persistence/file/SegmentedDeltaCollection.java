@@ -0,0 +1,505 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
+import org.waveprotocol.box.server.swell.WaveletContributions;
+import org.waveprotocol.box.server.waveserver.AppliedDeltaUtil;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.DeltaStore.Snapshot;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A segmented, file based implementation of DeltasAccess.
+ *
+ * The history of a wavelet is split into segments stored in a directory per wavelet. Deltas are
+ * appended to a log segment (see {@link DeltaLogSegment}); once it grows beyond the configured
+ * size it is sealed into a compressed, immutable segment (see {@link SealedDeltaSegment}) and
+ * the next delta starts a new log segment. Each segment has its own index, and sealed segments
+ * are only read when one of their deltas is requested, so opening a wavelet doesn't depend on
+ * the length of its history.
+ *
+ * The latest snapshot and contributions of the wavelet are stored beside the segments (see
+ * {@link WaveletCheckpoint}). Loading a wavelet from them only reads the segments holding the
+ * deltas after it.
+ *
+ * Segment files are named after the version their first delta is applied at:
+ * base/encoded-wave-id/encoded-wavelet-id.segments/00000000000000000000.seg
+ * base/encoded-wave-id/encoded-wavelet-id.segments/00000000000000001234.log
+ * base/encoded-wave-id/encoded-wavelet-id.segments/snapshot
+ * base/encoded-wave-id/encoded-wavelet-id.segments/contributions
+ *
+ * Like {@link FileDeltaCollection}, a particular instance assumes that it's <em>the only
+ * one</em> reading and writing a particular wavelet, and the methods are <em>not</em>
+ * multithread-safe.
+ */
+public class SegmentedDeltaCollection implements DeltasAccess {
+  public static final String SEGMENTS_DIRECTORY_SUFFIX = ".segments";
+
+  private static final String SEALED_SEGMENT_SUFFIX = ".seg";
+  private static final String LOG_SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_FILE_NAME = "snapshot";
+  private static final String CONTRIBUTIONS_FILE_NAME = "contributions";
+
+  private static final Log LOG = Log.get(SegmentedDeltaCollection.class);
+
+  private final WaveletName waveletName;
+  private final File directory;
+  private final long segmentBytes;
+  private final GroupCommitter committer;
+  private final WaveletCheckpoint checkpoint;
+
+  /** Sealed segments, keyed by start version. */
+  private final TreeMap<Long, SealedDeltaSegment> sealedSegments =
+      new TreeMap<Long, SealedDeltaSegment>();
+
+  /** The segment deltas are appended to, null until the first append after sealing. */
+  private DeltaLogSegment logSegment;
+
+  private HashedVersion endVersion;
+  private boolean isOpen;
+
+  final private LifeCycle lifeCycle = new LifeCycle(
+      SegmentedDeltaCollection.class.getSimpleName(), ShutdownPriority.Storage,
+      new Shutdownable() {
+        @Override
+        public void shutdown() throws Exception {
+          close();
+        }
+      });
+
+  /**
+   * Opens a segmented delta collection.
+   *
+   * @param waveletName name of the wavelet to open
+   * @param basePath base path of files
+   * @param segmentBytes size of a log segment after which it is sealed
+   * @param committer forces appended deltas to disk
+   * @return an open collection
+   * @throws IOException
+   */
+  static SegmentedDeltaCollection open(WaveletName waveletName, String basePath,
+      long segmentBytes, GroupCommitter committer) throws IOException {
+    Preconditions.checkNotNull(waveletName, "null wavelet name");
+    Preconditions.checkArgument(segmentBytes > 0, "Segment size must be positive");
+
+    File directory = segmentsDirectory(basePath, waveletName);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create segments directory " + directory);
+    }
+
+    SegmentedDeltaCollection collection =
+        new SegmentedDeltaCollection(waveletName, directory, segmentBytes, committer);
+    try {
+      collection.loadSegments();
+    } catch (IOException e) {
+      collection.close();
+      throw e;
+    }
+    return collection;
+  }
+
+  /**
+   * Deletes the segments and checkpoint of a wavelet from disk.
+   *
+   * @throws PersistenceException
+   */
+  static void delete(WaveletName waveletName, String basePath) throws PersistenceException {
+    File directory = segmentsDirectory(basePath, waveletName);
+    if (!directory.exists()) {
+      return;
+    }
+    String error = "";
+    for (File file : directory.listFiles()) {
+      if (!file.delete()) {
+        error += "Could not delete segment file: " + file.getAbsolutePath() + ". ";
+      }
+    }
+    if (!directory.delete()) {
+      error += "Could not delete segments directory: " + directory.getAbsolutePath();
+    }
+    if (!error.isEmpty()) {
+      throw new PersistenceException(error);
+    }
+  }
+
+  private SegmentedDeltaCollection(WaveletName waveletName, File directory, long segmentBytes,
+      GroupCommitter committer) {
+    this.waveletName = waveletName;
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.committer = committer;
+    this.checkpoint = new WaveletCheckpoint(waveletName, new File(directory, SNAPSHOT_FILE_NAME),
+        new File(directory, CONTRIBUTIONS_FILE_NAME));
+    this.isOpen = true;
+    lifeCycle.start();
+  }
+
+  /**
+   * Finds the segments of the wavelet, cleans up after interrupted writes and reads the end
+   * version from the last segment.
+   */
+  private void loadSegments() throws IOException {
+    TreeMap<Long, File> logFiles = new TreeMap<Long, File>();
+    for (File file : directory.listFiles()) {
+      String name = file.getName();
+      if (SealedDeltaSegment.isTemporaryFile(name) || WaveletCheckpoint.isTemporaryFile(name)) {
+        LOG.info("Deleting temporary file " + file);
+        file.delete();
+      } else if (name.endsWith(SEALED_SEGMENT_SUFFIX)) {
+        long startVersion = segmentStartVersion(name, SEALED_SEGMENT_SUFFIX);
+        sealedSegments.put(startVersion, SealedDeltaSegment.open(file, startVersion));
+      } else if (name.endsWith(LOG_SEGMENT_SUFFIX)) {
+        logFiles.put(segmentStartVersion(name, LOG_SEGMENT_SUFFIX), file);
+      }
+    }
+
+    for (Map.Entry<Long, File> logFile : logFiles.entrySet()) {
+      if (sealedSegments.containsKey(logFile.getKey())) {
+        // The segment was sealed but the log wasn't deleted yet.
+        LOG.info("Deleting sealed log segment " + logFile.getValue());
+        logFile.getValue().delete();
+      } else if (logSegment == null) {
+        logSegment = DeltaLogSegment.open(logFile.getValue(), logFile.getKey());
+      } else {
+        throw new IOException("More than one log segment in " + directory);
+      }
+    }
+
+    DeltaSegment lastSegment = logSegment;
+    if (lastSegment == null || lastSegment.size() == 0) {
+      lastSegment = sealedSegments.isEmpty() ? null : sealedSegments.lastEntry().getValue();
+    }
+    if (lastSegment != null && lastSegment.size() > 0) {
+      endVersion = lastSegment.read(lastSegment.size() - 1).getResultingVersion();
+      if (logSegment != null && logSegment.getStartVersion() != endVersionOfSealedSegments()) {
+        throw new IOException("Log segment doesn't follow the sealed segments in " + directory);
+      }
+    } else {
+      endVersion = null;
+    }
+  }
+
+  private long endVersionOfSealedSegments() throws IOException {
+    return sealedSegments.isEmpty() ? 0 : sealedSegments.lastEntry().getValue().getEndVersion();
+  }
+
+  @Override
+  public WaveletName getWaveletName() {
+    return waveletName;
+  }
+
+  @Override
+  public HashedVersion getEndVersion() {
+    return endVersion;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    checkIsOpen();
+    return endVersion == null;
+  }
+
+  @Override
+  public WaveletDeltaRecord getDelta(long version) throws IOException {
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+      Preconditions.checkArgument(version >= 0, "Version can't be negative");
+      DeltaSegment segment = segmentFor(version);
+      int i = (segment != null) ? segment.indexOf(version) : -1;
+      return (i >= 0) ? segment.read(i) : null;
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  @Override
+  public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+      Preconditions.checkArgument(version >= 0, "Version can't be negative");
+      DeltaSegment segment = (version > 0) ? segmentFor(version - 1) : null;
+      int i = (segment != null) ? segment.indexOfEndVersion(version) : -1;
+      return (i >= 0) ? segment.read(i) : null;
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  @Override
+  public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(long version)
+      throws IOException {
+    WaveletDeltaRecord delta = getDelta(version);
+    return (delta != null) ? delta.getAppliedDelta() : null;
+  }
+
+  @Override
+  public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
+    WaveletDeltaRecord delta = getDelta(version);
+    return (delta != null) ? delta.getTransformedDelta() : null;
+  }
+
+  @Override
+  public HashedVersion getAppliedAtVersion(long version) throws IOException {
+    ByteStringMessage<ProtocolAppliedWaveletDelta> applied = getAppliedDelta(version);
+    return (applied != null) ? AppliedDeltaUtil.getHashedVersionAppliedAt(applied) : null;
+  }
+
+  @Override
+  public HashedVersion getResultingVersion(long version) throws IOException {
+    TransformedWaveletDelta transformed = getTransformedDelta(version);
+    return (transformed != null) ? transformed.getResultingVersion() : null;
+  }
+
+  @Override
+  public WaveletDeltaRecord getLastDelta() throws IOException {
+    return (endVersion != null) ? getDeltaByEndVersion(endVersion.getVersion()) : null;
+  }
+
+  @Override
+  public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    return (endVersion != null) ? getDeltasInRange(0, endVersion.getVersion(), receiver) : 0;
+  }
+
+  @Override
+  public long getDeltasInRange(long startVersion, long endVersion,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    lifeCycle.enter();
+    try {
+      checkIsOpen();
+
+      if (this.endVersion == null) return 0;
+
+      Preconditions.checkState(0 <= startVersion && 0 <= endVersion
+          && startVersion != endVersion
+          && Math.max(startVersion, endVersion) <= this.endVersion.getVersion(),
+          "Invalid delta range");
+
+      long count = 0;
+      if (startVersion < endVersion) {
+        DeltaSegment segment = segmentFor(startVersion);
+        int i = (segment != null) ? segment.indexOf(startVersion) : -1;
+        while (i >= 0 && segment.resultingVersion(i) <= endVersion) {
+          count++;
+          if (!receiver.put(segment.read(i))) {
+            break;
+          }
+          if (segment.resultingVersion(i) == endVersion) {
+            break;
+          }
+          if (++i == segment.size()) {
+            segment = segmentFor(segment.getEndVersion());
+            i = (segment != null && segment.size() > 0) ? 0 : -1;
+          }
+        }
+      } else {
+        DeltaSegment segment = segmentFor(startVersion - 1);
+        int i = (segment != null) ? segment.indexOfEndVersion(startVersion) : -1;
+        while (i >= 0 && segment.appliedAtVersion(i) >= endVersion) {
+          count++;
+          if (!receiver.put(segment.read(i))) {
+            break;
+          }
+          if (segment.appliedAtVersion(i) == endVersion) {
+            break;
+          }
+          if (--i < 0) {
+            segment = segmentFor(segment.getStartVersion() - 1);
+            i = (segment != null) ? segment.size() - 1 : -1;
+          }
+        }
+      }
+      return count;
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  @Override
+  public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
+    try {
+      appendAsync(deltas).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(e);
+    } catch (ExecutionException e) {
+      throw new PersistenceException(e.getCause());
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> appendAsync(Collection<WaveletDeltaRecord> deltas)
+      throws PersistenceException {
+    lifeCycle.enter();
+    checkIsOpen();
+    try {
+      if (logSegment == null) {
+        long startVersion = (endVersion != null) ? endVersion.getVersion() : 0;
+        logSegment = DeltaLogSegment.open(
+            segmentFile(startVersion, LOG_SEGMENT_SUFFIX), startVersion);
+      }
+
+      WaveletDeltaRecord lastDelta = null;
+      for (WaveletDeltaRecord delta : deltas) {
+        lastDelta = delta;
+      }
+      long written = logSegment.append(deltas);
+      endVersion = lastDelta.getTransformedDelta().getResultingVersion();
+
+      ListenableFuture<Void> durable = committer.sync(logSegment.getChannel(), written);
+      if (logSegment.getEndOffset() >= segmentBytes) {
+        sealLogSegment();
+      }
+      return durable;
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    } finally {
+      lifeCycle.leave();
+    }
+  }
+
+  /**
+   * Compresses the log segment into a sealed segment and removes it. The next append starts a
+   * new log segment.
+   */
+  private void sealLogSegment() throws IOException {
+    long startVersion = logSegment.getStartVersion();
+    SealedDeltaSegment sealed =
+        SealedDeltaSegment.write(segmentFile(startVersion, SEALED_SEGMENT_SUFFIX), logSegment);
+    sealedSegments.put(startVersion, sealed);
+
+    // Appends waiting for the log to be forced complete now.
+    committer.flush(logSegment.getChannel());
+    logSegment.close();
+    if (!logSegment.getPath().delete()) {
+      LOG.warning("Failed to delete sealed log segment " + logSegment.getPath());
+    }
+    logSegment = null;
+  }
+
+  /**
+   * @return the segment holding the delta applied at the given version, or null.
+   */
+  private DeltaSegment segmentFor(long version) {
+    if (logSegment != null && version >= logSegment.getStartVersion()) {
+      return logSegment;
+    }
+    Map.Entry<Long, SealedDeltaSegment> entry = sealedSegments.floorEntry(version);
+    return (entry != null) ? entry.getValue() : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (isOpen) {
+      if (logSegment != null) {
+        committer.flush(logSegment.getChannel());
+        logSegment.close();
+      }
+      for (SealedDeltaSegment segment : sealedSegments.values()) {
+        segment.close();
+      }
+    }
+    endVersion = null;
+    isOpen = false;
+  }
+
+  @Override
+  public Snapshot loadSnapshot() throws PersistenceException {
+    checkIsOpen();
+    return checkpoint.loadSnapshot();
+  }
+
+  @Override
+  public void storeSnapshot(WaveletData waveletData) throws PersistenceException {
+    checkIsOpen();
+    checkpoint.storeSnapshot(waveletData);
+  }
+
+  @Override
+  public WaveletContributions loadContributions() throws PersistenceException {
+    checkIsOpen();
+    return checkpoint.loadContributions();
+  }
+
+  @Override
+  public WaveletContributions loadContributionsForVersion(long version)
+      throws PersistenceException {
+    checkIsOpen();
+    return checkpoint.loadContributions(this, version);
+  }
+
+  @Override
+  public void storeContributions(WaveletContributions contributions) throws PersistenceException {
+    checkIsOpen();
+    checkpoint.storeContributions(contributions);
+  }
+
+  /** @return the number of sealed segments. */
+  @VisibleForTesting
+  int getSealedSegmentCount() {
+    return sealedSegments.size();
+  }
+
+  @VisibleForTesting
+  static File segmentsDirectory(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + SEGMENTS_DIRECTORY_SUFFIX);
+  }
+
+  private File segmentFile(long startVersion, String suffix) {
+    return new File(directory, String.format("%020d", startVersion) + suffix);
+  }
+
+  private static long segmentStartVersion(String name, String suffix) throws IOException {
+    try {
+      return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid segment file name " + name, e);
+    }
+  }
+
+  private void checkIsOpen() {
+    Preconditions.checkState(isOpen, "Delta collection closed");
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.stat.Timed;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.IOException;
+
+/**
+ * A file based implementation of DeltaStore which splits the history of each wavelet into
+ * compressed segments (see {@link SegmentedDeltaCollection}).
+ *
+ * The delta store lives at some base directory. The directory structure looks like this:
+ * base/encoded-wave-id/encoded-wavelet-id.segments/
+ *
+ * Wavelets stored by {@link FileDeltaStore} in the same base directory are ignored, and can be
+ * moved to this store with the data migration tool.
+ */
+public class SegmentedDeltaStore extends FileDeltaStore {
+
+  /**
+   * Size of a log segment after which it is sealed
+   */
+  final private long segmentBytes;
+
+  @Inject
+  public SegmentedDeltaStore(Config config) {
+    super(config);
+    this.segmentBytes = config.getBytes("core.delta_store_segment_bytes");
+  }
+
+  @Timed
+  @Override
+  public SegmentedDeltaCollection open(WaveletName waveletName) throws PersistenceException {
+    try {
+      return SegmentedDeltaCollection.open(waveletName, basePath, segmentBytes, committer);
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
+    }
+  }
+
+  @Override
+  public void delete(WaveletName waveletName) throws PersistenceException {
+    SegmentedDeltaCollection.delete(waveletName, basePath);
+  }
+
+  @Override
+  protected String getCollectionSuffix() {
+    return SegmentedDeltaCollection.SEGMENTS_DIRECTORY_SUFFIX;
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+
+import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoWaveletContributions;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.swell.WaveletContributions;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The latest snapshot and contributions of a wavelet, stored as a {@link WaveletSnapshot} and
+ * a {@link ProtoWaveletContributions} proto in two files. Each file is replaced atomically, so
+ * a reader sees either the previous checkpoint or the new one. The two are stored separately and
+ * may be at different versions; the wavelet state catches each one up from the deltas.
+ */
+class WaveletCheckpoint {
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final WaveletName waveletName;
+  private final File snapshotFile;
+  private final File contributionsFile;
+
+  WaveletCheckpoint(WaveletName waveletName, File snapshotFile, File contributionsFile) {
+    this.waveletName = waveletName;
+    this.snapshotFile = snapshotFile;
+    this.contributionsFile = contributionsFile;
+  }
+
+  /**
+   * Replaces the stored snapshot.
+   *
+   * @throws PersistenceException if the snapshot could not be written.
+   */
+  void storeSnapshot(ReadableWaveletData waveletData) throws PersistenceException {
+    write(snapshotFile,
+        SnapshotSerializer.serializeWavelet(waveletData, waveletData.getHashedVersion()));
+  }
+
+  /**
+   * Loads the stored snapshot.
+   *
+   * @return the snapshot, or null if none was stored.
+   * @throws PersistenceException if the snapshot could not be read.
+   */
+  DeltaStore.Snapshot loadSnapshot() throws PersistenceException {
+    byte[] bytes = read(snapshotFile);
+    if (bytes == null) {
+      return null;
+    }
+
+    try {
+      WaveletSnapshot snapshot = WaveletSnapshot.parseFrom(bytes);
+      final WaveletData waveletData =
+          SnapshotSerializer.deserializeWavelet(snapshot, waveletName.waveId);
+      return new DeltaStore.Snapshot() {
+
+        @Override
+        public WaveletData getWaveletData() {
+          return waveletData;
+        }
+      };
+    } catch (InvalidProtocolBufferException e) {
+      throw new PersistenceException("Invalid snapshot " + snapshotFile, e);
+    } catch (OperationException | InvalidParticipantAddress | InvalidIdException e) {
+      throw new PersistenceException("Failed to deserialize snapshot " + snapshotFile, e);
+    }
+  }
+
+  /**
+   * Replaces the stored contributions.
+   *
+   * @throws PersistenceException if the contributions could not be written.
+   */
+  void storeContributions(WaveletContributions contributions) throws PersistenceException {
+    write(contributionsFile, ProtoDeltaStoreDataSerializer.serialize(contributions));
+  }
+
+  /**
+   * Loads the stored contributions.
+   *
+   * @return the contributions, or null if none were stored.
+   * @throws PersistenceException if the contributions could not be read.
+   */
+  WaveletContributions loadContributions() throws PersistenceException {
+    byte[] bytes = read(contributionsFile);
+    if (bytes == null) {
+      return null;
+    }
+
+    try {
+      return ProtoDeltaStoreDataSerializer.deserialize(
+          ProtoWaveletContributions.parseFrom(bytes), waveletName);
+    } catch (InvalidProtocolBufferException e) {
+      throw new PersistenceException("Invalid contributions " + contributionsFile, e);
+    }
+  }
+
+  /**
+   * Loads the stored contributions and brings them up to a version by applying the deltas
+   * after them.
+   *
+   * @return the contributions at the version, or null if none were stored or the stored ones
+   *         are past the version.
+   * @throws PersistenceException if the contributions or deltas could not be read.
+   */
+  WaveletContributions loadContributions(DeltasAccess deltas, long version)
+      throws PersistenceException {
+    final WaveletContributions contributions = loadContributions();
+    if (contributions == null) {
+      return null;
+    }
+    long storedVersion = contributions.getWaveletVersion().getVersion();
+    if (storedVersion > version) {
+      return null;
+    }
+    if (storedVersion < version) {
+      try {
+        deltas.getDeltasInRange(storedVersion, version, new Receiver<WaveletDeltaRecord>() {
+
+          @Override
+          public boolean put(WaveletDeltaRecord delta) {
+            contributions.apply(delta.getTransformedDelta());
+            return true;
+          }
+        });
+      } catch (IOException e) {
+        throw new PersistenceException("Failed to read deltas of " + waveletName, e);
+      }
+    }
+    return contributions;
+  }
+
+  /**
+   * Deletes the stored checkpoint.
+   *
+   * @return an error message, empty if the files were deleted.
+   */
+  String delete() {
+    String error = "";
+    for (File file : new File[] {snapshotFile, contributionsFile, tempFile(snapshotFile),
+        tempFile(contributionsFile)}) {
+      if (file.exists() && !file.delete()) {
+        error += "Could not delete checkpoint file: " + file.getAbsolutePath() + ". ";
+      }
+    }
+    return error;
+  }
+
+  /**
+   * @return true if the file is a temporary file left by an interrupted store.
+   */
+  static boolean isTemporaryFile(String name) {
+    return name.endsWith(TEMP_FILE_SUFFIX);
+  }
+
+  /**
+   * Writes a proto to a temporary file, forces it to disk and moves it in place.
+   */
+  private static void write(File file, MessageLite message) throws PersistenceException {
+    File tempFile = tempFile(file);
+    try {
+      FileOutputStream stream = new FileOutputStream(tempFile);
+      try {
+        message.writeTo(stream);
+        stream.getChannel().force(true);
+      } finally {
+        stream.close();
+      }
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to store " + file, e);
+    }
+  }
+
+  private static File tempFile(File file) {
+    return new File(file.getPath() + TEMP_FILE_SUFFIX);
+  }
+
+  private static byte[] read(File file) throws PersistenceException {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      return Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to load " + file, e);
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.waveserver.IndexException;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
@@ -34,13 +35,16 @@ import java.io.IOException;
  *
  * @author A. Kaplanov
  */
-public class FSIndexDirectory implements IndexDirectory {
+public class FSIndexDirectory implements IndexDirectory, Closeable {
 
   private Directory directory;
 
   @Inject
   public FSIndexDirectory(Config config) {
-    String directoryName = config.getString("core.index_directory");
+    this(config.getString("core.index_directory"));
+  }
+
+  public FSIndexDirectory(String directoryName) {
     if (directory == null) {
       File file;
       try {
@@ -60,4 +64,9 @@ public class FSIndexDirectory implements IndexDirectory {
   public Directory getDirectory() throws IndexException {
     return directory;
   }
+
+  @Override
+  public void close() throws IOException {
+    directory.close();
+  }
 }
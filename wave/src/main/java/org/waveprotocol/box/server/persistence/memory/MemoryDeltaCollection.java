@@ -38,6 +38,8 @@ import org.waveprotocol.wave.model.wave.data.WaveletData;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
@@ -128,6 +130,12 @@ public class MemoryDeltaCollection implements DeltasAccess {
     }
   }
 
+  @Override
+  public ListenableFuture<Void> appendAsync(Collection<WaveletDeltaRecord> newDeltas) {
+    append(newDeltas);
+    return Futures.immediateFuture(null);
+  }
+
   @Override
   public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
     for (WaveletDeltaRecord delta : deltas.values())
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.memory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory implementation of {@link PerUserWaveViewStore}. The view of each
+ * participant maps its wavelets to their last modified time.
+ */
+public class MemoryPerUserWaveViewStore implements PerUserWaveViewStore {
+
+  /** Orders the wavelets of a view by last modified time, most recent first. */
+  private static final Comparator<Map.Entry<WaveletName, Long>> LMT_DESC_COMPARATOR =
+      new Comparator<Map.Entry<WaveletName, Long>>() {
+        @Override
+        public int compare(Map.Entry<WaveletName, Long> arg0, Map.Entry<WaveletName, Long> arg1) {
+          int result = Long.compare(arg1.getValue(), arg0.getValue());
+          if (result == 0) {
+            // For stability order also by wavelet name.
+            result = arg0.getKey().toString().compareTo(arg1.getKey().toString());
+          }
+          return result;
+        }
+      };
+
+  /**
+   * The wavelets in the view of a participant and their last modified times.
+   * The view is sorted once when it's read after a change, so the pages of a
+   * retrieval don't sort it again.
+   */
+  protected static final class View {
+    private final Map<WaveletName, Long> lastModifiedTimes = Maps.newHashMap();
+
+    /** The wavelets, most recently modified first, or null after a change. */
+    private List<WaveletName> sorted;
+
+    public View() {
+    }
+
+    public Long get(WaveletName waveletName) {
+      return lastModifiedTimes.get(waveletName);
+    }
+
+    public boolean contains(WaveletName waveletName) {
+      return lastModifiedTimes.containsKey(waveletName);
+    }
+
+    public void put(WaveletName waveletName, long lastModifiedTime) {
+      Long previous = lastModifiedTimes.put(waveletName, lastModifiedTime);
+      if (previous == null || previous != lastModifiedTime) {
+        sorted = null;
+      }
+    }
+
+    public void remove(WaveletName waveletName) {
+      if (lastModifiedTimes.remove(waveletName) != null) {
+        sorted = null;
+      }
+    }
+
+    public int size() {
+      return lastModifiedTimes.size();
+    }
+
+    /** Returns the wavelets and their last modified times, unordered. */
+    public Set<Map.Entry<WaveletName, Long>> entries() {
+      return Collections.unmodifiableSet(lastModifiedTimes.entrySet());
+    }
+
+    /** Returns the wavelets, the most recently modified first. */
+    public List<WaveletName> sorted() {
+      if (sorted == null) {
+        List<Map.Entry<WaveletName, Long>> entries =
+            Lists.newArrayList(lastModifiedTimes.entrySet());
+        Collections.sort(entries, LMT_DESC_COMPARATOR);
+        List<WaveletName> wavelets = Lists.newArrayListWithCapacity(entries.size());
+        for (Map.Entry<WaveletName, Long> entry : entries) {
+          wavelets.add(entry.getKey());
+        }
+        sorted = wavelets;
+      }
+      return sorted;
+    }
+  }
+
+  private final Map<ParticipantId, View> views;
+
+  private boolean backfilled = false;
+
+  public MemoryPerUserWaveViewStore() {
+    this(Maps.<ParticipantId, View>newHashMap());
+  }
+
+  /**
+   * @param views the map holding the views in memory, which subclasses may
+   *        use to evict views.
+   */
+  protected MemoryPerUserWaveViewStore(Map<ParticipantId, View> views) {
+    this.views = views;
+  }
+
+  @Override
+  public synchronized void putWavelet(ParticipantId participant, WaveletName waveletName,
+      long lastModifiedTime) throws PersistenceException {
+    getView(participant).put(waveletName, lastModifiedTime);
+  }
+
+  @Override
+  public synchronized void removeWavelet(ParticipantId participant, WaveletName waveletName)
+      throws PersistenceException {
+    getView(participant).remove(waveletName);
+  }
+
+  @Override
+  public synchronized List<WaveletName> getWavelets(ParticipantId participant, int startAt,
+      int numResults) throws PersistenceException {
+    List<WaveletName> sorted = getView(participant).sorted();
+    if (sorted.size() <= startAt) {
+      return Collections.emptyList();
+    }
+    int endAt = (int) Math.min((long) startAt + numResults, sorted.size());
+    return ImmutableList.copyOf(sorted.subList(startAt, endAt));
+  }
+
+  @Override
+  public synchronized boolean isBackfilled() throws PersistenceException {
+    return backfilled;
+  }
+
+  @Override
+  public synchronized void setBackfilled() throws PersistenceException {
+    backfilled = true;
+  }
+
+  /**
+   * Returns the view of a participant, creating an empty one if there's none.
+   * Subclasses may load the view from persistent storage. Called with the
+   * store lock held.
+   */
+  protected View getView(ParticipantId participant) throws PersistenceException {
+    View view = views.get(participant);
+    if (view == null) {
+      view = new View();
+      views.put(participant, view);
+    }
+    return view;
+  }
+
+  /**
+   * Sets the view of a participant.
+   */
+  protected void setView(ParticipantId participant, View view) {
+    views.put(participant, view);
+  }
+
+  /**
+   * Returns the view of a participant if it's in memory, or null.
+   */
+  protected View getViewIfPresent(ParticipantId participant) {
+    return views.get(participant);
+  }
+}
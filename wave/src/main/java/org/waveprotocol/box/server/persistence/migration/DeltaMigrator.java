@@ -22,6 +22,7 @@ package org.waveprotocol.box.server.persistence.migration;
 import com.google.common.collect.ImmutableSet;
 
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
@@ -29,11 +30,11 @@ import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
-import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -42,6 +43,9 @@ import java.util.ArrayList;
  *
  * It is NOT an incremental process.
  *
+ * Deltas are copied in version order, so any store can be the target, e.g.
+ * to move wavelets from the file store to the segmented file store.
+ *
  * @author pablojan@gmail.com (Pablo Ojanguren)
  *
  */
@@ -49,6 +53,9 @@ public class DeltaMigrator {
 
   private static final Log LOG = Log.get(DeltaMigrator.class);
 
+  /** Number of deltas appended to the target store at once. */
+  private static final int APPEND_BATCH_SIZE = 1000;
+
   protected DeltaStore sourceStore = null;
   protected DeltaStore targetStore = null;
 
@@ -60,6 +67,47 @@ public class DeltaMigrator {
 
 
 
+  /**
+   * Copies the deltas of a wavelet in version order, appending them in batches
+   * so the history doesn't need to fit in memory, and then its latest
+   * snapshot, if the source stores snapshots.
+   */
+  private void migrateWavelet(DeltasAccess sourceDeltas, final DeltasAccess targetDeltas)
+      throws PersistenceException, IOException {
+    final List<WaveletDeltaRecord> batch = new ArrayList<WaveletDeltaRecord>(APPEND_BATCH_SIZE);
+    final PersistenceException[] failure = new PersistenceException[1];
+
+    long deltasCount = sourceDeltas.getAllDeltas(new Receiver<WaveletDeltaRecord>() {
+
+      @Override
+      public boolean put(WaveletDeltaRecord delta) {
+        batch.add(delta);
+        if (batch.size() == APPEND_BATCH_SIZE) {
+          try {
+            targetDeltas.append(batch);
+          } catch (PersistenceException e) {
+            failure[0] = e;
+            return false;
+          }
+          batch.clear();
+        }
+        return true;
+      }
+    });
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    if (!batch.isEmpty()) {
+      targetDeltas.append(batch);
+    }
+    LOG.info("Appended " + deltasCount + " deltas to target");
+
+    DeltaStore.Snapshot snapshot = sourceDeltas.loadSnapshot();
+    if (snapshot != null) {
+      targetDeltas.storeSnapshot(snapshot.getWaveletData());
+    }
+  }
+
   public void run() {
 
 
@@ -101,25 +149,12 @@ public class DeltaMigrator {
 
           DeltasAccess sourceDeltas = sourceStore.open(WaveletName.of(waveId, waveletId));
           DeltasAccess targetDeltas = targetStore.open(WaveletName.of(waveId, waveletId));
-
-          // Get all deltas from last version to initial version (0): reverse
-          // order
-          int deltasCount = 0;
-
-          ArrayList<WaveletDeltaRecord> deltas = new ArrayList<WaveletDeltaRecord>();
-          HashedVersion deltaResultingVersion = sourceDeltas.getEndVersion();
-
-          // Deltas
-          while (deltaResultingVersion != null && deltaResultingVersion.getVersion() != 0) {
-            deltasCount++;
-            WaveletDeltaRecord deltaRecord =
-                sourceDeltas.getDeltaByEndVersion(deltaResultingVersion.getVersion());
-            deltas.add(deltaRecord);
-            // get the previous delta, this is the appliedAt
-            deltaResultingVersion = deltaRecord.getAppliedAtVersion();
+          try {
+            migrateWavelet(sourceDeltas, targetDeltas);
+          } finally {
+            sourceDeltas.close();
+            targetDeltas.close();
           }
-          LOG.info("Appending " + deltasCount + "deltas to target");
-          targetDeltas.append(deltas);
         }
       } // While Waves
 
@@ -1,5 +1,7 @@
 package org.waveprotocol.box.server.persistence.mongodb;
 
+import org.bson.types.ObjectId;
+import org.waveprotocol.box.common.comms.WaveClientRpc.DocumentSnapshot;
 import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
 import org.waveprotocol.box.server.common.SnapshotSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
@@ -14,6 +16,8 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -22,11 +26,30 @@ import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.typesafe.config.Config;
+
+import org.bson.conversions.Bson;
+
+import java.util.List;
+import java.util.Set;
 
 /**
  * A MongoDB-backed store of Wavelet snapshots.
  * The aim is to avoid the whole processing of deltas when a
  * wavelet is loaded into server's memory for the first time.
+ * <p>
+ * Snapshots of a wavelet are indexed by version, so loading the latest one is
+ * an indexed point lookup. After each store the older snapshots are compacted:
+ * the latest {@code retained} ones are kept and, if a sparse interval is set,
+ * the latest snapshot of each older interval of versions.
+ * <p>
+ * Snapshots can optionally be delta-encoded: a snapshot then only holds the
+ * documents modified after a full base snapshot, plus the wavelet's
+ * participants and metadata. Documents are never removed from a wavelet, so
+ * the base supplies the rest. A full snapshot is stored again once the diff
+ * grows beyond half the size of its base.
  *
  * This class is not thread-safe.
  *
@@ -42,6 +65,9 @@ public class MongoDBSnapshotStore {
   protected static final String VERSION_FIELD = "version";
   protected static final String VERSION_HASH_FIELD = "versionhash";
   protected static final String LASTMOD_FIELD = "lastmod";
+  protected static final String BASE_VERSION_FIELD = "baseversion";
+  protected static final String SIZE_FIELD = "size";
+  protected static final String ID_FIELD = "_id";
 
   protected static final String SNAPSHOT_DATA = "data";
 
@@ -52,17 +78,38 @@ public class MongoDBSnapshotStore {
 
   private final MongoCollection<BasicDBObject> collection;
 
+  /** Number of latest snapshots kept for each wavelet */
+  private final int retained;
+
+  /** Versions between older snapshots kept for each wavelet, 0 to keep none */
+  private final long sparseInterval;
+
+  /** Whether snapshots are stored as diffs against a full base snapshot */
+  private final boolean deltaEncoded;
+
   /**
    * Get a reference to the snapshots store.
    *
    * @param database
+   * @param config the server configuration, providing the
+   *        core.mongodb_snapshots_* settings
    * @return
    */
-  public static MongoDBSnapshotStore create(MongoDatabase database) {
+  public static MongoDBSnapshotStore create(MongoDatabase database, Config config) {
       Preconditions.checkArgument(database != null, "Unable to get reference to mongoDB snapshots collection");
     MongoCollection<BasicDBObject> collection = database.getCollection(SNAPSHOT_COLLECTION,
         BasicDBObject.class);
-      return new MongoDBSnapshotStore(collection);
+
+    BasicDBObject index = new BasicDBObject();
+    index.put(WAVE_ID_FIELD, 1);
+    index.put(WAVELET_ID_FIELD, 1);
+    index.put(VERSION_FIELD, -1);
+    collection.createIndex(index);
+
+    int retained = config.getInt("core.mongodb_snapshots_retained");
+    long sparseInterval = config.getLong("core.mongodb_snapshots_sparse_interval");
+    boolean deltaEncoded = config.getBoolean("core.mongodb_snapshots_delta_encoded");
+      return new MongoDBSnapshotStore(collection, retained, sparseInterval, deltaEncoded);
   }
 
   /**
@@ -71,7 +118,31 @@ public class MongoDBSnapshotStore {
    * @param database the database connection object
    */
   protected MongoDBSnapshotStore(MongoCollection<BasicDBObject> collection) {
+    this(collection, 1, 0, false);
+  }
+
+  /**
+   * Construct a new snapshots store.
+   *
+   * @param collection the snapshots collection
+   * @param retained number of latest snapshots kept for each wavelet
+   * @param sparseInterval versions between older snapshots kept, 0 to keep none
+   * @param deltaEncoded whether snapshots are stored as diffs against a base
+   */
+  protected MongoDBSnapshotStore(MongoCollection<BasicDBObject> collection, int retained,
+      long sparseInterval, boolean deltaEncoded) {
+    Preconditions.checkArgument(retained > 0, "At least one snapshot must be retained");
+    Preconditions.checkArgument(sparseInterval >= 0, "Sparse interval must not be negative");
     this.collection = collection;
+    this.retained = retained;
+    this.sparseInterval = sparseInterval;
+    this.deltaEncoded = deltaEncoded;
+  }
+
+  private static Bson filterByWavelet(String waveId, String waveletId) {
+    return Filters.and(
+        Filters.eq(WAVE_ID_FIELD, waveId),
+        Filters.eq(WAVELET_ID_FIELD, waveletId));
   }
 
   protected void deleteSnapshot(WaveletName waveletName) throws PersistenceException {
@@ -100,22 +171,38 @@ public class MongoDBSnapshotStore {
 
     String waveId = ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletData.getWaveId());
     String waveletId = ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletData.getWaveletId());
+    long version = waveletData.getHashedVersion().getVersion();
 
 
     // store new snapshot
     BasicDBObject dbo = new BasicDBObject();
-    dbo.put(WAVE_ID_FIELD, ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletData.getWaveId()));
-    dbo.put(WAVELET_ID_FIELD, ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletData.getWaveletId()));
+    dbo.put(WAVE_ID_FIELD, waveId);
+    dbo.put(WAVELET_ID_FIELD, waveletId);
 
-    dbo.put(VERSION_FIELD, waveletData.getHashedVersion().getVersion());
+    dbo.put(VERSION_FIELD, version);
     dbo.put(VERSION_HASH_FIELD, waveletData.getHashedVersion().getHistoryHash());
     dbo.put(LASTMOD_FIELD,waveletData.getLastModifiedTime());
 
 
     WaveletSnapshot snapshot = SnapshotSerializer.serializeWavelet(waveletData, waveletData.getHashedVersion());
-    dbo.put(SNAPSHOT_DATA,snapshot.toByteArray());
+    byte[] data = snapshot.toByteArray();
 
     try {
+
+      BasicDBObject base = deltaEncoded ? findBase(waveId, waveletId, version) : null;
+      if (base != null) {
+        long baseVersion = ((Number) base.get(VERSION_FIELD)).longValue();
+        byte[] diff = diff(snapshot, baseVersion).toByteArray();
+        if (diff.length * 2 < ((Number) base.get(SIZE_FIELD)).longValue()) {
+          dbo.put(BASE_VERSION_FIELD, baseVersion);
+          data = diff;
+        }
+      }
+      if (!dbo.containsField(BASE_VERSION_FIELD)) {
+        dbo.put(SIZE_FIELD, data.length);
+      }
+      dbo.put(SNAPSHOT_DATA, data);
+
       collection.insertOne(dbo);
     } catch (MongoException e) {
       LOG.warning("Error storing wavelet snapshot for "+waveId+"/"+waveletId, e);
@@ -123,13 +210,7 @@ public class MongoDBSnapshotStore {
     }
 
     try {
-        collection.deleteMany(Filters.and(
-            Filters.eq(WAVE_ID_FIELD,
-                ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletData.getWaveId())),
-            Filters.eq(WAVELET_ID_FIELD,
-                ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletData.getWaveletId())),
-            Filters.lt(VERSION_FIELD, waveletData.getHashedVersion().getVersion())));
-
+      compact(waveId, waveletId);
     } catch (MongoException e) {
       LOG.warning("Error deleting outdated wavelet snapshots for "+waveId+"/"+waveletId, e);
       throw new PersistenceException(e);
@@ -137,7 +218,68 @@ public class MongoDBSnapshotStore {
 
 
 
-    LOG.fine("Stored snaphost for "+waveId+"/"+waveletId+" version "+ waveletData.getHashedVersion().getVersion());
+    LOG.fine("Stored snaphost for "+waveId+"/"+waveletId+" version "+ version
+        + (dbo.containsField(BASE_VERSION_FIELD) ? " as diff, " : ", ") + data.length + " bytes");
+  }
+
+  /**
+   * Finds the latest full snapshot older than a version.
+   *
+   * @return the version and size of the snapshot, or null if there is none.
+   */
+  private BasicDBObject findBase(String waveId, String waveletId, long version) {
+    return collection.find(Filters.and(filterByWavelet(waveId, waveletId),
+        Filters.lt(VERSION_FIELD, version), Filters.exists(BASE_VERSION_FIELD, false)))
+        .sort(Sorts.descending(VERSION_FIELD))
+        .projection(Projections.include(VERSION_FIELD, SIZE_FIELD)).first();
+  }
+
+  /**
+   * @return the snapshot without the documents last modified at or before the
+   *         base version.
+   */
+  private static WaveletSnapshot diff(WaveletSnapshot snapshot, long baseVersion) {
+    WaveletSnapshot.Builder diff = snapshot.toBuilder().clearDocument();
+    for (DocumentSnapshot document : snapshot.getDocumentList()) {
+      if (document.getLastModifiedVersion() > baseVersion) {
+        diff.addDocument(document);
+      }
+    }
+    return diff.build();
+  }
+
+  /**
+   * Deletes the snapshots of a wavelet which the retention policy doesn't keep.
+   * The base snapshots of kept diffs are kept too.
+   */
+  private void compact(String waveId, String waveletId) {
+
+    List<ObjectId> deleted = Lists.newArrayList();
+    Set<Long> keptBases = Sets.newHashSet();
+    Set<Long> keptIntervals = Sets.newHashSet();
+
+    int count = 0;
+    for (BasicDBObject dbo : collection.find(filterByWavelet(waveId, waveletId))
+        .sort(Sorts.descending(VERSION_FIELD))
+        .projection(Projections.include(ID_FIELD, VERSION_FIELD, BASE_VERSION_FIELD))) {
+
+      long version = ((Number) dbo.get(VERSION_FIELD)).longValue();
+      boolean latestOfInterval = sparseInterval > 0 && keptIntervals.add(version / sparseInterval);
+      boolean keep = count++ < retained
+          || latestOfInterval
+          || keptBases.contains(version) && !dbo.containsField(BASE_VERSION_FIELD);
+
+      if (!keep) {
+        deleted.add(dbo.getObjectId(ID_FIELD));
+      } else if (dbo.containsField(BASE_VERSION_FIELD)) {
+        // Bases are older than their diffs, so they are visited later.
+        keptBases.add(((Number) dbo.get(BASE_VERSION_FIELD)).longValue());
+      }
+    }
+
+    if (!deleted.isEmpty()) {
+      collection.deleteMany(Filters.in(ID_FIELD, deleted));
+    }
   }
 
 
@@ -146,17 +288,23 @@ public class MongoDBSnapshotStore {
     String waveId = ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletName.waveId);
     String waveletId = ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletName.waveletId);
 
-    // find last snapshot stored
-    DBObject query = new BasicDBObject();
-    query.put(WAVE_ID_FIELD, waveId);
-    query.put(WAVELET_ID_FIELD, waveletId);
-
     BasicDBObject snapshotDBObject = null;
+    BasicDBObject baseDBObject = null;
 
+    // find last snapshot stored
     try {
-      snapshotDBObject = collection.find(Filters.and(
-          Filters.eq(WAVE_ID_FIELD, waveId),
-          Filters.eq(WAVELET_ID_FIELD, waveletId))).first();
+      snapshotDBObject = collection.find(filterByWavelet(waveId, waveletId))
+          .sort(Sorts.descending(VERSION_FIELD)).first();
+
+      if (snapshotDBObject != null && snapshotDBObject.containsField(BASE_VERSION_FIELD)) {
+        baseDBObject = collection.find(Filters.and(filterByWavelet(waveId, waveletId),
+            Filters.eq(VERSION_FIELD, snapshotDBObject.get(BASE_VERSION_FIELD)),
+            Filters.exists(BASE_VERSION_FIELD, false))).first();
+        if (baseDBObject == null) {
+          throw new PersistenceException("Missing base snapshot of " + waveId + "/" + waveletId
+              + " version " + snapshotDBObject.get(VERSION_FIELD));
+        }
+      }
     } catch (MongoException e) {
       LOG.warning("Error querying wavelet snapshots for "+waveId+"/"+waveletId, e);
       throw new PersistenceException(e);
@@ -169,6 +317,10 @@ public class MongoDBSnapshotStore {
     WaveletSnapshot snapshot = null;
     try {
       snapshot = WaveletSnapshot.parseFrom((byte[]) snapshotDBObject.get(SNAPSHOT_DATA));
+      if (baseDBObject != null) {
+        snapshot = merge(snapshot,
+            WaveletSnapshot.parseFrom((byte[]) baseDBObject.get(SNAPSHOT_DATA)));
+      }
     } catch (InvalidProtocolBufferException e) {
       throw new PersistenceException(e);
     }
@@ -195,4 +347,22 @@ public class MongoDBSnapshotStore {
       throw new PersistenceException(e);
     }
   }
+
+  /**
+   * @return the full snapshot of a diff, adding the documents of its base the
+   *         diff doesn't hold.
+   */
+  private static WaveletSnapshot merge(WaveletSnapshot diff, WaveletSnapshot base) {
+    Set<String> documentIds = Sets.newHashSet();
+    for (DocumentSnapshot document : diff.getDocumentList()) {
+      documentIds.add(document.getDocumentId());
+    }
+    WaveletSnapshot.Builder snapshot = diff.toBuilder();
+    for (DocumentSnapshot document : base.getDocumentList()) {
+      if (!documentIds.contains(document.getDocumentId())) {
+        snapshot.addDocument(document);
+      }
+    }
+    return snapshot.build();
+  }
 }
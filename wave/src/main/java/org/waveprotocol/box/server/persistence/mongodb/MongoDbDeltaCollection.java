@@ -21,6 +21,8 @@ package org.waveprotocol.box.server.persistence.mongodb;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -31,6 +33,7 @@ import org.waveprotocol.box.server.swell.WaveletContributions;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecordReader.Projection;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
@@ -39,16 +42,23 @@ import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.mongodb.BasicDBObject;
-import com.mongodb.Block;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 
 /**
  * A MongoDB based Delta Access implementation using a simple <b>deltas</b>
  * collection, storing a delta record per each MongoDb document.
+ * <p>
+ * Ranges of deltas are read through a single cursor, fetching documents in
+ * batches and decoding each record only when the receiver takes it. Queries
+ * only fetch the fields their result needs.
  *
  * @author pablojan@gmail.com (Pablo Ojanguren)
  *
@@ -57,7 +67,12 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
 
   private static final Log LOG = Log.get(MongoDbDeltaCollection.class);
 
+  /** Default number of documents fetched per round trip by range reads. */
+  public static final int DEFAULT_READ_BATCH_SIZE = 100;
 
+  /** Fields of a delta record, without the applied delta. */
+  private static final Bson PROJECTION_TRANSFORMED = Projections.include(
+      MongoDbDeltaStoreUtil.FIELD_APPLIEDATVERSION, MongoDbDeltaStoreUtil.FIELD_TRANSFORMED);
 
   /** Wavelet name to work with. */
   private final WaveletName waveletName;
@@ -68,10 +83,17 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   /** MongoDB based wavelet snapshot store */
   private final MongoDBSnapshotStore snapshotStore;
 
+  /** Number of documents fetched per round trip by range reads */
+  private final int readBatchSize;
+
+  /** Pipeline appended deltas are written through, null to write them in the calling thread */
+  private final MongoDbDeltaWriter writer;
+
 
   public static MongoDbDeltaCollection create(WaveletName waveletName,
       MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore) {
-    return new MongoDbDeltaCollection(waveletName, deltasCollection, snapshotStore);
+    return new MongoDbDeltaCollection(waveletName, deltasCollection, snapshotStore,
+        DEFAULT_READ_BATCH_SIZE);
   }
 
   /**
@@ -79,11 +101,25 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
    *
    * @param waveletName The wavelet name.
    * @param deltaDbCollection The MongoDB deltas collection
+   * @param readBatchSize Number of documents fetched per round trip by range reads
    */
-  public MongoDbDeltaCollection(WaveletName waveletName, MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore) {
+  public MongoDbDeltaCollection(WaveletName waveletName, MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore, int readBatchSize) {
+    this(waveletName, deltasCollection, snapshotStore, readBatchSize, null);
+  }
+
+  /**
+   * Construct a new Delta Access object for the wavelet which writes appended
+   * deltas through a pipeline shared by all wavelets.
+   *
+   * @param writer The pipeline appended deltas are written through
+   */
+  MongoDbDeltaCollection(WaveletName waveletName, MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore, int readBatchSize, MongoDbDeltaWriter writer) {
+    Preconditions.checkArgument(readBatchSize > 0, "Read batch size must be positive");
     this.waveletName = waveletName;
     this.deltasCollection = deltasCollection;
     this.snapshotStore = snapshotStore;
+    this.readBatchSize = readBatchSize;
+    this.writer = writer;
   }
 
   @Override
@@ -166,6 +202,21 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
     return waveletDelta;
   }
 
+  /**
+   * Get the delta applied at a version without its applied delta.
+   */
+  private WaveletDeltaRecord getTransformedDeltaRecord(long version) throws IOException {
+
+    BasicDBObject result = deltasCollection.find(filterByAppliedAtVersion(version))
+        .projection(PROJECTION_TRANSFORMED).first();
+
+    try {
+      return result != null ? deserialize(result, Projection.TRANSFORMED) : null;
+    } catch (PersistenceException e) {
+      throw new IOException(e);
+    }
+  }
+
   @Override
   public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
 
@@ -185,8 +236,8 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   @Override
   public HashedVersion getAppliedAtVersion(long version) throws IOException {
 
-
-    BasicDBObject result = deltasCollection.find(filterByAppliedAtVersion(version)).first();
+    BasicDBObject result = deltasCollection.find(filterByAppliedAtVersion(version))
+        .projection(Projections.include(MongoDbDeltaStoreUtil.FIELD_APPLIEDATVERSION)).first();
 
     if (result != null)
       return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) result
@@ -197,11 +248,14 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   @Override
   public HashedVersion getResultingVersion(long version) throws IOException {
 
-    DBObject result = deltasCollection.find(filterByAppliedAtVersion(version)).first();
+    DBObject result = deltasCollection.find(filterByAppliedAtVersion(version))
+        .projection(Projections.include(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION))
+        .first();
 
     if (result != null)
-      return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) result
-          .get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION));
+      return MongoDbDeltaStoreUtil.deserializeHashedVersion((DBObject) ((DBObject) result
+          .get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED))
+          .get(MongoDbDeltaStoreUtil.FIELD_RESULTINGVERSION));
     return null;
   }
 
@@ -216,7 +270,7 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   @Override
   public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
 
-    WaveletDeltaRecord delta = getDelta(version);
+    WaveletDeltaRecord delta = getTransformedDeltaRecord(version);
     return (delta != null) ? delta.getTransformedDelta() : null;
   }
 
@@ -228,107 +282,125 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
   @Override
   public void append(Collection<WaveletDeltaRecord> newDeltas) throws PersistenceException {
 
-    deltasCollection.withWriteConcern(WriteConcern.JOURNALED).insertMany(
+    if (writer == null) {
+      deltasCollection.withWriteConcern(WriteConcern.JOURNALED).insertMany(serialize(newDeltas));
+      return;
+    }
 
-        newDeltas.stream().map((Function<? super WaveletDeltaRecord, ? extends BasicDBObject>) (
-            WaveletDeltaRecord delta) -> {
+    try {
+      writer.write(waveletName, serialize(newDeltas)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(e);
+    } catch (ExecutionException e) {
+      throw new PersistenceException(e.getCause());
+    }
+  }
 
-          return MongoDbDeltaStoreUtil.serialize(delta, waveletName.waveId.serialise(),
-              waveletName.waveletId.serialise());
+  @Override
+  public ListenableFuture<Void> appendAsync(Collection<WaveletDeltaRecord> newDeltas)
+      throws PersistenceException {
+
+    if (writer == null) {
+      append(newDeltas);
+      return Futures.immediateFuture(null);
+    }
+
+    return writer.write(waveletName, serialize(newDeltas));
+  }
+
+  private List<BasicDBObject> serialize(Collection<WaveletDeltaRecord> deltas) {
 
-        }).collect(Collectors.toList())
+    return deltas.stream().map((Function<? super WaveletDeltaRecord, ? extends BasicDBObject>) (
+        WaveletDeltaRecord delta) -> {
 
-    );
+      return MongoDbDeltaStoreUtil.serialize(delta, waveletName.waveId.serialise(),
+          waveletName.waveletId.serialise());
 
+    }).collect(Collectors.toList());
   }
 
   /**
-   * Use this exception to halt a forEach() call but it is not an actual
-   * failure.
+   * Decodes a delta record document, leaving out the parts not in the projection.
    */
-  private class DeltaReaderHaltedException extends RuntimeException {
-    public final WaveletDeltaRecord lastDelta;
-
-    public DeltaReaderHaltedException(WaveletDeltaRecord lastDelta) {
-      this.lastDelta = lastDelta;
+  private static WaveletDeltaRecord deserialize(DBObject obj, Projection projection)
+      throws PersistenceException {
+    if (projection == Projection.TRANSFORMED) {
+      return new WaveletDeltaRecord(
+          MongoDbDeltaStoreUtil.deserializeHashedVersion(
+              (DBObject) obj.get(MongoDbDeltaStoreUtil.FIELD_APPLIEDATVERSION)),
+          null,
+          MongoDbDeltaStoreUtil.deserializeTransformedWaveletDelta(
+              (DBObject) obj.get(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED)));
     }
+    return MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(obj);
   }
 
-  private class DeltaReader implements Block<BasicDBObject> {
+  /**
+   * Streams the deltas matching a query to a receiver through one cursor.
+   * Documents are fetched in batches and each one is decoded only when the
+   * receiver is ready to take it, so halting the receiver stops fetching.
+   *
+   * @return the number of deltas the receiver took
+   */
+  private long readDeltas(Bson query, boolean ascendingSort, Projection projection,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
 
+    BasicDBObject sort = new BasicDBObject();
+    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION,
+        ascendingSort ? 1 : -1);
 
     long count = 0;
     WaveletDeltaRecord lastProcDelta = null;
-    public Exception exception = null;
-    Receiver<WaveletDeltaRecord> receiver = null;
-    final boolean ascendingSort;
 
-    public DeltaReader(Receiver<WaveletDeltaRecord> receiver, boolean ascendingSort) {
-      this.receiver = receiver;
-      this.ascendingSort = ascendingSort;
-    }
+    try (MongoCursor<BasicDBObject> cursor = deltasCollection.find(query).sort(sort)
+        .projection(projection == Projection.TRANSFORMED ? PROJECTION_TRANSFORMED : null)
+        .batchSize(readBatchSize).iterator()) {
 
-    public DeltaReader(Receiver<WaveletDeltaRecord> receiver) {
-      this.receiver = receiver;
-      this.ascendingSort = true;
-    }
+      while (cursor.hasNext()) {
 
-    @Override
-    public void apply(BasicDBObject obj) {
+        WaveletDeltaRecord delta = deserialize(cursor.next(), projection);
 
-      WaveletDeltaRecord delta;
-      try {
-        delta = MongoDbDeltaStoreUtil.deserializeWaveletDeltaRecord(obj);
-      } catch (PersistenceException e) {
-        exception = e;
-        return;
-      }
+        if (lastProcDelta != null) {
+          if ( (ascendingSort && !delta.getAppliedAtVersion().equals(lastProcDelta.getResultingVersion())) ||
+              (!ascendingSort && !delta.getResultingVersion().equals(lastProcDelta.getAppliedAtVersion()))) {
+              LOG.warning("Delta history integrity error? Skipping delta at applied version=" + delta.getAppliedAtVersion().getVersion());
+              continue;
+            }
+        }
 
-      if (lastProcDelta != null) {
-        if ( (ascendingSort && !delta.getAppliedAtVersion().equals(lastProcDelta.getResultingVersion())) ||
-            (!ascendingSort && !delta.getResultingVersion().equals(lastProcDelta.getAppliedAtVersion()))) {
-            LOG.warning("Delta history integrity error? Skipping delta at applied version=" + delta.getAppliedAtVersion().getVersion());
-            return;
-          }
-      }
+        boolean halt = !receiver.put(delta);
 
-      boolean halt = !receiver.put(delta);
+        lastProcDelta = delta;
+        count++;
 
-      lastProcDelta = delta;
-      count++;
+        if (halt)
+          break;
+      }
 
-      if (halt)
-        throw new DeltaReaderHaltedException(lastProcDelta);
+    } catch (PersistenceException e) {
+      throw new IOException(e);
     }
 
+    return count;
   }
 
   @Override
   public long getAllDeltas(Receiver<WaveletDeltaRecord> receiver) throws IOException {
-
-
-    BasicDBObject sort = new BasicDBObject();
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION, 1);
-
-    DeltaReader block = new DeltaReader(receiver);
-    deltasCollection.find(createWaveletDBQuery()).sort(sort).forEach(block);
-
-    if (block.exception != null)
-      throw new IOException(block.exception);
-
-
-    return block.count;
+    return readDeltas(createWaveletDBQuery(), true, Projection.FULL, receiver);
   }
 
   @Override
   public long getDeltasInRange(long startVersion, long endVersion,
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    return getDeltasInRange(startVersion, endVersion, Projection.FULL, receiver);
+  }
 
-    boolean ascendingSort = startVersion < endVersion;
+  @Override
+  public long getDeltasInRange(long startVersion, long endVersion, Projection projection,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
 
-    BasicDBObject sort = new BasicDBObject();
-    sort.put(MongoDbDeltaStoreUtil.FIELD_TRANSFORMED_RESULTINGVERSION_VERSION,
-        ascendingSort ? 1 : -1);
+    boolean ascendingSort = startVersion < endVersion;
 
     Bson query = null;
     if (ascendingSort) {
@@ -345,17 +417,7 @@ public class MongoDbDeltaCollection implements DeltaStore.DeltasAccess {
               startVersion));
     }
 
-    DeltaReader block = new DeltaReader(receiver, ascendingSort);
-    try {
-      deltasCollection.find(query).sort(sort).forEach(block);
-    } catch (DeltaReaderHaltedException e) {
-
-    }
-    if (block.exception != null)
-      throw new IOException(block.exception);
-
-
-    return block.count;
+    return readDeltas(query, ascendingSort, projection, receiver);
   }
 
   @Override
@@ -22,6 +22,9 @@ package org.waveprotocol.box.server.persistence.mongodb;
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.persistence.FileNotFoundPersistenceException;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.DeltaStoreTransient;
 import org.waveprotocol.wave.model.id.WaveId;
@@ -36,6 +39,8 @@ import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.typesafe.config.Config;
+
 /**
  * A MongoDB based Delta Store implementation using a <b>deltas</b>
  * collection and a snapshots collection.
@@ -60,22 +65,37 @@ public class MongoDbDeltaStore implements DeltaStore, DeltaStoreTransient {
   /** A specific class handling snapshots */
   private final MongoDBSnapshotStore snapshotStore;
 
+  /** Number of documents fetched per round trip by range reads */
+  private final int readBatchSize;
+
+  /** Pipeline appended deltas of all wavelets are written through */
+  private final MongoDbDeltaWriter writer;
+
   /**
    * Creates a mongoDB based delta/snapshot store.
    *
    * @param database
+   * @param config the server configuration, providing the
+   *        core.mongodb_delta_* settings
    * @return
    */
-  public static MongoDbDeltaStore create(MongoDatabase database) {
+  public static MongoDbDeltaStore create(MongoDatabase database, Config config) {
+
+    int readBatchSize = config.getInt("core.mongodb_delta_read_batch_size");
+    int writeBatchSize = config.getInt("core.mongodb_delta_write_batch_size");
+    int writesInFlight = config.getInt("core.mongodb_delta_writes_in_flight");
 
     MongoCollection<BasicDBObject> deltasCollection = database.getCollection(DELTAS_COLLECTION,
         BasicDBObject.class);
     checkDeltasCollectionIndexes(deltasCollection);
     cleanTransientDeltaStores(deltasCollection);
 
-    MongoDBSnapshotStore snapshotStore = MongoDBSnapshotStore.create(database);
+    MongoDBSnapshotStore snapshotStore = MongoDBSnapshotStore.create(database, config);
+
+    MongoDbDeltaWriter writer =
+        new MongoDbDeltaWriter(deltasCollection, writeBatchSize, writesInFlight);
 
-    return new MongoDbDeltaStore(deltasCollection, snapshotStore);
+    return new MongoDbDeltaStore(deltasCollection, snapshotStore, readBatchSize, writer);
   }
 
   /**
@@ -121,6 +141,13 @@ public class MongoDbDeltaStore implements DeltaStore, DeltaStoreTransient {
     newIndex.put("waveletid", 1);
     deltasCollection.createIndex(newIndex);
     deltasCollection.createIndex(newIndex);
+
+    // Serves range reads of a wavelet sorted by version from the index alone
+    newIndex = new BasicDBObject();
+    newIndex.put("waveid", 1);
+    newIndex.put("waveletid", 1);
+    newIndex.put("transformed.resultingversion.version", 1);
+    deltasCollection.createIndex(newIndex);
   }
 
 
@@ -129,16 +156,26 @@ public class MongoDbDeltaStore implements DeltaStore, DeltaStoreTransient {
    *
    * @param database the database connection object
    */
-  private MongoDbDeltaStore(MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore) {
+  private MongoDbDeltaStore(MongoCollection<BasicDBObject> deltasCollection, MongoDBSnapshotStore snapshotStore, int readBatchSize, MongoDbDeltaWriter writer) {
     this.deltasCollection = deltasCollection;
     this.snapshotStore = snapshotStore;
+    this.readBatchSize = readBatchSize;
+    this.writer = writer;
+    new LifeCycle(MongoDbDeltaStore.class.getSimpleName(), ShutdownPriority.Storage,
+        new Shutdownable() {
+          @Override
+          public void shutdown() throws Exception {
+            writer.shutdown();
+          }
+        }).start();
   }
 
 
 
   @Override
   public DeltasAccess open(WaveletName waveletName) throws PersistenceException {
-    return new MongoDbDeltaCollection(waveletName, deltasCollection, snapshotStore);
+    return new MongoDbDeltaCollection(waveletName, deltasCollection, snapshotStore,
+        readBatchSize, writer);
   }
 
   @Override
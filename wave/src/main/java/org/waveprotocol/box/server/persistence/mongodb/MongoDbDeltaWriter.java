@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.util.Preconditions;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes appended deltas to the deltas collection through a pipeline.
+ * <p>
+ * Appends of all wavelets queue up and are coalesced into ordered, journaled
+ * bulk inserts, several of which may be in flight at once. While the writer is
+ * idle an append is written right away on its own; under load, appends queued
+ * while the in-flight writes are acknowledged share the next bulk insert, so
+ * the number of journal round trips grows with the number of batches rather
+ * than the number of appends.
+ * <p>
+ * The appends of a wavelet are written in order: a wavelet is never part of two
+ * in-flight batches, and within a batch the insert stops at the first failure.
+ * The future of an append completes once its deltas are acknowledged.
+ */
+class MongoDbDeltaWriter {
+  private static final Log LOG = Log.get(MongoDbDeltaWriter.class);
+
+  /** The deltas of one append, waiting to be written. */
+  private static class PendingWrite {
+    final WaveletName waveletName;
+    final List<BasicDBObject> documents;
+    final SettableFuture<Void> future = SettableFuture.create();
+
+    PendingWrite(WaveletName waveletName, List<BasicDBObject> documents) {
+      this.waveletName = waveletName;
+      this.documents = documents;
+    }
+  }
+
+  private final MongoCollection<BasicDBObject> deltasCollection;
+  private final int maxBatchDocuments;
+  private final int maxInFlight;
+  private final ExecutorService executor;
+
+  /** Appends not yet written, in arrival order. Guarded by this. */
+  private final LinkedList<PendingWrite> pending = Lists.newLinkedList();
+
+  /** Wavelets with a batch in flight. Guarded by this. */
+  private final Set<WaveletName> writing = Sets.newHashSet();
+
+  /** Number of batches in flight. Guarded by this. */
+  private int inFlight;
+
+  /** Whether the writer is shutting down and takes no more appends. */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * @param deltasCollection the collection deltas are written to
+   * @param maxBatchDocuments number of deltas after which a batch takes no
+   *        further appends
+   * @param maxInFlight number of batches written concurrently
+   */
+  MongoDbDeltaWriter(MongoCollection<BasicDBObject> deltasCollection, int maxBatchDocuments,
+      int maxInFlight) {
+    Preconditions.checkArgument(maxBatchDocuments > 0, "Batch size must be positive");
+    Preconditions.checkArgument(maxInFlight > 0, "Writes in flight must be positive");
+    this.deltasCollection = deltasCollection.withWriteConcern(WriteConcern.JOURNALED);
+    this.maxBatchDocuments = maxBatchDocuments;
+    this.maxInFlight = maxInFlight;
+    this.executor = Executors.newFixedThreadPool(maxInFlight,
+        new ThreadFactoryBuilder().setNameFormat("MongoDbDeltaWriter-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Queues the deltas of an append of a wavelet.
+   *
+   * @return a future which completes once the deltas are acknowledged, or
+   *         fails with a {@link PersistenceException}.
+   */
+  ListenableFuture<Void> write(WaveletName waveletName, List<BasicDBObject> documents) {
+    PendingWrite write = new PendingWrite(waveletName, documents);
+    if (documents.isEmpty()) {
+      write.future.set(null);
+      return write.future;
+    }
+    synchronized (this) {
+      if (closed.get()) {
+        write.future.setException(new PersistenceException("Delta writer is shut down"));
+        return write.future;
+      }
+      pending.add(write);
+    }
+    dispatch();
+    return write.future;
+  }
+
+  /**
+   * Starts writing batches of pending appends while there are free slots.
+   */
+  private void dispatch() {
+    synchronized (this) {
+      while (inFlight < maxInFlight && !pending.isEmpty()) {
+        final List<PendingWrite> batch = takeBatch();
+        if (batch.isEmpty()) {
+          // Every pending append waits for its wavelet's batch in flight.
+          return;
+        }
+        inFlight++;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            writeBatch(batch);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Takes pending appends of wavelets without a batch in flight, in arrival
+   * order, up to the batch size. Guarded by this.
+   */
+  private List<PendingWrite> takeBatch() {
+    List<PendingWrite> batch = Lists.newArrayList();
+    int documents = 0;
+    Iterator<PendingWrite> it = pending.iterator();
+    while (it.hasNext() && documents < maxBatchDocuments) {
+      PendingWrite write = it.next();
+      if (!writing.contains(write.waveletName)) {
+        it.remove();
+        batch.add(write);
+        documents += write.documents.size();
+      }
+    }
+    for (PendingWrite write : batch) {
+      writing.add(write.waveletName);
+    }
+    return batch;
+  }
+
+  private void writeBatch(List<PendingWrite> batch) {
+    List<BasicDBObject> documents = Lists.newArrayList();
+    for (PendingWrite write : batch) {
+      documents.addAll(write.documents);
+    }
+
+    // Deltas before this index are written.
+    int written = documents.size();
+    MongoException failure = null;
+    try {
+      deltasCollection.insertMany(documents, new InsertManyOptions().ordered(true));
+    } catch (MongoBulkWriteException e) {
+      failure = e;
+      written = e.getWriteErrors().isEmpty() ? 0 : e.getWriteErrors().get(0).getIndex();
+    } catch (MongoException e) {
+      failure = e;
+      written = 0;
+    }
+
+    Set<WaveletName> failed = Sets.newHashSet();
+    int end = 0;
+    for (PendingWrite write : batch) {
+      end += write.documents.size();
+      if (end <= written && !failed.contains(write.waveletName)) {
+        write.future.set(null);
+      } else {
+        failed.add(write.waveletName);
+        write.future.setException(
+            new PersistenceException("Failed to write deltas of " + write.waveletName, failure));
+      }
+    }
+    if (failure != null) {
+      LOG.warning("Failed to write deltas of " + failed, failure);
+    }
+
+    synchronized (this) {
+      // Later appends of a failed wavelet would leave a gap in its history.
+      Iterator<PendingWrite> it = pending.iterator();
+      while (it.hasNext()) {
+        PendingWrite write = it.next();
+        if (failed.contains(write.waveletName)) {
+          it.remove();
+          write.future.setException(new PersistenceException(
+              "Failed to write previous deltas of " + write.waveletName, failure));
+        }
+      }
+      for (PendingWrite write : batch) {
+        writing.remove(write.waveletName);
+      }
+      inFlight--;
+    }
+    dispatch();
+  }
+
+  /**
+   * Stops taking appends and waits for the queued ones to be written.
+   */
+  void shutdown() throws InterruptedException {
+    closed.set(true);
+    synchronized (this) {
+      while (!pending.isEmpty() || inFlight > 0) {
+        wait(100);
+      }
+      executor.shutdown();
+    }
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.util.Preconditions;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MongoDB implementation of {@link PerUserWaveViewStore}. Collection is
+ * "userwavelets", with a document per participant and wavelet:
+ * <p>
+ * <code>
+ *  {
+ *    participant: "",
+ *    waveid: "",
+ *    waveletid: "",
+ *    lmt: (timestamp)
+ *  }
+ * </code>
+ * <p>
+ * Pages of a view are read sorted from the index {participant, lmt}. A document
+ * {_id: "backfilled"} in the collection "userwaveletsstate" records that the
+ * views of the existing wavelets have been added.
+ */
+public class MongoDbPerUserWaveViewStore implements PerUserWaveViewStore {
+
+  private static final String USER_WAVELETS_COLLECTION = "userwavelets";
+  private static final String USER_WAVELETS_STATE_COLLECTION = "userwaveletsstate";
+
+  private static final String BACKFILLED_ID = "backfilled";
+
+  private static final String PARTICIPANT_FIELD = "participant";
+  private static final String WAVEID_FIELD = "waveid";
+  private static final String WAVELETID_FIELD = "waveletid";
+  private static final String LMT_FIELD = "lmt";
+
+  private final MongoCollection<Document> collection;
+  private final MongoCollection<Document> stateCollection;
+
+  protected static MongoDbPerUserWaveViewStore create(MongoDatabase database) {
+    Preconditions.checkArgument(database != null,
+        "Unable to get reference to mongoDB user wavelets collection");
+    MongoCollection<Document> collection = database.getCollection(USER_WAVELETS_COLLECTION);
+    Preconditions.checkArgument(collection != null,
+        "Unable to get reference to mongoDB user wavelets collection");
+
+    collection.createIndex(new Document(PARTICIPANT_FIELD, 1).append(WAVEID_FIELD, 1)
+        .append(WAVELETID_FIELD, 1), new IndexOptions().unique(true));
+    collection.createIndex(new Document(PARTICIPANT_FIELD, 1).append(LMT_FIELD, -1));
+
+    return new MongoDbPerUserWaveViewStore(collection,
+        database.getCollection(USER_WAVELETS_STATE_COLLECTION));
+  }
+
+  protected MongoDbPerUserWaveViewStore(MongoCollection<Document> collection,
+      MongoCollection<Document> stateCollection) {
+    this.collection = collection;
+    this.stateCollection = stateCollection;
+  }
+
+  private static Bson filterBy(ParticipantId participant, WaveletName waveletName) {
+    return and(eq(PARTICIPANT_FIELD, participant.getAddress()),
+        eq(WAVEID_FIELD, ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletName.waveId)),
+        eq(WAVELETID_FIELD, ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletName.waveletId)));
+  }
+
+  @Override
+  public void putWavelet(ParticipantId participant, WaveletName waveletName,
+      long lastModifiedTime) throws PersistenceException {
+    try {
+      collection.updateOne(filterBy(participant, waveletName),
+          Updates.set(LMT_FIELD, lastModifiedTime), new UpdateOptions().upsert(true));
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void removeWavelet(ParticipantId participant, WaveletName waveletName)
+      throws PersistenceException {
+    try {
+      collection.deleteOne(filterBy(participant, waveletName));
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public List<WaveletName> getWavelets(ParticipantId participant, int startAt, int numResults)
+      throws PersistenceException {
+    List<WaveletName> wavelets = new ArrayList<WaveletName>();
+    if (numResults <= 0) {
+      // A limit of 0 means no limit to MongoDB.
+      return wavelets;
+    }
+    try {
+      for (Document d : collection.find(eq(PARTICIPANT_FIELD, participant.getAddress()))
+          .projection(Projections.include(WAVEID_FIELD, WAVELETID_FIELD))
+          .sort(Sorts.descending(LMT_FIELD)).skip(startAt).limit(numResults)) {
+        wavelets.add(WaveletName.of(
+            ModernIdSerialiser.INSTANCE.deserialiseWaveId(d.getString(WAVEID_FIELD)),
+            ModernIdSerialiser.INSTANCE.deserialiseWaveletId(d.getString(WAVELETID_FIELD))));
+      }
+    } catch (InvalidIdException | MongoException e) {
+      throw new PersistenceException(e);
+    }
+    return wavelets;
+  }
+
+  @Override
+  public boolean isBackfilled() throws PersistenceException {
+    try {
+      return stateCollection.count(eq("_id", BACKFILLED_ID)) > 0;
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void setBackfilled() throws PersistenceException {
+    try {
+      stateCollection.replaceOne(eq("_id", BACKFILLED_ID), new Document("_id", BACKFILLED_ID),
+          new UpdateOptions().upsert(true));
+    } catch (MongoException e) {
+      throw new PersistenceException(e);
+    }
+  }
+}
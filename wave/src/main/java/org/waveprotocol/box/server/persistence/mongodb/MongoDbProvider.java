@@ -32,6 +32,8 @@ import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 
 /**
@@ -50,6 +52,8 @@ public class MongoDbProvider {
 
   private String dbName;
 
+  private Config config;
+
   /**
    * Our {@link MongoClient} instance, should be accessed by getMongo unless during
    * start().
@@ -76,6 +80,11 @@ public class MongoDbProvider {
    */
   private MongoDbGroupStore mongoDbGroupStore;
 
+  /**
+   * Our {@link MongoDbPerUserWaveViewStore} instance.
+   */
+  private MongoDbPerUserWaveViewStore mongoDbPerUserWaveViewStore;
+
   /** Stores whether we have successfully setup a live {@link Mongo} instance. */
   private boolean isRunning;
 
@@ -83,9 +92,19 @@ public class MongoDbProvider {
    * Constructs a new empty {@link MongoDbProvider}.
    */
   public MongoDbProvider(String dbHost, String dbPort, String dbName) {
+    this(dbHost, dbPort, dbName, ConfigFactory.empty());
+  }
+
+  /**
+   * Constructs a new empty {@link MongoDbProvider}.
+   *
+   * @param config the server configuration, for the settings of the stores
+   */
+  public MongoDbProvider(String dbHost, String dbPort, String dbName, Config config) {
     this.dbHost = dbHost;
     this.dbPort = dbPort;
     this.dbName = dbName;
+    this.config = config;
   }
 
   /**
@@ -162,7 +181,7 @@ public class MongoDbProvider {
    */
   public MongoDbDeltaStore provideMongoDbDeltaStore() {
     if (mongoDbDeltaStore == null) {
-      mongoDbDeltaStore = MongoDbDeltaStore.create(getDatabase());
+      mongoDbDeltaStore = MongoDbDeltaStore.create(getDatabase(), config);
     }
 
     return mongoDbDeltaStore;
@@ -199,4 +218,16 @@ public class MongoDbProvider {
 
     return mongoDbGroupStore;
   }
+
+  /**
+   * Returns a {@link MongoDbPerUserWaveViewStore} instance created from the
+   * settings in this provider.
+   */
+  public MongoDbPerUserWaveViewStore provideMongoDbPerUserWaveViewStore() {
+    if (mongoDbPerUserWaveViewStore == null) {
+      mongoDbPerUserWaveViewStore = MongoDbPerUserWaveViewStore.create(getDatabase());
+    }
+
+    return mongoDbPerUserWaveViewStore;
+  }
 }
@@ -20,15 +20,26 @@
 package org.waveprotocol.box.server.persistence.protos;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoBlipContributions;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoContributionRun;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoWaveletContributions;
+import org.waveprotocol.box.server.swell.WaveletContributions;
+import org.waveprotocol.box.server.swell.WaveletContributions.BlipContributions;
+import org.waveprotocol.wave.model.document.AnnotationInterval;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * This class is used to serialize and deserialize {@link TransformedWavelwetDelta}
  * and {@link ProtoTransformedWavelwetDelta}
@@ -73,4 +84,48 @@ public class ProtoDeltaStoreDataSerializer {
     }
     return new TransformedWaveletDelta(author, resultingVersion, applicationTimestamp, operations.build());
   }
+
+  /**
+   * Serialize a {@link WaveletContributions} into a {@link ProtoWaveletContributions}
+   */
+  public static ProtoWaveletContributions serialize(WaveletContributions contributions) {
+    ProtoWaveletContributions.Builder builder = ProtoWaveletContributions.newBuilder();
+    builder.setVersion(CoreWaveletOperationSerializer.serialize(contributions.getWaveletVersion()));
+    for (Map.Entry<String, BlipContributions> entry : contributions.getBlipContributions()) {
+      ProtoBlipContributions.Builder blip = ProtoBlipContributions.newBuilder();
+      blip.setBlipId(entry.getKey());
+      blip.setDocumentSize(entry.getValue().getDocumentSize());
+      for (AnnotationInterval<Object> interval : entry.getValue().getAuthorRuns()) {
+        ProtoContributionRun.Builder run = ProtoContributionRun.newBuilder();
+        run.setLength(interval.length());
+        Object author = interval.annotations().get(WaveletContributions.ANNOTATION_KEY);
+        if (author != null) {
+          run.setAuthor(((ParticipantId) author).getAddress());
+        }
+        blip.addRun(run);
+      }
+      builder.addBlip(blip);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Deserialize a {@link ProtoWaveletContributions} into a {@link WaveletContributions}
+   */
+  public static WaveletContributions deserialize(ProtoWaveletContributions proto,
+      WaveletName waveletName) {
+    WaveletContributions contributions = new WaveletContributions(waveletName,
+        CoreWaveletOperationSerializer.deserialize(proto.getVersion()));
+    for (ProtoBlipContributions blip : proto.getBlipList()) {
+      List<Integer> lengths = Lists.newArrayListWithCapacity(blip.getRunCount());
+      List<ParticipantId> authors = Lists.newArrayListWithCapacity(blip.getRunCount());
+      for (ProtoContributionRun run : blip.getRunList()) {
+        lengths.add(run.getLength());
+        authors.add(run.hasAuthor() ? ParticipantId.ofUnsafe(run.getAuthor()) : null);
+      }
+      contributions.restoreBlipContributions(blip.getBlipId(), blip.getDocumentSize(), lengths,
+          authors);
+    }
+    return contributions;
+  }
 }
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.robots.passive;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.server.account.AccountData;
+import org.waveprotocol.box.server.account.RobotAccountData;
+import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the verified robot accounts, so that the {@link RobotsGateway}
+ * doesn't read the account of every participant of an updated wavelet.
+ *
+ * The account of a participant is read once. Verified robots are kept until
+ * they are unregistered, other participants are remembered as non robots for
+ * {@link #NON_ROBOT_EXPIRY_MINUTES}, in case they become robots without going
+ * through the {@link RobotRegistrar}.
+ */
+@Singleton
+public class RobotRegistry implements RobotRegistrar.Listener {
+
+  /** Time a participant is known not to be a verified robot. */
+  private static final long NON_ROBOT_EXPIRY_MINUTES = 10;
+
+  /** Maximum number of participants known not to be verified robots. */
+  private static final long NON_ROBOT_MAX_SIZE = 100000;
+
+  private final AccountStore accountStore;
+
+  private final ConcurrentMap<ParticipantId, RobotAccountData> robots = Maps.newConcurrentMap();
+
+  private final Cache<ParticipantId, Boolean> nonRobots;
+
+  @Inject
+  public RobotRegistry(AccountStore accountStore, RobotRegistrar registrar) {
+    this(accountStore, registrar, CacheBuilder.newBuilder()
+        .maximumSize(NON_ROBOT_MAX_SIZE)
+        .expireAfterWrite(NON_ROBOT_EXPIRY_MINUTES, TimeUnit.MINUTES)
+        .<ParticipantId, Boolean>build());
+  }
+
+  @VisibleForTesting
+  RobotRegistry(AccountStore accountStore, RobotRegistrar registrar,
+      Cache<ParticipantId, Boolean> nonRobots) {
+    this.accountStore = accountStore;
+    this.nonRobots = nonRobots;
+    registrar.addRegistrationListener(this);
+  }
+
+  /**
+   * Returns the verified robot account of the participant, or null if the
+   * participant is not a verified robot.
+   *
+   * @param robotId the robot id, without the proxy for part.
+   * @throws PersistenceException if the account could not be read.
+   */
+  public RobotAccountData getVerifiedRobot(ParticipantId robotId) throws PersistenceException {
+    RobotAccountData robot = robots.get(robotId);
+    if (robot != null || nonRobots.getIfPresent(robotId) != null) {
+      return robot;
+    }
+    AccountData account = accountStore.getAccount(robotId);
+    if (account != null && account.isRobot() && account.asRobot().isVerified()) {
+      robot = account.asRobot();
+      robots.put(robotId, robot);
+    } else {
+      nonRobots.put(robotId, Boolean.TRUE);
+    }
+    return robot;
+  }
+
+  /**
+   * Updates the account of a robot after it was stored.
+   */
+  public void updateRobot(RobotAccountData account) {
+    ParticipantId robotId = account.getId();
+    if (account.isVerified()) {
+      nonRobots.invalidate(robotId);
+      robots.put(robotId, account);
+    } else {
+      robots.remove(robotId);
+      nonRobots.put(robotId, Boolean.TRUE);
+    }
+  }
+
+  @Override
+  public void onRegistrationSuccess(RobotAccountData account) {
+    updateRobot(account);
+  }
+
+  @Override
+  public void onUnregistrationSuccess(RobotAccountData account) {
+    robots.remove(account.getId());
+    nonRobots.invalidate(account.getId());
+  }
+}
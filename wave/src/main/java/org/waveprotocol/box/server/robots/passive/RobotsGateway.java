@@ -30,7 +30,6 @@ import com.google.wave.api.robot.CapabilityFetchException;
 import com.google.wave.api.robot.RobotName;
 
 import org.waveprotocol.box.common.DeltaSequence;
-import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.box.server.account.RobotAccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.persistence.PersistenceException;
@@ -65,6 +64,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
 
   private final WaveletProvider waveletProvider;
   private final AccountStore accountStore;
+  private final RobotRegistry robotRegistry;
   private final EventDataConverterManager converterManager;
   private final RobotConnector connector;
   private final Map<RobotName, Robot> allRobots = Maps.newHashMap();
@@ -76,11 +76,12 @@ public class RobotsGateway implements WaveBus.Subscriber {
   @Inject
   @VisibleForTesting
   RobotsGateway(WaveletProvider waveletProvider, RobotConnector connector,
-      AccountStore accountStore, RobotSerializer serializer,
+      AccountStore accountStore, RobotRegistry robotRegistry, RobotSerializer serializer,
       EventDataConverterManager converterManager, @Named("GatewayExecutor") Executor executor,
       ConversationUtil conversationUtil, NotifyOperationService notifyOpService) {
     this.waveletProvider = waveletProvider;
     this.accountStore = accountStore;
+    this.robotRegistry = robotRegistry;
     this.converterManager = converterManager;
     this.connector = connector;
     this.executor = executor;
@@ -115,20 +116,17 @@ public class RobotsGateway implements WaveBus.Subscriber {
       }
 
       ParticipantId robotId = ParticipantId.ofUnsafe(robotName.toEmailAddress());
-      AccountData account;
+      RobotAccountData robotAccount;
       try {
-        account = accountStore.getAccount(robotId);
+        robotAccount = robotRegistry.getVerifiedRobot(robotId);
       } catch (PersistenceException e) {
         LOG.severe("Failed to retrieve the account data for " + robotId.getAddress(), e);
         continue;
       }
 
-      if (account != null && account.isRobot()) {
-        RobotAccountData robotAccount = account.asRobot();
-        if (robotAccount.isVerified()) {
-          Robot robot = getOrCreateRobot(robotName, robotAccount);
-          updateRobot(robot, wavelet, deltas);
-        }
+      if (robotAccount != null) {
+        Robot robot = getOrCreateRobot(robotName, robotAccount);
+        updateRobot(robot, wavelet, deltas);
       }
     }
   }
@@ -224,6 +222,7 @@ public class RobotsGateway implements WaveBus.Subscriber {
     String activeApiUrl = "";
     RobotAccountData newAccount = connector.fetchCapabilities(robot.getAccount(), activeApiUrl);
     accountStore.putAccount(newAccount);
+    robotRegistry.updateRobot(newAccount);
     robot.setAccount(newAccount);
   }
 }
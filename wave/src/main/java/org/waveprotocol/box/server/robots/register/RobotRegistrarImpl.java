@@ -21,6 +21,7 @@ package org.waveprotocol.box.server.robots.register;
 
 import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.box.server.account.RobotAccountData;
@@ -40,6 +41,7 @@ import java.util.logging.Logger;
  *
  * @author yurize@apache.org (Yuri Zelikov)
  */
+@Singleton
 public class RobotRegistrarImpl implements RobotRegistrar {
 
   private static final Listener REGISTRATION_EVENTS_LOGGER = new Listener() {
@@ -27,7 +27,9 @@ import java.util.Map;
 /**
  * Channel superclass to abstract expected-message mechanism.
  * 
- * Note: {@link #expectMessage} has no effect.
+ * Note: {@link #expectMessage} only has an effect on channels that parse
+ * messages by their prototype, such as websockets using binary frames. JSON
+ * messages are parsed with any type known to {@link ProtoSerializer}.
  */
 public abstract class MessageExpectingChannel {
   private final Map<String, Message> expectedMessages = Maps.newHashMap();
@@ -24,8 +24,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageLite;
+import com.google.protobuf.UninitializedMessageException;
 
 import org.waveprotocol.box.common.comms.WaveClientRpc.DocumentSnapshot;
 import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolAuthenticate;
@@ -57,16 +60,22 @@ import org.waveprotocol.box.attachment.AttachmentProto.AttachmentsResponse;
 import org.waveprotocol.box.attachment.proto.AttachmentsResponseProtoImpl;
 import org.waveprotocol.wave.communication.gson.GsonException;
 import org.waveprotocol.wave.communication.gson.GsonSerializable;
+import org.waveprotocol.wave.communication.gson.GsonStreamCodec;
 import org.waveprotocol.wave.communication.json.RawStringData;
 import org.waveprotocol.wave.communication.proto.ProtoWrapper;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.proto.ProtocolWaveletDeltaProtoImpl;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Map;
 
 /**
  * Serializes protos to/from JSON objects.
  * <p>
  * This class uses the PST-generated message classes to perform serialization
- * and deserialization.
+ * and deserialization, either through JSON trees or by streaming with their
+ * generated {@link GsonStreamCodec}s.
  */
 public final class ProtoSerializer {
 
@@ -91,10 +100,24 @@ public final class ProtoSerializer {
       D extends ProtoWrapper<P> & GsonSerializable> {
     private final Class<P> protoClass;
     private final Class<D> dtoClass;
+    private final GsonStreamCodec<P> codec;
 
     ProtoImplSerializer(Class<P> protoClass, Class<D> dtoClass) {
       this.protoClass = protoClass;
       this.dtoClass = dtoClass;
+      this.codec = streamCodec(dtoClass);
+    }
+
+    /** Gets the stream codec generated into a DTO class. */
+    @SuppressWarnings("unchecked")
+    private static <P extends Message> GsonStreamCodec<P> streamCodec(Class<?> dtoClass) {
+      try {
+        return (GsonStreamCodec<P>) dtoClass.getField("JSON_CODEC").get(null);
+      } catch (NoSuchFieldException e) {
+        throw new IllegalArgumentException("No stream codec in " + dtoClass.getName(), e);
+      } catch (IllegalAccessException e) {
+        throw new IllegalArgumentException("No stream codec in " + dtoClass.getName(), e);
+      }
     }
 
     static <P extends Message, D extends ProtoWrapper<P> & GsonSerializable>
@@ -130,8 +153,35 @@ public final class ProtoSerializer {
       }
       return dto.getPB();
     }
+
+    void writeJson(MessageLite proto, JsonWriter out) throws IOException {
+      Preconditions.checkState(protoClass.isInstance(proto));
+      codec.write(protoClass.cast(proto), out);
+    }
+
+    P readJson(JsonReader in) throws SerializationException {
+      try {
+        return codec.read(in);
+      } catch (IOException | IllegalStateException | IllegalArgumentException
+          | UninitializedMessageException e) {
+        // IllegalArgumentException covers malformed numbers and unknown enum
+        // values.
+        throw new SerializationException(e);
+      }
+    }
   }
 
+  /** Buffers larger than this are not kept for reuse by {@link #toJsonString}. */
+  private static final int MAX_RETAINED_BUFFER_CHARS = 64 * 1024;
+
+  /** Reusable per-thread output buffer of {@link #toJsonString}. */
+  private static final ThreadLocal<StringWriter> BUFFER = new ThreadLocal<StringWriter>() {
+    @Override
+    protected StringWriter initialValue() {
+      return new StringWriter(1024);
+    }
+  };
+
   private final Gson gson = new Gson();
   private final Map<Class<?>, ProtoImplSerializer<?, ?>> byClass = Maps.newHashMap();
   private final Map<String, ProtoImplSerializer<?, ?>> byName = Maps.newHashMap();
@@ -151,6 +201,9 @@ public final class ProtoSerializer {
     add(ProtocolSubmitRequest.class, ProtocolSubmitRequestProtoImpl.class);
     add(ProtocolSubmitResponse.class, ProtocolSubmitResponseProtoImpl.class);
     add(ProtocolWaveletUpdate.class, ProtocolWaveletUpdateProtoImpl.class);
+    // Deltas are serialized on their own so they can be shared between the
+    // updates sent to each channel, see WaveletUpdateJsonEncoder.
+    add(ProtocolWaveletDelta.class, ProtocolWaveletDeltaProtoImpl.class);
     add(WaveletSnapshot.class, WaveletSnapshotProtoImpl.class);
     add(DocumentSnapshot.class, DocumentSnapshotProtoImpl.class);
     add(WaveViewSnapshot.class, WaveViewSnapshotProtoImpl.class);
@@ -218,6 +271,43 @@ public final class ProtoSerializer {
     return getSerializer(message.getClass()).toGson(message, null, gson);
   }
 
+  /**
+   * Serializes a proto to a JSON string, in the same format as
+   * {@link #toJson}, without building a JSON tree. Only protos whose classes
+   * have been registered will be serialized.
+   *
+   * @throws SerializationException if the class of {@code message} has not been
+   *         registered.
+   */
+  public <P extends Message> String toJsonString(P message) throws SerializationException {
+    StringWriter buffer = BUFFER.get();
+    buffer.getBuffer().setLength(0);
+    JsonWriter out = new JsonWriter(buffer);
+    // Matches JsonElement.toString(), which is lenient too.
+    out.setLenient(true);
+    try {
+      getSerializer(message.getClass()).writeJson(message, out);
+    } catch (IOException e) {
+      throw new SerializationException(e);
+    }
+    String json = buffer.toString();
+    if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER_CHARS) {
+      BUFFER.remove();
+    }
+    return json;
+  }
+
+  /**
+   * Deserializes a proto from the next value of a JSON stream. Only protos
+   * whose classes have been registered can be deserialized.
+   *
+   * @throws SerializationException if no class called {@code type} has been
+   *         registered, or the stream does not hold a valid {@code type}.
+   */
+  public Message readJson(JsonReader in, String type) throws SerializationException {
+    return getSerializer(type).readJson(in);
+  }
+
   /**
    * Deserializes a proto from JSON. Only protos whose classes have been
    * registered can be deserialized.
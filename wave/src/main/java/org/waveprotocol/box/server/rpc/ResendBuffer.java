@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
+import org.waveprotocol.wave.crypto.TimeSource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames sent on a websocket connection and not acknowledged by the client
+ * yet, kept to resend them when the client reconnects.
+ * <p>
+ * The buffer is bounded by a byte budget and by the age of its frames. The
+ * oldest frames are dropped when either limit is exceeded, the newest frame is
+ * always kept. Once a frame is dropped before the client acknowledges it, the
+ * client can't be brought up to date by a replay any more, see
+ * {@link #isWindowLost()}.
+ * <p>
+ * Not thread safe, the channel owning it synchronizes the access.
+ */
+final class ResendBuffer {
+
+  /** Live buffers, to compute the statistics. */
+  private static final Set<ResendBuffer> buffers = Collections.synchronizedSet(
+      Collections.newSetFromMap(new WeakHashMap<ResendBuffer, Boolean>()));
+
+  @Stat(name = "websocket-resend-buffer-bytes",
+      help = "Bytes of the frames kept for resending over all websocket connections")
+  private static final Object totalBytes = new Object() {
+    @Override
+    public String toString() {
+      long total = 0;
+      synchronized (buffers) {
+        for (ResendBuffer buffer : buffers) {
+          total += buffer.bytes;
+        }
+      }
+      return String.valueOf(total);
+    }
+  };
+
+  @Stat(name = "websocket-resend-buffer-max-bytes",
+      help = "Bytes of the frames kept for resending by the largest websocket connection")
+  private static final Object maxBytes = new Object() {
+    @Override
+    public String toString() {
+      long max = 0;
+      synchronized (buffers) {
+        for (ResendBuffer buffer : buffers) {
+          max = Math.max(max, buffer.bytes);
+        }
+      }
+      return String.valueOf(max);
+    }
+  };
+
+  @Stat(name = "websocket-resend-dropped-frames",
+      help = "Number of frames dropped from the resend buffers before being acknowledged")
+  private static final AtomicLong droppedFrames = new AtomicLong();
+
+  static {
+    Statistic.trackClass(ResendBuffer.class);
+  }
+
+  private static final class Entry {
+    final Object frame;
+    final int bytes;
+    final long time;
+
+    Entry(Object frame, int bytes, long time) {
+      this.frame = frame;
+      this.bytes = bytes;
+      this.time = time;
+    }
+  }
+
+  private final Deque<Entry> entries = new ArrayDeque<Entry>();
+  private final long byteBudget;
+  private final long ttlMs;
+  private final TimeSource timeSource;
+
+  /** Approximate heap size of the buffered frames. */
+  private volatile long bytes = 0;
+
+  /** Number of frames dropped and not acknowledged yet. */
+  private int dropped = 0;
+
+  /**
+   * @param byteBudget max bytes of the buffered frames, 0 means no limit
+   * @param ttlMs max time in ms to keep a frame, 0 means forever
+   */
+  ResendBuffer(long byteBudget, long ttlMs, TimeSource timeSource) {
+    this.byteBudget = byteBudget;
+    this.ttlMs = ttlMs;
+    this.timeSource = timeSource;
+    buffers.add(this);
+  }
+
+  /**
+   * Adds a sent frame, either a string or a byte array.
+   */
+  void add(Object frame) {
+    int size = frame instanceof byte[] ? ((byte[]) frame).length : 2 * ((String) frame).length();
+    entries.add(new Entry(frame, size, timeSource.currentTimeMillis()));
+    bytes += size;
+    trim();
+  }
+
+  /**
+   * Removes the n oldest frames, which the client has received.
+   */
+  void acknowledge(int n) {
+    int droppedAcks = Math.min(n, dropped);
+    dropped -= droppedAcks;
+    for (int i = droppedAcks; i < n && !entries.isEmpty(); i++) {
+      bytes -= entries.poll().bytes;
+    }
+  }
+
+  /**
+   * @return true if frames not acknowledged by the client were dropped, so the
+   *         buffered frames can't bring the client up to date.
+   */
+  boolean isWindowLost() {
+    trim();
+    return dropped > 0;
+  }
+
+  /**
+   * @return the buffered frames, oldest first.
+   */
+  List<Object> getFrames() {
+    trim();
+    List<Object> frames = new ArrayList<Object>(entries.size());
+    for (Entry entry : entries) {
+      frames.add(entry.frame);
+    }
+    return frames;
+  }
+
+  /**
+   * Discards all frames, after the client has been told to resynchronize or
+   * has gone.
+   */
+  void clear() {
+    entries.clear();
+    bytes = 0;
+    dropped = 0;
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void trim() {
+    long expiry = ttlMs > 0 ? timeSource.currentTimeMillis() - ttlMs : Long.MIN_VALUE;
+    while (entries.size() > 1
+        && ((byteBudget > 0 && bytes > byteBudget) || entries.peek().time < expiry)) {
+      bytes -= entries.poll().bytes;
+      dropped++;
+      droppedFrames.incrementAndGet();
+    }
+  }
+}
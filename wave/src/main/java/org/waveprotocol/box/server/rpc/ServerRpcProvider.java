@@ -71,6 +71,7 @@ import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.util.NetUtils;
 import org.waveprotocol.box.stat.Timer;
 import org.waveprotocol.box.stat.Timing;
+import org.waveprotocol.wave.communication.proto.ProtoMessageFrame;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
@@ -158,9 +159,11 @@ public class ServerRpcProvider {
     private final WebSocketChannel socketChannel;
 
     WebSocketConnection(String connectionId, ParticipantId loggedInUser,
-        ServerRpcProvider provider) {
+        ServerRpcProvider provider, boolean binary, long resendBufferSize,
+        long resendBufferTtlMs) {
       super(connectionId, loggedInUser, provider);
-      socketChannel = new WebSocketChannelImpl(connectionId, this);
+      socketChannel = new WebSocketChannelImpl(connectionId, this, binary, resendBufferSize,
+          resendBufferTtlMs);
       LOG.info("Websocket[" + connectionId + "] created");
       expectMessages(socketChannel);
     }
@@ -675,6 +678,8 @@ public class ServerRpcProvider {
     final ServerRpcProvider provider;
     final int websocketMaxIdleTime;
     final int websocketMaxMessageSize;
+    final long websocketResendBufferSize;
+    final long websocketResendBufferTtlMs;
 
     @Inject
     public WaveWebSocketServlet(ServerRpcProvider provider, Config config) {
@@ -682,6 +687,10 @@ public class ServerRpcProvider {
       this.provider = provider;
       this.websocketMaxIdleTime = config.getInt("network.websocket_max_idle_time");
       this.websocketMaxMessageSize = config.getInt("network.websocket_max_message_size");
+      this.websocketResendBufferSize =
+          config.getLong("network.websocket_resend_buffer_size") * 1024 * 1024;
+      this.websocketResendBufferTtlMs =
+          TimeUnit.SECONDS.toMillis(config.getLong("network.websocket_resend_buffer_ttl"));
     }
 
     @SuppressWarnings("cast")
@@ -694,6 +703,7 @@ public class ServerRpcProvider {
         factory.getPolicy().setIdleTimeout(websocketMaxIdleTime);
       }
       factory.getPolicy().setMaxTextMessageSize(websocketMaxMessageSize * 1024 * 1024);
+      factory.getPolicy().setMaxBinaryMessageSize(websocketMaxMessageSize * 1024 * 1024);
       factory.setCreator(new WebSocketCreator() {
         @Override
         public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
@@ -709,14 +719,22 @@ public class ServerRpcProvider {
             loggedInUser = provider.sessionManager.getLoggedInUser(token);
           }
 
+          // Clients opt in to binary protobuf frames, JSON stays the default.
+          final boolean binary = req.getSubProtocols().contains(ProtoMessageFrame.SUBPROTOCOL);
+          if (binary) {
+            resp.setAcceptedSubProtocol(ProtoMessageFrame.SUBPROTOCOL);
+          }
+
           WebSocketConnection wsConnection = null;
 
           if (token != null) {
 
             try {
 
+              // A connection's frames are either all JSON or all binary.
               final String connectionId = token
-                  + (loggedInUser != null ? ":" + loggedInUser.getAddress() : "");
+                  + (loggedInUser != null ? ":" + loggedInUser.getAddress() : "")
+                  + (binary ? ":" + ProtoMessageFrame.SUBPROTOCOL : "");
 
               final ParticipantId participantId = loggedInUser;
 
@@ -725,7 +743,8 @@ public class ServerRpcProvider {
 
                     @Override
                     public WebSocketConnection call() throws Exception {
-                      return new WebSocketConnection(connectionId, participantId, provider);
+                      return new WebSocketConnection(connectionId, participantId, provider,
+                          binary, websocketResendBufferSize, websocketResendBufferTtlMs);
                     }
 
                   });
@@ -736,7 +755,8 @@ public class ServerRpcProvider {
 
           } else {
             // Transient WebSocketConnection
-            wsConnection = new WebSocketConnection(null, loggedInUser, provider);
+            wsConnection = new WebSocketConnection(null, loggedInUser, provider, binary,
+                websocketResendBufferSize, websocketResendBufferTtlMs);
           }
 
           return wsConnection.getWebSocketServerChannel();
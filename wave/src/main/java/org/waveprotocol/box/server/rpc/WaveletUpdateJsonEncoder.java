@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.common.comms.proto.WaveletSnapshotProtoImpl;
+import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.proto.ProtocolHashedVersionProtoImpl;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes wavelet updates to JSON, serializing each applied delta only once.
+ * <p>
+ * A delta broadcast to several channels is carried by a separate update per
+ * channel, but all of them reference the same {@link ProtocolWaveletDelta}
+ * instance. The JSON of each delta instance is cached and written into the
+ * JSON of every update carrying it, so only the per-channel fields (channel
+ * id, versions, marker) are serialized for each subscriber.
+ */
+final class WaveletUpdateJsonEncoder {
+
+  /**
+   * JSON of recently sent deltas, keyed by delta identity. Deltas drop out once
+   * no update references them any more.
+   */
+  private static final Cache<ProtocolWaveletDelta, String> DELTA_JSON =
+      CacheBuilder.newBuilder().weakKeys().expireAfterAccess(1, TimeUnit.MINUTES).build();
+
+  /** Numbers of the update fields written by {@link #encode}. */
+  @VisibleForTesting
+  static final ImmutableSet<Integer> ENCODED_FIELDS = ImmutableSet.of(
+      ProtocolWaveletUpdate.WAVELET_NAME_FIELD_NUMBER,
+      ProtocolWaveletUpdate.APPLIED_DELTA_FIELD_NUMBER,
+      ProtocolWaveletUpdate.COMMIT_NOTICE_FIELD_NUMBER,
+      ProtocolWaveletUpdate.RESULTING_VERSION_FIELD_NUMBER,
+      ProtocolWaveletUpdate.SNAPSHOT_FIELD_NUMBER,
+      ProtocolWaveletUpdate.MARKER_FIELD_NUMBER,
+      ProtocolWaveletUpdate.CHANNEL_ID_FIELD_NUMBER);
+
+  static {
+    checkEncodesAllFields(ProtocolWaveletUpdate.getDescriptor());
+  }
+
+  private WaveletUpdateJsonEncoder() {
+  }
+
+  /**
+   * Checks that {@link #encode} writes every field of a message type, so that
+   * a field added to the update proto fails loudly instead of being dropped
+   * from the JSON.
+   *
+   * @throws IllegalStateException if a field isn't written
+   */
+  @VisibleForTesting
+  static void checkEncodesAllFields(Descriptor descriptor) {
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (!ENCODED_FIELDS.contains(field.getNumber())) {
+        throw new IllegalStateException("The JSON encoder of " + descriptor.getFullName()
+            + " doesn't write field " + field.getName() + " (" + field.getNumber() + ")");
+      }
+    }
+  }
+
+  /**
+   * Serializes an update to JSON, in the same format as
+   * {@link ProtoSerializer#toJsonString}, reusing the cached JSON of its
+   * deltas.
+   *
+   * @throws SerializationException if the update or a delta can't be serialized
+   */
+  static String encode(ProtoSerializer serializer, ProtocolWaveletUpdate update)
+      throws SerializationException {
+    if (update.getAppliedDeltaCount() == 0) {
+      return serializer.toJsonString(update);
+    }
+    StringWriter buffer = new StringWriter(256 * (1 + update.getAppliedDeltaCount()));
+    JsonWriter out = new JsonWriter(buffer);
+    out.setLenient(true);
+    try {
+      // The fields are written in field number order, as the generated codec does.
+      out.beginObject();
+      out.name(name(ProtocolWaveletUpdate.WAVELET_NAME_FIELD_NUMBER))
+          .value(update.getWaveletName());
+      out.name(name(ProtocolWaveletUpdate.APPLIED_DELTA_FIELD_NUMBER)).beginArray();
+      // The writer can't take a raw JSON value, so the cached deltas go to the
+      // buffer while their array is open. To the writer the array stays empty,
+      // so it closes it and goes on with no separator out of place.
+      out.flush();
+      for (int i = 0; i < update.getAppliedDeltaCount(); i++) {
+        if (i > 0) {
+          buffer.append(',');
+        }
+        buffer.append(deltaJson(serializer, update.getAppliedDelta(i)));
+      }
+      out.endArray();
+      if (update.hasCommitNotice()) {
+        out.name(name(ProtocolWaveletUpdate.COMMIT_NOTICE_FIELD_NUMBER));
+        ProtocolHashedVersionProtoImpl.writeJson(update.getCommitNotice(), out);
+      }
+      if (update.hasResultingVersion()) {
+        out.name(name(ProtocolWaveletUpdate.RESULTING_VERSION_FIELD_NUMBER));
+        ProtocolHashedVersionProtoImpl.writeJson(update.getResultingVersion(), out);
+      }
+      if (update.hasSnapshot()) {
+        out.name(name(ProtocolWaveletUpdate.SNAPSHOT_FIELD_NUMBER));
+        WaveletSnapshotProtoImpl.writeJson(update.getSnapshot(), out);
+      }
+      if (update.hasMarker()) {
+        out.name(name(ProtocolWaveletUpdate.MARKER_FIELD_NUMBER)).value(update.getMarker());
+      }
+      if (update.hasChannelId()) {
+        out.name(name(ProtocolWaveletUpdate.CHANNEL_ID_FIELD_NUMBER))
+            .value(update.getChannelId());
+      }
+      out.endObject();
+      out.flush();
+    } catch (IOException e) {
+      throw new SerializationException(e);
+    }
+    return buffer.toString();
+  }
+
+  private static String name(int fieldNumber) {
+    return Integer.toString(fieldNumber);
+  }
+
+  private static String deltaJson(ProtoSerializer serializer, ProtocolWaveletDelta delta)
+      throws SerializationException {
+    String json = DELTA_JSON.getIfPresent(delta);
+    if (json == null) {
+      json = serializer.toJsonString(delta);
+      DELTA_JSON.put(delta, json);
+    }
+    return json;
+  }
+}
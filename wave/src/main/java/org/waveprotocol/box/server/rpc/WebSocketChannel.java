@@ -20,6 +20,7 @@
 package org.waveprotocol.box.server.rpc;
 
 import java.io.IOException;
+import java.io.StringReader;
 
 import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
 import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
@@ -28,17 +29,20 @@ import org.waveprotocol.box.stat.Timer;
 import org.waveprotocol.box.stat.Timing;
 import org.waveprotocol.wave.communication.gson.GsonException;
 import org.waveprotocol.wave.communication.gson.GsonSerializable;
+import org.waveprotocol.wave.communication.proto.ProtoMessageFrame;
 import org.waveprotocol.wave.util.logging.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 import com.google.protobuf.Message;
 
 /**
- * A channel abstraction for websocket, for sending and receiving strings.
+ * A channel abstraction for websocket, for sending and receiving strings, or
+ * binary frames when the client negotiated {@link ProtoMessageFrame#SUBPROTOCOL}.
  */
 public abstract class WebSocketChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(WebSocketChannel.class);
@@ -54,37 +58,77 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     private final static JsonParser parser = new JsonParser();
 
     final int sequenceNumber;
-    final String messageType;
-    final JsonElement message;
+    final Message message;
 
-    public MessageWrapper(int sequenceNumber, String messageType, JsonElement message) {
+    public MessageWrapper(int sequenceNumber, Message message) {
       this.sequenceNumber = sequenceNumber;
-      this.messageType = messageType;
       this.message = message;
     }
 
-    public static MessageWrapper deserialize(Gson gson, String data) {
-      JsonElement e = parser.parse(data);
-      JsonObject obj = e.getAsJsonObject();
-      String type = obj.get("messageType").getAsString();
-      int seqno = obj.get("sequenceNumber").getAsInt();
-      JsonElement message = obj.get("message");
-      return new MessageWrapper(seqno, type, message);
+    /**
+     * Reads an envelope and its message in one pass. Clients write the message
+     * type before the message; should it come after, the message is parsed into
+     * a tree first.
+     */
+    public static MessageWrapper deserialize(ProtoSerializer serializer, String data)
+        throws SerializationException {
+      JsonReader in = new JsonReader(new StringReader(data));
+      String type = null;
+      int seqno = 0;
+      Message message = null;
+      JsonElement pending = null;
+      try {
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "messageType":
+              type = in.nextString();
+              break;
+            case "sequenceNumber":
+              seqno = in.nextInt();
+              break;
+            case "message":
+              if (type != null) {
+                message = serializer.readJson(in, type);
+              } else {
+                pending = parser.parse(in);
+              }
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+      } catch (IOException | IllegalStateException | NumberFormatException
+          | JsonParseException e) {
+        throw new SerializationException(e);
+      }
+      if (message == null) {
+        if (pending == null || type == null) {
+          throw new SerializationException("Incomplete message envelope");
+        }
+        message = serializer.fromJson(pending, type);
+      }
+      return new MessageWrapper(seqno, message);
     }
 
-    public static String serialize(String type,int seqno,  JsonElement message) {
-      JsonObject o = new JsonObject();
-      o.add("messageType", new JsonPrimitive(type));
-      o.add("sequenceNumber", new JsonPrimitive(seqno));
-      o.add("message", message);
-      return o.toString();
+    /**
+     * Wraps an already serialized message, so that message JSON shared between
+     * channels is copied into the envelope rather than rebuilt.
+     */
+    public static String serialize(String type, int seqno, String message) {
+      return new StringBuilder(message.length() + 64)
+          .append("{\"messageType\":").append(new JsonPrimitive(type))
+          .append(",\"sequenceNumber\":").append(seqno)
+          .append(",\"message\":").append(message)
+          .append('}').toString();
     }
   }
 
   private final ProtoCallback callback;
   private final SessionContext sessionContext;
-  private final Gson gson = new Gson();
   private final ProtoSerializer serializer;
+  private final boolean binary;
 
   protected boolean isActive = true;
 
@@ -96,7 +140,21 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    *                 channel
    */
   public WebSocketChannel(ProtoCallback callback) {
+    this(callback, false);
+  }
+
+  /**
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether messages are sent as binary protobuf frames rather
+   *               than JSON strings
+   */
+  public WebSocketChannel(ProtoCallback callback, boolean binary) {
     this.callback = callback;
+    this.binary = binary;
     this.sessionContext =
         Timing.isEnabled() ? Timing.getScopeValue(SessionContext.class) : null;
     // The ProtoSerializer could really be singleton.
@@ -111,18 +169,42 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
       Timing.setScopeValue(SessionContext.class, sessionContext);
     }
     try {
-      Message message;
-
-      MessageWrapper wrapper = MessageWrapper.deserialize(gson, data);
-
+      MessageWrapper wrapper;
       try {
-        message = serializer.fromJson(wrapper.message, wrapper.messageType);
+        wrapper = MessageWrapper.deserialize(serializer, data);
       } catch (SerializationException e) {
         LOG.warning("message handling error", e);
         e.printStackTrace();
         return;
       }
-      callback.message(wrapper.sequenceNumber, message);
+      callback.message(wrapper.sequenceNumber, wrapper.message);
+    } finally {
+      Timing.exitScope();
+    }
+  }
+
+  protected void handleMessageBytes(byte[] data, int offset, int length) {
+    if (Timing.isEnabled()) {
+      Timing.enterScope();
+      Timing.setScopeValue(SessionContext.class, sessionContext);
+    }
+    try {
+      Message message;
+      ProtoMessageFrame frame;
+      try {
+        frame = ProtoMessageFrame.decode(data, offset, length);
+        Message prototype = getMessagePrototype(frame.getMessageType());
+        if (prototype == null) {
+          LOG.warning("received unexpected message type " + frame.getMessageType());
+          return;
+        }
+        message = frame.parse(prototype);
+      } catch (IOException e) {
+        LOG.warning("message handling error", e);
+        return;
+      }
+      LOG.fine("received binary message " + message);
+      callback.message(frame.getSequenceNumber(), message);
     } finally {
       Timing.exitScope();
     }
@@ -147,20 +229,38 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    */
   protected abstract void sendMessageString(String data) throws IOException;
 
+  /**
+   * Sends a binary message on the socket.
+   *
+   * @param data message to send
+   * @throws IOException if the communication fails
+   */
+  protected abstract void sendMessageBytes(byte[] data) throws IOException;
+
+  /** @return whether messages are sent as binary frames. */
+  public boolean isBinary() {
+    return binary;
+  }
+
   @Override
   public void sendMessage(int sequenceNo, Message message) {
-    JsonElement json;
+    if (binary) {
+      sendBinaryMessage(sequenceNo, message);
+      return;
+    }
     String str;
 
     Timer timer = Timing.start("serializeMessage");
     try {
-      json = serializer.toJson(message);
       String type = message.getDescriptorForType().getName();
-      str = MessageWrapper.serialize(type, sequenceNo, json);
       if (message instanceof ProtocolWaveletUpdate) {
         ProtocolWaveletUpdate updateMessage = (ProtocolWaveletUpdate) message;
+        str = MessageWrapper.serialize(type, sequenceNo,
+            WaveletUpdateJsonEncoder.encode(serializer, updateMessage));
         if (updateMessage.hasSnapshot())
           LOG.info("snaphost size is "+(str.length() *2)+" bytes");
+      } else {
+        str = MessageWrapper.serialize(type, sequenceNo, serializer.toJsonString(message));
       }
     } catch (SerializationException e) {
       LOG.warning("Failed to JSONify proto message", e);
@@ -182,6 +282,25 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     }
   }
 
+  private void sendBinaryMessage(int sequenceNo, Message message) {
+    byte[] data;
+    Timer timer = Timing.start("serializeMessage");
+    try {
+      data = ProtoMessageFrame.encode(sequenceNo, message);
+    } finally {
+      Timing.stop(timer);
+    }
+    try {
+      sendMessageBytes(data);
+      LOG.fine("sent binary message over websocket, sequence number " + sequenceNo
+          + ", message " + message);
+    } catch (IOException e) {
+      cancel();
+      LOG.warning("Failed to transmit message on socket, sequence number " + sequenceNo
+          + ", message " + message, e);
+    }
+  }
+
   protected void cancel() {
     isActive = false;
     callback.cancel();
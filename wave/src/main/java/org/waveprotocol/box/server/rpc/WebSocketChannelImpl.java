@@ -20,8 +20,12 @@
 package org.waveprotocol.box.server.rpc;
 
 import java.io.IOException;
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
@@ -29,9 +33,14 @@ import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import org.swellrt.beta.client.wave.WaveSocketWS;
-import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
+import org.waveprotocol.wave.communication.proto.ProtoMessageFrame;
+import org.waveprotocol.wave.crypto.DefaultTimeSource;
 import org.waveprotocol.wave.util.logging.Log;
 
+import com.google.common.annotations.VisibleForTesting;
+
 /**
  * A channel implementation for websocket.
  *
@@ -56,8 +65,22 @@ import org.waveprotocol.wave.util.logging.Log;
  * <li>On received reconnection message: discard the specified n oldest messages
  * from the setMessages queue. Sent rest of the queue.
  *
+ * <br>
+ * <br>
+ * The queue is a {@link ResendBuffer} limited in bytes and age. If messages
+ * the client didn't get were dropped from it, the reconnection message is
+ * answered with a resynchronization message instead of the rest of the queue,
+ * and the client reopens its waves from the versions it knows.
+ *
  * See counter part class for client {@link WaveSocketWS}
  *
+ * <br>
+ * <br>
+ * Channels created for the {@link ProtoMessageFrame#SUBPROTOCOL} subprotocol
+ * exchange messages as binary frames. Heart beat and reconnection messages are
+ * text frames in either case, and binary messages are counted and resent just
+ * like text ones.
+ *
  * @author akaplanov@gmai.com (A. Kaplanov)
  * @author pablojan@gmai.com (Pablo Ojanguren)
  */
@@ -70,16 +93,53 @@ public class WebSocketChannelImpl extends WebSocketChannel {
 
   private static final String RECONNECTION_DATA_PREFIX = "rc:";
 
+  /** Tells the client to resynchronize its waves, messages were lost. */
+  private static final String RESYNC_DATA_PREFIX = "rs:";
+
+  /** Default byte budget of the resend buffer */
+  public static final long DEFAULT_RESEND_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /** Default max age of the messages in the resend buffer */
+  public static final long DEFAULT_RESEND_BUFFER_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+  @Stat(name = "websocket-resyncs",
+      help = "Number of reconnected websocket clients told to resynchronize their waves")
+  private static final AtomicLong resyncs = new AtomicLong();
+
+  static {
+    Statistic.trackClass(WebSocketChannelImpl.class);
+  }
+
   private Session session;
   private int count = 0;
   private final String connectionId;
 
-  private final Queue<String> sentMessages = CollectionUtils.createQueue();
+  /** Sent frames pending ACK, either strings or byte arrays. */
+  private final ResendBuffer sentMessages;
   private int recvCount = 0;
 
   public WebSocketChannelImpl(String connectionId, ProtoCallback callback) {
-    super(callback);
+    this(connectionId, callback, false, DEFAULT_RESEND_BUFFER_SIZE, DEFAULT_RESEND_BUFFER_TTL_MS);
+  }
+
+  /**
+   * @param resendBufferSize max bytes of sent messages kept until the client
+   *        acknowledges them, 0 means no limit
+   * @param resendBufferTtlMs max time in ms to keep a sent message until the
+   *        client acknowledges it, 0 means forever
+   */
+  public WebSocketChannelImpl(String connectionId, ProtoCallback callback, boolean binary,
+      long resendBufferSize, long resendBufferTtlMs) {
+    this(connectionId, callback, binary,
+        new ResendBuffer(resendBufferSize, resendBufferTtlMs, new DefaultTimeSource()));
+  }
+
+  @VisibleForTesting
+  WebSocketChannelImpl(String connectionId, ProtoCallback callback, boolean binary,
+      ResendBuffer sentMessages) {
+    super(callback, binary);
     this.connectionId = connectionId;
+    this.sentMessages = sentMessages;
   }
 
   @OnWebSocketConnect
@@ -105,10 +165,22 @@ public class WebSocketChannelImpl extends WebSocketChannel {
       return;
     }
 
+    if (data.startsWith(RESYNC_DATA_PREFIX)) {
+      // Only sent by servers, this channel can't reopen waves.
+      LOG.warning("Websocket[" + connectionId + "] messages were lost, can't resynchronize");
+      return;
+    }
+
     recvCount++;
     handleMessageString(data);
   }
 
+  @OnWebSocketMessage
+  public void onMessage(byte[] data, int offset, int length) {
+    recvCount++;
+    handleMessageBytes(data, offset, length);
+  }
+
   @OnWebSocketClose
   public void onClose(int closeCode, String closeReason) {
     LOG.info(
@@ -118,6 +190,7 @@ public class WebSocketChannelImpl extends WebSocketChannel {
         // the client browser has closed the connection, we can clean up this
         // connection.
         cancel();
+        sentMessages.clear();
       }
 
       session = null;
@@ -126,13 +199,22 @@ public class WebSocketChannelImpl extends WebSocketChannel {
 
   @Override
   public void sendMessageString(String data) throws IOException {
+    sendFrame(data);
+  }
+
+  @Override
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    sendFrame(data);
+  }
+
+  private void sendFrame(Object frame) {
     synchronized (this) {
-      sentMessages.add(data);
+      sentMessages.add(frame);
       if (session == null) {
         LOG.fine("Websocket[" + connectionId + "] is not connected");
       } else {
         try {
-          session.getRemote().sendStringByFuture(data);
+          send(frame);
         } catch (WebSocketException e) {
           LOG.fine("Websocket[" + connectionId + "] send exception: " + e.getMessage());
         }
@@ -140,6 +222,22 @@ public class WebSocketChannelImpl extends WebSocketChannel {
     }
   }
 
+  /** Sends a string or byte array frame on the current session. */
+  private void send(Object frame) {
+    if (frame instanceof byte[]) {
+      session.getRemote().sendBytesByFuture(ByteBuffer.wrap((byte[]) frame));
+    } else {
+      session.getRemote().sendStringByFuture((String) frame);
+    }
+  }
+
+  /**
+   * @return approximate bytes of the sent messages pending ACK.
+   */
+  public synchronized long getResendBufferBytes() {
+    return sentMessages.getBytes();
+  }
+
   /**
    * @param message
    *          the message starting with {@link #RECONNECTION_DATA_PREFIX}
@@ -150,25 +248,31 @@ public class WebSocketChannelImpl extends WebSocketChannel {
       String tmp = message.substring(3);
       int n = Integer.parseInt(tmp);
 
-      for (int i = 0; i < n; i++)
-        sentMessages.poll();
-
       synchronized (this) {
+        sentMessages.acknowledge(n);
+
         if (session != null) {
-          int rs = 0;
-          while (!sentMessages.isEmpty()) {
-            session.getRemote().sendStringByFuture(sentMessages.poll());
-            rs++;
+          String resent;
+          if (sentMessages.isWindowLost()) {
+            // A replay would leave a gap in the client's updates.
+            resent = "requested resync, discarded " + sentMessages.getBytes() + " bytes";
+            sentMessages.clear();
+            session.getRemote().sendStringByFuture(RESYNC_DATA_PREFIX);
+            resyncs.incrementAndGet();
+          } else {
+            resent = "resent " + sentMessages.size() + " pending messages ("
+                + sentMessages.getBytes() + " bytes)";
+            resend();
           }
 
+          int ack = recvCount;
           // Reset our recv. counter optimistically: we assume
           // the client will receive this message (thus update its queue).
           session.getRemote().sendStringByFuture(RECONNECTION_DATA_PREFIX + recvCount);
           recvCount = 0;
 
           LOG.info("Websocket[" + connectionId + "] reconnection: received ACK for " + n
-              + " messages / sent ACK for " + recvCount + " messages / resent " + rs
-              + " pending messages");
+              + " messages / sent ACK for " + ack + " messages / " + resent);
 
         }
       }
@@ -179,6 +283,25 @@ public class WebSocketChannelImpl extends WebSocketChannel {
     }
   }
 
+  /**
+   * Resends the pending messages, batched in as few network writes as
+   * possible. The messages stay in the queue until the client acknowledges
+   * them.
+   */
+  private void resend() throws IOException {
+    RemoteEndpoint remote = session.getRemote();
+    BatchMode batchMode = remote.getBatchMode();
+    remote.setBatchMode(BatchMode.ON);
+    try {
+      for (Object frame : sentMessages.getFrames()) {
+        send(frame);
+      }
+    } finally {
+      remote.setBatchMode(batchMode);
+      remote.flush();
+    }
+  }
+
   /**
    * @param message
    *          the message starting with {@link #HEARTBEAT_DATA_PREFIX}
@@ -197,8 +320,9 @@ public class WebSocketChannelImpl extends WebSocketChannel {
       String tmp = message.substring(3);
       int n = Integer.parseInt(tmp);
 
-      for (int i = 0; i < n; i++)
-        sentMessages.poll();
+      synchronized (this) {
+        sentMessages.acknowledge(n);
+      }
 
     } catch (Exception ex) {
       LOG.warning("Websocket[" + connectionId + "] Error processing heart beat message: "
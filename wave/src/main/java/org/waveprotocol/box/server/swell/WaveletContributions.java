@@ -1,6 +1,7 @@
 package org.waveprotocol.box.server.swell;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -38,7 +39,7 @@ import com.google.common.base.Preconditions;
  */
 public class WaveletContributions implements ReadableWaveletContributions {
 
-  protected static final String ANNOTATION_KEY = "author";
+  public static final String ANNOTATION_KEY = "author";
 
   public class BlipContributions implements ReadableBlipContributions {
 
@@ -70,6 +71,25 @@ public class WaveletContributions implements ReadableWaveletContributions {
           CollectionUtils.newStringSet(WaveletContributions.ANNOTATION_KEY));
     }
 
+    /** @return the blip id. */
+    public String getBlipId() {
+      return blipId;
+    }
+
+    /** @return the size of the blip's document tracked so far. */
+    public int getDocumentSize() {
+      return documentSize;
+    }
+
+    /**
+     * @return the authors of consecutive runs of items of the whole annotated
+     *         range, null for items without author.
+     */
+    public Iterable<AnnotationInterval<Object>> getAuthorRuns() {
+      return annotations.annotationIntervals(0, annotations.size(),
+          CollectionUtils.newStringSet(WaveletContributions.ANNOTATION_KEY));
+    }
+
   }
 
   protected Map<String, BlipContributions> blipContribsMap = new HashMap<String, BlipContributions>();
@@ -227,6 +247,38 @@ public class WaveletContributions implements ReadableWaveletContributions {
     this.waveletName = waveletName;
   }
 
+  /**
+   * Creates contributions at the given version, to be restored from storage
+   * with {@link #restoreBlipContributions}.
+   */
+  public WaveletContributions(WaveletName waveletName, HashedVersion version) {
+    this.waveletName = waveletName;
+    this.version = version;
+  }
+
+  /**
+   * Restores the stored contributions of a blip.
+   *
+   * @param blipId the blip
+   * @param documentSize the document size tracked for the blip
+   * @param lengths lengths of consecutive runs of items with the same author
+   * @param authors author of each run, null for items without author
+   */
+  public void restoreBlipContributions(String blipId, int documentSize, List<Integer> lengths,
+      List<ParticipantId> authors) {
+    Preconditions.checkArgument(lengths.size() == authors.size(),
+        "Each run of items needs an author");
+    BlipContributions blipContrib = getBlipContrib(blipId);
+    blipContrib.annotations.begin();
+    for (int i = 0; i < lengths.size(); i++) {
+      blipContrib.annotations.startAnnotation(ANNOTATION_KEY, authors.get(i));
+      blipContrib.annotations.insert(lengths.get(i));
+      blipContrib.annotations.endAnnotation(ANNOTATION_KEY);
+    }
+    blipContrib.annotations.finish();
+    blipContrib.documentSize = documentSize;
+  }
+
 
   protected BlipContributions getBlipContrib(String blipId) {
     blipContrib = blipContribsMap.get(blipId);
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.model.document.Document;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.schema.SchemaProvider;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+/**
+ * Server side document that keeps its content as a normalized
+ * {@link DocInitialization}, and applies operations by composing them into it.
+ *
+ * The indexed document, with its DOM, annotation trees and listeners, is only
+ * built when a reader asks for the {@link #getMutableDocument() mutable
+ * document}, or once the document has received {@link #HOT_DOCUMENT_OPS}
+ * operations, since composing is linear in the document size. From then on
+ * the document delegates to it, until it's {@link #compact() compacted} again
+ * once it's cold.
+ */
+public final class CompactDocument implements DocumentOperationSink {
+
+  /** Operations after which composing is assumed to cost more than indexing. */
+  static final int HOT_DOCUMENT_OPS = 64;
+
+  /**
+   * Wavelet versions without operations on an indexed document after which it
+   * is cold, and returned to its composed form.
+   */
+  static final long COLD_DOCUMENT_VERSIONS = 1000;
+
+  /**
+   * Returns a factory of compact documents, which are indexed with the given
+   * schemas when needed.
+   */
+  public static DocumentFactory<CompactDocument> createFactory(SchemaProvider schemas) {
+    final DocumentFactory<ObservablePluggableMutableDocument> indexedFactory =
+        ObservablePluggableMutableDocument.createFactory(schemas);
+    return new DocumentFactory<CompactDocument>() {
+      @Override
+      public CompactDocument create(WaveletId waveletId, String docId,
+          DocInitialization content) {
+        return new CompactDocument(indexedFactory, waveletId, docId,
+            DocOpUtil.normalize(content));
+      }
+    };
+  }
+
+  /**
+   * Returns a compact document with content which is already normalized, such
+   * as that of another compact document.
+   */
+  static CompactDocument ofNormalized(
+      DocumentFactory<? extends DocumentOperationSink> indexedFactory, WaveletId waveletId,
+      String docId, DocInitialization content) {
+    return new CompactDocument(indexedFactory, waveletId, docId, content);
+  }
+
+  private final DocumentFactory<? extends DocumentOperationSink> indexedFactory;
+  private final WaveletId waveletId;
+  private final String docId;
+
+  /** The content, until the document is indexed. */
+  private DocInitialization content;
+
+  /** Number of operations composed into the content. */
+  private int opCount = 0;
+
+  /** The indexed document, once it's needed. */
+  private DocumentOperationSink indexed = null;
+
+  private SilentOperationSink<? super DocOp> outputSink = null;
+
+  private CompactDocument(DocumentFactory<? extends DocumentOperationSink> indexedFactory,
+      WaveletId waveletId, String docId, DocInitialization content) {
+    this.indexedFactory = indexedFactory;
+    this.waveletId = waveletId;
+    this.docId = docId;
+    this.content = content;
+  }
+
+  @Override
+  public DocInitialization asOperation() {
+    return indexed != null ? indexed.asOperation() : content;
+  }
+
+  @Override
+  public void consume(DocOp op) throws OperationException {
+    if (indexed != null) {
+      indexed.consume(op);
+    } else if (opCount >= HOT_DOCUMENT_OPS) {
+      getIndexedDocument().consume(op);
+    } else {
+      // Composing checks that the operation applies to the content.
+      content = Composer.compose(content, op);
+      opCount++;
+    }
+  }
+
+  @Override
+  public void init(SilentOperationSink<? super DocOp> outputSink) {
+    Preconditions.checkState(this.outputSink == null, "Output sink may only be set once");
+    Preconditions.checkArgument(outputSink != null, "Output sink may not be null");
+    this.outputSink = outputSink;
+    if (indexed != null) {
+      indexed.init(outputSink);
+    }
+  }
+
+  @Override
+  public Document getMutableDocument() {
+    return getIndexedDocument().getMutableDocument();
+  }
+
+  /**
+   * Returns the document to its composed form, dropping the indexed document.
+   * A mutable document obtained before doesn't see later operations.
+   */
+  void compact() {
+    if (indexed != null) {
+      content = DocOpUtil.normalize(indexed.asOperation());
+      indexed = null;
+      opCount = 0;
+    }
+  }
+
+  /** Returns whether the indexed document has been built. */
+  boolean isIndexed() {
+    return indexed != null;
+  }
+
+  private DocumentOperationSink getIndexedDocument() {
+    if (indexed == null) {
+      indexed = indexedFactory.create(waveletId, docId, content);
+      if (outputSink != null) {
+        indexed.init(outputSink);
+      }
+      content = null;
+    }
+    return indexed;
+  }
+}
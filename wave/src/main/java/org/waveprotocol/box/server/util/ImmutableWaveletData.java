@@ -0,0 +1,373 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.algorithm.Composer;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.SilentOperationSink;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.schema.SchemaCollection;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+import org.waveprotocol.wave.model.wave.data.DocumentOperationSink;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of a wavelet at one version.
+ *
+ * Snapshots of successive versions share the documents that did not change
+ * between them, so taking the snapshot of a new version only copies the
+ * documents touched by the deltas in between. Readers may keep a snapshot
+ * for as long as they like without copying it.
+ *
+ * The content of a document is kept as the {@link DocInitialization} of the
+ * live document when that is at hand. For a document which the live wavelet
+ * has already indexed, taking the content means serializing the whole
+ * document, so a snapshot keeps the operations applied to it instead, and
+ * composes them into the content of the previous snapshot when a reader first
+ * asks for it. At most {@link CompactDocument#HOT_DOCUMENT_OPS} operations are
+ * kept per document before the content is taken again.
+ *
+ * The content returned by {@link ReadableBlipData#getContent()} is built once
+ * per document version and shared by all readers, so it is read only: it
+ * rejects operations, and so does its mutable document, which is indexed once
+ * as well. A reader which needs to change a document must copy its content.
+ */
+public final class ImmutableWaveletData implements ReadableWaveletData {
+
+  private static final DocumentFactory<? extends DocumentOperationSink> INDEXED_FACTORY =
+      ObservablePluggableMutableDocument.createFactory(SchemaCollection.empty());
+
+  /** The immutable state of a document, shared between snapshots. */
+  private static final class DocumentState {
+    final String id;
+    final ParticipantId author;
+    final ImmutableSet<ParticipantId> contributors;
+    final long lastModifiedTime;
+    final long lastModifiedVersion;
+
+    /** Number of operations to compose to get the content. */
+    private final int pendingOpCount;
+
+    /** The content, or null until it is composed. */
+    private DocInitialization content;
+
+    /** The previous state and the operations applied to it, until composed. */
+    private DocumentState previous;
+    private List<DocOp> pendingOps;
+
+    /** The read only content handed to readers, once it's needed. */
+    private DocumentOperationSink readOnlyContent;
+
+    /** The indexed content, once a reader needs it. */
+    private DocumentOperationSink indexed;
+
+    /**
+     * Creates the state of a document. The given operations take the previous
+     * state of the document, if any, to the current one.
+     */
+    DocumentState(ReadableBlipData document, DocumentState previous, List<DocOp> ops) {
+      this.id = document.getId();
+      this.author = document.getAuthor();
+      this.contributors = ImmutableSet.copyOf(document.getContributors());
+      this.lastModifiedTime = document.getLastModifiedTime();
+      this.lastModifiedVersion = document.getLastModifiedVersion();
+      DocumentOperationSink live = document.getContent();
+      boolean compact = (live instanceof CompactDocument) && !((CompactDocument) live).isIndexed();
+      // Counts at least one per state, which bounds the chain of previous states.
+      int opCount = (previous != null) ? previous.pendingOpCount + Math.max(ops.size(), 1) : 0;
+      if (!compact && previous != null && opCount <= CompactDocument.HOT_DOCUMENT_OPS) {
+        this.previous = previous;
+        this.pendingOps = ops;
+        this.pendingOpCount = opCount;
+      } else {
+        this.content = live.asOperation();
+        this.pendingOpCount = 0;
+      }
+    }
+
+    synchronized DocInitialization getContent() {
+      if (content == null) {
+        DocInitialization composed = previous.getContent();
+        try {
+          for (DocOp op : pendingOps) {
+            composed = Composer.compose(composed, op);
+          }
+        } catch (OperationException e) {
+          // The operations were applied to the live document already.
+          throw new IllegalStateException("Failed to compose document " + id, e);
+        }
+        content = composed;
+        previous = null;
+        pendingOps = null;
+      }
+      return content;
+    }
+
+    synchronized DocumentOperationSink getReadOnlyContent(WaveletId waveletId) {
+      if (readOnlyContent == null) {
+        readOnlyContent = new ReadOnlyContent(this, waveletId);
+      }
+      return readOnlyContent;
+    }
+
+    synchronized org.waveprotocol.wave.model.document.Document getIndexedDocument(
+        WaveletId waveletId) {
+      if (indexed == null) {
+        indexed = INDEXED_FACTORY.create(waveletId, id, getContent());
+        indexed.init(new SilentOperationSink<DocOp>() {
+          @Override
+          public void consume(DocOp op) {
+            // The change is already applied to the index, so drop it.
+            discardIndexedDocument();
+            throw new UnsupportedOperationException("Snapshot documents are read only");
+          }
+        });
+      }
+      return indexed.getMutableDocument();
+    }
+
+    private synchronized void discardIndexedDocument() {
+      indexed = null;
+    }
+  }
+
+  /** Content of a document state, which rejects operations. */
+  private static final class ReadOnlyContent implements DocumentOperationSink {
+    private final DocumentState state;
+    private final WaveletId waveletId;
+
+    ReadOnlyContent(DocumentState state, WaveletId waveletId) {
+      this.state = state;
+      this.waveletId = waveletId;
+    }
+
+    @Override
+    public DocInitialization asOperation() {
+      return state.getContent();
+    }
+
+    @Override
+    public void consume(DocOp op) {
+      throw new UnsupportedOperationException("Snapshot documents are read only");
+    }
+
+    @Override
+    public void init(SilentOperationSink<? super DocOp> outputSink) {
+      throw new UnsupportedOperationException("Snapshot documents are read only");
+    }
+
+    @Override
+    public org.waveprotocol.wave.model.document.Document getMutableDocument() {
+      return state.getIndexedDocument(waveletId);
+    }
+  }
+
+  /** View of a shared document state as a document of this snapshot. */
+  private final class Document implements ReadableBlipData {
+    private final DocumentState state;
+
+    Document(DocumentState state) {
+      this.state = state;
+    }
+
+    @Override
+    public ReadableWaveletData getWavelet() {
+      return ImmutableWaveletData.this;
+    }
+
+    @Override
+    public ParticipantId getAuthor() {
+      return state.author;
+    }
+
+    @Override
+    public Set<ParticipantId> getContributors() {
+      return state.contributors;
+    }
+
+    @Override
+    public long getLastModifiedTime() {
+      return state.lastModifiedTime;
+    }
+
+    @Override
+    public long getLastModifiedVersion() {
+      return state.lastModifiedVersion;
+    }
+
+    @Override
+    public DocumentOperationSink getContent() {
+      return state.getReadOnlyContent(waveletId);
+    }
+
+    @Override
+    public String getId() {
+      return state.id;
+    }
+  }
+
+  /**
+   * Returns an immutable snapshot of the current state of a wavelet. The
+   * wavelet itself is returned if it already is immutable.
+   */
+  public static ImmutableWaveletData of(ReadableWaveletData wavelet) {
+    if (wavelet instanceof ImmutableWaveletData) {
+      return (ImmutableWaveletData) wavelet;
+    }
+    ImmutableMap.Builder<String, DocumentState> documents = ImmutableMap.builder();
+    for (String documentId : wavelet.getDocumentIds()) {
+      documents.put(documentId, new DocumentState(wavelet.getDocument(documentId), null,
+          Collections.<DocOp>emptyList()));
+    }
+    return new ImmutableWaveletData(wavelet, documents.build());
+  }
+
+  private final WaveId waveId;
+  private final WaveletId waveletId;
+  private final ParticipantId creator;
+  private final ImmutableSet<ParticipantId> participants;
+  private final long creationTime;
+  private final long lastModifiedTime;
+  private final long version;
+  private final HashedVersion hashedVersion;
+  private final ImmutableMap<String, DocumentState> documents;
+
+  private ImmutableWaveletData(ReadableWaveletData wavelet,
+      ImmutableMap<String, DocumentState> documents) {
+    this.waveId = wavelet.getWaveId();
+    this.waveletId = wavelet.getWaveletId();
+    this.creator = wavelet.getCreator();
+    this.participants = ImmutableSet.copyOf(wavelet.getParticipants());
+    this.creationTime = wavelet.getCreationTime();
+    this.lastModifiedTime = wavelet.getLastModifiedTime();
+    this.version = wavelet.getVersion();
+    this.hashedVersion = wavelet.getHashedVersion();
+    this.documents = documents;
+  }
+
+  /**
+   * Returns the snapshot of a wavelet after a delta was applied to it.
+   *
+   * @param wavelet the wavelet this is a snapshot of, with the delta applied.
+   * @param delta the delta applied to the wavelet since this snapshot.
+   * @return a snapshot sharing the documents the delta did not touch.
+   */
+  public ImmutableWaveletData update(ReadableWaveletData wavelet, TransformedWaveletDelta delta) {
+    Map<String, List<DocOp>> touched = new HashMap<String, List<DocOp>>();
+    for (WaveletOperation op : delta) {
+      if (op instanceof WaveletBlipOperation) {
+        WaveletBlipOperation blipOp = (WaveletBlipOperation) op;
+        List<DocOp> ops = touched.get(blipOp.getBlipId());
+        if (ops == null) {
+          ops = new ArrayList<DocOp>();
+          touched.put(blipOp.getBlipId(), ops);
+        }
+        if (blipOp.getBlipOp() instanceof BlipContentOperation) {
+          ops.add(((BlipContentOperation) blipOp.getBlipOp()).getContentOp());
+        }
+      }
+    }
+    ImmutableMap.Builder<String, DocumentState> updated = ImmutableMap.builder();
+    for (String documentId : wavelet.getDocumentIds()) {
+      DocumentState document = documents.get(documentId);
+      List<DocOp> ops = touched.get(documentId);
+      if (document == null) {
+        document = new DocumentState(wavelet.getDocument(documentId), null,
+            Collections.<DocOp>emptyList());
+      } else if (ops != null) {
+        document = new DocumentState(wavelet.getDocument(documentId), document, ops);
+      }
+      updated.put(documentId, document);
+    }
+    return new ImmutableWaveletData(wavelet, updated.build());
+  }
+
+  @Override
+  public ReadableBlipData getDocument(String documentName) {
+    DocumentState state = documents.get(documentName);
+    return state != null ? new Document(state) : null;
+  }
+
+  @Override
+  public Set<String> getDocumentIds() {
+    return documents.keySet();
+  }
+
+  @Override
+  public ParticipantId getCreator() {
+    return creator;
+  }
+
+  @Override
+  public Set<ParticipantId> getParticipants() {
+    return participants;
+  }
+
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  @Override
+  public long getLastModifiedTime() {
+    return lastModifiedTime;
+  }
+
+  @Override
+  public HashedVersion getHashedVersion() {
+    return hashedVersion;
+  }
+
+  @Override
+  public WaveId getWaveId() {
+    return waveId;
+  }
+
+  @Override
+  public WaveletId getWaveletId() {
+    return waveletId;
+  }
+}
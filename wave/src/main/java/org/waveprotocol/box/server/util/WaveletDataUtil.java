@@ -46,7 +46,6 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.model.wave.data.impl.EmptyWaveletSnapshot;
-import org.waveprotocol.wave.model.wave.data.impl.ObservablePluggableMutableDocument;
 import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
 
 import com.google.common.base.Preconditions;
@@ -60,8 +59,7 @@ public final class WaveletDataUtil {
 
   // TODO(ljvderijk): Schemas should be enforced, see issue 109.
   private static final ObservableWaveletData.Factory<?> WAVELET_FACTORY =
-      WaveletDataImpl.Factory.create(
-          ObservablePluggableMutableDocument.createFactory(SchemaCollection.empty()));
+      WaveletDataImpl.Factory.create(CompactDocument.createFactory(SchemaCollection.empty()));
 
   private WaveletDataUtil() {
   }
@@ -77,6 +75,8 @@ public final class WaveletDataUtil {
 
   /**
    * Apply a delta to the given wavelet. Rolls back the operation if it fails.
+   * Every {@link CompactDocument#COLD_DOCUMENT_VERSIONS} versions, compacts the
+   * documents which haven't changed since as many versions.
    *
    * @param delta delta to apply.
    * @param wavelet the wavelet to apply the operations to.
@@ -110,6 +110,24 @@ public final class WaveletDataUtil {
           + delta.size() + " operations at version " + wavelet.getVersion()
           + ", rolling back, failed op was " + lastOp, e);
     }
+    long interval = CompactDocument.COLD_DOCUMENT_VERSIONS;
+    if (wavelet.getVersion() / interval > delta.getAppliedAtVersion() / interval) {
+      compactColdDocuments(wavelet, wavelet.getVersion() - interval);
+    }
+  }
+
+  /**
+   * Returns the indexed documents of the wavelet last modified at or before
+   * the given version to their composed form.
+   */
+  private static void compactColdDocuments(WaveletData wavelet, long coldVersion) {
+    for (String documentId : wavelet.getDocumentIds()) {
+      BlipData document = wavelet.getDocument(documentId);
+      if (document.getContent() instanceof CompactDocument
+          && document.getLastModifiedVersion() <= coldVersion) {
+        ((CompactDocument) document.getContent()).compact();
+      }
+    }
   }
 
   /**
@@ -231,6 +249,25 @@ public final class WaveletDataUtil {
     return WAVELET_FACTORY.create(wavelet);
   }
 
+  /**
+   * Copies the metadata of a wavelet: creator, participants, version and
+   * timestamps. Documents are not copied, so this is much cheaper than
+   * {@link #copyWavelet} when the contents are not needed.
+   *
+   * @param wavelet the wavelet to copy.
+   * @return A mutable copy without documents.
+   */
+  public static ObservableWaveletData copyWaveletMetadata(ReadableWaveletData wavelet) {
+    ObservableWaveletData copy = WAVELET_FACTORY.create(new EmptyWaveletSnapshot(
+        wavelet.getWaveId(), wavelet.getWaveletId(), wavelet.getCreator(),
+        wavelet.getHashedVersion(), wavelet.getCreationTime()));
+    for (ParticipantId participant : wavelet.getParticipants()) {
+      copy.addParticipant(participant);
+    }
+    copy.setLastModifiedTime(wavelet.getLastModifiedTime());
+    return copy;
+  }
+
   /**
    * Adds an empty blip to the given wavelet.
    *
@@ -62,6 +62,12 @@ public abstract class AbstractSearchProviderImpl implements SearchProvider {
     this.waveMap = waveMap;
   }
 
+  /**
+   * Slices the requested page out of the filtered and sorted results and
+   * materializes it. The results are expected to be the metadata-only views
+   * built by {@link #filterWavesViewBySearchCriteria}, so the wavelets are only
+   * deep copied for the waves that are actually returned.
+   */
   protected List<WaveViewData> computeSearchResult(final ParticipantId user, int startAt,
       int numResults, List<WaveViewData> results) {
     int searchResultSize = results.size();
@@ -70,10 +76,15 @@ public abstract class AbstractSearchProviderImpl implements SearchProvider {
       return Collections.emptyList();
     } else {
       int endAt = Math.min(startAt + numResults, searchResultSize);
-      return Lists.newArrayList(results.subList(startAt, endAt));
+      return materializeWaveViews(results.subList(startAt, endAt));
     }
   }
 
+  /**
+   * Filters the waves view and builds a view of each matching wave. The views
+   * only hold the wavelets metadata (participants, creator, version and
+   * timestamps), which is enough to sort them.
+   */
   // TODO (yurize) : Refactor this method. It does two things: filtering and
   // building waves.
   protected LinkedHashMap<WaveId, WaveViewData> filterWavesViewBySearchCriteria(
@@ -85,22 +96,77 @@ public abstract class AbstractSearchProviderImpl implements SearchProvider {
     // Loop over the user waves view.
     for (WaveId waveId : currentUserWavesView.keySet()) {
       Set<WaveletId> waveletIds = currentUserWavesView.get(waveId);
-      WaveViewData view = buildWaveViewData(waveId, waveletIds, matchesFunction, waveMap);
-      Iterable<? extends ObservableWaveletData> wavelets = view.getWavelets();
+      WaveViewData view = buildWaveMetadataView(waveId, waveletIds, matchesFunction);
       boolean hasConversation = false;
-      for (ObservableWaveletData waveletData : wavelets) {
+      for (ObservableWaveletData waveletData : view.getWavelets()) {
         if (IdUtil.isConversationalId(waveletData.getWaveletId())) {
           hasConversation = true;
           break;
         }
       }
-      if ((view != null) && hasConversation) {
+      if (hasConversation) {
         results.put(waveId, view);
       }
     }
     return results;
   }
 
+  /**
+   * Builds a view of the wavelets that match the query, copying only their
+   * metadata while holding the wavelet read lock.
+   */
+  private WaveViewData buildWaveMetadataView(WaveId waveId, Set<WaveletId> waveletIds,
+      final Function<ReadableWaveletData, Boolean> matchesFunction) {
+    Function<ReadableWaveletData, ObservableWaveletData> copyMetadataIfMatches =
+        new Function<ReadableWaveletData, ObservableWaveletData>() {
+          @Override
+          public ObservableWaveletData apply(ReadableWaveletData wavelet) {
+            return matchesFunction.apply(wavelet)
+                ? WaveletDataUtil.copyWaveletMetadata(wavelet) : null;
+          }
+        };
+    WaveViewData view = WaveViewDataImpl.create(waveId);
+    for (WaveletId waveletId : waveletIds) {
+      WaveletName waveletName = WaveletName.of(waveId, waveletId);
+      try {
+        WaveletContainer waveletContainer = waveMap.getWavelet(waveletName);
+        if (waveletContainer == null) {
+          continue;
+        }
+        ObservableWaveletData metadata = waveletContainer.applyFunction(copyMetadataIfMatches);
+        if (metadata != null) {
+          view.addWavelet(metadata);
+        }
+      } catch (WaveletStateException e) {
+        LOG.warning("Failed to access wavelet " + waveletName, e);
+      }
+    }
+    return view;
+  }
+
+  /**
+   * Replaces metadata-only views with full copies of the same wavelets.
+   */
+  private List<WaveViewData> materializeWaveViews(List<WaveViewData> metadataViews) {
+    List<WaveViewData> views = Lists.newArrayListWithCapacity(metadataViews.size());
+    for (WaveViewData metadataView : metadataViews) {
+      WaveViewData view = WaveViewDataImpl.create(metadataView.getWaveId());
+      for (ObservableWaveletData metadata : metadataView.getWavelets()) {
+        WaveletName waveletName = WaveletDataUtil.waveletNameOf(metadata);
+        try {
+          WaveletContainer waveletContainer = waveMap.getWavelet(waveletName);
+          if (waveletContainer != null) {
+            view.addWavelet(waveletContainer.copyWaveletData());
+          }
+        } catch (WaveletStateException e) {
+          LOG.warning("Failed to access wavelet " + waveletName, e);
+        }
+      }
+      views.add(view);
+    }
+    return views;
+  }
+
   public static WaveViewData buildWaveViewData(WaveId waveId, Set<WaveletId> waveletIds,
       Function<ReadableWaveletData, Boolean> matchesFunction, WaveMap waveMap) {
 
@@ -30,7 +30,6 @@ import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
-import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
@@ -42,7 +41,7 @@ public class AppliedDeltaUtil {
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
 
-  private static final HashedVersionFactory HASH_FACTORY =
+  private static final HashedVersionFactoryImpl HASH_FACTORY =
       new HashedVersionFactoryImpl(URI_CODEC);
 
   /**
@@ -76,7 +75,7 @@ public class AppliedDeltaUtil {
       ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta)
       throws InvalidProtocolBufferException {
     return HASH_FACTORY.create(
-        appliedDelta.getByteArray(),
+        appliedDelta.getByteString().asReadOnlyByteBuffer(),
         getHashedVersionAppliedAt(appliedDelta),
         appliedDelta.getMessage().getOperationsApplied());
   }
@@ -115,8 +114,9 @@ public class AppliedDeltaUtil {
     Preconditions.checkArgument(
         getHashedVersionAppliedAt(appliedDeltaBytes).equals(transformed.getTargetVersion()));
     Preconditions.checkArgument(appliedDelta.getOperationsApplied() == transformed.size());
-    HashedVersion resultingVersion = HASH_FACTORY.create(appliedDeltaBytes.getByteArray(),
-        transformed.getTargetVersion(), appliedDelta.getOperationsApplied());
+    HashedVersion resultingVersion =
+        HASH_FACTORY.create(appliedDeltaBytes.getByteString().asReadOnlyByteBuffer(),
+            transformed.getTargetVersion(), appliedDelta.getOperationsApplied());
     return TransformedWaveletDelta.cloneOperations(resultingVersion,
         appliedDelta.getApplicationTimestamp(), transformed);
   }
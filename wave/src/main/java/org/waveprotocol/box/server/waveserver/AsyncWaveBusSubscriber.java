@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.ImmutableWaveletData;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the wave bus messages of a subscriber asynchronously, so a slow
+ * subscriber doesn't delay the commit of deltas. The messages of a wavelet are
+ * always run by the same of the striped dispatch executors, hence delivered in
+ * order.
+ * <p>
+ * At most {@code queueSize} messages are queued for the subscriber. When the
+ * queue is full, the {@link OverflowPolicy} decides what to do with the next
+ * message.
+ *
+ * @see WaveletNotificationDispatcher
+ */
+final class AsyncWaveBusSubscriber implements WaveBus.Subscriber {
+
+  private static final Log LOG = Log.get(AsyncWaveBusSubscriber.class);
+
+  /** What to do with a message when the queue of a subscriber is full. */
+  enum OverflowPolicy {
+    /** Waits for room in the queue, delaying the commit of deltas. */
+    BLOCK,
+
+    /**
+     * Merges the message into the last queued message of the same wavelet, if
+     * that keeps the order of updates and commit notices, otherwise waits for
+     * room in the queue.
+     */
+    COALESCE,
+
+    /**
+     * Like {@link #COALESCE}, but a wavelet update which can't be merged is
+     * dropped. Only fits subscribers which resync a wavelet from its committed
+     * state, such as the indexers.
+     */
+    DROP
+  }
+
+  @Stat(name = "wave-bus-queue-depth",
+      help = "Number of messages queued for each asynchronous wave bus subscriber")
+  private static final Map<String, AtomicInteger> queueDepths =
+      new ConcurrentSkipListMap<String, AtomicInteger>();
+
+  @Stat(name = "wave-bus-lag-ms",
+      help = "Time the last message delivered to each asynchronous wave bus subscriber was queued")
+  private static final Map<String, AtomicLong> lags = new ConcurrentSkipListMap<String, AtomicLong>();
+
+  @Stat(name = "wave-bus-overflows",
+      help = "Number of messages merged or dropped for each asynchronous wave bus subscriber")
+  private static final Map<String, AtomicLong> overflows =
+      new ConcurrentSkipListMap<String, AtomicLong>();
+
+  static {
+    Statistic.trackClass(AsyncWaveBusSubscriber.class);
+  }
+
+  /**
+   * A queued message of a wavelet: an update, a commit notice, or several of
+   * them merged.
+   */
+  private final class Message implements Runnable {
+    private final WaveletName waveletName;
+    private final long queuedTime = System.currentTimeMillis();
+    /** Null if there's no update. */
+    private ReadableWaveletData wavelet;
+    private DeltaSequence deltas;
+    /** Null if there's no commit notice. */
+    private HashedVersion committedVersion;
+    private boolean started;
+
+    Message(WaveletName waveletName, ReadableWaveletData wavelet, DeltaSequence deltas,
+        HashedVersion committedVersion) {
+      this.waveletName = waveletName;
+      this.wavelet = wavelet;
+      this.deltas = deltas;
+      this.committedVersion = committedVersion;
+    }
+
+    /**
+     * Merges a later message of the same wavelet into this one. An update is
+     * not merged into a message with a commit notice, which is delivered after
+     * the update and so would be delivered after the later update.
+     *
+     * @return false if this message already started to be delivered, or if the
+     *         message can't be merged.
+     */
+    synchronized boolean merge(ReadableWaveletData laterWavelet, DeltaSequence laterDeltas,
+        HashedVersion laterCommittedVersion) {
+      if (started || (laterWavelet != null && committedVersion != null)) {
+        return false;
+      }
+      if (laterWavelet != null) {
+        // The deltas aren't contiguous only if an update was dropped between.
+        if (wavelet != null && (deltas.isEmpty() || laterDeltas.isEmpty()
+            || deltas.getEndVersion().getVersion() == laterDeltas.getStartVersion())) {
+          deltas = DeltaSequence.join(deltas, laterDeltas);
+        } else {
+          deltas = laterDeltas;
+        }
+        wavelet = laterWavelet;
+      }
+      if (laterCommittedVersion != null) {
+        committedVersion = laterCommittedVersion;
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        started = true;
+      }
+      pending.remove(waveletName, this);
+      slots.release();
+      queueDepth.decrementAndGet();
+      lag.set(System.currentTimeMillis() - queuedTime);
+      try {
+        if (wavelet != null) {
+          subscriber.waveletUpdate(wavelet, deltas);
+        }
+        if (committedVersion != null) {
+          subscriber.waveletCommitted(waveletName, committedVersion);
+        }
+      } catch (RuntimeException e) {
+        LOG.severe("Runtime exception in asynchronous wave bus subscriber " + subscriber, e);
+      }
+    }
+  }
+
+  private final WaveBus.Subscriber subscriber;
+  private final OverflowPolicy policy;
+  private final Executor[] stripes;
+  private final Semaphore slots;
+  /** The latest queued message of each wavelet, until it starts. */
+  private final ConcurrentMap<WaveletName, Message> pending =
+      new ConcurrentHashMap<WaveletName, Message>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong lag = new AtomicLong();
+  private final AtomicLong overflow = new AtomicLong();
+
+  /**
+   * @param subscriber the subscriber to deliver messages to
+   * @param queueSize the maximum number of messages queued for the subscriber
+   * @param policy what to do when the queue is full
+   * @param stripes single threaded executors, a wavelet's messages are always
+   *        run by the same one
+   */
+  AsyncWaveBusSubscriber(WaveBus.Subscriber subscriber, int queueSize, OverflowPolicy policy,
+      Executor[] stripes) {
+    this.subscriber = subscriber;
+    this.policy = policy;
+    this.stripes = stripes;
+    this.slots = new Semaphore(queueSize);
+    String name = subscriber.getClass().getSimpleName();
+    queueDepths.put(name, queueDepth);
+    lags.put(name, lag);
+    overflows.put(name, overflow);
+  }
+
+  /** Returns the subscriber messages are delivered to. */
+  WaveBus.Subscriber getSubscriber() {
+    return subscriber;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The wavelet is delivered after it changes again, so an immutable snapshot
+   * of it is queued. Snapshots from the wave server are already immutable.
+   */
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    enqueue(WaveletDataUtil.waveletNameOf(wavelet), ImmutableWaveletData.of(wavelet), deltas,
+        null);
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    enqueue(waveletName, null, null, version);
+  }
+
+  private void enqueue(WaveletName waveletName, ReadableWaveletData wavelet, DeltaSequence deltas,
+      HashedVersion committedVersion) {
+    if (!slots.tryAcquire()) {
+      if (policy != OverflowPolicy.BLOCK) {
+        Message last = pending.get(waveletName);
+        if (last != null && last.merge(wavelet, deltas, committedVersion)) {
+          overflow.incrementAndGet();
+          return;
+        }
+        if (policy == OverflowPolicy.DROP && wavelet != null) {
+          overflow.incrementAndGet();
+          return;
+        }
+      }
+      slots.acquireUninterruptibly();
+    }
+    Message message = new Message(waveletName, wavelet, deltas, committedVersion);
+    pending.put(waveletName, message);
+    queueDepth.incrementAndGet();
+    try {
+      stripes[(waveletName.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(message);
+    } catch (RejectedExecutionException e) {
+      LOG.warning("Dropped notification of " + waveletName + " to " + subscriber
+          + ", the wave bus is shut down");
+      pending.remove(waveletName, message);
+      queueDepth.decrementAndGet();
+      slots.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Async(" + subscriber + ")";
+  }
+}
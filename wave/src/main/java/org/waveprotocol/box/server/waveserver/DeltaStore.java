@@ -26,6 +26,8 @@ import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.swell.WaveletContributions;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Stores wavelet deltas.
  *
@@ -67,6 +69,20 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
      */
     void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException;
 
+    /**
+     * Appends deltas to the end of the delta history, possibly returning before
+     * they are durably stored. Reads observe the deltas as soon as the call
+     * returns; the returned future completes once the deltas are durably
+     * stored, as {@link #append} would have.
+     *
+     * @param deltas contiguous deltas, as for {@link #append}.
+     * @return a future which completes once the deltas are durable, or fails
+     *         if they could not be made durable.
+     * @throws PersistenceException if the deltas could not be written.
+     */
+    ListenableFuture<Void> appendAsync(Collection<WaveletDeltaRecord> deltas)
+        throws PersistenceException;
+
     /**
      * Loads the last snapshot of the wavelet.
      *
@@ -26,10 +26,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.waveprotocol.box.common.ListReceiver;
@@ -37,14 +38,21 @@ import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.swell.ReadableWaveletContributions;
 import org.waveprotocol.box.server.swell.WaveletContributions;
+import org.waveprotocol.box.server.util.ImmutableWaveletData;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecordReader.Projection;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpComponentType;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
@@ -59,7 +67,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Simplistic {@link DeltaStore}-backed wavelet state implementation
@@ -83,6 +92,11 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   private static final Log LOG = Log.get(DeltaStoreBasedWaveletState.class);
 
+  /** Estimated bytes of a document component other than characters. */
+  private static final int COMPONENT_SIZE = 64;
+
+  /** Number of hashed versions at delta boundaries cached per wavelet. */
+  private static final int HASHED_VERSION_CACHE_SIZE = 256;
 
   private static final IdURIEncoderDecoder URI_CODEC =
       new IdURIEncoderDecoder(new JavaUrlCodec());
@@ -181,7 +195,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
             long startVersion = persistenceSnapshot.getWaveletData().getHashedVersion().getVersion();
             long endVersion = lastStoredDelta.getResultingVersion().getVersion();
 
-            deltasAccess.getDeltasInRange(startVersion, endVersion,
+            deltasAccess.getDeltasInRange(startVersion, endVersion, Projection.TRANSFORMED,
                 new Receiver<WaveletDeltaRecord>() {
 
                   @Override
@@ -235,7 +249,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
             long startVersion = persistenceContributions.getWaveletVersion().getVersion();
             long endVersion = lastStoredDelta.getResultingVersion().getVersion();
-            deltasAccess.getDeltasInRange(startVersion, endVersion,
+            deltasAccess.getDeltasInRange(startVersion, endVersion, Projection.TRANSFORMED,
                 new Receiver<WaveletDeltaRecord>() {
 
                   @Override
@@ -275,8 +289,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         try {
 
           t1 = System.currentTimeMillis();
-          // the readAll method is extremely inefficient for mongodb storage
-          deltas = readAll(deltasAccess, null);
+          deltas = readAll(deltasAccess);
           snapshot = WaveletDataUtil.buildWaveletFromDeltas(deltasAccess.getWaveletName(),
               Iterators.transform(deltas.iterator(), TRANSFORMED));
 
@@ -306,7 +319,8 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           t1 = System.currentTimeMillis();
 
           LOG.info("Building wavelet contributions for " + waveletName + " ...");
-          deltasAccess.getAllDeltas(new Receiver<WaveletDeltaRecord>() {
+          deltasAccess.getDeltasInRange(0, lastStoredDelta.getResultingVersion().getVersion(),
+              Projection.TRANSFORMED, new Receiver<WaveletDeltaRecord>() {
 
             @Override
             public boolean put(WaveletDeltaRecord delta) {
@@ -341,40 +355,20 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   }
 
   /**
-   * Reads all deltas from persistent storage.
+   * Reads the transformed deltas of the whole history from persistent storage
+   * in one range read.
    */
-  private static ImmutableList<WaveletDeltaRecord> readAll(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas)
+  private static ImmutableList<WaveletDeltaRecord> readAll(WaveletDeltaRecordReader reader)
       throws IOException {
-    HashedVersion startVersion = HASH_FACTORY.createVersionZero(reader.getWaveletName());
     HashedVersion endVersion = reader.getEndVersion();
     ListReceiver<WaveletDeltaRecord> receiver = new ListReceiver<WaveletDeltaRecord>();
-    readDeltasInRange(reader, cachedDeltas, startVersion, endVersion, receiver);
-    return ImmutableList.copyOf(receiver);
-  }
-
-  private static void readDeltasInRange(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion startVersion, HashedVersion endVersion, Receiver<WaveletDeltaRecord> receiver)
-      throws IOException {
-
-    WaveletDeltaRecord delta = getDelta(reader, cachedDeltas, startVersion);
-    Preconditions.checkArgument(delta != null && delta.getAppliedAtVersion().equals(startVersion),
-        "invalid start version");
-    for (;;) {
-      if (!receiver.put(delta)) {
-        return;
-      }
-      if (delta.getResultingVersion().getVersion() >= endVersion.getVersion()) {
-        break;
-      }
-      delta = getDelta(reader, cachedDeltas, delta.getResultingVersion());
-      if (delta == null) {
-        break;
-      }
-    }
-    Preconditions.checkArgument(delta != null && delta.getResultingVersion().equals(endVersion),
+    reader.getDeltasInRange(0, endVersion.getVersion(), Projection.TRANSFORMED, receiver);
+    Preconditions.checkArgument(!receiver.isEmpty() && receiver.get(0).getAppliedAtVersion()
+        .equals(HASH_FACTORY.createVersionZero(reader.getWaveletName())), "invalid start version");
+    Preconditions.checkArgument(
+        receiver.get(receiver.size() - 1).getResultingVersion().equals(endVersion),
         "invalid end version");
+    return ImmutableList.copyOf(receiver);
   }
 
   private static class DeltaRecordTrackerReceiver implements Receiver<WaveletDeltaRecord> {
@@ -401,9 +395,8 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    * A smart method to read a range of deltas from database in one request and
    * maybe some others from in memory cache (those deltas not yet persisted).
    * <p>
-   * Use instead of former method
-   * {@link #readDeltasInRange(WaveletDeltaRecordReader, ConcurrentNavigableMap, HashedVersion, HashedVersion, Receiver)
-   * for efficient storages like MongoDB
+   * Stored deltas are read with a single range read of the storage, which
+   * only reads the parts of the records given by the projection.
    * <p><br>
    * Look up deltas in storage first, then look up in memory
    * if is necessary the rest of the range
@@ -422,19 +415,21 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    * @param cachedDeltas
    * @param startVersion
    * @param endVersion
+   * @param projection parts of the stored records the receiver needs
    * @param receiver
    * @throws IOException
    */
   private static void readDeltasInRangeSmart(WaveletDeltaRecordReader reader,
       ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion startVersion, HashedVersion endVersion, Receiver<WaveletDeltaRecord> receiver)
-      throws IOException {
+      HashedVersion startVersion, HashedVersion endVersion, Projection projection,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
 
     boolean ascendingSort = startVersion.getVersion() < endVersion.getVersion();
 
     DeltaRecordTrackerReceiver internalReceiver = new DeltaRecordTrackerReceiver(receiver);
 
-    reader.getDeltasInRange(startVersion.getVersion(), endVersion.getVersion(), internalReceiver);
+    reader.getDeltasInRange(startVersion.getVersion(), endVersion.getVersion(), projection,
+        internalReceiver);
 
     if (internalReceiver.halted)
       return;
@@ -560,21 +555,6 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   }
 
-  private static WaveletDeltaRecord getDelta(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion version) throws IOException {
-
-    WaveletDeltaRecord delta = null;
-
-    // try cache first!
-    if (cachedDeltas != null)
-      delta = cachedDeltas.get(version);
-
-    if (delta == null) delta = reader.getDelta(version.getVersion());
-
-    return delta;
-  }
-
   private final Executor persistExecutor;
   private final HashedVersion versionZero;
   private final DeltaStore.DeltasAccess deltasAccess;
@@ -589,7 +569,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   private HashedVersion latestVersionToPersist = null;
 
   /** The persist task that will be executed next. */
-  private ListenableFutureTask<Void> nextPersistTask = null;
+  private PersistTask nextPersistTask = null;
 
   /**
    * the number of deltas to be processed before to
@@ -610,12 +590,19 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    * one task is done. In such a case, it writes all waiting to be persisted
    * deltas to persistent storage in one operation.
    *
+   * The deltas are appended asynchronously: the task completes, and the next
+   * one runs, only once the delta store reports them durable. Meanwhile the
+   * persist executor is free to serve other wavelets, so a delta store can
+   * batch the flushes of several wavelets.
+   *
    * Also persist the snapshot if it is required.
    */
-  private final Callable<Void> persisterTask = new Callable<Void>() {
+  private final class PersistTask implements Runnable {
+    private final SettableFuture<Void> result = SettableFuture.create();
+
     @Override
-    public Void call() throws PersistenceException {
-      HashedVersion last;
+    public void run() {
+      final HashedVersion last;
       HashedVersion version;
       synchronized (persistLock) {
         last = lastPersistedVersion.get();
@@ -625,8 +612,12 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         LOG.fine("Attempt to persist version " + version
             + " smaller than last persisted version " + last);
         // Done, version is already persisted.
-        version = last;
-      } else {
+        completed(last, last);
+        return;
+      }
+
+      final ListenableFuture<Void> durable;
+      try {
         ImmutableList.Builder<WaveletDeltaRecord> deltas = ImmutableList.builder();
         HashedVersion v = (last == null) ? versionZero : last;
         do {
@@ -635,19 +626,41 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           v = d.getResultingVersion();
         } while (v.getVersion() < version.getVersion());
         Preconditions.checkState(v.equals(version));
-        deltasAccess.append(deltas.build());
+        durable = deltasAccess.appendAsync(deltas.build());
+      } catch (PersistenceException | RuntimeException e) {
+        result.setException(e);
+        return;
+      }
 
-        if (deltasCountBeforeSnapshotStore >= persistSnapshotDeltasCountThreshold) {
-          synchronized (persistLock) {
-            if (snapshot.getWaveletId().isDataWavelet()) {
-              deltasAccess.storeSnapshot(snapshot);
-              deltasAccess.storeContributions(contributions);
+      final HashedVersion persistedVersion = version;
+      durable.addListener(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Futures.getDone(durable);
+
+            if (deltasCountBeforeSnapshotStore >= persistSnapshotDeltasCountThreshold) {
+              synchronized (persistLock) {
+                if (snapshot.getWaveletId().isDataWavelet()) {
+                  deltasAccess.storeSnapshot(snapshot);
+                  deltasAccess.storeContributions(contributions);
+                }
+                deltasCountBeforeSnapshotStore = 0;
+              }
             }
-            deltasCountBeforeSnapshotStore = 0;
+          } catch (ExecutionException e) {
+            result.setException(e.getCause());
+            return;
+          } catch (PersistenceException | RuntimeException e) {
+            result.setException(e);
+            return;
           }
+          completed(last, persistedVersion);
         }
+      }, persistExecutor);
+    }
 
-      }
+    private void completed(HashedVersion last, HashedVersion version) {
       synchronized (persistLock) {
         Preconditions.checkState(last == lastPersistedVersion.get(),
             "lastPersistedVersion changed while we were writing to storage");
@@ -657,11 +670,11 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           nextPersistTask = null;
         } else {
           latestVersionToPersist = null;
-          }
         }
-      return null;
+      }
+      result.set(null);
     }
-  };
+  }
 
 
   /** Keyed by appliedAtVersion. */
@@ -671,6 +684,13 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   /** Is null if the wavelet state is empty. */
   private WaveletData snapshot;
 
+  /**
+   * Immutable copy of {@link #snapshot} handed to readers, sharing unchanged
+   * documents with the copy of the previous version. Is null if the wavelet
+   * state is empty.
+   */
+  private ImmutableWaveletData readSnapshot;
+
   /** Null if the wavelet state is empty. */
   private WaveletContributions contributions;
 
@@ -683,6 +703,22 @@ class DeltaStoreBasedWaveletState implements WaveletState {
    */
   private final AtomicReference<HashedVersion> lastPersistedVersion;
 
+  /**
+   * Estimated bytes of the snapshot. It is computed when the state is loaded
+   * and grows by the size of each appended delta.
+   */
+  private final AtomicLong snapshotSize = new AtomicLong();
+
+  /**
+   * Hashed versions at delta boundaries, so that checking the version a
+   * client submits at touches neither the storage nor the hash.
+   */
+  private final HashedVersionCache hashedVersions =
+      new HashedVersionCache(HASHED_VERSION_CACHE_SIZE);
+
+  /** Serialized bytes of the applied deltas in {@link #cachedDeltas}. */
+  private final AtomicLong cachedDeltasSize = new AtomicLong();
+
   /**
    * Constructs a wavelet state with the given snapshot.
 
@@ -702,9 +738,64 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     this.versionZero = HASH_FACTORY.createVersionZero(deltasAccess.getWaveletName());
     this.deltasAccess = deltasAccess;
     this.snapshot = snapshot;
+    this.readSnapshot = (snapshot == null) ? null : ImmutableWaveletData.of(snapshot);
+    if (snapshot != null) {
+      hashedVersions.put(snapshot.getHashedVersion());
+    }
     this.lastPersistedVersion = new AtomicReference<HashedVersion>(deltasAccess.getEndVersion());
     this.persistSnapshotDeltasCountThreshold = persistSnapshotOnDeltasCount;
     this.contributions = contributions;
+    this.snapshotSize.set(estimateSize(snapshot));
+  }
+
+  /**
+   * @return the estimated bytes of the documents of a snapshot, counting two
+   *         bytes per character and a fixed cost per other document component.
+   */
+  private static long estimateSize(ReadableWaveletData snapshot) {
+    if (snapshot == null) {
+      return 0;
+    }
+    long size = 0;
+    for (String documentId : snapshot.getDocumentIds()) {
+      size += estimateSizeChange(snapshot.getDocument(documentId).getContent().asOperation());
+    }
+    return size;
+  }
+
+  /**
+   * @return the estimated bytes a delta adds to (or, if negative, removes
+   *         from) the documents of the snapshot it is applied to.
+   */
+  private static long estimateSizeChange(TransformedWaveletDelta delta) {
+    long size = 0;
+    for (WaveletOperation op : delta) {
+      if (op instanceof WaveletBlipOperation
+          && ((WaveletBlipOperation) op).getBlipOp() instanceof BlipContentOperation) {
+        size += estimateSizeChange(
+            ((BlipContentOperation) ((WaveletBlipOperation) op).getBlipOp()).getContentOp());
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSizeChange(DocOp op) {
+    long size = 0;
+    for (int i = 0; i < op.size(); i++) {
+      DocOpComponentType type = op.getType(i);
+      if (type == DocOpComponentType.CHARACTERS) {
+        size += 2 * op.getCharactersString(i).length();
+      } else if (type == DocOpComponentType.DELETE_CHARACTERS) {
+        size -= 2 * op.getDeleteCharactersString(i).length();
+      } else if (type == DocOpComponentType.ELEMENT_START
+          || type == DocOpComponentType.ELEMENT_END) {
+        size += COMPONENT_SIZE;
+      } else if (type == DocOpComponentType.DELETE_ELEMENT_START
+          || type == DocOpComponentType.DELETE_ELEMENT_END) {
+        size -= COMPONENT_SIZE;
+      }
+    }
+    return size;
   }
 
   @Override
@@ -714,7 +805,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   @Override
   public ReadableWaveletData getSnapshot() {
-    return snapshot;
+    return readSnapshot;
   }
 
   @Override
@@ -730,27 +821,33 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   @Override
   public HashedVersion getHashedVersion(long version) {
-    final Entry<HashedVersion, WaveletDeltaRecord> cachedEntry =
-        lookupCached(cachedDeltas, version);
     if (version == 0) {
       return versionZero;
     } else if (snapshot == null) {
       return null;
     } else if (version == snapshot.getVersion()) {
       return snapshot.getHashedVersion();
-    } else {
-      WaveletDeltaRecord delta;
-      try {
-        delta = lookup(version);
-      } catch (IOException e) {
-        throw new RuntimeIOException(new IOException(format("Version : %d", version), e));
-      }
-      if (delta == null && cachedEntry != null) {
-        return cachedEntry.getKey();
-      } else {
-       return delta != null ? delta.getAppliedAtVersion() : null;
-      }
     }
+    HashedVersion cached = hashedVersions.get(version);
+    if (cached != null) {
+      return cached;
+    }
+    final Entry<HashedVersion, WaveletDeltaRecord> cachedEntry =
+        lookupCached(cachedDeltas, version);
+    if (cachedEntry != null) {
+      return cachedEntry.getKey();
+    }
+    WaveletDeltaRecord delta;
+    try {
+      delta = lookup(version);
+    } catch (IOException e) {
+      throw new RuntimeIOException(new IOException(format("Version : %d", version), e));
+    }
+    if (delta == null) {
+      return null;
+    }
+    hashedVersions.put(delta.getAppliedAtVersion());
+    return delta.getAppliedAtVersion();
   }
 
   @Override
@@ -801,7 +898,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
 
       readDeltasInRangeSmart(deltasAccess, cachedDeltas, startVersion, endVersion,
-          new Receiver<WaveletDeltaRecord>() {
+          Projection.TRANSFORMED, new Receiver<WaveletDeltaRecord>() {
             @Override
             public boolean put(WaveletDeltaRecord delta) {
 
@@ -869,7 +966,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     try {
 
       readDeltasInRangeSmart(deltasAccess, cachedDeltas, startVersion, endVersion,
-          new Receiver<WaveletDeltaRecord>() {
+          Projection.FULL, new Receiver<WaveletDeltaRecord>() {
         @Override
         public boolean put(WaveletDeltaRecord delta) {
 
@@ -908,6 +1005,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         contributions = new WaveletContributions(deltasAccess.getWaveletName());
         contributions.apply(deltaRecord.getTransformedDelta());
         cachedDeltas.put(deltaRecord.getAppliedAtVersion(), deltaRecord);
+        readSnapshot = ImmutableWaveletData.of(snapshot);
       } else {
         // Avoid to update snapshot when it has being persisted
         synchronized (persistLock) {
@@ -921,8 +1019,15 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           // map got desynchronized with snapshot (https://github.com/SwellRT/swellrt/issues/246)
           cachedDeltas.put(deltaRecord.getAppliedAtVersion(), deltaRecord);
           }
+        readSnapshot = readSnapshot.update(snapshot, deltaRecord.getTransformedDelta());
       }
 
+    hashedVersions.put(deltaRecord.getAppliedAtVersion());
+    hashedVersions.put(deltaRecord.getResultingVersion());
+
+    snapshotSize.addAndGet(estimateSizeChange(deltaRecord.getTransformedDelta()));
+    cachedDeltasSize.addAndGet(deltaRecord.getAppliedDelta().getByteString().size());
+
     // Increment counter controlling snapshot persistence
     deltasCountBeforeSnapshotStore++;
   }
@@ -943,14 +1048,14 @@ class DeltaStoreBasedWaveletState implements WaveletState {
           latestVersionToPersist = version;
         }
         if (nextPersistTask == null) {
-          nextPersistTask = ListenableFutureTask.<Void>create(persisterTask);
+          nextPersistTask = new PersistTask();
         }
-        return nextPersistTask;
+        return nextPersistTask.result;
       } else {
         latestVersionToPersist = version;
-        ListenableFutureTask<Void> resultTask = ListenableFutureTask.<Void>create(persisterTask);
+        PersistTask resultTask = new PersistTask();
         persistExecutor.execute(resultTask);
-        return resultTask;
+        return resultTask.result;
       }
     }
   }
@@ -961,9 +1066,12 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     HashedVersion toDeleteVersion = cachedDeltas.lowerKey(version);
     int count = 0;
     while (toDeleteVersion != null) {
-      count++;
       WaveletDeltaRecord delta = cachedDeltas.remove(toDeleteVersion);
-      toDeleteVersion = delta != null ? delta.getAppliedAtVersion() : null;
+      if (delta != null) {
+        count++;
+        cachedDeltasSize.addAndGet(-delta.getAppliedDelta().getByteString().size());
+      }
+      toDeleteVersion = cachedDeltas.lowerKey(toDeleteVersion);
     }
 
     if (LOG.isFineLoggable()) {
@@ -973,7 +1081,14 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   }
 
   @Override
-  public void close() {
+  public long estimateSize() {
+    // Cached deltas are held both in their applied and transformed forms.
+    return Math.max(0, snapshotSize.get()) + 2 * cachedDeltasSize.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    deltasAccess.close();
   }
 
   /**
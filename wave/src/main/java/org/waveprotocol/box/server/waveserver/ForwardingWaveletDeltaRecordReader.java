@@ -92,4 +92,10 @@ public abstract class ForwardingWaveletDeltaRecordReader implements WaveletDelta
       Receiver<WaveletDeltaRecord> receiver) throws IOException {
       return delegate().getDeltasInRange(startVersion, endVersion, receiver);
   }
+
+  @Override
+  public long getDeltasInRange(long startVersion, long endVersion, Projection projection,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    return delegate().getDeltasInRange(startVersion, endVersion, projection, receiver);
+  }
 }
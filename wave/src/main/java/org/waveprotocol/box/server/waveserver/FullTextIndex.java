@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Full text index of the wave documents, kept up to date from the wave bus.
+ */
+public interface FullTextIndex extends WaveBus.Subscriber {
+
+  /**
+   * Returns whether the index is configured. Search queries only have text
+   * when it is.
+   */
+  boolean isEnabled();
+
+  /**
+   * Indexes the whole wavelet, unless the index already is at its version.
+   * Used to build the index of the wavelets which were not updated since the
+   * index was created.
+   *
+   * @return a future which is done once the wavelet is indexed.
+   */
+  ListenableFuture<Void> indexWavelet(ReadableWaveletData wavelet);
+
+  /**
+   * Returns whether the index holds all the wavelets stored before it was
+   * created, see {@link #setBackfilled()}.
+   */
+  boolean isBackfilled();
+
+  /**
+   * Records that all the wavelets stored before the index was created are
+   * indexed, once the wavelets already passed to {@link #indexWavelet} are.
+   */
+  void setBackfilled();
+
+  /**
+   * Returns the wavelets which contain all the words, each word in any of the
+   * wavelet documents. A word ending with '*' matches any word with that
+   * prefix.
+   */
+  Set<WaveletName> search(Collection<String> words);
+}
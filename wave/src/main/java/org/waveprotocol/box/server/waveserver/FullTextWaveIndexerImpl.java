@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexExecutor;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Builds the {@link FullTextIndex} of all the wavelets, for a server which
+ * enables the index when it already has waves. The wavelets are indexed on the
+ * index executor a wave at a time, between the updates of the wave bus, until
+ * the index records it's backfilled.
+ */
+@Singleton
+public class FullTextWaveIndexerImpl extends AbstractWaveIndexer {
+
+  private static final Log LOG = Log.get(FullTextWaveIndexerImpl.class);
+
+  /** Name of the {@link WaveIndexer} binding which builds the full text index. */
+  public static final String INDEXER = "full_text_indexer";
+
+  private final FullTextIndex fullTextIndex;
+  private final ScheduledExecutorService executor;
+
+  @Inject
+  public FullTextWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
+      FullTextIndex fullTextIndex, @IndexExecutor ScheduledExecutorService executor) {
+    super(waveMap, waveletProvider);
+    this.fullTextIndex = fullTextIndex;
+    this.executor = executor;
+  }
+
+  /**
+   * Starts indexing the wavelets on the index executor, unless the index is
+   * backfilled. Returns without waiting for the indexing.
+   */
+  @Override
+  public synchronized void remakeIndex() {
+    if (fullTextIndex.isBackfilled()) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          LOG.info("Indexing the text of the existing wavelets");
+          waveMap.loadAllWavelets();
+          // The waves may be evicted from memory while they're indexed.
+          List<WaveId> waveIds = Lists.newArrayList();
+          ExceptionalIterator<WaveId, WaveServerException> it = waveletProvider.getWaveIds();
+          while (it.hasNext()) {
+            waveIds.add(it.next());
+          }
+          indexNextWave(waveIds.iterator());
+        } catch (WaveServerException | RuntimeException e) {
+          LOG.severe("Failed to index the text of the existing wavelets", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues the indexing of the wavelets of the next wave, followed by the
+   * indexing of the wave after it. Runs on the index executor.
+   */
+  private void indexNextWave(final Iterator<WaveId> waveIds) {
+    try {
+      if (!waveIds.hasNext()) {
+        fullTextIndex.setBackfilled();
+        LOG.info("Indexed the text of the existing wavelets");
+        return;
+      }
+      WaveId waveId = waveIds.next();
+      for (WaveletId waveletId : waveletProvider.getWaveletIds(waveId)) {
+        processWavelet(WaveletName.of(waveId, waveletId));
+      }
+    } catch (WaveServerException | RuntimeException e) {
+      // Not backfilled, the indexing starts again on the next start.
+      LOG.severe("Failed to index the text of the existing wavelets", e);
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        indexNextWave(waveIds);
+      }
+    });
+  }
+
+  @Override
+  protected void processWavelet(WaveletName waveletName) {
+    try {
+      fullTextIndex.indexWavelet(waveletProvider.getSnapshot(waveletName).snapshot);
+    } catch (WaveServerException e) {
+      throw new IndexException("Problem encountered processing wavelet " + waveletName, e);
+    }
+  }
+
+  @Override
+  protected void postIndexHook() {
+    // No op.
+  }
+}
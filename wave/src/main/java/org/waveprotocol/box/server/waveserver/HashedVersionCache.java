@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size cache of the hashed versions of a wavelet, keyed by version
+ * number. A version takes the slot of its number modulo the capacity,
+ * replacing the version held there, so the cache holds at least the latest
+ * versions of a wavelet with no more than the capacity versions in between.
+ *
+ * It may be read and written concurrently.
+ */
+final class HashedVersionCache {
+
+  private final AtomicReferenceArray<HashedVersion> versions;
+
+  HashedVersionCache(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+    this.versions = new AtomicReferenceArray<HashedVersion>(capacity);
+  }
+
+  /** Caches a hashed version. */
+  void put(HashedVersion version) {
+    versions.set(slot(version.getVersion()), version);
+  }
+
+  /**
+   * @return the cached hashed version with the given version number, or null
+   *         if it's not cached.
+   */
+  HashedVersion get(long version) {
+    HashedVersion cached = versions.get(slot(version));
+    return (cached != null && cached.getVersion() == version) ? cached : null;
+  }
+
+  private int slot(long version) {
+    return (int) (version % versions.length());
+  }
+}
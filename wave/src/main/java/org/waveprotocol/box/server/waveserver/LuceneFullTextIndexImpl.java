@@ -0,0 +1,516 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NRTManager;
+import org.apache.lucene.search.NRTManagerReopenThread;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Version;
+import org.swellrt.beta.model.wave.SubstrateId;
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.common.Snippets;
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexExecutor;
+import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
+import org.waveprotocol.box.server.shutdown.ShutdownManager;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.id.IdUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lucene based {@link FullTextIndex}. Keeps a Lucene document with the text of
+ * each blip and SwellRT text of a wavelet, and a marker document with the
+ * wavelet version the index is at. A search runs one query per word and
+ * intersects the wavelets, so the words of a search may be in different
+ * documents of a wavelet.
+ *
+ * Each wave bus update only re-indexes the documents its deltas changed. The
+ * whole wavelet is indexed only when the index is not at the version the
+ * deltas apply to, e.g. the first time the wavelet is updated after the index
+ * was created. The index writes run on the index executor, become visible on
+ * the next near real time reopen and are committed periodically. Once all the
+ * wavelets stored before the index was created are indexed, the commits record
+ * it in their user data.
+ */
+@Singleton
+public class LuceneFullTextIndexImpl implements FullTextIndex, Shutdownable {
+
+  private static final Log LOG = Log.get(LuceneFullTextIndexImpl.class);
+
+  /** Name of the {@link IndexDirectory} binding of the full text index. */
+  public static final String INDEX_DIRECTORY = "full_text_index_directory";
+
+  private static final Version LUCENE_VERSION = Version.LUCENE_35;
+
+  /** Unique key of the document: the wavelet name, plus the document id. */
+  private static final String KEY_FIELD = "key";
+  private static final String WAVELET_NAME_FIELD = "waveletname";
+  private static final String WAVE_ID_FIELD = "waveid";
+  private static final String WAVELET_ID_FIELD = "waveletid";
+  private static final String VERSION_FIELD = "version";
+  private static final String TEXT_FIELD = "text";
+
+  /** Minimum time until a new reader can be opened. */
+  private static final double MIN_STALE_SEC = 0.025;
+
+  /** Maximum time until a new reader must be opened. */
+  private static final double MAX_STALE_SEC = 1.0;
+
+  /** Period of the index commits. */
+  private static final long COMMIT_PERIOD_SEC = 30;
+
+  /** User data of the commits once the existing wavelets are indexed. */
+  private static final Map<String, String> BACKFILLED_COMMIT_USER_DATA =
+      ImmutableMap.of("backfilled", "true");
+
+  /** Number of wavelet versions kept in memory, the others are read from the index. */
+  private static final long MAX_CACHED_VERSIONS = 10000;
+
+  private final StandardAnalyzer analyzer;
+  private final IndexWriter indexWriter;
+  private final NRTManager nrtManager;
+  private final NRTManagerReopenThread nrtManagerReopenThread;
+  private final ReadableWaveletDataProvider waveletProvider;
+  private final ScheduledExecutorService executor;
+  private final ScheduledFuture<?> commitTask;
+
+  /**
+   * The version recently updated wavelets are indexed at, which the near real
+   * time reader may not show yet. Only accessed on the executor.
+   */
+  private final Cache<WaveletName, Long> indexedVersions =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_VERSIONS).build();
+
+  /** Whether the index has uncommitted changes. Only accessed on the executor. */
+  private boolean hasUncommittedChanges = false;
+
+  /** Whether the existing wavelets are indexed. */
+  private volatile boolean isBackfilled;
+
+  private boolean isClosed = false;
+
+  @Inject
+  public LuceneFullTextIndexImpl(@Named(INDEX_DIRECTORY) IndexDirectory directory,
+      ReadableWaveletDataProvider waveletProvider,
+      @IndexExecutor ScheduledExecutorService executor) {
+    this.waveletProvider = waveletProvider;
+    this.executor = executor;
+    analyzer = new StandardAnalyzer(LUCENE_VERSION);
+    try {
+      IndexWriterConfig indexConfig = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+      indexConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+      isBackfilled = IndexReader.indexExists(directory.getDirectory())
+          && BACKFILLED_COMMIT_USER_DATA.equals(
+              IndexReader.getCommitUserData(directory.getDirectory()));
+      indexWriter = new IndexWriter(directory.getDirectory(), indexConfig);
+      nrtManager = new NRTManager(indexWriter, null);
+    } catch (IOException ex) {
+      throw new IndexException(ex);
+    }
+    nrtManagerReopenThread = new NRTManagerReopenThread(nrtManager, MAX_STALE_SEC, MIN_STALE_SEC);
+    nrtManagerReopenThread.start();
+    commitTask = executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        commit();
+      }
+    }, COMMIT_PERIOD_SEC, COMMIT_PERIOD_SEC, TimeUnit.SECONDS);
+    ShutdownManager.getInstance().register(this, LuceneFullTextIndexImpl.class.getSimpleName(),
+        ShutdownPriority.Waves);
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    Preconditions.checkNotNull(wavelet);
+    if (deltas.isEmpty()) {
+      return;
+    }
+    // The text of the changed documents is read now, the wavelet goes on
+    // changing after this call.
+    Map<String, String> texts = Maps.newHashMap();
+    for (TransformedWaveletDelta delta : deltas) {
+      for (WaveletOperation op : delta) {
+        if (op instanceof WaveletBlipOperation) {
+          String documentId = ((WaveletBlipOperation) op).getBlipId();
+          if (isIndexedDocument(documentId) && !texts.containsKey(documentId)) {
+            texts.put(documentId, collateText(wavelet.getDocument(documentId)));
+          }
+        }
+      }
+    }
+    final WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
+    final long startVersion = deltas.getStartVersion();
+    final long endVersion = deltas.getEndVersion().getVersion();
+    final Map<String, String> changedTexts = texts;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          updateIndex(waveletName, startVersion, endVersion, changedTexts);
+        } catch (IOException | WaveServerException | RuntimeException e) {
+          LOG.severe("Failed to update full text index for " + waveletName, e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // Updates are indexed as they happen.
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return true;
+  }
+
+  @Override
+  public ListenableFuture<Void> indexWavelet(final ReadableWaveletData wavelet) {
+    Preconditions.checkNotNull(wavelet);
+    final WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
+    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Long indexedVersion = getIndexedVersion(waveletName);
+          if (indexedVersion == null || indexedVersion < wavelet.getVersion()) {
+            replaceWavelet(wavelet);
+            hasUncommittedChanges = true;
+          }
+        } catch (IOException | RuntimeException e) {
+          LOG.severe("Failed to index wavelet " + waveletName, e);
+        }
+      }
+    }, null);
+    executor.execute(task);
+    return task;
+  }
+
+  @Override
+  public boolean isBackfilled() {
+    return isBackfilled;
+  }
+
+  @Override
+  public void setBackfilled() {
+    // Runs after the wavelets already queued for indexing.
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        isBackfilled = true;
+        hasUncommittedChanges = true;
+        commit();
+      }
+    });
+  }
+
+  @Override
+  public Set<WaveletName> search(Collection<String> words) {
+    Preconditions.checkNotNull(words);
+    Set<WaveletName> waveletNames = null;
+    try {
+      for (String word : words) {
+        BooleanQuery query = new BooleanQuery();
+        if (word.endsWith("*")) {
+          String prefix = word.substring(0, word.length() - 1).toLowerCase();
+          if (!prefix.isEmpty()) {
+            query.add(new PrefixQuery(new Term(TEXT_FIELD, prefix)), Occur.MUST);
+          }
+        } else {
+          for (String term : analyze(word)) {
+            query.add(new TermQuery(new Term(TEXT_FIELD, term)), Occur.MUST);
+          }
+        }
+        if (query.clauses().isEmpty()) {
+          continue;
+        }
+        Set<WaveletName> matches = searchWavelets(query);
+        if (waveletNames == null) {
+          waveletNames = matches;
+        } else {
+          waveletNames.retainAll(matches);
+        }
+        if (waveletNames.isEmpty()) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Full text search failed: " + words, e);
+      return Collections.emptySet();
+    }
+    return waveletNames != null ? waveletNames : Collections.<WaveletName>emptySet();
+  }
+
+  /**
+   * Returns the wavelets with a document matching the query.
+   */
+  private Set<WaveletName> searchWavelets(BooleanQuery query) throws IOException {
+    final Set<WaveletName> waveletNames = Sets.newHashSet();
+    SearcherManager searcherManager = nrtManager.getSearcherManager(true);
+    IndexSearcher indexSearcher = searcherManager.acquire();
+    try {
+      indexSearcher.search(query, new Collector() {
+        private String[] waveIds;
+        private String[] waveletIds;
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void collect(int doc) {
+          waveletNames.add(WaveletName.of(WaveId.deserialise(waveIds[doc]),
+              WaveletId.deserialise(waveletIds[doc])));
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int docBase) throws IOException {
+          waveIds = FieldCache.DEFAULT.getStrings(reader, WAVE_ID_FIELD);
+          waveletIds = FieldCache.DEFAULT.getStrings(reader, WAVELET_ID_FIELD);
+        }
+
+        @Override
+        public boolean acceptsDocsInOrder() {
+          return true;
+        }
+      });
+    } finally {
+      searcherManager.release(indexSearcher);
+    }
+    return waveletNames;
+  }
+
+  /**
+   * Ensures that the index changes are visible to the searches.
+   */
+  @VisibleForTesting
+  void forceReopen() throws IOException {
+    nrtManager.maybeReopen(true);
+  }
+
+  /**
+   * Closes the index, committing the indexed updates.
+   */
+  @Override
+  public synchronized void shutdown() throws Exception {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    commitTask.cancel(false);
+    // Commits on the executor, after the updates already queued.
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        commit();
+      }
+    }).get();
+    nrtManager.close();
+    analyzer.close();
+    nrtManagerReopenThread.close();
+    indexWriter.close();
+  }
+
+  /**
+   * Applies the text of the documents changed by the deltas from the start to
+   * the end version, or indexes the whole wavelet if the index is not at the
+   * start version.
+   */
+  private void updateIndex(WaveletName waveletName, long startVersion, long endVersion,
+      Map<String, String> texts) throws IOException, WaveServerException {
+    Long indexedVersion = getIndexedVersion(waveletName);
+    if (indexedVersion != null && endVersion <= indexedVersion) {
+      // Already indexed by a whole wavelet indexing.
+      return;
+    }
+    if (indexedVersion != null && startVersion <= indexedVersion) {
+      for (Map.Entry<String, String> entry : texts.entrySet()) {
+        updateDocument(waveletName, entry.getKey(), entry.getValue());
+      }
+      updateVersion(waveletName, endVersion);
+    } else {
+      ReadableWaveletData wavelet = waveletProvider.getReadableWaveletData(waveletName);
+      if (wavelet != null) {
+        replaceWavelet(wavelet);
+      }
+    }
+    hasUncommittedChanges = true;
+  }
+
+  /**
+   * Replaces the documents of the wavelet with its current text.
+   */
+  private void replaceWavelet(ReadableWaveletData wavelet) throws IOException {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
+    nrtManager.deleteDocuments(new Term(WAVELET_NAME_FIELD, waveletName.toString()));
+    for (String documentId : wavelet.getDocumentIds()) {
+      if (isIndexedDocument(documentId)) {
+        updateDocument(waveletName, documentId, collateText(wavelet.getDocument(documentId)));
+      }
+    }
+    updateVersion(waveletName, wavelet.getVersion());
+  }
+
+  private void updateDocument(WaveletName waveletName, String documentId, String text)
+      throws IOException {
+    Term key = new Term(KEY_FIELD, waveletName.toString() + "/" + documentId);
+    if (text == null || text.isEmpty()) {
+      nrtManager.deleteDocuments(key);
+      return;
+    }
+    Document doc = newDocument(waveletName, key);
+    doc.add(new Field(TEXT_FIELD, text, Field.Store.NO, Field.Index.ANALYZED));
+    nrtManager.updateDocument(key, doc);
+  }
+
+  private void updateVersion(WaveletName waveletName, long version) throws IOException {
+    Term key = new Term(KEY_FIELD, waveletName.toString());
+    Document doc = newDocument(waveletName, key);
+    doc.add(new Field(VERSION_FIELD, Long.toString(version), Field.Store.YES, Field.Index.NO));
+    nrtManager.updateDocument(key, doc);
+    indexedVersions.put(waveletName, version);
+  }
+
+  private static Document newDocument(WaveletName waveletName, Term key) {
+    Document doc = new Document();
+    doc.add(new Field(KEY_FIELD, key.text(), Field.Store.NO, Field.Index.NOT_ANALYZED));
+    doc.add(new Field(WAVELET_NAME_FIELD, waveletName.toString(), Field.Store.NO,
+        Field.Index.NOT_ANALYZED));
+    doc.add(new Field(WAVE_ID_FIELD, waveletName.waveId.serialise(), Field.Store.NO,
+        Field.Index.NOT_ANALYZED));
+    doc.add(new Field(WAVELET_ID_FIELD, waveletName.waveletId.serialise(), Field.Store.NO,
+        Field.Index.NOT_ANALYZED));
+    return doc;
+  }
+
+  /**
+   * Returns the version a wavelet is indexed at, or null if it is not indexed.
+   */
+  private Long getIndexedVersion(WaveletName waveletName) throws IOException {
+    Long indexedVersion = indexedVersions.getIfPresent(waveletName);
+    return indexedVersion != null ? indexedVersion : readIndexedVersion(waveletName);
+  }
+
+  /**
+   * Reads the version of a wavelet from its marker document, for the wavelets
+   * not updated recently. The reader is reopened first if needed: the version
+   * may have been evicted from the cache before the reader showed it.
+   */
+  private Long readIndexedVersion(WaveletName waveletName) throws IOException {
+    nrtManager.maybeReopen(true);
+    SearcherManager searcherManager = nrtManager.getSearcherManager(true);
+    IndexSearcher indexSearcher = searcherManager.acquire();
+    try {
+      TopDocs hits =
+          indexSearcher.search(new TermQuery(new Term(KEY_FIELD, waveletName.toString())), 1);
+      if (hits.scoreDocs.length == 0) {
+        return null;
+      }
+      return Long.parseLong(indexSearcher.doc(hits.scoreDocs[0].doc).get(VERSION_FIELD));
+    } finally {
+      searcherManager.release(indexSearcher);
+    }
+  }
+
+  private void commit() {
+    if (hasUncommittedChanges) {
+      try {
+        indexWriter.commit(isBackfilled
+            ? BACKFILLED_COMMIT_USER_DATA : Collections.<String, String>emptyMap());
+        hasUncommittedChanges = false;
+      } catch (IOException e) {
+        LOG.severe("Failed to commit the full text index", e);
+      }
+    }
+  }
+
+  private Iterable<String> analyze(String word) throws IOException {
+    Set<String> terms = Sets.newLinkedHashSet();
+    TokenStream tokens = analyzer.tokenStream(TEXT_FIELD, new StringReader(word));
+    CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+    tokens.reset();
+    while (tokens.incrementToken()) {
+      terms.add(term.toString());
+    }
+    tokens.end();
+    tokens.close();
+    return terms;
+  }
+
+  private static boolean isIndexedDocument(String documentId) {
+    return IdUtil.isBlipId(documentId) || SubstrateId.isText(documentId);
+  }
+
+  private static String collateText(ReadableBlipData document) {
+    return document != null
+        ? Snippets.collateTextForDocuments(Collections.singletonList(document)) : null;
+  }
+}
@@ -19,9 +19,13 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.SettableFuture;
@@ -31,6 +35,8 @@ import com.google.inject.name.Named;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
@@ -38,6 +44,7 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
 import org.waveprotocol.box.server.CoreSettingsNames;
 import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexExecutor;
@@ -51,8 +58,11 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +71,17 @@ import static org.waveprotocol.box.server.waveserver.IndexFieldType.*;
 /**
  * Lucene based implementation of {@link PerUserWaveViewHandler}.
  *
+ * The updates of a wavelet are coalesced for {@link #FLUSH_DELAY_MS} and then
+ * its document is replaced with one built from the current wavelet state. The
+ * changes are visible once the near real time reader is reopened, and are
+ * committed every {@link #COMMIT_PERIOD_SEC}. All the index writes run on the
+ * single threaded index executor.
+ *
+ * An index of an older format is created again, and its commits don't record
+ * the current format until {@link #onRebuilt()} is called once the
+ * {@link LuceneWaveIndexerImpl} has added all the wavelets. A rebuild which is
+ * interrupted runs again on the next start.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
@@ -83,17 +104,44 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
       participantQuery.add(
           new TermQuery(new Term(WITH.toString(), sharedDomainParticipantId.getAddress())),
           Occur.SHOULD);
-      searcher.search(participantQuery, MAX_WAVES);
+      searcher.search(participantQuery, DEFAULT_PAGE_SIZE, LMT_DESC_SORT);
     }
   }
 
+  /**
+   * The pending update of a wavelet: the participant changes notified since
+   * the last flush, and the future to complete once it's flushed.
+   */
+  private static class PendingUpdate {
+    final Set<ParticipantId> added = Sets.newHashSet();
+    final Set<ParticipantId> removed = Sets.newHashSet();
+    final SettableFuture<Void> future = SettableFuture.create();
+  }
+
   private static final Logger LOG = Logger.getLogger(LucenePerUserWaveViewHandlerImpl.class
       .getName());
 
   private static final Version LUCENE_VERSION = Version.LUCENE_35;
 
-  /** The results will be returned in the ascending order according to last modified time. */
-  private static Sort LMT_ASC_SORT = new Sort(new SortField("title", SortField.LONG));
+  /** The results will be returned in the descending order according to last modified time. */
+  private static final Sort LMT_DESC_SORT = new Sort(
+      new SortField(LMT.toString(), FieldCache.NUMERIC_UTILS_LONG_PARSER, true));
+
+  /** Field with the wavelet name, the key to update the document of a wavelet. */
+  private static final String WAVELET_NAME_FIELD = "waveletname";
+
+  /**
+   * Version of the layout of the index documents, recorded in the commits.
+   * An index of another version is rebuilt: documents written before they
+   * were keyed by {@link #WAVELET_NAME_FIELD} would never be replaced.
+   */
+  private static final String FORMAT_VERSION = "2";
+
+  private static final Map<String, String> COMMIT_USER_DATA =
+      ImmutableMap.of("format_version", FORMAT_VERSION);
+
+  /** User data of the commits of an index which is being rebuilt. */
+  private static final Map<String, String> REBUILDING_COMMIT_USER_DATA = ImmutableMap.of();
 
   /** Minimum time until a new reader can be opened. */
   private static final double MIN_STALE_SEC = 0.025;
@@ -101,36 +149,109 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   /** Maximum time until a new reader must be opened. */
   private static final double MAX_STALE_SEC = 1.0;
 
-  /** Defines the maximum number of waves returned by the search. */
-  private static final int MAX_WAVES = 10000;
+  /** Time to coalesce the updates of a wavelet before indexing it. */
+  private static final long FLUSH_DELAY_MS = 500;
+
+  /** Period of the index commits. */
+  private static final long COMMIT_PERIOD_SEC = 30;
+
+  /** Number of wavelets read from the index by each search of a view. */
+  private static final int DEFAULT_PAGE_SIZE = 1000;
 
   private final StandardAnalyzer analyzer;
   private final IndexWriter indexWriter;
   private final NRTManager nrtManager;
   private final NRTManagerReopenThread nrtManagerReopenThread;
   private final ReadableWaveletDataProvider waveletProvider;
-  private final Executor executor;
+  private final ScheduledExecutorService executor;
+  private final long flushDelayMs;
+  private final int pageSize;
+  private final ScheduledFuture<?> commitTask;
+
+  /** The wavelets to index on the next flush. */
+  private final Map<WaveletName, PendingUpdate> pendingUpdates = Maps.newLinkedHashMap();
+
+  /** Whether a flush of the pending updates is scheduled. Guarded by pendingUpdates. */
+  private boolean flushScheduled = false;
+
+  /** Whether the index has uncommitted changes. Only accessed on the executor. */
+  private boolean hasUncommittedChanges = false;
+
+  /**
+   * Whether the index holds all the wavelets, so its commits record the
+   * current format. Only accessed on the executor once constructed.
+   */
+  private boolean isRebuilt;
+
   private boolean isClosed = false;
 
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
   @Inject
   public LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
                                           ReadableWaveletDataProvider waveletProvider,
                                           @Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) String domain,
-                                          @IndexExecutor Executor executor) {
+                                          @IndexExecutor ScheduledExecutorService executor) {
+    this(directory, waveletProvider, domain, executor, FLUSH_DELAY_MS, DEFAULT_PAGE_SIZE);
+  }
+
+  @VisibleForTesting
+  LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
+      ReadableWaveletDataProvider waveletProvider, String domain,
+      ScheduledExecutorService executor, long flushDelayMs, int pageSize) {
     this.waveletProvider = waveletProvider;
     this.executor = executor;
+    this.flushDelayMs = flushDelayMs;
+    this.pageSize = pageSize;
     analyzer = new StandardAnalyzer(LUCENE_VERSION);
     try {
       IndexWriterConfig indexConfig = new IndexWriterConfig(LUCENE_VERSION, analyzer);
-      indexConfig.setOpenMode(OpenMode.CREATE_OR_APPEND);
+      isRebuilt = isCurrentFormat(directory.getDirectory());
+      if (isRebuilt) {
+        indexConfig.setOpenMode(OpenMode.APPEND);
+      } else {
+        if (IndexReader.indexExists(directory.getDirectory())) {
+          LOG.warning("The per user wave view index has an older format, rebuilding it");
+        }
+        // The previous commit stays until the new index is first committed,
+        // which keeps the format of a rebuild in progress.
+        indexConfig.setOpenMode(OpenMode.CREATE);
+      }
       indexWriter = new IndexWriter(directory.getDirectory(), indexConfig);
       nrtManager = new NRTManager(indexWriter, new WaveSearchWarmer(domain));
     } catch (IOException ex) {
       throw new IndexException(ex);
     }
-
     nrtManagerReopenThread = new NRTManagerReopenThread(nrtManager, MAX_STALE_SEC, MIN_STALE_SEC);
     nrtManagerReopenThread.start();
+    commitTask = executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        commit();
+      }
+    }, COMMIT_PERIOD_SEC, COMMIT_PERIOD_SEC, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns whether a directory holds an index of the current format. An index
+   * of another format, or none, must be built again from the wavelets.
+   */
+  public static boolean isCurrentFormat(IndexDirectory directory) {
+    try {
+      return isCurrentFormat(directory.getDirectory());
+    } catch (IOException e) {
+      throw new IndexException(e);
+    }
+  }
+
+  private static boolean isCurrentFormat(Directory directory) throws IOException {
+    return IndexReader.indexExists(directory) && COMMIT_USER_DATA.equals(
+        IndexReader.getCommitUserData(directory));
   }
 
   /**
@@ -143,6 +264,20 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
       throw new AlreadyClosedException("Already closed");
     }
     isClosed = true;
+    commitTask.cancel(false);
+    try {
+      // Index the pending updates and commit on the executor, which may be
+      // indexing a batch right now.
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+          commit();
+        }
+      }).get();
+    } catch (Exception ex) {
+      LOG.log(Level.WARNING, "Failed to flush the pending index updates", ex);
+    }
     try {
       nrtManager.close();
       if (analyzer != null) {
@@ -166,29 +301,36 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     nrtManager.maybeReopen(true);
   }
 
+  /**
+   * Records that all the wavelets were added to a rebuilt index. The returned
+   * future is done once their updates are indexed and committed with the
+   * current format.
+   */
+  public ListenableFuture<Void> onRebuilt() {
+    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+        isRebuilt = true;
+        hasUncommittedChanges = true;
+        commit();
+      }
+    }, null);
+    executor.execute(task);
+    return task;
+  }
+
   @Override
   public ListenableFuture<Void> onParticipantAdded(final WaveletName waveletName,
       ParticipantId participant) {
     Preconditions.checkNotNull(waveletName);
     Preconditions.checkNotNull(participant);
-
-    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
-
-      @Override
-      public Void call() throws Exception {
-        ReadableWaveletData waveletData;
-        try {
-          waveletData = waveletProvider.getReadableWaveletData(waveletName);
-          updateIndex(waveletData);
-        } catch (WaveServerException e) {
-          LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-          throw e;
-        }
-        return null;
-      }
-    });
-    executor.execute(task);
-    return task;
+    synchronized (pendingUpdates) {
+      PendingUpdate update = getPendingUpdate(waveletName);
+      update.removed.remove(participant);
+      update.added.add(participant);
+      return update.future;
+    }
   }
 
   @Override
@@ -196,156 +338,165 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
       final ParticipantId participant) {
     Preconditions.checkNotNull(waveletName);
     Preconditions.checkNotNull(participant);
-
-    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
-
-      @Override
-      public Void call() throws Exception {
-        ReadableWaveletData waveletData;
-        try {
-          waveletData = waveletProvider.getReadableWaveletData(waveletName);
-          try {
-            removeParticipantfromIndex(waveletData, participant, nrtManager);
-          } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-            throw e;
-          }
-        } catch (WaveServerException e) {
-          LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-          throw e;
-        }
-        return null;
-      }
-    });
-    executor.execute(task);
-    return task;
+    synchronized (pendingUpdates) {
+      PendingUpdate update = getPendingUpdate(waveletName);
+      update.added.remove(participant);
+      update.removed.add(participant);
+      return update.future;
+    }
   }
 
   @Override
   public ListenableFuture<Void> onWaveInit(final WaveletName waveletName) {
     Preconditions.checkNotNull(waveletName);
-
-    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
-
-      @Override
-      public Void call() throws Exception {
-        ReadableWaveletData waveletData;
-        try {
-          waveletData = waveletProvider.getReadableWaveletData(waveletName);
-          updateIndex(waveletData);
-        } catch (WaveServerException e) {
-          LOG.log(Level.SEVERE, "Failed to initialize index for " + waveletName, e);
-          throw e;
-        }
-        return null;
-      }
-    });
-    executor.execute(task);
-    return task;
+    synchronized (pendingUpdates) {
+      return getPendingUpdate(waveletName).future;
+    }
   }
 
   @Override
   public ListenableFuture<Void> onWaveUpdated(final ReadableWaveletData waveletData) {
-    // No op.
-    SettableFuture<Void> task = SettableFuture.create();
-    task.set(null);
-    return task;
+    Preconditions.checkNotNull(waveletData);
+    // The last modified time changed.
+    WaveletName waveletName = WaveletName.of(waveletData.getWaveId(), waveletData.getWaveletId());
+    synchronized (pendingUpdates) {
+      return getPendingUpdate(waveletName).future;
+    }
   }
 
-  private void updateIndex(ReadableWaveletData wavelet) throws IndexException {
-    Preconditions.checkNotNull(wavelet);
-    try {
-      // TODO (Yuri Z): Update documents instead of totally removing and adding.
-      removeIndex(wavelet, nrtManager);
-      addIndex(wavelet, nrtManager);
-      indexWriter.commit();
-    } catch (IOException e) {
-      throw new IndexException(String.valueOf(wavelet.getWaveletId()), e);
+  /**
+   * Returns the pending update of a wavelet, scheduling a flush if needed.
+   * Called with the pendingUpdates lock held.
+   */
+  private PendingUpdate getPendingUpdate(WaveletName waveletName) {
+    PendingUpdate update = pendingUpdates.get(waveletName);
+    if (update == null) {
+      update = new PendingUpdate();
+      pendingUpdates.put(waveletName, update);
+    }
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(flushTask, flushDelayMs, TimeUnit.MILLISECONDS);
     }
+    return update;
   }
 
-  private static void addIndex(ReadableWaveletData wavelet,
-      NRTManager nrtManager) throws IOException {
-    Document doc = new Document();
-    addWaveletFieldsToIndex(wavelet, doc);
-    nrtManager.addDocument(doc);
+  /**
+   * Indexes the wavelets with pending updates.
+   */
+  private void flush() {
+    Map<WaveletName, PendingUpdate> updates;
+    synchronized (pendingUpdates) {
+      updates = Maps.newLinkedHashMap(pendingUpdates);
+      pendingUpdates.clear();
+      flushScheduled = false;
+    }
+    for (Map.Entry<WaveletName, PendingUpdate> entry : updates.entrySet()) {
+      WaveletName waveletName = entry.getKey();
+      PendingUpdate update = entry.getValue();
+      try {
+        updateIndex(waveletName, waveletProvider.getReadableWaveletData(waveletName), update);
+        update.future.set(null);
+      } catch (WaveServerException | IOException | RuntimeException e) {
+        LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
+        update.future.setException(e);
+      }
+    }
+    if (!updates.isEmpty()) {
+      hasUncommittedChanges = true;
+    }
   }
 
-  private static void addWaveletFieldsToIndex(ReadableWaveletData wavelet, Document doc) {
+  private void commit() {
+    if (hasUncommittedChanges) {
+      try {
+        indexWriter.commit(isRebuilt ? COMMIT_USER_DATA : REBUILDING_COMMIT_USER_DATA);
+        hasUncommittedChanges = false;
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "Failed to commit the index", e);
+      }
+    }
+  }
+
+  /**
+   * Replaces the document of a wavelet, or deletes it if nobody takes part in
+   * the wavelet anymore. The participant changes of the update are applied
+   * over the wavelet state, in case the wavelet provider lags behind them.
+   */
+  private void updateIndex(WaveletName waveletName, ReadableWaveletData wavelet,
+      PendingUpdate update) throws IOException {
+    Term key = new Term(WAVELET_NAME_FIELD, waveletName.toString());
+    Set<ParticipantId> participants = Sets.newLinkedHashSet();
+    if (wavelet != null) {
+      participants.addAll(wavelet.getParticipants());
+    }
+    participants.removeAll(update.removed);
+    participants.addAll(update.added);
+    if (wavelet == null || participants.isEmpty()) {
+      nrtManager.deleteDocuments(key);
+      return;
+    }
+    Document doc = new Document();
+    doc.add(new Field(WAVELET_NAME_FIELD, waveletName.toString(), Field.Store.NO,
+        Field.Index.NOT_ANALYZED));
     doc.add(new Field(WAVEID.toString(), wavelet.getWaveId().serialise(), Field.Store.YES,
         Field.Index.NOT_ANALYZED));
     doc.add(new Field(WAVELETID.toString(), wavelet.getWaveletId().serialise(), Field.Store.YES,
         Field.Index.NOT_ANALYZED));
-    doc.add(new Field(LMT.toString(), Long.toString(wavelet.getLastModifiedTime()), Field.Store.NO,
-        Field.Index.NOT_ANALYZED));
-    for (ParticipantId participant : wavelet.getParticipants()) {
+    doc.add(new NumericField(LMT.toString(), Field.Store.YES, true)
+        .setLongValue(wavelet.getLastModifiedTime()));
+    for (ParticipantId participant : participants) {
       doc.add(new Field(WITH.toString(), participant.toString(), Field.Store.YES,
           Field.Index.NOT_ANALYZED));
     }
+    nrtManager.updateDocument(key, doc);
   }
 
-  private static void removeIndex(ReadableWaveletData wavelet, NRTManager nrtManager)
-      throws IOException {
-    BooleanQuery query = new BooleanQuery();
-    query.add(new TermQuery(new Term(WAVEID.toString(), wavelet.getWaveId().serialise())),
-        BooleanClause.Occur.MUST);
-    query.add(new TermQuery(new Term(WAVELETID.toString(), wavelet.getWaveletId().serialise())),
-        BooleanClause.Occur.MUST);
-    nrtManager.deleteDocuments(query);
-  }
-
-  private static void removeParticipantfromIndex(ReadableWaveletData wavelet,
-      ParticipantId participant, NRTManager nrtManager) throws IOException {
-    BooleanQuery query = new BooleanQuery();
-    Term waveIdTerm = new Term(WAVEID.toString(), wavelet.getWaveId().serialise());
-    query.add(new TermQuery(waveIdTerm), BooleanClause.Occur.MUST);
-    query.add(new TermQuery(new Term(WAVELETID.toString(), wavelet.getWaveletId().serialise())),
-        BooleanClause.Occur.MUST);
-    SearcherManager searcherManager = nrtManager.getSearcherManager(true);
-    IndexSearcher indexSearcher = searcherManager.acquire();
-    try {
-      TopDocs hints = indexSearcher.search(query, MAX_WAVES);
-      for (ScoreDoc hint : hints.scoreDocs) {
-        Document document = indexSearcher.doc(hint.doc);
-        String[] participantValues = document.getValues(WITH.toString());
-        document.removeFields(WITH.toString());
-        for (String address : participantValues) {
-          if (address.equals(participant.getAddress())) {
-            continue;
-          }
-          document.add(new Field(WITH.toString(), address, Field.Store.YES,
-              Field.Index.NOT_ANALYZED));
-        }
-        nrtManager.updateDocument(waveIdTerm, document);
-      }
-    } catch (IOException e) {
-      LOG.log(Level.WARNING, "Failed to fetch from index " + wavelet.toString(), e);
-    } finally {
-      try {
-        searcherManager.release(indexSearcher);
-      } catch (IOException e) {
-        LOG.log(Level.WARNING, "Failed to close searcher. ", e);
-      }
-    }
-  }
-
-
+  /**
+   * Returns the per user waves view, the most recently modified wavelets
+   * first. The view is read in pages: each page searches the wavelets not
+   * modified after the last one of the previous page, skipping those already
+   * read with the same last modified time.
+   */
   @Override
   public Multimap<WaveId, WaveletId> retrievePerUserWaveView(ParticipantId user) {
     Preconditions.checkNotNull(user);
 
-    Multimap<WaveId, WaveletId> userWavesViewMap = HashMultimap.create();
-    BooleanQuery participantQuery = new BooleanQuery();
-    participantQuery.add(new TermQuery(new Term(WITH.toString(), user.getAddress())), Occur.SHOULD);
+    Multimap<WaveId, WaveletId> userWavesViewMap = LinkedHashMultimap.create();
     SearcherManager searcherManager = nrtManager.getSearcherManager(true);
     IndexSearcher indexSearcher = searcherManager.acquire();
     try {
-      TopDocs hints = indexSearcher.search(participantQuery, MAX_WAVES, LMT_ASC_SORT);
-      for (ScoreDoc hint : hints.scoreDocs) {
-        Document document = indexSearcher.doc(hint.doc);
-        WaveId waveId = WaveId.deserialise(document.get(WAVEID.toString()));
-        WaveletId waveletId = WaveletId.deserialise(document.get(WAVELETID.toString()));
-        userWavesViewMap.put(waveId, waveletId);
+      Long lastLmt = null;
+      Set<String> readAtLastLmt = Sets.newHashSet();
+      while (true) {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(WITH.toString(), user.getAddress())), Occur.MUST);
+        if (lastLmt != null) {
+          query.add(NumericRangeQuery.newLongRange(LMT.toString(), null, lastLmt, true, true),
+              Occur.MUST);
+        }
+        TopDocs hints = indexSearcher.search(query, pageSize + readAtLastLmt.size(), LMT_DESC_SORT);
+        int read = 0;
+        for (ScoreDoc hint : hints.scoreDocs) {
+          Document document = indexSearcher.doc(hint.doc);
+          String waveId = document.get(WAVEID.toString());
+          String waveletId = document.get(WAVELETID.toString());
+          long lmt = Long.parseLong(document.get(LMT.toString()));
+          String key = waveId + " " + waveletId;
+          if (lastLmt != null && lmt == lastLmt && readAtLastLmt.contains(key)) {
+            continue;
+          }
+          if (lastLmt == null || lmt != lastLmt) {
+            lastLmt = lmt;
+            readAtLastLmt.clear();
+          }
+          readAtLastLmt.add(key);
+          userWavesViewMap.put(WaveId.deserialise(waveId), WaveletId.deserialise(waveletId));
+          read++;
+        }
+        if (read == 0 || hints.scoreDocs.length >= hints.totalHits) {
+          break;
+        }
       }
     } catch (IOException e) {
       LOG.log(Level.WARNING, "Search failed: " + user, e);
@@ -358,4 +509,4 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     }
     return userWavesViewMap;
   }
-}
\ No newline at end of file
+}
@@ -22,23 +22,42 @@ package org.waveprotocol.box.server.waveserver;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus.Listener;
 import org.waveprotocol.wave.model.id.WaveletName;
 
+import java.util.concurrent.ExecutionException;
+
 /**
+ * Builds the index of {@link LucenePerUserWaveViewHandlerImpl} from all the
+ * stored wavelets, when it's new or of an older format.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
 public class LuceneWaveIndexerImpl extends AbstractWaveIndexer {
 
-  private final PerUserWaveViewBus.Listener listener;
+  private final LucenePerUserWaveViewHandlerImpl listener;
 
   @Inject
-  public LuceneWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider, Listener listener) {
+  public LuceneWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
+      LucenePerUserWaveViewHandlerImpl listener) {
     super(waveMap, waveletProvider);
     this.listener = listener;
   }
 
+  @Override
+  public synchronized void remakeIndex() throws WaveletStateException, WaveServerException {
+    super.remakeIndex();
+    try {
+      listener.onRebuilt().get();
+    } catch (ExecutionException e) {
+      throw new IndexException("Problem encountered committing the index", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IndexException("Interrupted committing the index", e);
+    }
+    postIndexHook();
+  }
+
   @Override
   protected void processWavelet(WaveletName waveletName) {
     try {
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * {@link FullTextIndex} used when full text search is disabled. Text never
+ * matches.
+ */
+public class NoOpFullTextIndexImpl implements FullTextIndex {
+
+  @Override
+  public boolean isEnabled() {
+    return false;
+  }
+
+  @Override
+  public ListenableFuture<Void> indexWavelet(ReadableWaveletData wavelet) {
+    return Futures.immediateFuture(null);
+  }
+
+  @Override
+  public boolean isBackfilled() {
+    return true;
+  }
+
+  @Override
+  public void setBackfilled() {
+    // No op.
+  }
+
+  @Override
+  public Set<WaveletName> search(Collection<String> words) {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    // No op.
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // No op.
+  }
+}
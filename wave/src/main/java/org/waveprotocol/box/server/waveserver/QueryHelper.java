@@ -303,7 +303,7 @@ public class QueryHelper {
   }
 
   /**
-   * Parses the search query.
+   * Parses the search query, without full text search.
    *
    * @param query the query.
    * @return the result map with query tokens. Never returns null.
@@ -311,6 +311,22 @@ public class QueryHelper {
    */
   public static Map<TokenQueryType, Set<String>> parseQuery(String query)
       throws InvalidQueryException {
+    return parseQuery(query, false);
+  }
+
+  /**
+   * Parses the search query. With full text search, the words without a
+   * token, like "hello" in "in:inbox hello", are the values of the
+   * {@link TokenQueryType#TEXT} token. Without it, they are invalid, as is the
+   * text token.
+   *
+   * @param query the query.
+   * @param fullTextSearch whether a full text index is configured.
+   * @return the result map with query tokens. Never returns null.
+   * @throws InvalidQueryException if the query contains invalid params.
+   */
+  public static Map<TokenQueryType, Set<String>> parseQuery(String query,
+      boolean fullTextSearch) throws InvalidQueryException {
     Preconditions.checkArgument(query != null);
     query = query.trim();
     // If query is empty - return.
@@ -320,6 +336,9 @@ public class QueryHelper {
     String[] tokens = query.split("\\s+");
     Map<TokenQueryType, Set<String>> tokensMap = Maps.newEnumMap(TokenQueryType.class);
     for (String token : tokens) {
+      if (fullTextSearch && token.indexOf(':') == -1) {
+        token = TokenQueryType.TEXT.getToken() + ":" + token;
+      }
       String[] pair = token.split(":");
       if (pair.length != 2 || !TokenQueryType.hasToken(pair[0])) {
         String msg = "Invalid query param: " + token;
@@ -327,6 +346,10 @@ public class QueryHelper {
       }
       String tokenValue = pair[1];
       TokenQueryType tokenType = TokenQueryType.fromToken(pair[0]);
+      if (!fullTextSearch && tokenType.equals(TokenQueryType.TEXT)) {
+        String msg = "Full text search is not configured: " + token;
+        throw new InvalidQueryException(msg);
+      }
       // Verify the orderby param.
       if (tokenType.equals(TokenQueryType.ORDERBY)) {
         try {
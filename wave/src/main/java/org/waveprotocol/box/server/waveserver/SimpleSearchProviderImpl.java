@@ -53,12 +53,15 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
   private static final Log LOG = Log.get(SimpleSearchProviderImpl.class);
 
   private final PerUserWaveViewProvider waveViewProvider;
+  private final FullTextIndex fullTextIndex;
 
   @Inject
   public SimpleSearchProviderImpl(@Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) final String waveDomain,
-      WaveDigester digester, final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider) {
+      WaveDigester digester, final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider,
+      FullTextIndex fullTextIndex) {
     super(waveDomain, digester, waveMap);
     this.waveViewProvider = userWaveViewProvider;
+    this.fullTextIndex = fullTextIndex;
   }
 
   @Override
@@ -67,7 +70,7 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
         + ((startAt + numResults) - 1) + "]");
     Map<TokenQueryType, Set<String>> queryParams = null;
     try {
-      queryParams = QueryHelper.parseQuery(query);
+      queryParams = QueryHelper.parseQuery(query, fullTextIndex.isEnabled());
     } catch (InvalidQueryException e1) {
       // Invalid query param - stop and return empty search results.
       LOG.warning("Invalid Query. " + e1.getMessage());
@@ -96,6 +99,10 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
 
     LinkedHashMultimap<WaveId, WaveletId> currentUserWavesView =
         createWavesViewToFilter(user, isAllQuery);
+    if (queryParams.containsKey(TokenQueryType.TEXT)) {
+      currentUserWavesView =
+          filterWavesViewByText(currentUserWavesView, queryParams.get(TokenQueryType.TEXT));
+    }
     Function<ReadableWaveletData, Boolean> filterWaveletsFunction =
         createFilterWaveletsFunction(user, isAllQuery, withParticipantIds, creatorParticipantIds);
 
@@ -133,6 +140,25 @@ public class SimpleSearchProviderImpl extends AbstractSearchProviderImpl {
     return currentUserWavesView;
   }
 
+  /**
+   * Keeps the waves with a wavelet in the view that contains the text.
+   */
+  private LinkedHashMultimap<WaveId, WaveletId> filterWavesViewByText(
+      LinkedHashMultimap<WaveId, WaveletId> currentUserWavesView, Set<String> words) {
+    Set<WaveletName> matches = fullTextIndex.search(words);
+    LinkedHashMultimap<WaveId, WaveletId> filteredWavesView = LinkedHashMultimap.create();
+    for (WaveId waveId : currentUserWavesView.keySet()) {
+      Set<WaveletId> waveletIds = currentUserWavesView.get(waveId);
+      for (WaveletId waveletId : waveletIds) {
+        if (matches.contains(WaveletName.of(waveId, waveletId))) {
+          filteredWavesView.putAll(waveId, waveletIds);
+          break;
+        }
+      }
+    }
+    return filteredWavesView;
+  }
+
   private Function<ReadableWaveletData, Boolean> createFilterWaveletsFunction(
       final ParticipantId user, final boolean isAllQuery,
       final List<ParticipantId> withParticipantIds, final List<ParticipantId> creatorParticipantIds) {
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.IndexExecutor;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Keeps the per user wave views in a {@link PerUserWaveViewStore}, updated
+ * from the {@link PerUserWaveViewBus} events. Unlike
+ * {@link MemoryPerUserWaveViewHandlerImpl}, the views include the waves not
+ * loaded in memory and are never built by scanning the {@link WaveMap}.
+ */
+@Singleton
+public class StorePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler {
+
+  private static final Log LOG = Log.get(StorePerUserWaveViewHandlerImpl.class);
+
+  /** Number of wavelets read from the store by each page of a view. */
+  private static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private final PerUserWaveViewStore store;
+  private final ReadableWaveletDataProvider waveletProvider;
+  private final ScheduledExecutorService executor;
+  private final int pageSize;
+
+  @Inject
+  public StorePerUserWaveViewHandlerImpl(PerUserWaveViewStore store,
+      ReadableWaveletDataProvider waveletProvider,
+      @IndexExecutor ScheduledExecutorService executor) {
+    this(store, waveletProvider, executor, DEFAULT_PAGE_SIZE);
+  }
+
+  @VisibleForTesting
+  StorePerUserWaveViewHandlerImpl(PerUserWaveViewStore store,
+      ReadableWaveletDataProvider waveletProvider, ScheduledExecutorService executor,
+      int pageSize) {
+    this.store = store;
+    this.waveletProvider = waveletProvider;
+    this.executor = executor;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public ListenableFuture<Void> onParticipantAdded(final WaveletName waveletName,
+      final ParticipantId participant) {
+    Preconditions.checkNotNull(waveletName);
+    Preconditions.checkNotNull(participant);
+    return execute(new Callable<Void>() {
+      @Override
+      public Void call() throws PersistenceException, WaveServerException {
+        // The view is ordered by the wavelet's own last modified time.
+        ReadableWaveletData wavelet = waveletProvider.getReadableWaveletData(waveletName);
+        if (wavelet == null) {
+          LOG.warning("Participant " + participant + " added to missing wavelet " + waveletName);
+          return null;
+        }
+        store.putWavelet(participant, waveletName, wavelet.getLastModifiedTime());
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> onParticipantRemoved(final WaveletName waveletName,
+      final ParticipantId participant) {
+    Preconditions.checkNotNull(waveletName);
+    Preconditions.checkNotNull(participant);
+    return execute(new Callable<Void>() {
+      @Override
+      public Void call() throws PersistenceException {
+        store.removeWavelet(participant, waveletName);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> onWaveInit(WaveletName waveletName) {
+    // No op, the wavelet is added to the views with its participants.
+    SettableFuture<Void> task = SettableFuture.create();
+    task.set(null);
+    return task;
+  }
+
+  @Override
+  public ListenableFuture<Void> onWaveUpdated(ReadableWaveletData waveletData) {
+    Preconditions.checkNotNull(waveletData);
+    // The wavelet may change once this returns, take what's needed now.
+    final WaveletName waveletName =
+        WaveletName.of(waveletData.getWaveId(), waveletData.getWaveletId());
+    final List<ParticipantId> participants = ImmutableList.copyOf(waveletData.getParticipants());
+    final long lastModifiedTime = waveletData.getLastModifiedTime();
+    return execute(new Callable<Void>() {
+      @Override
+      public Void call() throws PersistenceException {
+        for (ParticipantId participant : participants) {
+          store.putWavelet(participant, waveletName, lastModifiedTime);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns the per user waves view, the most recently modified wavelets first.
+   * The view is read from the store in pages.
+   */
+  @Override
+  public Multimap<WaveId, WaveletId> retrievePerUserWaveView(ParticipantId user) {
+    Preconditions.checkNotNull(user);
+    Multimap<WaveId, WaveletId> userWavesViewMap = LinkedHashMultimap.create();
+    try {
+      int offset = 0;
+      List<WaveletName> page;
+      do {
+        page = store.getWavelets(user, offset, pageSize);
+        for (WaveletName waveletName : page) {
+          userWavesViewMap.put(waveletName.waveId, waveletName.waveletId);
+        }
+        offset += page.size();
+      } while (page.size() == pageSize);
+    } catch (PersistenceException e) {
+      LOG.warning("Failed to retrieve the waves view of user: " + user.getAddress(), e);
+    }
+    return userWavesViewMap;
+  }
+
+  private ListenableFuture<Void> execute(final Callable<Void> update) {
+    ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          return update.call();
+        } catch (PersistenceException | WaveServerException e) {
+          LOG.severe("Failed to update the per user wave views", e);
+          throw e;
+        }
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus.Listener;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Rebuilds the per user wave views of {@link StorePerUserWaveViewHandlerImpl}
+ * from all the stored wavelets. The views are rebuilt once, until the store
+ * records they're backfilled; later changes reach the store through the
+ * {@link PerUserWaveViewBus}.
+ */
+@Singleton
+public class StoreWaveIndexerImpl extends AbstractWaveIndexer {
+
+  private static final Log LOG = Log.get(StoreWaveIndexerImpl.class);
+
+  private final PerUserWaveViewBus.Listener listener;
+  private final PerUserWaveViewStore store;
+
+  @Inject
+  public StoreWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
+      Listener listener, PerUserWaveViewStore store) {
+    super(waveMap, waveletProvider);
+    this.listener = listener;
+    this.store = store;
+  }
+
+  @Override
+  public synchronized void remakeIndex() throws WaveletStateException, WaveServerException {
+    try {
+      if (store.isBackfilled()) {
+        return;
+      }
+      LOG.info("Adding the existing wavelets to the per user wave views");
+      super.remakeIndex();
+      postIndexHook();
+      // Only a complete backfill is recorded, an interrupted one runs again.
+      store.setBackfilled();
+    } catch (PersistenceException e) {
+      throw new WaveServerException("Failed to backfill the per user wave views", e);
+    }
+  }
+
+  @Override
+  protected void processWavelet(WaveletName waveletName) {
+    try {
+      listener.onWaveUpdated(waveletProvider.getSnapshot(waveletName).snapshot).get();
+    } catch (WaveServerException | ExecutionException e) {
+      throw new IndexException("Problem encountered processing wavelet " + waveletName, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IndexException("Interrupted processing wavelet " + waveletName, e);
+    }
+  }
+
+  @Override
+  protected void postIndexHook() {
+    try {
+      getWaveMap().unloadAllWavelets();
+    } catch (WaveletStateException e) {
+      throw new IndexException("Problem encountered while cleaning up", e);
+    }
+  }
+}
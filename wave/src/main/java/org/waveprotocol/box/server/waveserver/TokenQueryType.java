@@ -33,6 +33,7 @@ public enum TokenQueryType {
   WITH("with"),
   CREATOR("creator"),
   ID("id"),
+  TEXT("text"),
   ;
 
   final String token;
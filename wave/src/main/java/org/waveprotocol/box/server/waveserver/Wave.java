@@ -26,7 +26,10 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.wave.model.id.WaveId;
@@ -34,7 +37,9 @@ import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -57,7 +62,9 @@ final class Wave implements Iterable<WaveletContainer> {
 
     @Override
     public T load(WaveletId waveletId) {
-      return factory.create(notifiee, WaveletName.of(waveId, waveletId), waveDomain);
+      T wavelet = factory.create(notifiee, WaveletName.of(waveId, waveletId), waveDomain);
+      wavelet.getLoadFuture().addListener(loadListener, MoreExecutors.directExecutor());
+      return wavelet;
     }
   }
 
@@ -67,6 +74,15 @@ final class Wave implements Iterable<WaveletContainer> {
   private final LoadingCache<WaveletId, LocalWaveletContainer> localWavelets;
   private final LoadingCache<WaveletId, RemoteWaveletContainer> remoteWavelets;
   private final WaveletNotificationSubscriber notifiee;
+  /** Is run when a wavelet of the wave completes loading from storage. */
+  private final Runnable loadListener;
+  /** The estimated size the wave was last weighed with in the wave map. */
+  private volatile long weighedSize;
+  /**
+   * The time the wave was last accessed through the wave map, read from the
+   * wave map's ticker.
+   */
+  private volatile long lastAccessTime;
 
   /**
    * Creates a wave. The {@code lookupWavelets} future is examined only when a
@@ -77,9 +93,27 @@ final class Wave implements Iterable<WaveletContainer> {
       WaveletNotificationSubscriber notifiee, LocalWaveletContainer.Factory localFactory,
       RemoteWaveletContainer.Factory remoteFactory,
       String waveDomain) {
+    this(waveId, lookedupWavelets, notifiee, localFactory, remoteFactory, waveDomain,
+        new Runnable() {
+          @Override
+          public void run() {
+          }
+        });
+  }
+
+  /**
+   * Creates a wave which runs {@code loadListener} each time one of its
+   * wavelets completes loading from storage.
+   */
+  public Wave(WaveId waveId,
+      ListenableFuture<ImmutableSet<WaveletId>> lookedupWavelets,
+      WaveletNotificationSubscriber notifiee, LocalWaveletContainer.Factory localFactory,
+      RemoteWaveletContainer.Factory remoteFactory,
+      String waveDomain, Runnable loadListener) {
     this.waveId = waveId;
     this.lookedupWavelets = lookedupWavelets;
     this.notifiee = notifiee;
+    this.loadListener = loadListener;
 
     this.localWavelets = CacheBuilder.newBuilder().build(
         new WaveletCreator<LocalWaveletContainer>(localFactory, waveDomain));
@@ -165,4 +199,47 @@ final class Wave implements Iterable<WaveletContainer> {
   ListenableFuture<ImmutableSet<WaveletId>> getLookedupWavelets() {
     return lookedupWavelets;
   }
+
+  /** Returns the estimated bytes of memory held by the wavelets of the wave. */
+  long estimateSize() {
+    long size = 0;
+    for (WaveletContainer wavelet : this) {
+      size += wavelet.estimateSize();
+    }
+    return size;
+  }
+
+  /** Returns the local wavelets of the wave in memory. */
+  Iterable<LocalWaveletContainer> getLocalWavelets() {
+    return Collections.unmodifiableCollection(localWavelets.asMap().values());
+  }
+
+  long getLastAccessTime() {
+    return lastAccessTime;
+  }
+
+  void setLastAccessTime(long lastAccessTime) {
+    this.lastAccessTime = lastAccessTime;
+  }
+
+  long getWeighedSize() {
+    return weighedSize;
+  }
+
+  void setWeighedSize(long weighedSize) {
+    this.weighedSize = weighedSize;
+  }
+
+  /**
+   * Unloads the wavelets of the wave, see {@link WaveletContainer#close()}.
+   *
+   * @return a future which is done when all the wavelets are unloaded.
+   */
+  ListenableFuture<?> close() {
+    List<ListenableFuture<Void>> closed = Lists.newArrayList();
+    for (WaveletContainer wavelet : this) {
+      closed.add(wavelet.close());
+    }
+    return Futures.successfulAsList(closed);
+  }
 }
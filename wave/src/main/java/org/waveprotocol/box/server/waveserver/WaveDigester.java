@@ -20,13 +20,22 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.wave.api.ApiIdSerializer;
 import com.google.wave.api.SearchResult;
 import com.google.wave.api.SearchResult.Digest;
+import com.typesafe.config.Config;
 
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.Snippets;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
 import org.waveprotocol.wave.model.conversation.BlipIterators;
 import org.waveprotocol.wave.model.conversation.ConversationBlip;
 import org.waveprotocol.wave.model.conversation.ObservableConversation;
@@ -38,15 +47,20 @@ import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplement;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplementImpl;
+import org.waveprotocol.wave.model.supplement.ReadableSupplement;
+import org.waveprotocol.wave.model.supplement.SupplementImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
 import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl.DefaultFollow;
 import org.waveprotocol.wave.model.supplement.WaveletBasedSupplement;
 import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
@@ -55,22 +69,128 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generates digests for the search service.
  *
+ * The participant independent parts of the digest of a conversation (title,
+ * snippet, blips...) are cached per wavelet version, bounded by
+ * {@code core.digest_cache_max_memory}. Only the unread count is computed for
+ * each search, from the user data wavelet. The cache is invalidated from the
+ * {@link WaveBus}.
+ *
  * @author yurize@apache.org
  */
-public class WaveDigester {
+@Singleton
+public class WaveDigester implements WaveBus.Subscriber {
+
+  @Stat(name = "digest-cache-hits", help = "Number of conversation digests served from cache")
+  private static final AtomicLong hits = new AtomicLong();
+
+  @Stat(name = "digest-cache-misses", help = "Number of conversation digests computed")
+  private static final AtomicLong misses = new AtomicLong();
+
+  static {
+    Statistic.trackClass(WaveDigester.class);
+  }
 
   private final ConversationUtil conversationUtil;
   private static final int DIGEST_SNIPPET_LENGTH = 140;
   private static final int PARTICIPANTS_SNIPPET_LENGTH = 5;
   private static final String EMPTY_WAVELET_TITLE = "";
 
+  /** Default memory held by the cached digests. */
+  private static final long DEFAULT_CACHE_MAX_MEMORY = 32 * 1024 * 1024;
+
+  /** Estimated bytes held by a cached digest besides its strings. */
+  private static final int DIGEST_OVERHEAD = 256;
+
+  /** Estimated bytes held by each blip of a cached digest besides its id. */
+  private static final int BLIP_OVERHEAD = 48;
+
+  /**
+   * The participant independent parts of the digest of a conversational
+   * wavelet at some version.
+   */
+  static final class ConversationDigest {
+    private final HashedVersion version;
+    private final WaveletId waveletId;
+    private final String title;
+    private final String snippet;
+    private final String waveId;
+    private final List<String> participants;
+    private final long lastModified;
+    private final long created;
+    private final String[] blipIds;
+    private final int[] blipVersions;
+
+    ConversationDigest(HashedVersion version, WaveletId waveletId, String title, String snippet,
+        String waveId, List<String> participants, long lastModified, long created,
+        String[] blipIds, int[] blipVersions) {
+      this.version = version;
+      this.waveletId = waveletId;
+      this.title = title;
+      this.snippet = snippet;
+      this.waveId = waveId;
+      this.participants = participants;
+      this.lastModified = lastModified;
+      this.created = created;
+      this.blipIds = blipIds;
+      this.blipVersions = blipVersions;
+    }
+
+    /** Counts the blips unread by the owner of the supplement. */
+    int countUnread(ReadableSupplement supplement) {
+      int unreadCount = 0;
+      for (int i = 0; i < blipIds.length; i++) {
+        if (supplement.isBlipUnread(waveletId, blipIds[i], blipVersions[i])) {
+          unreadCount++;
+        }
+      }
+      return unreadCount;
+    }
+
+    Digest toDigest(int unreadCount) {
+      return new Digest(title, snippet, waveId, new ArrayList<String>(participants),
+          lastModified, created, unreadCount, blipIds.length);
+    }
+
+    int estimateSize() {
+      int size = DIGEST_OVERHEAD + 2 * (title.length() + snippet.length() + waveId.length());
+      for (String participant : participants) {
+        size += 2 * participant.length();
+      }
+      for (String blipId : blipIds) {
+        size += BLIP_OVERHEAD + 2 * blipId.length();
+      }
+      return size;
+    }
+  }
+
+  /** Cached conversation digests, with the version they were computed at. */
+  private final Cache<WaveletName, ConversationDigest> conversationDigests;
+
   @Inject
+  public WaveDigester(ConversationUtil conversationUtil, Config config) {
+    this(conversationUtil, config.getBytes("core.digest_cache_max_memory"));
+  }
+
   public WaveDigester(ConversationUtil conversationUtil) {
+    this(conversationUtil, DEFAULT_CACHE_MAX_MEMORY);
+  }
+
+  private WaveDigester(ConversationUtil conversationUtil, long cacheMaxMemory) {
     this.conversationUtil = conversationUtil;
+    this.conversationDigests = CacheBuilder.newBuilder()
+        .maximumWeight(cacheMaxMemory)
+        .weigher(new Weigher<WaveletName, ConversationDigest>() {
+          @Override
+          public int weigh(WaveletName waveletName, ConversationDigest digest) {
+            return digest.estimateSize();
+          }
+        })
+        .build();
   }
 
   public SearchResult generateSearchResult(ParticipantId participant, String query,
@@ -114,18 +234,13 @@ public class WaveDigester {
     }
 
     ObservableWaveletData convWavelet = root != null ? root : other;
-    SupplementedWave supplement = null;
-    ObservableConversationView conversations = null;
+    ConversationDigest conversation = null;
     if (convWavelet != null) {
-      OpBasedWavelet wavelet = OpBasedWavelet.createReadOnly(convWavelet);
-      if (WaveletBasedConversation.waveletHasConversation(wavelet)) {
-        conversations = conversationUtil.buildConversation(wavelet);
-        supplement = buildSupplement(participant, conversations, udw);
-      }
+      conversation = getConversationDigest(convWavelet);
     }
-    if (conversations != null) {
+    if (conversation != null) {
       // This is a conversational wave. Produce a conversational digest.
-      digest = generateDigest(conversations, supplement, convWavelet);
+      digest = conversation.toDigest(conversation.countUnread(buildSupplement(udw)));
     } else {
       // It is unknown how to present this wave.
       digest = generateEmptyorUnknownDigest(wave);
@@ -134,6 +249,43 @@ public class WaveDigester {
     return digest;
   }
 
+  /**
+   * Returns the digest of a conversational wavelet, from the cache if it was
+   * computed at the same version, or null if the wavelet has no conversation.
+   */
+  private ConversationDigest getConversationDigest(ObservableWaveletData convWavelet) {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(convWavelet);
+    HashedVersion version = convWavelet.getHashedVersion();
+    ConversationDigest cached = conversationDigests.getIfPresent(waveletName);
+    if (cached != null && cached.version.equals(version)) {
+      hits.incrementAndGet();
+      return cached;
+    }
+    misses.incrementAndGet();
+    OpBasedWavelet wavelet = OpBasedWavelet.createReadOnly(convWavelet);
+    if (!WaveletBasedConversation.waveletHasConversation(wavelet)) {
+      return null;
+    }
+    ConversationDigest conversation =
+        summarize(conversationUtil.buildConversation(wavelet), convWavelet);
+    // Don't replace the digest of a newer version computed concurrently.
+    if (cached == null || cached.version.getVersion() <= version.getVersion()) {
+      conversationDigests.put(waveletName, conversation);
+    }
+    return conversation;
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    if (IdUtil.isConversationalId(wavelet.getWaveletId())) {
+      conversationDigests.invalidate(WaveletDataUtil.waveletNameOf(wavelet));
+    }
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+  }
+
   /**
    * Produces a digest for a set of conversations. Never returns null.
    *
@@ -146,6 +298,26 @@ public class WaveDigester {
    */
   Digest generateDigest(ObservableConversationView conversations, SupplementedWave supplement,
       WaveletData rawWaveletData) {
+    ConversationDigest conversation = summarize(conversations, rawWaveletData);
+    int unreadCount = 0;
+    for (ConversationBlip blip : BlipIterators.breadthFirst(conversations.getRoot())) {
+      if (supplement.isUnread(blip)) {
+        unreadCount++;
+      }
+    }
+    return conversation.toDigest(unreadCount);
+  }
+
+  /**
+   * Computes the participant independent parts of the digest of a set of
+   * conversations.
+   *
+   * @param conversations the conversation.
+   * @param rawWaveletData the waveletData from which the digest is generated.
+   * @return the digest of the conversations, without unread count.
+   */
+  private ConversationDigest summarize(ObservableConversationView conversations,
+      ReadableWaveletData rawWaveletData) {
     ObservableConversation rootConversation = conversations.getRoot();
     ObservableConversationBlip firstBlip = null;
     if ((rootConversation != null) && (rootConversation.getRootThread() != null)
@@ -174,18 +346,21 @@ public class WaveDigester {
         break;
       }
     }
-    int unreadCount = 0;
-    int blipCount = 0;
+    List<String> blipIds = CollectionUtils.newArrayList();
+    List<Integer> blipVersions = CollectionUtils.newArrayList();
     long lastModified = -1;
     for (ConversationBlip blip : BlipIterators.breadthFirst(rootConversation)) {
-      if (supplement.isUnread(blip)) {
-        unreadCount++;
-      }
+      blipIds.add(blip.getId());
+      blipVersions.add(blip.hackGetRaw().getLastModifiedVersion().intValue());
       lastModified = Math.max(blip.getLastModifiedTime(), lastModified);
-      blipCount++;
     }
-    return new Digest(title, snippet, waveId, participants, lastModified,
-        rawWaveletData.getCreationTime(), unreadCount, blipCount);
+    int[] versions = new int[blipVersions.size()];
+    for (int i = 0; i < versions.length; i++) {
+      versions[i] = blipVersions.get(i);
+    }
+    return new ConversationDigest(rawWaveletData.getHashedVersion(),
+        rawWaveletData.getWaveletId(), title, snippet, waveId, participants, lastModified,
+        rawWaveletData.getCreationTime(), blipIds.toArray(new String[blipIds.size()]), versions);
   }
 
   /** @return a digest for an empty wave. */
@@ -243,10 +418,23 @@ public class WaveDigester {
   @VisibleForTesting
   SupplementedWave buildSupplement(ParticipantId viewer, ObservableConversationView conversations,
       ObservableWaveletData udw) {
+    return SupplementedWaveImpl.create(buildPrimitiveSupplement(udw), conversations, viewer,
+        DefaultFollow.ALWAYS);
+  }
+
+  /**
+   * Builds the read state of the logged user from the user data wavelet.
+   * Never returns null.
+   *
+   * @param udw the user data wavelet for the logged user.
+   */
+  private ReadableSupplement buildSupplement(ObservableWaveletData udw) {
+    return new SupplementImpl(buildPrimitiveSupplement(udw));
+  }
+
+  private PrimitiveSupplement buildPrimitiveSupplement(ObservableWaveletData udw) {
     // Use mock state if there is no UDW.
-    PrimitiveSupplement udwState =
-        udw != null ? WaveletBasedSupplement.create(OpBasedWavelet.createReadOnly(udw))
-            : new PrimitiveSupplementImpl();
-        return SupplementedWaveImpl.create(udwState, conversations, viewer, DefaultFollow.ALWAYS);
+    return udw != null ? WaveletBasedSupplement.create(OpBasedWavelet.createReadOnly(udw))
+        : new PrimitiveSupplementImpl();
   }
 }
@@ -19,13 +19,23 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.typesafe.config.Config;
@@ -33,24 +43,66 @@ import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.CoreSettingsNames;
 import org.waveprotocol.box.server.executor.ExecutorAnnotations.LookupExecutor;
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A collection of wavelets, local and remote, held in memory.
+ * <p>
+ * If {@code core.wave_cache_max_memory} is set, the waves in memory are
+ * bounded by their estimated size in memory, otherwise by their number,
+ * {@code core.wave_cache_size}. The wavelets of an evicted wave are unloaded,
+ * see {@link WaveletContainer#close()}, and the wave is not loaded again until
+ * that completes.
  *
  * @author soren@google.com (Soren Lassen)
  */
 public class WaveMap {
 
+  @Stat(name = "wave-cache-hits", help = "Number of wave lookups served from memory")
+  private static final AtomicLong hits = new AtomicLong();
+
+  @Stat(name = "wave-cache-misses", help = "Number of wave lookups which loaded the wave")
+  private static final AtomicLong misses = new AtomicLong();
+
+  @Stat(name = "wave-cache-load-time-ms", help = "Total time spent loading waves")
+  private static final AtomicLong loadTimeMs = new AtomicLong();
+
+  @Stat(name = "wave-cache-evictions", help = "Number of waves unloaded from memory")
+  private static final AtomicLong evictions = new AtomicLong();
+
+  @Stat(name = "wave-cache-evicted-bytes",
+      help = "Estimated bytes of memory held by the waves unloaded")
+  private static final AtomicLong evictedBytes = new AtomicLong();
+
+  static {
+    Statistic.trackClass(WaveMap.class);
+  }
+
+  /** The fraction of its weight a wave must grow or shrink by to be weighed again. */
+  private static final int REWEIGH_FRACTION = 4;
+
+  /** A wave is weighed in units of this many bytes. */
+  private static final int WEIGHT_UNIT = 1024;
+
   /**
    * Returns a future whose result is the ids of stored wavelets in the given wave.
    * Any failure is reported as a {@link PersistenceException}.
@@ -69,8 +121,21 @@ public class WaveMap {
     return task;
   }
 
+  private static final Runnable NO_OP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
   private final LoadingCache<WaveId, Wave> waves;
   private final WaveletStore<?> store;
+  /** Whether waves are bounded by their estimated size in memory. */
+  private final boolean weighed;
+  private final Ticker ticker;
+
+  /** Waves being unloaded, which must not be loaded again until done. */
+  private final ConcurrentMap<WaveId, ListenableFuture<Void>> unloadingWaves =
+      new ConcurrentHashMap<WaveId, ListenableFuture<Void>>();
 
   @Inject
   public WaveMap(final DeltaAndSnapshotStore waveletStore,
@@ -80,21 +145,150 @@ public class WaveMap {
       @Named(CoreSettingsNames.WAVE_SERVER_DOMAIN) final String waveDomain,
       Config config,
       @LookupExecutor final Executor lookupExecutor) {
+    this(waveletStore, notifiee, localFactory, remoteFactory, waveDomain, config, lookupExecutor,
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Creates a wave map which reads the time waves are accessed, and expire,
+   * from the given ticker.
+   */
+  @VisibleForTesting
+  WaveMap(final DeltaAndSnapshotStore waveletStore,
+      final WaveletNotificationSubscriber notifiee,
+      final LocalWaveletContainer.Factory localFactory,
+      final RemoteWaveletContainer.Factory remoteFactory,
+      final String waveDomain,
+      Config config,
+      final Executor lookupExecutor,
+      Ticker ticker) {
 
     this.store = waveletStore;
-    waves = CacheBuilder.newBuilder()
-            .maximumSize(config.getInt("core.wave_cache_size"))
+    this.ticker = ticker;
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().ticker(ticker);
+    long maxMemory = config.getBytes("core.wave_cache_max_memory");
+    weighed = maxMemory > 0;
+    final WaveletNotificationSubscriber waveNotifiee =
+        weighed ? reweighingSubscriber(notifiee) : notifiee;
+    if (weighed) {
+      builder.maximumWeight(maxMemory / WEIGHT_UNIT).weigher(new Weigher<WaveId, Wave>() {
+        @Override
+        public int weigh(WaveId waveId, Wave wave) {
+          return (int) Math.min(Integer.MAX_VALUE, 1 + wave.getWeighedSize() / WEIGHT_UNIT);
+        }
+      });
+    } else {
+      builder.maximumSize(config.getInt("core.wave_cache_size"));
+    }
+    waves = builder
             .expireAfterAccess(config.getDuration("core.wave_cache_expire", TimeUnit.MINUTES), TimeUnit.MINUTES)
+            .removalListener(new RemovalListener<WaveId, Wave>() {
+      @Override
+      public void onRemoval(RemovalNotification<WaveId, Wave> notification) {
+        if (notification.getCause() != RemovalCause.REPLACED) {
+          unload(notification.getKey(), notification.getValue());
+        }
+      }
+    })
             .build(new CacheLoader<WaveId, Wave>() {
       @Override
       public Wave load(WaveId waveId) throws Exception {
+        ListenableFuture<Void> unloading = unloadingWaves.get(waveId);
+        if (unloading != null) {
+          unloading.get();
+        }
         ListenableFuture<ImmutableSet<WaveletId>> lookedupWavelets =
           lookupWavelets(waveId, waveletStore, lookupExecutor);
-        return new Wave(waveId, lookedupWavelets, notifiee, localFactory, remoteFactory, waveDomain);
+        return new Wave(waveId, lookedupWavelets, waveNotifiee, localFactory, remoteFactory,
+            waveDomain, weighed ? reweighingListener(waveId) : NO_OP);
       }
     });
   }
 
+  /**
+   * Returns a subscriber which weighs a wave again after one of its wavelets
+   * is updated or committed, the changes which make it grow or shrink.
+   */
+  private WaveletNotificationSubscriber reweighingSubscriber(
+      final WaveletNotificationSubscriber notifiee) {
+    return new WaveletNotificationSubscriber() {
+      @Override
+      public void waveletUpdate(ReadableWaveletData wavelet,
+          ImmutableList<WaveletDeltaRecord> deltas, ImmutableSet<String> domainsToNotify) {
+        notifiee.waveletUpdate(wavelet, deltas, domainsToNotify);
+        reweigh(wavelet.getWaveId());
+      }
+
+      @Override
+      public void waveletCommitted(WaveletName waveletName, HashedVersion version,
+          ImmutableSet<String> domainsToNotify) {
+        notifiee.waveletCommitted(waveletName, version, domainsToNotify);
+        reweigh(waveletName.waveId);
+      }
+    };
+  }
+
+  private Runnable reweighingListener(final WaveId waveId) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        reweigh(waveId);
+      }
+    };
+  }
+
+  /**
+   * Weighs a wave in memory again if its size changed significantly since it
+   * was last weighed.
+   */
+  private void reweigh(WaveId waveId) {
+    Wave wave = waves.asMap().get(waveId);
+    if (wave == null) {
+      return;
+    }
+    long size = wave.estimateSize();
+    if (Math.abs(size - wave.getWeighedSize()) > wave.getWeighedSize() / REWEIGH_FRACTION) {
+      wave.setWeighedSize(size);
+      // Replacing the wave by itself makes the cache weigh it again.
+      waves.asMap().replace(waveId, wave, wave);
+    }
+  }
+
+  /**
+   * Returns a wave, loading it if it's not in memory.
+   */
+  private Wave getWave(WaveId waveId) throws ExecutionException {
+    Wave wave = waves.getIfPresent(waveId);
+    if (wave != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      long start = ticker.read();
+      wave = waves.get(waveId);
+      loadTimeMs.addAndGet(TimeUnit.NANOSECONDS.toMillis(ticker.read() - start));
+    }
+    wave.setLastAccessTime(ticker.read());
+    return wave;
+  }
+
+  /**
+   * Closes the wavelets of a wave removed from memory. Until done, the wave is
+   * not loaded again, so it's loaded with all its deltas persisted.
+   */
+  private void unload(final WaveId waveId, Wave wave) {
+    final SettableFuture<Void> unloaded = SettableFuture.create();
+    unloadingWaves.put(waveId, unloaded);
+    evictions.incrementAndGet();
+    evictedBytes.addAndGet(wave.estimateSize());
+    wave.close().addListener(new Runnable() {
+      @Override
+      public void run() {
+        unloadingWaves.remove(waveId, unloaded);
+        unloaded.set(null);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
   /**
    * Loads all wavelets from storage.
    *
@@ -128,6 +322,32 @@ public class WaveMap {
     return ImmutableMap.copyOf(waves.asMap());
   }
 
+  /**
+   * Returns the names of the local wavelets in memory, those of the most
+   * recently accessed waves first.
+   *
+   * @param max the maximum number of names returned.
+   */
+  public List<WaveletName> getRecentlyAccessedWavelets(int max) {
+    List<Wave> recentWaves = Lists.newArrayList(waves.asMap().values());
+    Collections.sort(recentWaves, new Comparator<Wave>() {
+      @Override
+      public int compare(Wave a, Wave b) {
+        return Long.compare(b.getLastAccessTime(), a.getLastAccessTime());
+      }
+    });
+    List<WaveletName> waveletNames = Lists.newArrayList();
+    for (Wave wave : recentWaves) {
+      for (LocalWaveletContainer wavelet : wave.getLocalWavelets()) {
+        if (waveletNames.size() >= max) {
+          return waveletNames;
+        }
+        waveletNames.add(wavelet.getWaveletName());
+      }
+    }
+    return waveletNames;
+  }
+
   public ExceptionalIterator<WaveId, WaveServerException> getWaveIds() {
     Iterator<WaveId> inner = waves.asMap().keySet().iterator();
     return ExceptionalIterator.FromIterator.create(inner);
@@ -135,7 +355,7 @@ public class WaveMap {
 
   public ImmutableSet<WaveletId> lookupWavelets(WaveId waveId) throws WaveletStateException {
     try {
-      ListenableFuture<ImmutableSet<WaveletId>> future = waves.get(waveId).getLookedupWavelets();
+      ListenableFuture<ImmutableSet<WaveletId>> future = getWave(waveId).getLookedupWavelets();
       return FutureUtil.getResultOrPropagateException(future, PersistenceException.class);
     } catch (PersistenceException e) {
       throw new WaveletStateException("Failed to look up wave " + waveId, e);
@@ -172,7 +392,7 @@ public class WaveMap {
   public LocalWaveletContainer getLocalWavelet(WaveletName waveletName)
       throws WaveletStateException {
     try {
-      return waves.get(waveletName.waveId).getLocalWavelet(waveletName.waveletId);
+      return getWave(waveletName.waveId).getLocalWavelet(waveletName.waveletId);
     } catch (ExecutionException ex) {
       throw new RuntimeException(ex);
     }
@@ -181,7 +401,7 @@ public class WaveMap {
   public RemoteWaveletContainer getRemoteWavelet(WaveletName waveletName)
       throws WaveletStateException {
     try {
-      return waves.get(waveletName.waveId).getRemoteWavelet(waveletName.waveletId);
+      return getWave(waveletName.waveId).getRemoteWavelet(waveletName.waveletId);
     } catch (ExecutionException ex) {
       throw new RuntimeException(ex);
     }
@@ -189,7 +409,7 @@ public class WaveMap {
 
   public LocalWaveletContainer getOrCreateLocalWavelet(WaveletName waveletName) {
     try {
-      return waves.get(waveletName.waveId).getOrCreateLocalWavelet(waveletName.waveletId);
+      return getWave(waveletName.waveId).getOrCreateLocalWavelet(waveletName.waveletId);
     } catch (ExecutionException ex) {
       throw new RuntimeException(ex);
     }
@@ -197,7 +417,7 @@ public class WaveMap {
 
   public RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletName waveletName) {
     try {
-      return waves.get(waveletName.waveId).getOrCreateRemoteWavelet(waveletName.waveletId);
+      return getWave(waveletName.waveId).getOrCreateRemoteWavelet(waveletName.waveletId);
     } catch (ExecutionException ex) {
       throw new RuntimeException(ex);
     }
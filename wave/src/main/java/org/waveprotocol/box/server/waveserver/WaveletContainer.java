@@ -147,4 +147,26 @@ interface WaveletContainer {
    */
   boolean isEmpty() throws WaveletStateException;
 
+  /**
+   * @return a future which is done when the initial load of the wavelet from
+   *         storage completes, successfully or not.
+   */
+  ListenableFuture<Void> getLoadFuture();
+
+  /**
+   * @return the estimated bytes of memory held by the wavelet. This method
+   *         doesn't wait for the wavelet to load; it's 0 until then. It
+   *         doesn't take the wavelet's lock either.
+   */
+  long estimateSize();
+
+  /**
+   * Unloads the wavelet from memory. Once the wavelet is loaded and all the
+   * deltas applied to it are persisted, its storage is released. Any call to
+   * the container after this one fails with a {@link WaveletStateException}.
+   *
+   * @return a future which is done when the wavelet's storage is released.
+   */
+  ListenableFuture<Void> close();
+
 }
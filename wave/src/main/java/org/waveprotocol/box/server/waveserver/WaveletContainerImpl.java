@@ -19,6 +19,7 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -55,7 +56,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
@@ -81,6 +84,9 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     /** Wavelet has been deleted, the instance will not contain any data. */
     DELETED,
 
+    /** Wavelet has been unloaded from memory, see {@link #close()}. */
+    CLOSED,
+
     /**
      * For some reason this instance is broken, e.g. a remote wavelet update
      * signature failed.
@@ -97,8 +103,13 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   private final AccessController accessChecker;
   /** Is counted down when initial loading from storage completes. */
   private final CountDownLatch loadLatch = new CountDownLatch(1);
-  /** Is set at most once, before loadLatch is counted down. */
-  private WaveletState waveletState;
+  /** Is set when initial loading from storage completes, after loadLatch. */
+  private final SettableFuture<Void> loaded = SettableFuture.create();
+  /**
+   * Is set at most once, before loadLatch is counted down. Volatile so that
+   * {@link #estimateSize()} may read it without the lock.
+   */
+  private volatile WaveletState waveletState;
   private State state = State.LOADING;
 
   /**
@@ -151,6 +162,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
               releaseWriteLock();
             }
             loadLatch.countDown();
+            loaded.set(null);
           }
         },
         storageContinuationExecutor);
@@ -547,6 +559,60 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     }
   }
 
+  @Override
+  public ListenableFuture<Void> getLoadFuture() {
+    return loaded;
+  }
+
+  @Override
+  public long estimateSize() {
+    // Doesn't take the lock: it's called for all wavelets of a wave from the
+    // commit path of one of them.
+    WaveletState state = waveletState;
+    return (state == null) ? 0 : state.estimateSize();
+  }
+
+  @Override
+  public ListenableFuture<Void> close() {
+    final SettableFuture<Void> closed = SettableFuture.create();
+    loaded.addListener(new Runnable() {
+      @Override
+      public void run() {
+        final ListenableFuture<Void> persisted;
+        acquireWriteLock();
+        try {
+          if (state == State.OK && waveletState.getSnapshot() != null) {
+            persisted = waveletState.persist(waveletState.getCurrentVersion());
+          } else {
+            persisted = Futures.immediateFuture(null);
+          }
+          state = State.CLOSED;
+        } finally {
+          releaseWriteLock();
+        }
+        persisted.addListener(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Futures.getDone(persisted);
+            } catch (ExecutionException e) {
+              LOG.severe("Failed to persist wavelet " + getWaveletName() + " on close", e);
+            }
+            if (waveletState != null) {
+              try {
+                waveletState.close();
+              } catch (IOException e) {
+                LOG.warning("Failed to close wavelet " + getWaveletName(), e);
+              }
+            }
+            closed.set(null);
+          }
+        }, storageContinuationExecutor);
+      }
+    }, storageContinuationExecutor);
+    return closed;
+  }
+
   @Nullable
   protected HashedVersion getCurrentVersion() {
     if(waveletState == null)
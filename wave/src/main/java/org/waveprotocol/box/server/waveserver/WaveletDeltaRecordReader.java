@@ -34,6 +34,17 @@ import org.waveprotocol.wave.model.version.HashedVersion;
  */
 public interface WaveletDeltaRecordReader {
 
+  /**
+   * The parts of the delta records a range read needs. Readers may leave out
+   * the other parts, sparing reading and decoding them.
+   */
+  enum Projection {
+    /** Records with both the applied and the transformed delta. */
+    FULL,
+    /** Records with the transformed delta only, their applied delta is null. */
+    TRANSFORMED
+  }
+
   /** @return the name of the wavelet whose deltas this reader reads */
   WaveletName getWaveletName();
 
@@ -106,6 +117,22 @@ public interface WaveletDeltaRecordReader {
   long getDeltasInRange(long startVersion, long endVersion, Receiver<WaveletDeltaRecord> receiver)
       throws IOException;
 
+  /**
+   * Returns a set of deltas in the provided range of versions, like
+   * {@link #getDeltasInRange(long, long, Receiver)}, reading only the parts of
+   * the records given by the projection. Readers which can't read part of a
+   * record return full records.
+   *
+   * @param startVersion
+   * @param endVersion
+   * @param projection the parts of the records the receiver needs
+   * @param receiver
+   */
+  default long getDeltasInRange(long startVersion, long endVersion, Projection projection,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    return getDeltasInRange(startVersion, endVersion, receiver);
+  }
+
   /**
    * Returns the last delta of the wavelet.
    *
@@ -25,11 +25,17 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.protobuf.ByteString;
+import com.typesafe.config.Config;
 
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
+import org.waveprotocol.box.server.waveserver.AsyncWaveBusSubscriber.OverflowPolicy;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
 import org.waveprotocol.wave.federation.FederationHostBridge;
@@ -44,10 +50,19 @@ import org.waveprotocol.wave.util.logging.Log;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Forwards wave notifications to wave bus subscribers and remote wave servers.
  *
+ * Subscribers are notified synchronously, on the thread committing the deltas,
+ * unless they are configured in {@code core.wave_bus_async_subscribers} by
+ * class name. Those are notified by an {@link AsyncWaveBusSubscriber}, on a
+ * pool of {@code core.wave_bus_dispatch_threads} threads.
+ *
  * Swallows any runtime exception from a wave bus subscriber but not removes that
  * subscriber. The wave server used to do this swallowing but really things are
  * in bad shape if a subscriber throws a runtime exception.
@@ -81,8 +96,16 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
 
   private final ImmutableSet<String> localDomains;
   private final WaveletFederationListener.Factory federationHostFactory;
+  /** The subscribers, wrapped by an {@link AsyncWaveBusSubscriber} if asynchronous. */
   private final CopyOnWriteArraySet<WaveBus.Subscriber> subscribers =
       new CopyOnWriteArraySet<WaveBus.Subscriber>();
+  /** Settings of the asynchronous subscribers, by class simple name. */
+  private final Config asyncSubscribers;
+  /** Settings of the asynchronous subscribers which don't set their own. */
+  private final Config asyncSubscriberDefaults;
+  private final int dispatchThreads;
+  /** Created when the first asynchronous subscriber subscribes. */
+  private ExecutorService[] dispatchExecutors;
 
   /** Maps remote domains to wave server stubs for those domains. */
   private final LoadingCache<String, WaveletFederationListener> federationHosts =
@@ -99,23 +122,86 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
    * @param certificateManager knows what the local domains are
    * @param federationHostFactory manufactures federation host instances for
    *        remote domains
+   * @param config provides the asynchronous subscribers settings
    */
   @Inject
   public WaveletNotificationDispatcher(
       CertificateManager certificateManager,
-      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory) {
+      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory,
+      Config config) {
     this.localDomains = certificateManager.getLocalDomains();
     this.federationHostFactory = federationHostFactory;
+    this.asyncSubscribers = config.getConfig("core.wave_bus_async_subscribers");
+    this.asyncSubscriberDefaults = config.getConfig("core.wave_bus_async_subscriber_defaults");
+    this.dispatchThreads = config.getInt("core.wave_bus_dispatch_threads");
   }
 
   @Override
-  public void subscribe(Subscriber s) {
-    subscribers.add(s);
+  public synchronized void subscribe(Subscriber s) {
+    if (find(s) != null) {
+      return;
+    }
+    String name = s.getClass().getSimpleName();
+    if (asyncSubscribers.hasPath(name)) {
+      Config settings = asyncSubscribers.getConfig(name).withFallback(asyncSubscriberDefaults);
+      int queueSize = settings.getInt("queue_size");
+      OverflowPolicy policy =
+          OverflowPolicy.valueOf(settings.getString("overflow").toUpperCase());
+      LOG.info("Notifying " + name + " asynchronously, queue size " + queueSize + ", overflow "
+          + policy);
+      subscribers.add(new AsyncWaveBusSubscriber(s, queueSize, policy, getDispatchExecutors()));
+    } else {
+      subscribers.add(s);
+    }
   }
 
   @Override
-  public void unsubscribe(Subscriber s) {
-    subscribers.remove(s);
+  public synchronized void unsubscribe(Subscriber s) {
+    Subscriber subscriber = find(s);
+    if (subscriber != null) {
+      subscribers.remove(subscriber);
+    }
+  }
+
+  /** Returns the subscribed subscriber, or its asynchronous wrapper. */
+  private Subscriber find(Subscriber s) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.equals(s) || (subscriber instanceof AsyncWaveBusSubscriber
+          && ((AsyncWaveBusSubscriber) subscriber).getSubscriber().equals(s))) {
+        return subscriber;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the single threaded executors of the asynchronous subscribers,
+   * creating them if needed. They are shut down at server shutdown, once
+   * their queued notifications are delivered.
+   */
+  private ExecutorService[] getDispatchExecutors() {
+    if (dispatchExecutors == null) {
+      ThreadFactory threadFactory = new ThreadFactoryBuilder()
+          .setNameFormat("WaveBusDispatcher-%d").setDaemon(true).build();
+      final ExecutorService[] executors = new ExecutorService[dispatchThreads];
+      for (int i = 0; i < executors.length; i++) {
+        executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+      }
+      new LifeCycle(WaveletNotificationDispatcher.class.getSimpleName(), ShutdownPriority.Waves,
+          new Shutdownable() {
+            @Override
+            public void shutdown() throws Exception {
+              for (ExecutorService executor : executors) {
+                executor.shutdown();
+              }
+              for (ExecutorService executor : executors) {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+              }
+            }
+          }).start();
+      dispatchExecutors = executors;
+    }
+    return dispatchExecutors;
   }
 
   @Override
@@ -50,8 +50,9 @@ interface WaveletState {
   WaveletName getWaveletName();
 
   /**
-   * @return a snapshot copy of the wavelet state. The snapshot is a reference
-   *         the internal state.
+   * @return an immutable snapshot of the current wavelet state, or null if
+   *         the wavelet is empty. It's cheap to get, and callers may keep it
+   *         without copying it.
    */
   ReadableWaveletData getSnapshot();
 
@@ -144,6 +145,13 @@ interface WaveletState {
   /** Flushes persisted delta from memory. */
   void flush(HashedVersion version);
 
+  /**
+   * Estimates the bytes of memory held by the state, its snapshot and the
+   * deltas not yet flushed. Unlike the other methods, this one may be called
+   * concurrently.
+   */
+  long estimateSize();
+
   /**
    * Closes the object. No other methods on the object should be invoked after
    * this class.
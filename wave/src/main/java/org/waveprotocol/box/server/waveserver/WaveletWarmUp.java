@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.typesafe.config.Config;
+
+import org.waveprotocol.box.server.executor.ExecutorAnnotations.WaveletLoadExecutor;
+import org.waveprotocol.box.server.shutdown.LifeCycle;
+import org.waveprotocol.box.server.shutdown.ShutdownPriority;
+import org.waveprotocol.box.server.shutdown.Shutdownable;
+import org.waveprotocol.box.stat.Stat;
+import org.waveprotocol.box.stat.Statistic;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preloads the wavelets which were in memory before the last shutdown, so
+ * the first users after a restart don't wait for them to load.
+ * <p>
+ * On shutdown, the names of the local wavelets in memory are recorded in
+ * {@code core.hot_wavelets_file}, those of the most recently accessed waves
+ * first. On startup they are loaded on the wavelet load executor, at most
+ * {@code core.warm_up_concurrency} at a time. The progress is shown by the
+ * warm-up stats of /statusz.
+ */
+@Singleton
+public class WaveletWarmUp {
+
+  private static final Log LOG = Log.get(WaveletWarmUp.class);
+
+  @Stat(name = "warm-up-wavelets", help = "Number of hot wavelets to preload on startup")
+  private static final AtomicLong wavelets = new AtomicLong();
+
+  @Stat(name = "warm-up-wavelets-loaded", help = "Number of hot wavelets preloaded")
+  private static final AtomicLong loaded = new AtomicLong();
+
+  @Stat(name = "warm-up-wavelets-skipped", help = "Number of hot wavelets not found")
+  private static final AtomicLong skipped = new AtomicLong();
+
+  @Stat(name = "warm-up-wavelets-failed", help = "Number of hot wavelets failed to preload")
+  private static final AtomicLong failed = new AtomicLong();
+
+  static {
+    Statistic.trackClass(WaveletWarmUp.class);
+  }
+
+  private final WaveMap waveMap;
+  private final Executor waveletLoadExecutor;
+  /** Null if the warm-up is disabled. */
+  private final File hotWaveletsFile;
+  private final int maxWavelets;
+  private final int concurrency;
+
+  /** The hot wavelets not yet preloaded. */
+  private Iterator<WaveletName> pending;
+
+  @Inject
+  public WaveletWarmUp(Config config, WaveMap waveMap,
+      @WaveletLoadExecutor Executor waveletLoadExecutor) {
+    this.waveMap = waveMap;
+    this.waveletLoadExecutor = waveletLoadExecutor;
+    String path = config.getString("core.hot_wavelets_file");
+    this.hotWaveletsFile = path.isEmpty() ? null : new File(path);
+    this.maxWavelets = config.getInt("core.warm_up_max_wavelets");
+    this.concurrency = config.getInt("core.warm_up_concurrency");
+  }
+
+  /**
+   * Starts preloading the hot wavelets recorded at the last shutdown, and
+   * registers their recording at the next one. Returns without waiting for
+   * the wavelets to load.
+   */
+  public void start() {
+    if (hotWaveletsFile == null) {
+      return;
+    }
+    new LifeCycle(WaveletWarmUp.class.getSimpleName(), ShutdownPriority.Waves,
+        new Shutdownable() {
+          @Override
+          public void shutdown() throws Exception {
+            record();
+          }
+        }).start();
+
+    List<WaveletName> hotWavelets = read();
+    LOG.info("Preloading " + hotWavelets.size() + " hot wavelets");
+    wavelets.set(hotWavelets.size());
+    synchronized (this) {
+      pending = hotWavelets.iterator();
+    }
+    for (int i = 0; i < concurrency; i++) {
+      loadNext();
+    }
+  }
+
+  /**
+   * Loads the next pending hot wavelet. When it's loaded, loads the next one.
+   */
+  private void loadNext() {
+    final WaveletName waveletName;
+    synchronized (this) {
+      if (!pending.hasNext()) {
+        return;
+      }
+      waveletName = pending.next();
+    }
+    waveletLoadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final LocalWaveletContainer wavelet;
+        try {
+          wavelet = waveMap.getLocalWavelet(waveletName);
+        } catch (WaveletStateException | RuntimeException e) {
+          LOG.warning("Failed to preload wavelet " + waveletName, e);
+          failed.incrementAndGet();
+          loadNext();
+          return;
+        }
+        if (wavelet == null) {
+          skipped.incrementAndGet();
+          loadNext();
+          return;
+        }
+        wavelet.getLoadFuture().addListener(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              // Fails if the wavelet didn't load.
+              wavelet.getLastCommittedVersion();
+              loaded.incrementAndGet();
+            } catch (WaveletStateException e) {
+              LOG.warning("Failed to preload wavelet " + waveletName, e);
+              failed.incrementAndGet();
+            }
+            loadNext();
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    });
+  }
+
+  /**
+   * Reads the hot wavelets file.
+   *
+   * @return the recorded wavelets, or none if there's no file.
+   */
+  private List<WaveletName> read() {
+    List<WaveletName> hotWavelets = Lists.newArrayList();
+    if (!hotWaveletsFile.exists()) {
+      return hotWavelets;
+    }
+    try (BufferedReader reader =
+        Files.newBufferedReader(hotWaveletsFile.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null && hotWavelets.size() < maxWavelets) {
+        try {
+          hotWavelets.add(ModernIdSerialiser.INSTANCE.deserialiseWaveletName(line));
+        } catch (InvalidIdException e) {
+          LOG.warning("Ignoring invalid hot wavelet " + line);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to read hot wavelets from " + hotWaveletsFile, e);
+    }
+    return hotWavelets;
+  }
+
+  /**
+   * Writes the local wavelets in memory to the hot wavelets file.
+   */
+  void record() throws IOException {
+    List<WaveletName> hotWavelets = waveMap.getRecentlyAccessedWavelets(maxWavelets);
+    File tmpFile = new File(hotWaveletsFile.getPath() + ".tmp");
+    try (BufferedWriter writer =
+        Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+      for (WaveletName waveletName : hotWavelets) {
+        writer.write(ModernIdSerialiser.INSTANCE.serialiseWaveletName(waveletName));
+        writer.newLine();
+      }
+    }
+    Files.move(tmpFile.toPath(), hotWaveletsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Recorded " + hotWavelets.size() + " hot wavelets");
+  }
+}
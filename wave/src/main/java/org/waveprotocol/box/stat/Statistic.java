@@ -105,21 +105,20 @@ public class Statistic {
    *
    * @param clazz the class type to track.
    */
-  public static void trackClass(Class<?> clazz) {
-	/*
+  @GwtIncompatible
+  public static synchronized void trackClass(Class<?> clazz) {
     for (Field field : clazz.getDeclaredFields()) {
       Stat stat = field.getAnnotation(Stat.class);
       if (stat != null) {
         trackedStats.add(new FieldEntry(stat, field, null));
       }
     }
-    */
   }
 
   /**
    * @return the collection of tracked stats.
    */
-  public static Collection<Entry> getStats() {
+  public static synchronized Collection<Entry> getStats() {
     return ImmutableList.copyOf(trackedStats);
   }
 }
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.wave.communication.gson;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+
+/**
+ * Streams protos to and from JSON in the format of {@link GsonSerializable},
+ * without going through a wrapper object or a tree of JsonElements.
+ *
+ * @param <P> proto type
+ */
+public interface GsonStreamCodec<P extends MessageLite> {
+
+  /**
+   * Writes a proto as a JSON object.
+   */
+  void write(P proto, JsonWriter out) throws IOException;
+
+  /**
+   * Reads a proto from the next JSON object. Unknown fields are skipped.
+   */
+  P read(JsonReader in) throws IOException;
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.wave.communication.proto;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+
+/**
+ * Envelope for messages sent as binary websocket frames, the binary
+ * counterpart of the JSON envelope of the websocket protocol. Websockets use
+ * it when the client negotiates the {@link #SUBPROTOCOL} subprotocol.
+ * <p>
+ * A frame holds the sequence number as a varint, then the full name of the
+ * message type and the serialized message, both length delimited. Heart beat
+ * and reconnection messages stay as text frames.
+ */
+public final class ProtoMessageFrame {
+
+  /** Websocket subprotocol of binary protobuf frames. */
+  public static final String SUBPROTOCOL = "swellrt-protobuf";
+
+  private final int sequenceNumber;
+  private final String messageType;
+  private final ByteString message;
+
+  private ProtoMessageFrame(int sequenceNumber, String messageType, ByteString message) {
+    this.sequenceNumber = sequenceNumber;
+    this.messageType = messageType;
+    this.message = message;
+  }
+
+  /**
+   * Encodes a message into a frame.
+   */
+  public static byte[] encode(int sequenceNumber, Message message) {
+    String type = message.getDescriptorForType().getFullName();
+    int size = message.getSerializedSize();
+    byte[] frame = new byte[CodedOutputStream.computeInt32SizeNoTag(sequenceNumber)
+        + CodedOutputStream.computeStringSizeNoTag(type)
+        + CodedOutputStream.computeRawVarint32Size(size) + size];
+    CodedOutputStream out = CodedOutputStream.newInstance(frame);
+    try {
+      out.writeInt32NoTag(sequenceNumber);
+      out.writeStringNoTag(type);
+      out.writeRawVarint32(size);
+      message.writeTo(out);
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a byte array threw an IOException", e);
+    }
+    return frame;
+  }
+
+  /**
+   * Decodes a frame. The message itself is parsed by {@link #parse}.
+   *
+   * @throws IOException if the data is not a complete frame
+   */
+  public static ProtoMessageFrame decode(byte[] data, int offset, int length)
+      throws IOException {
+    CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+    int sequenceNumber = in.readInt32();
+    String type = in.readString();
+    ByteString message = in.readBytes();
+    if (!in.isAtEnd()) {
+      throw new InvalidProtocolBufferException("Trailing data after message frame");
+    }
+    return new ProtoMessageFrame(sequenceNumber, type, message);
+  }
+
+  public int getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  /** @return the full name of the message type. */
+  public String getMessageType() {
+    return messageType;
+  }
+
+  /**
+   * Parses the message of this frame.
+   *
+   * @param prototype a message of the type named by {@link #getMessageType()}
+   * @throws InvalidProtocolBufferException if the message is not a valid
+   *         {@code prototype}
+   */
+  @SuppressWarnings("unchecked")
+  public <M extends Message> M parse(M prototype) throws InvalidProtocolBufferException {
+    return (M) prototype.getParserForType().parseFrom(message);
+  }
+}
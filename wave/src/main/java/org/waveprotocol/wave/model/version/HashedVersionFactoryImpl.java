@@ -23,8 +23,10 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * Factory for creating arbitrary hashed versions.
@@ -42,24 +44,41 @@ public class HashedVersionFactoryImpl extends HashedVersionZeroFactoryImpl {
     super(uriCodec);
   }
 
-  private static byte[] calculateHash(byte[] historyHash, byte[] appliedDeltaBytes) {
-    byte[] joined = new byte[appliedDeltaBytes.length + historyHash.length];
-    byte[] result = new byte[hashSizeBits / 8];
-    System.arraycopy(historyHash, 0, joined, 0, historyHash.length);
-    System.arraycopy(appliedDeltaBytes, 0, joined, historyHash.length, appliedDeltaBytes.length);
-    try {
-      historyHash = MessageDigest.getInstance("SHA-256").digest(joined);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
+  /**
+   * Digests are reused, since looking up the provider on every call is
+   * expensive. A digest resets itself once it completes.
+   */
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
     }
-    System.arraycopy(historyHash, 0, result, 0, result.length);
-    return result;
+  };
+
+  private static byte[] calculateHash(byte[] historyHash, ByteBuffer appliedDeltaBytes) {
+    MessageDigest digest = DIGEST.get();
+    digest.update(historyHash);
+    digest.update(appliedDeltaBytes);
+    return Arrays.copyOf(digest.digest(), hashSizeBits / 8);
   }
 
   @Override
   public HashedVersion create(byte[] appliedDeltaBytes,
       HashedVersion hashedVersionAppliedAt, int operationsApplied) {
+    return create(ByteBuffer.wrap(appliedDeltaBytes), hashedVersionAppliedAt, operationsApplied);
+  }
 
+  /**
+   * Same as {@link #create(byte[], HashedVersion, int)}, hashing the applied
+   * delta bytes in place, so that callers holding them in a buffer need not
+   * copy them into an array.
+   */
+  public HashedVersion create(ByteBuffer appliedDeltaBytes,
+      HashedVersion hashedVersionAppliedAt, int operationsApplied) {
     return HashedVersion.of(hashedVersionAppliedAt.getVersion() + operationsApplied,
         calculateHash(hashedVersionAppliedAt.getHistoryHash(), appliedDeltaBytes));
   }
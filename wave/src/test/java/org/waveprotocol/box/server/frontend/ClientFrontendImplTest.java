@@ -25,6 +25,8 @@ import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -38,10 +40,14 @@ import junit.framework.TestCase;
 
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletVersion;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.frontend.ClientFrontend.OpenListener;
@@ -57,6 +63,7 @@ import org.waveprotocol.wave.model.id.IdConstants;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.IdFilters;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -110,6 +117,7 @@ public class ClientFrontendImplTest extends TestCase {
       CoreWaveletOperationSerializer.serialize(DELTA);
   private static final Collection<WaveletVersion> NO_KNOWN_WAVELETS =
       Collections.<WaveletVersion>emptySet();
+  private static final int MAX_RESYNC_DELTAS = 10;
 
   private ClientFrontendImpl clientFrontend;
   private WaveletProvider waveletProvider;
@@ -121,7 +129,8 @@ public class ClientFrontendImplTest extends TestCase {
     when(waveletProvider.getWaveletIds(any(WaveId.class))).thenReturn(ImmutableSet.<WaveletId>of());
 
     WaveletInfo waveletInfo = WaveletInfo.create(HASH_FACTORY, waveletProvider);
-    clientFrontend = new ClientFrontendImpl(waveletProvider, waveletInfo, "example.com");
+    clientFrontend = new ClientFrontendImpl(waveletProvider, waveletInfo, "example.com",
+        MAX_RESYNC_DELTAS);
   }
 
   public void testCannotOpenWavesWhenNotLoggedIn() throws Exception {
@@ -203,6 +212,90 @@ public class ClientFrontendImplTest extends TestCase {
         isNullVersion(), isNullMarker(), anyString());
   }
 
+  public void testKnownWaveletAtCurrentVersionIsResynchronized() throws Exception {
+    provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownWavelet(W1, V1));
+    verify(listener).onReconnect(eq(WN1), eq(V1), eq(V1), eq(V1), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), any(CommittedWaveletSnapshot.class),
+        Matchers.anyList(), any(HashedVersion.class), isNullMarker(), anyString());
+    verifyMarker(listener, WAVE_ID);
+  }
+
+  /**
+   * Tests that a client which submitted a delta, but was not acked before
+   * disconnecting, reconnects at its known version and is told the current
+   * version past the delta, so that it can take the delta back as its ack.
+   */
+  public void testKnownWaveletReceivesMissingDeltas() throws Exception {
+    provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    provideHistory(WN1, V0, V1, DELTA);
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownWavelet(W1, V0));
+    InOrder inOrder = Mockito.inOrder(listener);
+    inOrder.verify(listener).onReconnect(eq(WN1), eq(V0), eq(V1), eq(V1), anyString());
+    inOrder.verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(DELTAS), isNullVersion(),
+        isNullMarker(), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), any(CommittedWaveletSnapshot.class),
+        Matchers.anyList(), any(HashedVersion.class), isNullMarker(), anyString());
+  }
+
+  public void testUnrecognizedKnownVersionReceivesSnapshot() throws Exception {
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    HashedVersion unknown = HashedVersion.of(0L, new byte[] {1, 2, 3});
+    doThrow(new WaveServerException("Unrecognized start version")).when(waveletProvider)
+        .getHistory(eq(WN1), eq(unknown), eq(V1), any(Receiver.class));
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownWavelet(W1, unknown));
+    verify(listener).onUpdate(eq(WN1), eq(snapshot), eq(DeltaSequence.empty()),
+        eq(V1), isNullMarker(), any(String.class));
+  }
+
+  public void testKnownWaveletIsResynchronizedFromNewestKnownVersion() throws Exception {
+    provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    provideHistory(WN1, V0, V1, DELTA);
+
+    OpenListener listener =
+        openWave(IdFilters.ALL_IDS, knownWavelet(W1, V0), knownWavelet(W1, V1));
+    verify(listener).onReconnect(eq(WN1), eq(V1), eq(V1), eq(V1), anyString());
+    verify(listener, never()).onReconnect(eq(WN1), eq(V0), any(HashedVersion.class),
+        any(HashedVersion.class), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), isNullSnapshot(), eq(DELTAS), isNullVersion(),
+        isNullMarker(), anyString());
+  }
+
+  public void testKnownWaveletIsResynchronizedFromNewestRecognizedVersion() throws Exception {
+    provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    provideHistory(WN1, V0, V1, DELTA);
+    HashedVersion unknown = HashedVersion.of(V1.getVersion(), new byte[] {1, 2, 3});
+
+    OpenListener listener =
+        openWave(IdFilters.ALL_IDS, knownWavelet(W1, V0), knownWavelet(W1, unknown));
+    InOrder inOrder = Mockito.inOrder(listener);
+    inOrder.verify(listener).onReconnect(eq(WN1), eq(V0), eq(V1), eq(V1), anyString());
+    inOrder.verify(listener).onUpdate(eq(WN1), isNullSnapshot(), eq(DELTAS), isNullVersion(),
+        isNullMarker(), anyString());
+    verify(listener, never()).onUpdate(eq(WN1), any(CommittedWaveletSnapshot.class),
+        Matchers.anyList(), any(HashedVersion.class), isNullMarker(), anyString());
+  }
+
+  public void testTooManyMissingDeltasReceivesSnapshot() throws Exception {
+    clientFrontend = new ClientFrontendImpl(waveletProvider,
+        WaveletInfo.create(HASH_FACTORY, waveletProvider), "example.com", 0);
+    CommittedWaveletSnapshot snapshot = provideWavelet(WN1);
+    when(waveletProvider.checkAccessPermission(WN1, USER)).thenReturn(true);
+    provideHistory(WN1, V0, V1, DELTA);
+
+    OpenListener listener = openWave(IdFilters.ALL_IDS, knownWavelet(W1, V0));
+    verify(listener).onUpdate(eq(WN1), eq(snapshot), eq(DeltaSequence.empty()),
+        eq(V1), isNullMarker(), any(String.class));
+  }
+
   /**
    * Tests that submit requests are forwarded to the wavelet provider.
    */
@@ -305,6 +398,42 @@ public class ClientFrontendImplTest extends TestCase {
     return openWave(WAVE_ID, filter);
   }
 
+  private ClientFrontend.OpenListener openWave(IdFilter filter,
+      WaveletVersion... knownWavelets) {
+    OpenListener openListener = mock(OpenListener.class);
+    clientFrontend.openRequest(USER, WAVE_ID, filter, Arrays.asList(knownWavelets),
+        openListener);
+    return openListener;
+  }
+
+  private static WaveletVersion knownWavelet(WaveletId waveletId, HashedVersion version) {
+    return WaveletVersion.newBuilder()
+        .setWaveletId(ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletId))
+        .setHashedVersion(CoreWaveletOperationSerializer.serialize(version))
+        .build();
+  }
+
+  /**
+   * Prepares the wavelet provider to provide the history of a wavelet.
+   */
+  private void provideHistory(WaveletName name, HashedVersion start, HashedVersion end,
+      final TransformedWaveletDelta... deltas) throws WaveServerException {
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        Receiver<TransformedWaveletDelta> receiver =
+            (Receiver<TransformedWaveletDelta>) invocation.getArguments()[3];
+        for (TransformedWaveletDelta delta : deltas) {
+          if (!receiver.put(delta)) {
+            break;
+          }
+        }
+        return null;
+      }
+    }).when(waveletProvider).getHistory(eq(name), eq(start), eq(end), any(Receiver.class));
+  }
+
   private ClientFrontend.OpenListener openWave(ParticipantId user, WaveId waveId, IdFilter filter) {
     OpenListener openListener = mock(OpenListener.class);
     clientFrontend.openRequest(user, waveId, filter, NO_KNOWN_WAVELETS, openListener);
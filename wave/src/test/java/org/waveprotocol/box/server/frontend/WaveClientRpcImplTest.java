@@ -167,6 +167,37 @@ public class WaveClientRpcImplTest extends TestCase implements TestingConstants
     assertFalse(controller.failed());
   }
 
+  /**
+   * Tests that a reconnection results in an update with an empty delta at the
+   * connect version, and the current version as resulting version.
+   */
+  public void testOpenReconnect() {
+    final HashedVersion connectVersion = HashedVersion.of(101L, new byte[] {1, 2, 3});
+    final HashedVersion currentVersion = HashedVersion.of(102L, new byte[] {4, 5, 6});
+    ProtocolOpenRequest request = ProtocolOpenRequest.newBuilder()
+        .setParticipantId(USER)
+        .setWaveId(ModernIdSerialiser.INSTANCE.serialiseWaveId(WAVE_ID)).build();
+    counter = 0;
+    rpcImpl.open(controller, request, new RpcCallback<ProtocolWaveletUpdate>() {
+      @Override
+      public void run(ProtocolWaveletUpdate update) {
+        ++counter;
+        assertEquals(WAVELET_NAME, getWaveletName(update.getWaveletName()));
+        assertEquals(1, update.getAppliedDeltaCount());
+        assertEquals(0, update.getAppliedDelta(0).getOperationCount());
+        assertEquals(connectVersion, CoreWaveletOperationSerializer.deserialize(
+            update.getAppliedDelta(0).getHashedVersion()));
+        assertEquals(currentVersion,
+            CoreWaveletOperationSerializer.deserialize(update.getResultingVersion()));
+        assertEquals(BEGIN_VERSION,
+            CoreWaveletOperationSerializer.deserialize(update.getCommitNotice()));
+      }
+    });
+    frontend.doReconnect(WAVELET_NAME, connectVersion, currentVersion, BEGIN_VERSION);
+    assertEquals(1, counter);
+    assertFalse(controller.failed());
+  }
+
   /**
    * Tests that a failed submit results in the proper submit failure response.
    */
@@ -26,12 +26,14 @@ import com.google.protobuf.ByteString;
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.common.ListReceiver;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.util.testing.TestingConstants;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecordReader.Projection;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignature;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
@@ -196,12 +198,35 @@ public abstract class DeltaStoreTestBase extends TestCase {
     }
   }
 
+  public void testGetDeltasInRangeWithTransformedProjection() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletDeltaRecord first = createRecord();
+    WaveletDeltaRecord second =
+        createRecord(first.getResultingVersion(), HashedVersion.of(4, new byte[] {4}));
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(first, second));
+
+    ListReceiver<WaveletDeltaRecord> receiver = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(2, wavelet.getDeltasInRange(0, 4, Projection.TRANSFORMED, receiver));
+    assertEquals(2, receiver.size());
+    assertEquals(first.getAppliedAtVersion(), receiver.get(0).getAppliedAtVersion());
+    assertEquals(first.getTransformedDelta(), receiver.get(0).getTransformedDelta());
+    assertEquals(second.getTransformedDelta(), receiver.get(1).getTransformedDelta());
+    wavelet.close();
+  }
+
   // *** Helpers
 
   protected WaveletDeltaRecord createRecord() {
-    HashedVersion targetVersion = HashedVersion.of(0, new byte[] {3, 2, 1});
-    HashedVersion resultingVersion = HashedVersion.of(2, new byte[] {1, 2, 3});
+    return createRecord(HashedVersion.of(0, new byte[] {3, 2, 1}),
+        HashedVersion.of(2, new byte[] {1, 2, 3}));
+  }
 
+  /**
+   * Creates a record with two operations applied at the given version.
+   */
+  protected WaveletDeltaRecord createRecord(HashedVersion targetVersion,
+      HashedVersion resultingVersion) {
     List<WaveletOperation> ops =
         ImmutableList.of(UTIL.noOp(), UTIL.addParticipant(TestingConstants.OTHER_PARTICIPANT));
     TransformedWaveletDelta transformed = TransformedWaveletDelta.cloneOperations(
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Testcases for the {@link PerUserWaveViewStore}. Implementors of these
+ * testcases are responsible for cleanup.
+ */
+public abstract class PerUserWaveViewStoreTestBase extends TestCase {
+
+  private static final ParticipantId USER1 = ParticipantId.ofUnsafe("user1@example.com");
+  private static final ParticipantId USER2 = ParticipantId.ofUnsafe("user2@example.com");
+
+  private static final WaveletName WAVELET1 = waveletName("w1");
+  private static final WaveletName WAVELET2 = waveletName("w2");
+  private static final WaveletName WAVELET3 = waveletName("w3");
+
+  private static WaveletName waveletName(String waveId) {
+    return WaveletName.of(WaveId.of("example.com", waveId),
+        WaveletId.of("example.com", "conv+root"));
+  }
+
+  /**
+   * Returns a new empty {@link PerUserWaveViewStore}.
+   */
+  protected abstract PerUserWaveViewStore newPerUserWaveViewStore() throws Exception;
+
+  public void testEmptyView() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    assertTrue(store.getWavelets(USER1, 0, 10).isEmpty());
+  }
+
+  public void testWaveletsAreOrderedByLastModifiedTime() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWavelet(USER1, WAVELET1, 1000L);
+    store.putWavelet(USER1, WAVELET2, 3000L);
+    store.putWavelet(USER1, WAVELET3, 2000L);
+    store.putWavelet(USER2, WAVELET1, 1000L);
+
+    assertEquals(ImmutableList.of(WAVELET2, WAVELET3, WAVELET1), store.getWavelets(USER1, 0, 10));
+    assertEquals(ImmutableList.of(WAVELET1), store.getWavelets(USER2, 0, 10));
+
+    store.putWavelet(USER1, WAVELET1, 4000L);
+    assertEquals(ImmutableList.of(WAVELET1, WAVELET2, WAVELET3), store.getWavelets(USER1, 0, 10));
+  }
+
+  public void testPagination() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWavelet(USER1, WAVELET1, 3000L);
+    store.putWavelet(USER1, WAVELET2, 2000L);
+    store.putWavelet(USER1, WAVELET3, 1000L);
+
+    assertEquals(ImmutableList.of(WAVELET1, WAVELET2), store.getWavelets(USER1, 0, 2));
+    assertEquals(ImmutableList.of(WAVELET3), store.getWavelets(USER1, 2, 2));
+    assertTrue(store.getWavelets(USER1, 3, 2).isEmpty());
+  }
+
+  public void testRemoveWavelet() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    store.putWavelet(USER1, WAVELET1, 1000L);
+    store.putWavelet(USER1, WAVELET2, 2000L);
+    store.putWavelet(USER2, WAVELET1, 1000L);
+
+    store.removeWavelet(USER1, WAVELET1);
+    // Removing a wavelet not in the view does nothing.
+    store.removeWavelet(USER1, WAVELET3);
+
+    assertEquals(ImmutableList.of(WAVELET2), store.getWavelets(USER1, 0, 10));
+    assertEquals(ImmutableList.of(WAVELET1), store.getWavelets(USER2, 0, 10));
+  }
+
+  public void testBackfilled() throws Exception {
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    assertFalse(store.isBackfilled());
+    store.setBackfilled();
+    assertTrue(store.isBackfilled());
+  }
+}
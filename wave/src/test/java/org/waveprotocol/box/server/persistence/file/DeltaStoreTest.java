@@ -22,18 +22,28 @@ package org.waveprotocol.box.server.persistence.file;
 import com.google.common.collect.ImmutableList;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.typesafe.config.ConfigFactory;
+import org.waveprotocol.box.common.ListReceiver;
+import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.swell.WaveletContributions;
+import org.waveprotocol.box.server.util.TestDataUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
 
 /**
  * Tests for FileDeltaStore.
@@ -57,7 +67,20 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
   @Override
   protected DeltaStore newDeltaStore() {
     return new FileDeltaStore(ConfigFactory.parseMap (
-        ImmutableMap.of("core.delta_store_directory", path.getAbsolutePath())));
+        ImmutableMap.of("core.delta_store_directory", path.getAbsolutePath(),
+            "core.delta_store_memory_mapped", isMemoryMapped(),
+            "core.delta_store_group_commit_window_ms", groupCommitWindowMillis(),
+            "core.delta_store_group_commit_bytes", 1 << 20)));
+  }
+
+  /** Whether the tested store reads through memory mappings. */
+  protected boolean isMemoryMapped() {
+    return false;
+  }
+
+  /** The group commit window of the tested store, zero to force on every append. */
+  protected long groupCommitWindowMillis() {
+    return 0;
   }
 
   @Override
@@ -102,4 +125,161 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
       toRemove++;
     }
   }
+
+  public void testGetDeltasInRange() throws Exception {
+    DeltaStore store = newDeltaStore();
+    List<WaveletDeltaRecord> written = Lists.newArrayList();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    for (int version = 0; version < 6; version += 2) {
+      written.add(createRecord(HashedVersion.of(version, new byte[] {(byte) version}),
+          HashedVersion.of(version + 2, new byte[] {(byte) (version + 2)})));
+    }
+    wavelet.append(written);
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    ListReceiver<WaveletDeltaRecord> ascending = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(2, wavelet.getDeltasInRange(2, 6, ascending));
+    assertEquals(written.subList(1, 3), ascending);
+
+    ListReceiver<WaveletDeltaRecord> descending = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(3, wavelet.getDeltasInRange(6, 0, descending));
+    assertEquals(Lists.reverse(written), descending);
+    wavelet.close();
+  }
+
+  public void testGetDeltasInRangeFailsWhenReceiverCancels() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(createRecord()));
+
+    try {
+      wavelet.getDeltasInRange(0, 2, new Receiver<WaveletDeltaRecord>() {
+        @Override
+        public boolean put(WaveletDeltaRecord delta) {
+          return false;
+        }
+      });
+      fail("Cancelling the transmission of deltas from file should fail");
+    } catch (IllegalStateException expected) {
+      // Expected.
+    }
+    wavelet.close();
+  }
+
+  // Test the delta store reads deltas correctly when the index is damaged.
+  public void testRebuildsCorruptedIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletDeltaRecord written = createRecord();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(written));
+    wavelet.close();
+
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    file.seek(file.length() - 1);
+    file.write(0x7f);
+    file.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(written, wavelet.getDelta(0));
+    assertEquals(written.getResultingVersion(), wavelet.getEndVersion());
+    wavelet.close();
+  }
+
+  // Test the delta store indexes deltas missing from a truncated index.
+  public void testRepairsTruncatedIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletDeltaRecord first = createRecord();
+    WaveletDeltaRecord second =
+        createRecord(first.getResultingVersion(), HashedVersion.of(4, new byte[] {4}));
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(first));
+    wavelet.close();
+
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    byte[] firstIndex = Files.readAllBytes(indexFile.toPath());
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(second));
+    wavelet.close();
+
+    // As if the server stopped while indexing the second delta: the header still covers the
+    // first one, and the last record is only half written.
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    file.write(firstIndex);
+    file.setLength(file.length() - 4);
+    file.close();
+
+    long tailRepairs = DeltaIndex.tailRepairs.get();
+    long fullRebuilds = DeltaIndex.fullRebuilds.get();
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(tailRepairs + 1, DeltaIndex.tailRepairs.get());
+    assertEquals(fullRebuilds, DeltaIndex.fullRebuilds.get());
+    assertEquals(first, wavelet.getDelta(0));
+    assertEquals(second, wavelet.getDelta(2));
+    assertEquals(second, wavelet.getDeltaByEndVersion(4));
+    wavelet.close();
+  }
+
+  // Test deltas appended asynchronously are readable and survive reopening once durable.
+  public void testAppendAsync() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletDeltaRecord first = createRecord();
+    WaveletDeltaRecord second =
+        createRecord(first.getResultingVersion(), HashedVersion.of(4, new byte[] {4}));
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.appendAsync(ImmutableList.of(first));
+    wavelet.appendAsync(ImmutableList.of(second)).get();
+    assertEquals(second, wavelet.getDelta(2));
+    assertEquals(second.getResultingVersion(), wavelet.getEndVersion());
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(first, wavelet.getDelta(0));
+    assertEquals(second, wavelet.getDeltaByEndVersion(4));
+    wavelet.close();
+  }
+
+  // Test the snapshot is checkpointed beside the deltas and deleted with them.
+  public void testStoresSnapshot() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletData snapshot = TestDataUtil.createSimpleWaveletData();
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(snapshot);
+    DeltasAccess wavelet = store.open(waveletName);
+    assertNull(wavelet.loadSnapshot());
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+
+    wavelet = store.open(waveletName);
+    WaveletData loaded = wavelet.loadSnapshot().getWaveletData();
+    assertEquals(snapshot.getHashedVersion(), loaded.getHashedVersion());
+    assertEquals(snapshot.getDocumentIds(), loaded.getDocumentIds());
+    wavelet.close();
+
+    store.delete(waveletName);
+    assertFalse(FileDeltaCollection.snapshotFile(path.getAbsolutePath(), waveletName).exists());
+  }
+
+  // Test stored contributions are caught up with the deltas appended after them.
+  public void testLoadContributionsForVersion() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletDeltaRecord first = createRecord();
+    WaveletDeltaRecord second =
+        createRecord(first.getResultingVersion(), HashedVersion.of(4, new byte[] {4}));
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertNull(wavelet.loadContributions());
+    wavelet.append(ImmutableList.of(first, second));
+    wavelet.storeContributions(
+        new WaveletContributions(WAVE1_WAVELET1, first.getResultingVersion()));
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(first.getResultingVersion(),
+        wavelet.loadContributions().getWaveletVersion());
+    assertEquals(second.getResultingVersion(),
+        wavelet.loadContributionsForVersion(4).getWaveletVersion());
+    assertNull(wavelet.loadContributionsForVersion(0));
+    wavelet.close();
+  }
 }
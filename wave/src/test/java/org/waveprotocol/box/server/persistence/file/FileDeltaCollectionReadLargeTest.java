@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.Receiver;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares reading a large wavelet from FileDeltaCollection with and without
+ * memory mapped files.
+ */
+public class FileDeltaCollectionReadLargeTest extends TestCase {
+
+  private static final int DELTAS = 100000;
+  private static final int APPEND_BATCH = 1000;
+
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(TestingConstants.PARTICIPANT);
+
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    FileDeltaCollection collection = FileDeltaCollection.open(WAVELET_NAME,
+        path.getAbsolutePath());
+    List<WaveletDeltaRecord> batch = Lists.newArrayList();
+    for (long version = 0; version < DELTAS; version++) {
+      batch.add(createRecord(version));
+      if (batch.size() == APPEND_BATCH) {
+        collection.append(batch);
+        batch.clear();
+      }
+    }
+    collection.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testReadPerformance() throws Exception {
+    // Warm up the page cache and the JIT before measuring either mode.
+    readAll(false);
+    readAll(true);
+
+    long streamMillis = readAll(false);
+    long mappedMillis = readAll(true);
+    System.err.println("Reading " + DELTAS + " deltas: " + streamMillis + "ms with streams, "
+        + mappedMillis + "ms memory mapped");
+  }
+
+  /**
+   * Reads every delta one by one and then as a range.
+   *
+   * @return the elapsed millis.
+   */
+  private long readAll(boolean memoryMapped) throws Exception {
+    long startTime = System.currentTimeMillis();
+    FileDeltaCollection collection = FileDeltaCollection.open(WAVELET_NAME,
+        path.getAbsolutePath(), memoryMapped);
+    for (long version = 0; version < DELTAS; version++) {
+      assertNotNull(collection.getDelta(version));
+    }
+    long count = collection.getDeltasInRange(0, DELTAS, new Receiver<WaveletDeltaRecord>() {
+      @Override
+      public boolean put(WaveletDeltaRecord delta) {
+        return true;
+      }
+    });
+    assertEquals(DELTAS, count);
+    collection.close();
+    return System.currentTimeMillis() - startTime;
+  }
+
+  private static WaveletDeltaRecord createRecord(long version) {
+    HashedVersion appliedAt = HashedVersion.unsigned(version);
+    TransformedWaveletDelta transformed = UTIL.noOpDelta(version);
+    ProtocolSignedDelta signedDelta = ProtocolSignedDelta.newBuilder()
+        .setDelta(ByteStringMessage.serializeMessage(
+            CoreWaveletOperationSerializer.serialize(transformed)).getByteString())
+        .build();
+    ProtocolAppliedWaveletDelta applied = ProtocolAppliedWaveletDelta.newBuilder()
+        .setApplicationTimestamp(transformed.getApplicationTimestamp())
+        .setHashedVersionAppliedAt(CoreWaveletOperationSerializer.serialize(appliedAt))
+        .setSignedOriginalDelta(signedDelta)
+        .setOperationsApplied(1)
+        .build();
+    return new WaveletDeltaRecord(appliedAt, ByteStringMessage.serializeMessage(applied),
+        transformed);
+  }
+}
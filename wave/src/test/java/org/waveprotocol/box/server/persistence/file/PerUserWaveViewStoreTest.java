@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStoreTestBase;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.File;
+
+/**
+ * Testcases for the {@link FilePerUserWaveViewStore}.
+ */
+public class PerUserWaveViewStoreTest extends PerUserWaveViewStoreTestBase {
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected PerUserWaveViewStore newPerUserWaveViewStore() {
+    return newPerUserWaveViewStore(path, 1000);
+  }
+
+  private static PerUserWaveViewStore newPerUserWaveViewStore(File path, int cacheWavelets) {
+    return new FilePerUserWaveViewStore(ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+        "core.per_user_wave_view_store_directory", path.getAbsolutePath(),
+        "core.per_user_wave_view_store_cache_wavelets", cacheWavelets)));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testViewsAreReadBackAfterCompaction() throws Exception {
+    ParticipantId user = ParticipantId.ofUnsafe("user@example.com");
+    WaveletName kept = WaveletName.of(WaveId.of("example.com", "kept"),
+        WaveletId.of("example.com", "conv+root"));
+    WaveletName removed = WaveletName.of(WaveId.of("example.com", "removed"),
+        WaveletId.of("example.com", "conv+root"));
+
+    PerUserWaveViewStore store = newPerUserWaveViewStore();
+    // Enough updates to compact the journal a few times.
+    for (int i = 0; i < 500; i++) {
+      store.putWavelet(user, kept, i);
+    }
+    store.putWavelet(user, removed, 1000L);
+    store.removeWavelet(user, removed);
+
+    assertEquals(ImmutableList.of(kept), newPerUserWaveViewStore().getWavelets(user, 0, 10));
+  }
+
+  public void testFailedWriteDoesNotChangeTheView() throws Exception {
+    ParticipantId user = ParticipantId.ofUnsafe("user@example.com");
+    WaveletName waveletName = WaveletName.of(WaveId.of("example.com", "w+abc"),
+        WaveletId.of("example.com", "conv+root"));
+    // The store directory can't be created where a file is.
+    File notADirectory = new File(path, "file");
+    assertTrue(notADirectory.createNewFile());
+    PerUserWaveViewStore store = newPerUserWaveViewStore(notADirectory, 1000);
+
+    try {
+      store.putWavelet(user, waveletName, 1000L);
+      fail("Expected the write to fail");
+    } catch (PersistenceException expected) {
+    }
+    assertTrue(store.getWavelets(user, 0, 10).isEmpty());
+  }
+
+  public void testEvictedViewsAreReadBack() throws Exception {
+    ParticipantId user1 = ParticipantId.ofUnsafe("user1@example.com");
+    ParticipantId user2 = ParticipantId.ofUnsafe("user2@example.com");
+    WaveletName wavelet1 = WaveletName.of(WaveId.of("example.com", "w1"),
+        WaveletId.of("example.com", "conv+root"));
+    WaveletName wavelet2 = WaveletName.of(WaveId.of("example.com", "w2"),
+        WaveletId.of("example.com", "conv+root"));
+
+    // Only one wavelet fits in memory, each view evicts the other.
+    PerUserWaveViewStore store = newPerUserWaveViewStore(path, 1);
+    store.putWavelet(user1, wavelet1, 1000L);
+    store.putWavelet(user2, wavelet2, 2000L);
+    store.putWavelet(user1, wavelet2, 3000L);
+
+    assertEquals(ImmutableList.of(wavelet2, wavelet1), store.getWavelets(user1, 0, 10));
+    assertEquals(ImmutableList.of(wavelet2), store.getWavelets(user2, 0, 10));
+    store.removeWavelet(user1, wavelet2);
+    assertEquals(ImmutableList.of(wavelet1), store.getWavelets(user1, 0, 10));
+    assertEquals(ImmutableList.of(wavelet1), newPerUserWaveViewStore().getWavelets(user1, 0, 10));
+  }
+
+  public void testBackfilledIsPersisted() throws Exception {
+    newPerUserWaveViewStore().setBackfilled();
+    assertTrue(newPerUserWaveViewStore().isBackfilled());
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.typesafe.config.ConfigFactory;
+
+import org.waveprotocol.box.common.ListReceiver;
+import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.persistence.migration.DeltaMigrator;
+import org.waveprotocol.box.server.util.TestDataUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Tests for SegmentedDeltaStore.
+ */
+public class SegmentedDeltaStoreTest extends DeltaStoreTestBase {
+
+  private File path;
+  private final WaveletName WAVE1_WAVELET1 =
+    WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected DeltaStore newDeltaStore() {
+    return newDeltaStore(1 << 20);
+  }
+
+  private DeltaStore newDeltaStore(long segmentBytes) {
+    return new SegmentedDeltaStore(ConfigFactory.parseMap(
+        ImmutableMap.of("core.delta_store_directory", path.getAbsolutePath(),
+            "core.delta_store_memory_mapped", false,
+            "core.delta_store_group_commit_window_ms", 0,
+            "core.delta_store_segment_bytes", segmentBytes)));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+
+    // This assertion may fail if a test hasn't closed all streams.
+    assertFalse(path.exists());
+  }
+
+  private List<WaveletDeltaRecord> createRecords(int count) {
+    List<WaveletDeltaRecord> records = Lists.newArrayList();
+    for (int version = 0; version < 2 * count; version += 2) {
+      records.add(createRecord(HashedVersion.of(version, new byte[] {(byte) version}),
+          HashedVersion.of(version + 2, new byte[] {(byte) (version + 2)})));
+    }
+    return records;
+  }
+
+  // Test deltas are read back across sealed segments and the log segment.
+  public void testReadsAcrossSegments() throws Exception {
+    // Every append seals the log segment.
+    DeltaStore store = newDeltaStore(1);
+    List<WaveletDeltaRecord> written = createRecords(5);
+    SegmentedDeltaCollection wavelet = (SegmentedDeltaCollection) store.open(WAVE1_WAVELET1);
+    for (WaveletDeltaRecord record : written.subList(0, 4)) {
+      wavelet.append(ImmutableList.of(record));
+    }
+    wavelet.close();
+
+    wavelet = (SegmentedDeltaCollection) store.open(WAVE1_WAVELET1);
+    assertEquals(4, wavelet.getSealedSegmentCount());
+    assertEquals(written.get(3).getResultingVersion(), wavelet.getEndVersion());
+    wavelet.append(ImmutableList.of(written.get(4)));
+    assertEquals(5, wavelet.getSealedSegmentCount());
+
+    for (WaveletDeltaRecord record : written) {
+      long version = record.getAppliedAtVersion().getVersion();
+      assertEquals(record, wavelet.getDelta(version));
+      assertEquals(record, wavelet.getDeltaByEndVersion(version + 2));
+      assertNull(wavelet.getDelta(version + 1));
+    }
+
+    ListReceiver<WaveletDeltaRecord> ascending = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(5, wavelet.getAllDeltas(ascending));
+    assertEquals(written, ascending);
+
+    ListReceiver<WaveletDeltaRecord> descending = new ListReceiver<WaveletDeltaRecord>();
+    assertEquals(3, wavelet.getDeltasInRange(8, 2, descending));
+    assertEquals(ImmutableList.of(written.get(3), written.get(2), written.get(1)), descending);
+    wavelet.close();
+  }
+
+  // Test the store strips a partially written record from the log segment.
+  public void testRecoverFromTruncatedLog() throws Exception {
+    DeltaStore store = newDeltaStore();
+    List<WaveletDeltaRecord> written = createRecords(2);
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(written.subList(0, 1));
+    wavelet.append(written.subList(1, 2));
+    wavelet.close();
+
+    File logFile = new File(SegmentedDeltaCollection.segmentsDirectory(
+        path.getAbsolutePath(), WAVE1_WAVELET1), String.format("%020d.log", 0));
+    RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+    file.setLength(file.length() - 1);
+    file.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(written.get(0), wavelet.getDelta(0));
+    assertNull(wavelet.getDelta(2));
+    assertEquals(written.get(0).getResultingVersion(), wavelet.getEndVersion());
+
+    wavelet.append(written.subList(1, 2));
+    assertEquals(written.get(1), wavelet.getDelta(2));
+    wavelet.close();
+  }
+
+  // Test the latest snapshot is stored beside the segments.
+  public void testStoresSnapshot() throws Exception {
+    DeltaStore store = newDeltaStore();
+    WaveletData snapshot = TestDataUtil.createSimpleWaveletData();
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(snapshot);
+    DeltasAccess wavelet = store.open(waveletName);
+    assertNull(wavelet.loadSnapshot());
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+
+    wavelet = store.open(waveletName);
+    WaveletData loaded = wavelet.loadSnapshot().getWaveletData();
+    assertEquals(snapshot.getHashedVersion(), loaded.getHashedVersion());
+    assertEquals(snapshot.getDocumentIds(), loaded.getDocumentIds());
+    wavelet.close();
+  }
+
+  // Test wavelets are migrated from the file store.
+  public void testMigratesFromFileStore() throws Exception {
+    DeltaStore fileStore = new FileDeltaStore(ConfigFactory.parseMap(
+        ImmutableMap.of("core.delta_store_directory", path.getAbsolutePath(),
+            "core.delta_store_memory_mapped", false,
+            "core.delta_store_group_commit_window_ms", 0)));
+    List<WaveletDeltaRecord> written = createRecords(3);
+    DeltasAccess wavelet = fileStore.open(WAVE1_WAVELET1);
+    wavelet.append(written);
+    wavelet.close();
+
+    DeltaStore store = newDeltaStore(1);
+    assertTrue(store.lookup(WAVE1_WAVELET1.waveId).isEmpty());
+    new DeltaMigrator(fileStore, store).run();
+
+    assertEquals(ImmutableList.of(WAVE1_WAVELET1.waveletId),
+        store.lookup(WAVE1_WAVELET1.waveId).asList());
+    wavelet = store.open(WAVE1_WAVELET1);
+    ListReceiver<WaveletDeltaRecord> migrated = new ListReceiver<WaveletDeltaRecord>();
+    wavelet.getAllDeltas(migrated);
+    assertEquals(written, migrated);
+    wavelet.close();
+  }
+}
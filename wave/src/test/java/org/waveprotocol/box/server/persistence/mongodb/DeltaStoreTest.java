@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mongodb.BasicDBObject;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.typesafe.config.ConfigFactory;
+
+import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.util.TestDataUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A wrapper around DeltaStoreTestBase which tests the mongo-based delta store.
+ */
+public class DeltaStoreTest extends DeltaStoreTestBase {
+  private static final String TEST_DATABASE = "DeltaStoreTest";
+
+  private final MongoDatabase database;
+
+  /**
+   * Initializes the MongoDB version of a {@link DeltaStoreTestBase}.
+   */
+  public DeltaStoreTest() throws Exception {
+    MongoDbProvider mongoDbProvider = new MongoDbProvider("127.0.0.1", "27017", "wiab_test");
+    this.database = mongoDbProvider.getDatabaseForName(TEST_DATABASE);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    database.drop();
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    database.drop();
+  }
+
+  @Override
+  protected DeltaStore newDeltaStore() {
+    return MongoDbDeltaStore.create(database, ConfigFactory.parseMap(
+        ImmutableMap.<String, Object>builder()
+            .put("core.mongodb_delta_read_batch_size", 100)
+            .put("core.mongodb_delta_write_batch_size", 1000)
+            .put("core.mongodb_delta_writes_in_flight", 4)
+            .put("core.mongodb_snapshots_retained", 1)
+            .put("core.mongodb_snapshots_sparse_interval", 0)
+            .put("core.mongodb_snapshots_delta_encoded", false)
+            .build()));
+  }
+
+  // Test appends of many wavelets in flight together are all written in order.
+  public void testConcurrentAppendAsync() throws Exception {
+    DeltaStore store = newDeltaStore();
+    List<DeltasAccess> wavelets = Lists.newArrayList();
+    List<ListenableFuture<Void>> futures = Lists.newArrayList();
+    WaveletDeltaRecord first = createRecord();
+    WaveletDeltaRecord second =
+        createRecord(first.getResultingVersion(), HashedVersion.of(4, new byte[] {4}));
+    for (int i = 0; i < 50; i++) {
+      DeltasAccess wavelet = store.open(WaveletName.of(WaveId.of("example.com", "wave" + i),
+          WaveletId.of("example.com", "wavelet")));
+      futures.add(wavelet.appendAsync(ImmutableList.of(first)));
+      futures.add(wavelet.appendAsync(ImmutableList.of(second)));
+      wavelets.add(wavelet);
+    }
+    Futures.allAsList(futures).get();
+
+    for (DeltasAccess wavelet : wavelets) {
+      assertEquals(first, wavelet.getDelta(0));
+      assertEquals(second, wavelet.getDelta(2));
+      assertEquals(second.getResultingVersion(), wavelet.getEndVersion());
+      wavelet.close();
+    }
+  }
+
+  // Test only the latest snapshots are retained after each store.
+  public void testSnapshotsRetained() throws Exception {
+    MongoCollection<BasicDBObject> collection = database.getCollection(
+        MongoDBSnapshotStore.SNAPSHOT_COLLECTION, BasicDBObject.class);
+    MongoDBSnapshotStore store = new MongoDBSnapshotStore(collection, 2, 0, false);
+    WaveletData wavelet = TestDataUtil.createSimpleWaveletData();
+    for (long version = 1; version <= 5; version++) {
+      wavelet.setHashedVersion(HashedVersion.unsigned(version));
+      store.store(wavelet);
+    }
+    assertEquals(2, collection.count());
+
+    WaveletData loaded = store.load(WaveletDataUtil.waveletNameOf(wavelet)).getWaveletData();
+    assertEquals(HashedVersion.unsigned(5), loaded.getHashedVersion());
+  }
+
+  // Test a delta-encoded snapshot is loaded with the documents of its base.
+  public void testDeltaEncodedSnapshot() throws Exception {
+    MongoCollection<BasicDBObject> collection = database.getCollection(
+        MongoDBSnapshotStore.SNAPSHOT_COLLECTION, BasicDBObject.class);
+    MongoDBSnapshotStore store = new MongoDBSnapshotStore(collection, 1, 0, true);
+    WaveletData wavelet = TestDataUtil.createSimpleWaveletData();
+    ParticipantId author = wavelet.getCreator();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("Some long text. ");
+    }
+    wavelet.createDocument("b+long", author, Collections.<ParticipantId> emptySet(),
+        new DocInitializationBuilder().characters(text.toString()).build(), 0, 0);
+    store.store(wavelet);
+
+    wavelet.setHashedVersion(HashedVersion.unsigned(5));
+    wavelet.createDocument("b+new", author, Collections.<ParticipantId> emptySet(),
+        new DocInitializationBuilder().characters("New").build(), 0, 5);
+    store.store(wavelet);
+
+    // The base is kept for the diff.
+    assertEquals(2, collection.count());
+    assertEquals(1, collection.count(
+        new BasicDBObject(MongoDBSnapshotStore.BASE_VERSION_FIELD, 0L)));
+
+    WaveletData loaded = store.load(WaveletDataUtil.waveletNameOf(wavelet)).getWaveletData();
+    assertEquals(HashedVersion.unsigned(5), loaded.getHashedVersion());
+    assertEquals(wavelet.getDocumentIds(), loaded.getDocumentIds());
+    TestDataUtil.checkSerializedWavelet(wavelet, loaded);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mongodb.BasicDBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests for {@link MongoDbDeltaWriter}.
+ */
+public class MongoDbDeltaWriterTest extends TestCase {
+  private static final WaveletName WAVELET_1 =
+      WaveletName.of(WaveId.of("example.com", "w+1"), WaveletId.of("example.com", "conv+root"));
+  private static final WaveletName WAVELET_2 =
+      WaveletName.of(WaveId.of("example.com", "w+2"), WaveletId.of("example.com", "conv+root"));
+
+  @Mock private MongoCollection<BasicDBObject> collection;
+
+  private final CountDownLatch insertStarted = new CountDownLatch(1);
+  private final CountDownLatch insertReleased = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(collection.withWriteConcern(any(WriteConcern.class))).thenReturn(collection);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        insertStarted.countDown();
+        insertReleased.await();
+        return null;
+      }
+    }).when(collection).insertMany(anyListOf(BasicDBObject.class), any(InsertManyOptions.class));
+  }
+
+  public void testAppendsDuringShutdownAreRejected() throws Exception {
+    final MongoDbDeltaWriter writer = new MongoDbDeltaWriter(collection, 10, 1);
+    ListenableFuture<Void> inFlight =
+        writer.write(WAVELET_1, ImmutableList.of(new BasicDBObject("delta", 1)));
+    insertStarted.await();
+
+    Thread shutdown = new Thread() {
+      @Override
+      public void run() {
+        try {
+          writer.shutdown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    shutdown.start();
+    // Shutdown is waiting for the write in flight.
+    while (shutdown.getState() != Thread.State.TIMED_WAITING) {
+      Thread.yield();
+    }
+
+    ListenableFuture<Void> rejected =
+        writer.write(WAVELET_2, ImmutableList.of(new BasicDBObject("delta", 2)));
+    assertTrue(rejected.isDone());
+    try {
+      rejected.get();
+      fail("Appends during shutdown should fail");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof PersistenceException);
+    }
+
+    insertReleased.countDown();
+    shutdown.join();
+    inFlight.get();
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.mongodb;
+
+import com.mongodb.client.MongoDatabase;
+
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStoreTestBase;
+
+/**
+ * Testcases for the {@link MongoDbPerUserWaveViewStore}.
+ */
+public class PerUserWaveViewStoreTest extends PerUserWaveViewStoreTestBase {
+  private static final String TEST_DATABASE = "PerUserWaveViewTest";
+
+  private final MongoDatabase database;
+
+  public PerUserWaveViewStoreTest() throws Exception {
+    MongoDbProvider mongoDbProvider = new MongoDbProvider("127.0.0.1", "27017", "wiab_test");
+    this.database = mongoDbProvider.getDatabaseForName(TEST_DATABASE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    database.drop();
+  }
+
+  @Override
+  protected PerUserWaveViewStore newPerUserWaveViewStore() {
+    database.drop();
+    return MongoDbPerUserWaveViewStore.create(database);
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.robots.passive;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.account.HumanAccountDataImpl;
+import org.waveprotocol.box.server.account.RobotAccountData;
+import org.waveprotocol.box.server.account.RobotAccountDataImpl;
+import org.waveprotocol.box.server.persistence.AccountStore;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+/**
+ * Unit tests for {@link RobotRegistry}.
+ */
+public class RobotRegistryTest extends TestCase {
+
+  private static final ParticipantId HUMAN = ParticipantId.ofUnsafe("human@example.com");
+  private static final ParticipantId ROBOT = ParticipantId.ofUnsafe("robot@example.com");
+  private static final RobotAccountData ROBOT_ACCOUNT =
+      new RobotAccountDataImpl(ROBOT, "http://example.com/robot", "secret", null, true);
+
+  private AccountStore accountStore;
+  private RobotRegistry registry;
+
+  @Override
+  protected void setUp() throws Exception {
+    accountStore = mock(AccountStore.class);
+    when(accountStore.getAccount(HUMAN)).thenReturn(new HumanAccountDataImpl(HUMAN));
+    registry = new RobotRegistry(accountStore, mock(RobotRegistrar.class));
+  }
+
+  public void testNonRobotIsReadOnce() throws Exception {
+    assertNull(registry.getVerifiedRobot(HUMAN));
+    assertNull(registry.getVerifiedRobot(HUMAN));
+
+    verify(accountStore, times(1)).getAccount(HUMAN);
+  }
+
+  public void testVerifiedRobotIsReadOnce() throws Exception {
+    when(accountStore.getAccount(ROBOT)).thenReturn(ROBOT_ACCOUNT);
+
+    assertEquals(ROBOT_ACCOUNT, registry.getVerifiedRobot(ROBOT));
+    assertEquals(ROBOT_ACCOUNT, registry.getVerifiedRobot(ROBOT));
+
+    verify(accountStore, times(1)).getAccount(ROBOT);
+  }
+
+  public void testUnverifiedRobotIsNotReturned() throws Exception {
+    when(accountStore.getAccount(ROBOT)).thenReturn(
+        new RobotAccountDataImpl(ROBOT, "http://example.com/robot", "secret", null, false));
+
+    assertNull(registry.getVerifiedRobot(ROBOT));
+  }
+
+  public void testRegistrationRefreshesRegistry() throws Exception {
+    assertNull(registry.getVerifiedRobot(ROBOT));
+
+    registry.onRegistrationSuccess(ROBOT_ACCOUNT);
+    assertEquals(ROBOT_ACCOUNT, registry.getVerifiedRobot(ROBOT));
+
+    registry.onUnregistrationSuccess(ROBOT_ACCOUNT);
+    assertNull(registry.getVerifiedRobot(ROBOT));
+    verify(accountStore, times(2)).getAccount(ROBOT);
+  }
+}
@@ -34,6 +34,7 @@ import junit.framework.TestCase;
 import org.waveprotocol.box.server.account.RobotAccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.robots.operations.NotifyOperationService;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.wave.testing.DeferredExecutor;
@@ -67,7 +68,8 @@ public class RobotsGatewayTest extends TestCase {
     notifyOpService = mock(NotifyOperationService.class);
 
     gateway =
-        new RobotsGateway(waveletProvider, robotConnector, accountStore, serializer,
+        new RobotsGateway(waveletProvider, robotConnector, accountStore,
+            new RobotRegistry(accountStore, mock(RobotRegistrar.class)), serializer,
             converterManager, executor, conversationUtil, notifyOpService);
   }
 
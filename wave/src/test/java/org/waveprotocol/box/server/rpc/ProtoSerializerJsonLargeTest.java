@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.Message;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolSubmitRequest;
+
+import java.io.StringReader;
+
+/**
+ * Compares serializing and parsing wave protocol messages through JSON trees
+ * and through the generated stream codecs.
+ */
+public class ProtoSerializerJsonLargeTest extends TestCase {
+
+  private static final int WARMUP_REPS = 20000;
+  private static final int REPS = 100000;
+
+  private final ProtoSerializer serializer = new ProtoSerializer();
+  private final JsonParser parser = new JsonParser();
+
+  public void testWaveletUpdatePerformance() throws Exception {
+    compare(ProtoSerializerTest.createUpdate());
+  }
+
+  public void testSubmitRequestPerformance() throws Exception {
+    compare(ProtocolSubmitRequest.newBuilder()
+        .setWaveletName("example.com/w+abc123/example.com/conv+root")
+        .setDelta(ProtoSerializerTest.createDelta())
+        .setChannelId("ch1")
+        .build());
+  }
+
+  private void compare(Message message) throws Exception {
+    String type = message.getDescriptorForType().getName();
+    String json = serializer.toJsonString(message);
+
+    // Warm up the JIT for both paths before measuring either.
+    writeTree(message, WARMUP_REPS);
+    writeStream(message, WARMUP_REPS);
+    readTree(json, type, WARMUP_REPS);
+    readStream(json, type, WARMUP_REPS);
+
+    long treeWrite = writeTree(message, REPS);
+    long streamWrite = writeStream(message, REPS);
+    long treeRead = readTree(json, type, REPS);
+    long streamRead = readStream(json, type, REPS);
+    System.err.println(type + " (" + json.length() + " chars) x " + REPS + ": write "
+        + treeWrite + "ms tree, " + streamWrite + "ms streamed; read "
+        + treeRead + "ms tree, " + streamRead + "ms streamed");
+  }
+
+  /** @return the elapsed millis. */
+  private long writeTree(Message message, int reps) throws Exception {
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < reps; i++) {
+      assertNotNull(serializer.toJson(message).toString());
+    }
+    return System.currentTimeMillis() - startTime;
+  }
+
+  /** @return the elapsed millis. */
+  private long writeStream(Message message, int reps) throws Exception {
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < reps; i++) {
+      assertNotNull(serializer.toJsonString(message));
+    }
+    return System.currentTimeMillis() - startTime;
+  }
+
+  /** @return the elapsed millis. */
+  private long readTree(String json, String type, int reps) throws Exception {
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < reps; i++) {
+      assertNotNull(serializer.fromJson(parser.parse(json), type));
+    }
+    return System.currentTimeMillis() - startTime;
+  }
+
+  /** @return the elapsed millis. */
+  private long readStream(String json, String type, int reps) throws Exception {
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < reps; i++) {
+      assertNotNull(serializer.readJson(new JsonReader(new StringReader(json)), type));
+    }
+    return System.currentTimeMillis() - startTime;
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.Message;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolSubmitRequest;
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
+import org.waveprotocol.box.server.util.TestDataUtil;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMapBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ProtoSerializer}, checking that streamed JSON matches the
+ * JSON of the tree based path.
+ */
+public class ProtoSerializerTest extends TestCase {
+  private static final String WAVELET_NAME = "example.com/w+abc123/example.com/conv+root";
+  private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("sam@example.com");
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(AUTHOR);
+
+  private ProtoSerializer serializer;
+
+  @Override
+  protected void setUp() throws Exception {
+    serializer = new ProtoSerializer();
+  }
+
+  public void testStreamedUpdateMatchesTree() throws Exception {
+    checkStreaming(createUpdate());
+  }
+
+  public void testStreamedSnapshotUpdateMatchesTree() throws Exception {
+    WaveletData wavelet = TestDataUtil.createSimpleWaveletData();
+    HashedVersion version = wavelet.getHashedVersion();
+    checkStreaming(ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .setSnapshot(SnapshotSerializer.serializeWavelet(wavelet, version))
+        .setResultingVersion(CoreWaveletOperationSerializer.serialize(version))
+        .setCommitNotice(CoreWaveletOperationSerializer.serialize(version))
+        .setMarker(false)
+        .setChannelId("ch1")
+        .build());
+  }
+
+  public void testStreamedSubmitRequestMatchesTree() throws Exception {
+    checkStreaming(ProtocolSubmitRequest.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .setDelta(createDelta())
+        .setChannelId("ch1")
+        .build());
+  }
+
+  public void testStreamedStringsAreEscaped() throws Exception {
+    checkStreaming(ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("\"quoted\" \\ <html> \u00e9 \u2028")
+        .setChannelId("ch1")
+        .build());
+  }
+
+  public void testReadSkipsUnknownFieldsAndNulls() throws Exception {
+    String json = "{\"1\":\"" + WAVELET_NAME + "\",\"99\":{\"1\":[1,2]},\"7\":null}";
+    Message message = serializer.readJson(new JsonReader(new StringReader(json)),
+        "ProtocolWaveletUpdate");
+    assertEquals(ProtocolWaveletUpdate.newBuilder().setWaveletName(WAVELET_NAME).build(),
+        message);
+  }
+
+  public void testReadMissingRequiredFieldFails() throws Exception {
+    try {
+      serializer.readJson(new JsonReader(new StringReader("{\"7\":\"ch1\"}")),
+          "ProtocolWaveletUpdate");
+      fail("Expected a SerializationException");
+    } catch (ProtoSerializer.SerializationException expected) {
+    }
+  }
+
+  private void checkStreaming(Message message) throws Exception {
+    String streamed = serializer.toJsonString(message);
+    assertEquals(serializer.toJson(message).toString(), streamed);
+
+    Message read = serializer.readJson(new JsonReader(new StringReader(streamed)),
+        message.getDescriptorForType().getName());
+    assertEquals(message, read);
+    assertEquals(message, serializer.fromJson(new JsonParser().parse(streamed),
+        message.getClass()));
+  }
+
+  static ProtocolWaveletUpdate createUpdate() {
+    ProtocolWaveletDelta delta = createDelta();
+    return ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .addAppliedDelta(delta)
+        .addAppliedDelta(CoreWaveletOperationSerializer.serialize(
+            UTIL.delta(11, UTIL.addParticipant(ParticipantId.ofUnsafe("bob@example.com")))))
+        .setResultingVersion(CoreWaveletOperationSerializer.serialize(
+            HashedVersion.of(12, new byte[] {1, 2, 3, -4})))
+        .setCommitNotice(CoreWaveletOperationSerializer.serialize(HashedVersion.unsigned(10)))
+        .setChannelId("ch1")
+        .build();
+  }
+
+  static ProtocolWaveletDelta createDelta() {
+    WaveletOperationContext context = new WaveletOperationContext(AUTHOR, 1234567890L, 1);
+    WaveletOperation op = new WaveletBlipOperation("b+abc123", new BlipContentOperation(context,
+        new DocOpBuilder()
+            .annotationBoundary(new AnnotationBoundaryMapBuilder().change("style", null, "bold")
+                .build())
+            .elementStart("line", new AttributesImpl("t", "h1"))
+            .elementEnd()
+            .characters("Hello")
+            .annotationBoundary(new AnnotationBoundaryMapBuilder().end("style").build())
+            .retain(3)
+            .build()));
+    TransformedWaveletDelta delta = TransformedWaveletDelta.cloneOperations(AUTHOR,
+        HashedVersion.of(10, new byte[] {7, 7, -1}), 1234567890L, Arrays.asList(op));
+    return CoreWaveletOperationSerializer.serialize(delta);
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.crypto.TimeSource;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Tests for {@link ResendBuffer}.
+ */
+public class ResendBufferTest extends TestCase {
+
+  private static class FakeTimeSource implements TimeSource {
+    long now = 0;
+
+    @Override
+    public Date now() {
+      return new Date(now);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  private FakeTimeSource timeSource;
+
+  @Override
+  protected void setUp() throws Exception {
+    timeSource = new FakeTimeSource();
+  }
+
+  public void testAcknowledgedFramesAreRemoved() {
+    ResendBuffer buffer = new ResendBuffer(0, 0, timeSource);
+    buffer.add("a");
+    buffer.add(new byte[] {1, 2, 3});
+    buffer.add("bc");
+    assertEquals(2 + 3 + 4, buffer.getBytes());
+
+    buffer.acknowledge(2);
+    assertEquals(Arrays.<Object> asList("bc"), buffer.getFrames());
+    assertEquals(4, buffer.getBytes());
+    assertFalse(buffer.isWindowLost());
+  }
+
+  public void testAcknowledgingMoreThanBufferedEmptiesIt() {
+    ResendBuffer buffer = new ResendBuffer(0, 0, timeSource);
+    buffer.add("a");
+    buffer.acknowledge(5);
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.getBytes());
+  }
+
+  public void testByteBudgetDropsOldestFrames() {
+    ResendBuffer buffer = new ResendBuffer(10, 0, timeSource);
+    buffer.add("abc");
+    buffer.add("def");
+    assertEquals(Arrays.<Object> asList("def"), buffer.getFrames());
+    assertEquals(6, buffer.getBytes());
+    assertTrue(buffer.isWindowLost());
+
+    // The client did get the dropped frame after all.
+    buffer.acknowledge(1);
+    assertEquals(Arrays.<Object> asList("def"), buffer.getFrames());
+    assertFalse(buffer.isWindowLost());
+  }
+
+  public void testNewestFrameIsKeptOverBudget() {
+    ResendBuffer buffer = new ResendBuffer(4, 0, timeSource);
+    buffer.add(new byte[10]);
+    assertEquals(1, buffer.size());
+    assertFalse(buffer.isWindowLost());
+  }
+
+  public void testOldFramesExpire() {
+    ResendBuffer buffer = new ResendBuffer(0, 1000, timeSource);
+    buffer.add("a");
+    timeSource.now = 500;
+    buffer.add("b");
+    assertFalse(buffer.isWindowLost());
+
+    timeSource.now = 1200;
+    assertTrue(buffer.isWindowLost());
+    assertEquals(Arrays.<Object> asList("b"), buffer.getFrames());
+  }
+
+  public void testClearResetsLostWindow() {
+    ResendBuffer buffer = new ResendBuffer(2, 0, timeSource);
+    buffer.add("a");
+    buffer.add("b");
+    assertTrue(buffer.isWindowLost());
+
+    buffer.clear();
+    assertFalse(buffer.isWindowLost());
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.getBytes());
+  }
+}
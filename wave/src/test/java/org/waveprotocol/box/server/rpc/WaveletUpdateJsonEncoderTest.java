@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.gson.JsonParser;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+/**
+ * Tests for {@link WaveletUpdateJsonEncoder}.
+ */
+public class WaveletUpdateJsonEncoderTest extends TestCase {
+  private static final String WAVELET_NAME = "example.com/w+abc/example.com/conv+root";
+
+  private ProtoSerializer serializer;
+
+  @Override
+  protected void setUp() throws Exception {
+    serializer = new ProtoSerializer();
+  }
+
+  public void testEncodesEveryUpdateField() {
+    for (FieldDescriptor field : ProtocolWaveletUpdate.getDescriptor().getFields()) {
+      assertTrue("field " + field.getName() + " isn't encoded",
+          WaveletUpdateJsonEncoder.ENCODED_FIELDS.contains(field.getNumber()));
+    }
+    WaveletUpdateJsonEncoder.checkEncodesAllFields(ProtocolWaveletUpdate.getDescriptor());
+  }
+
+  public void testFieldNotEncodedFails() {
+    try {
+      // A message with more fields than the update.
+      WaveletUpdateJsonEncoder.checkEncodesAllFields(
+          ProtocolDocumentOperation.Component.getDescriptor());
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // ok
+    }
+  }
+
+  public void testUpdateWithoutDeltasRoundTrips() throws Exception {
+    ProtocolWaveletUpdate update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .setMarker(true)
+        .setChannelId("ch1")
+        .build();
+    assertRoundTrips(update);
+  }
+
+  public void testUpdateWithDeltasRoundTrips() throws Exception {
+    ProtocolWaveletUpdate update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .addAppliedDelta(delta(0, "a@example.com"))
+        .addAppliedDelta(delta(1, "b@example.com"))
+        .setResultingVersion(CoreWaveletOperationSerializer.serialize(
+            HashedVersion.unsigned(2)))
+        .setChannelId("ch1")
+        .build();
+    assertRoundTrips(update);
+  }
+
+  public void testUpdateWithDeltasMatchesSerializer() throws Exception {
+    ProtocolWaveletUpdate update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .addAppliedDelta(delta(0, "a@example.com"))
+        .addAppliedDelta(delta(1, "b@example.com"))
+        .setCommitNotice(CoreWaveletOperationSerializer.serialize(HashedVersion.unsigned(1)))
+        .setResultingVersion(CoreWaveletOperationSerializer.serialize(
+            HashedVersion.unsigned(2)))
+        .setMarker(false)
+        .setChannelId("ch1")
+        .build();
+    assertEquals(serializer.toJsonString(update),
+        WaveletUpdateJsonEncoder.encode(serializer, update));
+  }
+
+  public void testDeltaSharedBetweenChannelsEncodesIdentically() throws Exception {
+    ProtocolWaveletDelta delta = delta(0, "a@example.com");
+    String first = WaveletUpdateJsonEncoder.encode(serializer, updateFor("ch1", delta));
+    String second =
+        WaveletUpdateJsonEncoder.encode(new ProtoSerializer(), updateFor("ch2", delta));
+
+    String deltaJson = serializer.toJson(delta).toString();
+    assertTrue(first.contains(deltaJson));
+    assertTrue(second.contains(deltaJson));
+    assertEquals(first.replace("ch1", "ch2"), second);
+  }
+
+  private void assertRoundTrips(ProtocolWaveletUpdate update) throws Exception {
+    String json = WaveletUpdateJsonEncoder.encode(serializer, update);
+    assertEquals(update,
+        serializer.fromJson(new JsonParser().parse(json), ProtocolWaveletUpdate.class));
+  }
+
+  private static ProtocolWaveletUpdate updateFor(String channelId, ProtocolWaveletDelta delta) {
+    return ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET_NAME)
+        .addAppliedDelta(delta)
+        .setChannelId(channelId)
+        .build();
+  }
+
+  private static ProtocolWaveletDelta delta(long version, String participant) {
+    return ProtocolWaveletDelta.newBuilder()
+        .setHashedVersion(CoreWaveletOperationSerializer.serialize(
+            HashedVersion.unsigned(version)))
+        .setAuthor("author@example.com")
+        .addOperation(ProtocolWaveletOperation.newBuilder().setAddParticipant(participant))
+        .build();
+  }
+}
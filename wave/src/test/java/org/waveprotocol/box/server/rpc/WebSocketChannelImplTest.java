@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.mockito.InOrder;
+import org.waveprotocol.wave.crypto.DefaultTimeSource;
+
+/**
+ * Tests the message reconciliation of {@link WebSocketChannelImpl}.
+ */
+public class WebSocketChannelImplTest extends TestCase {
+
+  private RemoteEndpoint remote;
+  private Session session;
+
+  @Override
+  protected void setUp() throws Exception {
+    remote = mock(RemoteEndpoint.class);
+    when(remote.getBatchMode()).thenReturn(BatchMode.AUTO);
+    session = mock(Session.class);
+    when(session.getRemote()).thenReturn(remote);
+  }
+
+  private WebSocketChannelImpl createChannel(long resendBufferSize) {
+    WebSocketChannelImpl channel = new WebSocketChannelImpl("test", mock(ProtoCallback.class),
+        false, new ResendBuffer(resendBufferSize, 0, new DefaultTimeSource()));
+    channel.onOpen(session);
+    return channel;
+  }
+
+  public void testHeartbeatAcknowledgesMessages() throws Exception {
+    WebSocketChannelImpl channel = createChannel(0);
+    channel.sendMessageString("a");
+    channel.sendMessageString("b");
+
+    channel.onMessage("hb:2");
+    assertEquals(0, channel.getResendBufferBytes());
+    verify(remote).sendStringByFuture("hb:0");
+  }
+
+  public void testReconnectionResendsUnacknowledgedMessagesInBatch() throws Exception {
+    WebSocketChannelImpl channel = createChannel(0);
+    channel.sendMessageString("a");
+    channel.sendMessageString("b");
+    channel.sendMessageString("c");
+
+    channel.onMessage("rc:1");
+    InOrder order = inOrder(remote);
+    order.verify(remote).setBatchMode(BatchMode.ON);
+    order.verify(remote).sendStringByFuture("b");
+    order.verify(remote).sendStringByFuture("c");
+    order.verify(remote).setBatchMode(BatchMode.AUTO);
+    order.verify(remote).flush();
+    order.verify(remote).sendStringByFuture("rc:0");
+    verify(remote, times(1)).sendStringByFuture("a");
+
+    // Resent messages are kept until acknowledged.
+    assertEquals(4, channel.getResendBufferBytes());
+  }
+
+  public void testReconnectionAfterLostMessagesRequestsResync() throws Exception {
+    WebSocketChannelImpl channel = createChannel(2);
+    channel.sendMessageString("a");
+    channel.sendMessageString("b");
+    channel.sendMessageString("c");
+
+    // The client got "a" only, "b" was dropped from the buffer.
+    channel.onMessage("rc:1");
+    verify(remote).sendStringByFuture("rs:");
+    verify(remote, times(1)).sendStringByFuture("c");
+    verify(remote, never()).flush();
+    verify(remote).sendStringByFuture("rc:0");
+    assertEquals(0, channel.getResendBufferBytes());
+  }
+}
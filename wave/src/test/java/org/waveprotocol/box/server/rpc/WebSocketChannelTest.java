@@ -34,9 +34,14 @@ public class WebSocketChannelTest extends TestCase {
 
   class TestWebSocketChannel extends WebSocketChannel {
     String message;
+    byte[] binaryMessage;
 
     public TestWebSocketChannel(ProtoCallback callback) {
-      super(callback);
+      this(callback, false);
+    }
+
+    public TestWebSocketChannel(ProtoCallback callback, boolean binary) {
+      super(callback, binary);
       this.message = null;
     }
 
@@ -44,6 +49,11 @@ public class WebSocketChannelTest extends TestCase {
     public void sendMessageString(final String data) {
       this.message = data;
     }
+
+    @Override
+    protected void sendMessageBytes(byte[] data) {
+      this.binaryMessage = data;
+    }
   }
 
   class TestCallback implements ProtoCallback {
@@ -82,6 +92,56 @@ public class WebSocketChannelTest extends TestCase {
     checkRoundtripping(sourceBuilder);
   }
 
+  public void testMessageBeforeTypeIsDecoded() throws Exception {
+    WaveClientRpc.ProtocolOpenRequest sourceRequest = buildProtocolOpenRequest().build();
+    String message = new ProtoSerializer().toJsonString(sourceRequest);
+    channel.handleMessageString("{\"sequenceNumber\":" + SEQUENCE_NUMBER + ",\"message\":"
+        + message + ",\"messageType\":\"ProtocolOpenRequest\"}");
+    assertEquals(SEQUENCE_NUMBER, callback.sequenceNumber);
+    assertEquals(sourceRequest, callback.savedMessage);
+  }
+
+  public void testMalformedMessageIsDropped() {
+    channel.handleMessageString("{\"messageType\":\"ProtocolOpenRequest\",\"sequenceNumber\":"
+        + SEQUENCE_NUMBER + ",\"message\":[");
+    assertNull(callback.savedMessage);
+  }
+
+  public void testRoundTrippingBinary() throws Exception {
+    TestWebSocketChannel binaryChannel = new TestWebSocketChannel(callback, true);
+    binaryChannel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    WaveClientRpc.ProtocolOpenRequest sourceRequest =
+        buildProtocolOpenRequest().addWaveletIdPrefix("aaa").build();
+    binaryChannel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
+    assertNull(binaryChannel.message);
+    byte[] frame = binaryChannel.binaryMessage;
+    assertNotNull(frame);
+
+    // Deliver the frame from within a larger buffer.
+    byte[] buffer = new byte[frame.length + 4];
+    System.arraycopy(frame, 0, buffer, 2, frame.length);
+    binaryChannel.handleMessageBytes(buffer, 2, frame.length);
+    assertEquals(SEQUENCE_NUMBER, callback.sequenceNumber);
+    assertEquals(sourceRequest, callback.savedMessage);
+  }
+
+  public void testUnexpectedBinaryMessageIsDropped() throws Exception {
+    TestWebSocketChannel binaryChannel = new TestWebSocketChannel(callback, true);
+    binaryChannel.sendMessage(SEQUENCE_NUMBER, buildProtocolOpenRequest().build());
+    byte[] frame = binaryChannel.binaryMessage;
+    binaryChannel.handleMessageBytes(frame, 0, frame.length);
+    assertNull(callback.savedMessage);
+  }
+
+  public void testTruncatedBinaryMessageIsDropped() throws Exception {
+    TestWebSocketChannel binaryChannel = new TestWebSocketChannel(callback, true);
+    binaryChannel.expectMessage(WaveClientRpc.ProtocolOpenRequest.getDefaultInstance());
+    binaryChannel.sendMessage(SEQUENCE_NUMBER, buildProtocolOpenRequest().build());
+    byte[] frame = binaryChannel.binaryMessage;
+    binaryChannel.handleMessageBytes(frame, 0, frame.length - 1);
+    assertNull(callback.savedMessage);
+  }
+
   private void checkRoundtripping(final WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder) {
     WaveClientRpc.ProtocolOpenRequest sourceRequest = sourceBuilder.build();
     channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
 import org.waveprotocol.box.server.swell.WaveletContributions.BlipContributions;
 import org.waveprotocol.wave.model.document.AnnotationInterval;
 import org.waveprotocol.wave.model.document.Doc;
@@ -25,6 +26,7 @@ import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.testing.BasicFactories;
 import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.util.ReadableStringMap.ProcV;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.impl.PluggableMutableDocument;
 
@@ -36,6 +38,7 @@ public class WaveletBlipContributionsTest extends TestCase {
 
   static final String BLIP_ID = "t+dummy";
   static final WaveletId WAVELET_ID = WaveletId.of("local.net", "dummy");
+  static final WaveletName WAVELET_NAME = WaveletName.of("local.net", "waveid", "local.net", "waveletid");
 
   ParticipantId alice, bob, creator;
   BasicWaveletOperationContextFactory opContextFactoryAlice, opContextFactoryBob, currentOpContextFactory;
@@ -48,7 +51,7 @@ public class WaveletBlipContributionsTest extends TestCase {
   protected void setUp() throws Exception {
     super.setUp();
 
-   contributionsManager = new WaveletContributions(WaveletName.of("local.net", "waveid", "local.net", "waveletid"));
+   contributionsManager = new WaveletContributions(WAVELET_NAME, HashedVersion.unsigned(0));
    creator = ParticipantId.ofUnsafe("creator@local.net");
 
    alice = ParticipantId.ofUnsafe("alice@local.net");
@@ -176,4 +179,32 @@ public class WaveletBlipContributionsTest extends TestCase {
 
   }
 
+
+  public void testSerializeRoundTrip() {
+
+    currentOpContextFactory = opContextFactoryAlice;
+    document.insertText(6, " Hello");
+
+    currentOpContextFactory = opContextFactoryBob;
+    document.insertText(12, " world");
+
+    WaveletContributions restored = ProtoDeltaStoreDataSerializer.deserialize(
+        ProtoDeltaStoreDataSerializer.serialize(contributionsManager), WAVELET_NAME);
+    assertEquals(contributionsManager.getWaveletVersion(), restored.getWaveletVersion());
+
+    BlipContributions blipContribs = restored.getBlipContributions(BLIP_ID);
+    assertNotNull(blipContribs);
+    assertEquals(contributionsManager.getBlipContributions(BLIP_ID).getDocumentSize(),
+        blipContribs.getDocumentSize());
+
+    Map<ParticipantId, Set<Range<Integer>>> ranges = getAndPrintAnnotations(document, blipContribs.annotations);
+
+    assertTrue(ranges.get(creator).contains(Range.closed(0, 6)));
+    assertTrue(ranges.get(creator).contains(Range.closed(18, 69)));
+
+    assertTrue(ranges.get(alice).contains(Range.closed(6, 12)));
+    assertTrue(ranges.get(bob).contains(Range.closed(12, 18)));
+
+  }
+
 }
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.operation.OperationException;
+import org.waveprotocol.wave.model.schema.SchemaCollection;
+import org.waveprotocol.wave.model.wave.data.DocumentFactory;
+
+/**
+ * Tests for {@link CompactDocument}.
+ */
+public class CompactDocumentTest extends TestCase {
+  private static final WaveletId WAVELET_ID = WaveletId.of("example.com", "conv+root");
+
+  private CompactDocument document;
+
+  @Override
+  protected void setUp() throws Exception {
+    DocumentFactory<CompactDocument> factory =
+        CompactDocument.createFactory(SchemaCollection.empty());
+    document = factory.create(WAVELET_ID, "b+abc",
+        DocOpUtil.docInitializationFromXml("<body>hello</body>"));
+  }
+
+  /** Returns an op inserting the given character after the body start tag. */
+  private DocOp insertAtStart(char c, int size) {
+    return new DocOpBuilder().retain(1).characters(String.valueOf(c)).retain(size - 1).build();
+  }
+
+  public void testOperationsAreComposedWithoutIndexing() throws Exception {
+    document.consume(insertAtStart('x', 7));
+    document.consume(insertAtStart('y', 8));
+
+    assertFalse(document.isIndexed());
+    assertEquals("<body>yxhello</body>", DocOpUtil.toXmlString(document.asOperation()));
+  }
+
+  public void testMutableDocumentIsIndexedFromComposedContent() throws Exception {
+    document.consume(insertAtStart('x', 7));
+
+    assertNotNull(document.getMutableDocument());
+    assertTrue(document.isIndexed());
+    assertEquals("<body>xhello</body>", DocOpUtil.toXmlString(document.asOperation()));
+
+    document.consume(insertAtStart('y', 8));
+    assertEquals("<body>yxhello</body>", DocOpUtil.toXmlString(document.asOperation()));
+  }
+
+  public void testHotDocumentIsIndexed() throws Exception {
+    StringBuilder inserted = new StringBuilder();
+    for (int i = 0; i < CompactDocument.HOT_DOCUMENT_OPS; i++) {
+      document.consume(insertAtStart('x', 7 + i));
+      inserted.append('x');
+    }
+    assertFalse(document.isIndexed());
+
+    document.consume(insertAtStart('y', 7 + CompactDocument.HOT_DOCUMENT_OPS));
+    assertTrue(document.isIndexed());
+    assertEquals("<body>y" + inserted + "hello</body>",
+        DocOpUtil.toXmlString(document.asOperation()));
+  }
+
+  public void testCompactedDocumentComposesOperationsAgain() throws Exception {
+    document.getMutableDocument();
+    document.consume(insertAtStart('x', 7));
+
+    document.compact();
+    assertFalse(document.isIndexed());
+    assertEquals("<body>xhello</body>", DocOpUtil.toXmlString(document.asOperation()));
+
+    document.consume(insertAtStart('y', 8));
+    assertFalse(document.isIndexed());
+    assertEquals("<body>yxhello</body>", DocOpUtil.toXmlString(document.asOperation()));
+  }
+
+  public void testInvalidOperationIsRejected() throws Exception {
+    try {
+      document.consume(insertAtStart('x', 100));
+      fail("Operation with the wrong length should not apply");
+    } catch (OperationException expected) {
+      // Expected.
+    }
+    assertEquals("<body>hello</body>", DocOpUtil.toXmlString(document.asOperation()));
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.util;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.util.XmlStringBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ImmutableWaveletData}.
+ */
+public class ImmutableWaveletDataTest extends TestCase {
+  private static final ParticipantId CREATOR = new ParticipantId("creator@example.com");
+  private static final ParticipantId JOE = new ParticipantId("joe@example.com");
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "w+wave"), WaveletId.of("example.com", "wavelet"));
+
+  private WaveletData wavelet;
+
+  @Override
+  protected void setUp() throws Exception {
+    wavelet = WaveletDataUtil.buildWaveletFromDeltas(WAVELET_NAME, Arrays.asList(
+        delta(new AddParticipant(opContext(1, 1), CREATOR)),
+        delta(editBlip("b+a", new DocOpBuilder().characters("a").build(), 2, 2),
+            editBlip("b+b", new DocOpBuilder().characters("b").build(), 2, 3))).iterator());
+  }
+
+  private WaveletOperationContext opContext(long timestamp, long version) {
+    return new WaveletOperationContext(CREATOR, timestamp, 1L, HashedVersion.unsigned(version));
+  }
+
+  private WaveletOperation editBlip(String id, DocOp op, long time, long version) {
+    return new WaveletBlipOperation(id, new BlipContentOperation(opContext(time, version), op));
+  }
+
+  /** Returns an op appending the given text to a document of the given size. */
+  private DocOp append(String text, int size) {
+    return new DocOpBuilder().retain(size).characters(text).build();
+  }
+
+  private TransformedWaveletDelta delta(WaveletOperation... ops) {
+    WaveletOperationContext ctx = ops[ops.length - 1].getContext();
+    return new TransformedWaveletDelta(
+        ctx.getCreator(), ctx.getHashedVersion(), ctx.getTimestamp(), Arrays.asList(ops));
+  }
+
+  private static String content(ReadableWaveletData wavelet, String documentId) {
+    return DocOpUtil.toXmlString(wavelet.getDocument(documentId).getContent().asOperation());
+  }
+
+  public void testSnapshotHasWaveletState() {
+    ImmutableWaveletData snapshot = ImmutableWaveletData.of(wavelet);
+
+    assertEquals(WAVELET_NAME, WaveletDataUtil.waveletNameOf(snapshot));
+    assertEquals(CREATOR, snapshot.getCreator());
+    assertEquals(ImmutableSet.of(CREATOR), snapshot.getParticipants());
+    assertEquals(HashedVersion.unsigned(3), snapshot.getHashedVersion());
+    assertEquals(3, snapshot.getVersion());
+    assertEquals(2, snapshot.getLastModifiedTime());
+    assertEquals(ImmutableSet.of("b+a", "b+b"), snapshot.getDocumentIds());
+    assertEquals("a", content(snapshot, "b+a"));
+    assertSame(snapshot, snapshot.getDocument("b+a").getWavelet());
+    assertEquals(ImmutableSet.of(CREATOR), snapshot.getDocument("b+a").getContributors());
+  }
+
+  public void testSnapshotIsNotChangedByWavelet() throws Exception {
+    ImmutableWaveletData snapshot = ImmutableWaveletData.of(wavelet);
+
+    WaveletDataUtil.applyWaveletDelta(delta(new AddParticipant(opContext(3, 4), JOE),
+        editBlip("b+a", append("!", 1), 3, 5)), wavelet);
+
+    assertEquals(ImmutableSet.of(CREATOR), snapshot.getParticipants());
+    assertEquals(HashedVersion.unsigned(3), snapshot.getHashedVersion());
+    assertEquals("a", content(snapshot, "b+a"));
+  }
+
+  public void testSnapshotIsNotChangedByReaders() throws Exception {
+    ImmutableWaveletData snapshot = ImmutableWaveletData.of(wavelet);
+
+    try {
+      snapshot.getDocument("b+a").getContent().consume(append("!", 1));
+      fail("Snapshot documents should reject operations");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      snapshot.getDocument("b+a").getContent().getMutableDocument().appendXml(
+          XmlStringBuilder.createText("!"));
+      fail("Snapshot documents should reject changes");
+    } catch (UnsupportedOperationException expected) {
+    }
+
+    assertEquals("a", content(snapshot, "b+a"));
+    assertEquals("a", DocOpUtil.toXmlString(
+        snapshot.getDocument("b+a").getContent().getMutableDocument().toInitialization()));
+  }
+
+  public void testReadersShareTheIndexedDocument() {
+    ImmutableWaveletData snapshot = ImmutableWaveletData.of(wavelet);
+
+    assertSame(snapshot.getDocument("b+a").getContent().getMutableDocument(),
+        snapshot.getDocument("b+a").getContent().getMutableDocument());
+  }
+
+  public void testUpdateSharesUntouchedDocuments() throws Exception {
+    ImmutableWaveletData before = ImmutableWaveletData.of(wavelet);
+    TransformedWaveletDelta delta = delta(new AddParticipant(opContext(3, 4), JOE),
+        editBlip("b+a", append("!", 1), 3, 5),
+        editBlip("b+c", new DocOpBuilder().characters("c").build(), 3, 6));
+    WaveletDataUtil.applyWaveletDelta(delta, wavelet);
+
+    ImmutableWaveletData after = before.update(wavelet, delta);
+
+    assertEquals(ImmutableSet.of(CREATOR, JOE), after.getParticipants());
+    assertEquals(HashedVersion.unsigned(6), after.getHashedVersion());
+    assertEquals(ImmutableSet.of("b+a", "b+b", "b+c"), after.getDocumentIds());
+    assertEquals("a!", content(after, "b+a"));
+    assertEquals("c", content(after, "b+c"));
+    assertSame(before.getDocument("b+b").getContent(), after.getDocument("b+b").getContent());
+    assertNotSame(before.getDocument("b+a").getContent(), after.getDocument("b+a").getContent());
+    assertEquals("a", content(before, "b+a"));
+  }
+
+  public void testUpdateComposesIndexedDocumentsLazily() throws Exception {
+    ImmutableWaveletData before = ImmutableWaveletData.of(wavelet);
+    // Indexes the live document, so that taking its content would serialize it.
+    wavelet.getDocument("b+a").getContent().getMutableDocument();
+    TransformedWaveletDelta first = delta(editBlip("b+a", append("!", 1), 3, 4));
+    WaveletDataUtil.applyWaveletDelta(first, wavelet);
+    ImmutableWaveletData middle = before.update(wavelet, first);
+    TransformedWaveletDelta second = delta(editBlip("b+a", append("?", 2), 4, 5));
+    WaveletDataUtil.applyWaveletDelta(second, wavelet);
+
+    ImmutableWaveletData after = middle.update(wavelet, second);
+
+    assertEquals("a!?", content(after, "b+a"));
+    assertEquals("a!", content(middle, "b+a"));
+    assertEquals("a", content(before, "b+a"));
+  }
+
+  public void testSnapshotOfSnapshotIsItself() {
+    ImmutableWaveletData snapshot = ImmutableWaveletData.of(wavelet);
+    assertSame(snapshot, ImmutableWaveletData.of(snapshot));
+  }
+}
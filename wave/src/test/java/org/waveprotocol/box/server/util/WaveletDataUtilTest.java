@@ -30,6 +30,7 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
 import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.RemoveParticipant;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
@@ -58,6 +59,11 @@ public class WaveletDataUtilTest extends TestCase {
     return new AddParticipant(opContext(time, version), user);
   }
 
+  private WaveletOperation removeParticipant(ParticipantId user, long time,
+      HashedVersion version) {
+    return new RemoveParticipant(opContext(time, version), user);
+  }
+
   private WaveletOperation addBlip(String id, long time, HashedVersion version) {
     return new WaveletBlipOperation(id,
         new BlipContentOperation(opContext(time, version), new DocOpBuilder().build()));
@@ -101,4 +107,45 @@ public class WaveletDataUtilTest extends TestCase {
     assertEquals(ImmutableSet.of("blipid"), wavelet.getDocumentIds());
     assertEquals(ImmutableSet.of(CREATOR, JOE), wavelet.getParticipants());
   }
+
+  public void testCopyWaveletMetadataSkipsDocuments() throws Exception {
+    WaveletData wavelet = build(
+        delta(addParticipant(CREATOR, 1093L, HashedVersion.unsigned(1))),
+        delta(addParticipant(JOE, 1492L, HashedVersion.unsigned(2))),
+        delta(addBlip("blipid", 2010L, HashedVersion.unsigned(3)))
+    );
+    WaveletData copy = WaveletDataUtil.copyWaveletMetadata(wavelet);
+    assertEquals(WAVELET_NAME, WaveletDataUtil.waveletNameOf(copy));
+    assertEquals(CREATOR, copy.getCreator());
+    assertEquals(1093L, copy.getCreationTime());
+    assertEquals(2010L, copy.getLastModifiedTime());
+    assertEquals(HashedVersion.unsigned(3), copy.getHashedVersion());
+    assertEquals(ImmutableSet.of(), copy.getDocumentIds());
+    assertEquals(ImmutableSet.of(CREATOR, JOE), copy.getParticipants());
+  }
+
+  public void testColdDocumentsAreCompacted() throws Exception {
+    WaveletData wavelet = build(
+        delta(addParticipant(CREATOR, 1093L, HashedVersion.unsigned(1))),
+        delta(addBlip("cold", 1093L, HashedVersion.unsigned(2)), addBlip("hot", 1093L,
+            HashedVersion.unsigned(3)))
+    );
+    CompactDocument cold = (CompactDocument) wavelet.getDocument("cold").getContent();
+    CompactDocument hot = (CompactDocument) wavelet.getDocument("hot").getContent();
+    cold.getMutableDocument();
+    hot.getMutableDocument();
+
+    long lastVersion = 2 * CompactDocument.COLD_DOCUMENT_VERSIONS;
+    for (long version = 4; version <= lastVersion; version++) {
+      HashedVersion hashedVersion = HashedVersion.unsigned(version);
+      WaveletOperation op = (version % 100 == 0) ? addBlip("hot", 1093L, hashedVersion)
+          : wavelet.getParticipants().contains(JOE)
+              ? removeParticipant(JOE, 1093L, hashedVersion)
+              : addParticipant(JOE, 1093L, hashedVersion);
+      WaveletDataUtil.applyWaveletDelta(delta(op), wavelet);
+    }
+
+    assertFalse(cold.isIndexed());
+    assertTrue(hot.isIndexed());
+  }
 }
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.box.server.waveserver.AsyncWaveBusSubscriber.OverflowPolicy;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class AsyncWaveBusSubscriberTest extends TestCase implements TestingConstants {
+
+  private static final WaveletName OTHER_WAVELET_NAME = WaveletName.of(WAVE_ID,
+      WaveletId.of(DOMAIN, "conv+other"));
+
+  /** Runs the queued messages on demand. */
+  private static class QueueExecutor implements Executor {
+    private final List<Runnable> queue = Lists.newArrayList();
+
+    @Override
+    public synchronized void execute(Runnable command) {
+      queue.add(command);
+    }
+
+    void runAll() {
+      while (runNext()) {
+      }
+    }
+
+    boolean runNext() {
+      Runnable next;
+      synchronized (this) {
+        if (queue.isEmpty()) {
+          return false;
+        }
+        next = queue.remove(0);
+      }
+      next.run();
+      return true;
+    }
+  }
+
+  /** Matches a wavelet at a version. */
+  private static class IsAtVersion extends ArgumentMatcher<ReadableWaveletData> {
+    private final long version;
+
+    IsAtVersion(long version) {
+      this.version = version;
+    }
+
+    @Override
+    public boolean matches(Object wavelet) {
+      return ((ReadableWaveletData) wavelet).getVersion() == version;
+    }
+  }
+
+  @Mock
+  private WaveBus.Subscriber subscriber;
+
+  private final QueueExecutor executor = new QueueExecutor();
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  private AsyncWaveBusSubscriber create(int queueSize, OverflowPolicy policy) {
+    return new AsyncWaveBusSubscriber(subscriber, queueSize, policy, new Executor[] {executor});
+  }
+
+  public void testDeliversInOrder() {
+    AsyncWaveBusSubscriber async = create(10, OverflowPolicy.BLOCK);
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(2));
+    verify(subscriber, never()).waveletCommitted(any(WaveletName.class),
+        any(HashedVersion.class));
+
+    executor.runAll();
+    InOrder inOrder = inOrder(subscriber);
+    inOrder.verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    inOrder.verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(2));
+  }
+
+  public void testCoalescesWhenFull() {
+    AsyncWaveBusSubscriber async = create(1, OverflowPolicy.COALESCE);
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(2));
+
+    executor.runAll();
+    verify(subscriber, never()).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(2));
+  }
+
+  public void testDoesNotCoalesceUpdateAfterCommitNotice() throws Exception {
+    final AsyncWaveBusSubscriber async = create(1, OverflowPolicy.COALESCE);
+    async.waveletUpdate(WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, PARTICIPANT,
+        HashedVersion.unsigned(1), 0), DeltaSequence.empty());
+    // Merged into the queued update.
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    Thread update = new Thread() {
+      @Override
+      public void run() {
+        async.waveletUpdate(WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, PARTICIPANT,
+            HashedVersion.unsigned(2), 0), DeltaSequence.empty());
+      }
+    };
+    update.start();
+    // The second update waits for room in the queue instead of being merged.
+    while (update.getState() != Thread.State.WAITING) {
+      Thread.yield();
+    }
+
+    executor.runNext();
+    update.join();
+    executor.runAll();
+    InOrder inOrder = inOrder(subscriber);
+    inOrder.verify(subscriber).waveletUpdate(argThat(new IsAtVersion(1)),
+        any(DeltaSequence.class));
+    inOrder.verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    inOrder.verify(subscriber).waveletUpdate(argThat(new IsAtVersion(2)),
+        any(DeltaSequence.class));
+  }
+
+  public void testDropsUpdatesWhenFull() {
+    AsyncWaveBusSubscriber async = create(1, OverflowPolicy.DROP);
+    async.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    ReadableWaveletData other = WaveletDataUtil.createEmptyWavelet(OTHER_WAVELET_NAME,
+        PARTICIPANT, HashedVersion.unsigned(0), 0);
+    async.waveletUpdate(other, DeltaSequence.empty());
+
+    executor.runAll();
+    verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    verify(subscriber, never()).waveletUpdate(any(ReadableWaveletData.class),
+        any(DeltaSequence.class));
+  }
+}
@@ -20,10 +20,24 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
+import java.util.Arrays;
 import java.util.concurrent.Executor;
 
 /**
@@ -33,6 +47,12 @@ import java.util.concurrent.Executor;
  */
 public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
 
+  private static final WaveletName NAME = WaveletName.of(WaveId.of("example.com", "waveid"),
+      WaveletId.of("example.com", "waveletid"));
+  private static final ParticipantId AUTHOR = ParticipantId.ofUnsafe("author@example.com");
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(AUTHOR);
+  private static final long TS = 1234567890L;
+
   private final Executor PERSIST_EXECUTOR = MoreExecutors.sameThreadExecutor();
   private DeltaStore store;
 
@@ -53,6 +73,33 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
     return;
   }
 
+  public void testEstimatedSizeShrinksWhenContentIsDeleted() throws Exception {
+    WaveletState state = createEmptyState(NAME);
+    HashedVersion v0 = new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()))
+        .createVersionZero(NAME);
+    WaveletDeltaRecord insert = makeDelta(v0, UTIL.insert(0, "hello world", 0, null));
+    state.appendDelta(insert);
+    WaveletDeltaRecord delete =
+        makeDelta(insert.getResultingVersion(), UTIL.delete(0, "hello world", 0));
+    state.appendDelta(delete);
+    long withDeltas = state.estimateSize();
+
+    state.flush(delete.getResultingVersion());
+
+    assertTrue(state.estimateSize() < withDeltas);
+    assertEquals(0, state.estimateSize());
+  }
+
+  private static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion,
+      WaveletOperation op) throws InvalidProtocolBufferException {
+    WaveletDelta delta = new WaveletDelta(AUTHOR, appliedAtVersion, Arrays.asList(op));
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+        WaveServerTestUtil.buildAppliedDelta(delta, TS);
+    TransformedWaveletDelta transformedDelta =
+        AppliedDeltaUtil.buildTransformedDelta(appliedDelta, delta);
+    return new WaveletDeltaRecord(appliedAtVersion, appliedDelta, transformedDelta);
+  }
+
   // TODO(soren): We need to add tests here that verify interactions with storage.
   // The base tests only test the public interface, not any interactions with the storage system.
 }
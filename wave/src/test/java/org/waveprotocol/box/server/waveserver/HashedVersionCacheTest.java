@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+/**
+ * Tests for {@link HashedVersionCache}.
+ */
+public class HashedVersionCacheTest extends TestCase {
+
+  private static HashedVersion version(long version) {
+    return HashedVersion.of(version, new byte[] {(byte) version, 1, 2});
+  }
+
+  public void testReturnsCachedVersions() {
+    HashedVersionCache cache = new HashedVersionCache(4);
+    cache.put(version(2));
+    cache.put(version(3));
+
+    assertEquals(version(2), cache.get(2));
+    assertEquals(version(3), cache.get(3));
+    assertNull(cache.get(1));
+  }
+
+  public void testLaterVersionReplacesVersionInSameSlot() {
+    HashedVersionCache cache = new HashedVersionCache(4);
+    cache.put(version(2));
+    cache.put(version(6));
+
+    assertNull(cache.get(2));
+    assertEquals(version(6), cache.get(6));
+  }
+}
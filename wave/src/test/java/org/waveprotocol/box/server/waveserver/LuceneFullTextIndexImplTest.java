@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.persistence.lucene.RAMIndexDirectory;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class LuceneFullTextIndexImplTest extends TestCase {
+
+  private static final ParticipantId CREATOR = new ParticipantId("creator@example.com");
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "w+wave"), WaveletId.of("example.com", "conv+root"));
+
+  @Mock private ReadableWaveletDataProvider waveletProvider;
+
+  private ScheduledExecutorService executor;
+  private LuceneFullTextIndexImpl index;
+  private ObservableWaveletData wavelet;
+
+  @Override
+  protected void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    executor = Executors.newSingleThreadScheduledExecutor();
+    index = new LuceneFullTextIndexImpl(new RAMIndexDirectory(), waveletProvider, executor);
+    wavelet = WaveletDataUtil.buildWaveletFromDeltas(WAVELET_NAME,
+        Arrays.asList(delta(new AddParticipant(context(1), CREATOR))).iterator());
+    when(waveletProvider.getReadableWaveletData(WAVELET_NAME)).thenReturn(wavelet);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    index.shutdown();
+    executor.shutdown();
+  }
+
+  public void testFirstUpdateIndexesWholeWavelet() throws Exception {
+    apply(insertText("b+1", 0, "hello world", 2));
+    // Applied before the index sees the wavelet.
+    WaveletDataUtil.applyWaveletDelta(insertText("b+2", 0, "other words", 3), wavelet);
+    apply(insertText("b+3", 0, "more text", 4));
+
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("hello")));
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("other")));
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("more")));
+  }
+
+  public void testLaterUpdatesOnlyIndexChangedDocuments() throws Exception {
+    apply(insertText("b+1", 0, "hello world", 2));
+    apply(insertText("b+1", "hello world".length(), " again", 3));
+    apply(insertText("t+text", 0, "swell text", 4));
+
+    verify(waveletProvider, times(1)).getReadableWaveletData(WAVELET_NAME);
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("again")));
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("swell")));
+  }
+
+  public void testSearchMatchesAllWordsInAWavelet() throws Exception {
+    apply(insertText("b+1", 0, "hello world", 2));
+    apply(insertText("b+2", 0, "goodbye", 3));
+
+    assertEquals(ImmutableSet.of(WAVELET_NAME),
+        index.search(ImmutableList.of("Hello", "world")));
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("wor*")));
+    assertEquals(ImmutableSet.of(WAVELET_NAME),
+        index.search(ImmutableList.of("hello", "goodbye")));
+    assertTrue(index.search(ImmutableList.of("hello", "missing")).isEmpty());
+    assertTrue(index.search(ImmutableList.of("missing")).isEmpty());
+  }
+
+  public void testIndexWaveletIndexesExistingWavelet() throws Exception {
+    WaveletDataUtil.applyWaveletDelta(insertText("b+1", 0, "hello world", 2), wavelet);
+
+    index.indexWavelet(wavelet).get();
+    index.forceReopen();
+
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("hello")));
+    apply(insertText("b+1", "hello world".length(), " again", 3));
+    verify(waveletProvider, times(0)).getReadableWaveletData(WAVELET_NAME);
+    assertEquals(ImmutableSet.of(WAVELET_NAME), index.search(ImmutableList.of("again")));
+  }
+
+  public void testNonTextDocumentsAreNotIndexed() throws Exception {
+    apply(insertText("m+map", 0, "hidden", 2));
+
+    assertTrue(index.search(ImmutableList.of("hidden")).isEmpty());
+  }
+
+  public void testBackfilledIsRecordedInTheIndex() throws Exception {
+    RAMIndexDirectory directory = new RAMIndexDirectory();
+    LuceneFullTextIndexImpl backfilled =
+        new LuceneFullTextIndexImpl(directory, waveletProvider, executor);
+    assertFalse(backfilled.isBackfilled());
+    backfilled.indexWavelet(wavelet);
+    backfilled.setBackfilled();
+    backfilled.shutdown();
+
+    LuceneFullTextIndexImpl reopened =
+        new LuceneFullTextIndexImpl(directory, waveletProvider, executor);
+    try {
+      assertTrue(reopened.isBackfilled());
+    } finally {
+      reopened.shutdown();
+    }
+  }
+
+  private void apply(TransformedWaveletDelta delta) throws Exception {
+    WaveletDataUtil.applyWaveletDelta(delta, wavelet);
+    index.waveletUpdate(wavelet, DeltaSequence.of(delta));
+    // Waits for the index update.
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get();
+    index.forceReopen();
+  }
+
+  private static TransformedWaveletDelta insertText(String documentId, int at, String text,
+      long version) {
+    DocOpBuilder op = new DocOpBuilder();
+    if (at > 0) {
+      op.retain(at);
+    }
+    return delta(new WaveletBlipOperation(documentId,
+        new BlipContentOperation(context(version), op.characters(text).build())));
+  }
+
+  private static WaveletOperationContext context(long version) {
+    return new WaveletOperationContext(CREATOR, 1000L + version, 1L,
+        HashedVersion.unsigned(version));
+  }
+
+  private static TransformedWaveletDelta delta(WaveletOperation op) {
+    WaveletOperationContext ctx = op.getContext();
+    return new TransformedWaveletDelta(ctx.getCreator(), ctx.getHashedVersion(),
+        ctx.getTimestamp(), Arrays.asList(op));
+  }
+}
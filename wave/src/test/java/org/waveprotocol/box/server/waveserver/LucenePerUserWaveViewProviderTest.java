@@ -19,16 +19,33 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.util.Version;
 import org.mockito.Mock;
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.frontend.CommittedWaveletSnapshot;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.box.server.persistence.lucene.RAMIndexDirectory;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 /**
@@ -55,14 +72,110 @@ public class LucenePerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
     when(waveletProvider.getReadableWaveletData(WAVELET_NAME)).thenReturn(waveletData);
   }
 
+  @Override
+  protected void tearDown() throws Exception {
+    handler.close();
+    super.tearDown();
+  }
+
   @Override
   protected PerUserWaveViewHandler createPerUserWaveViewHandler() {
     handler =
         new LucenePerUserWaveViewHandlerImpl(directory, waveletProvider, DOMAIN,
-          Executors.newCachedThreadPool());
+          Executors.newSingleThreadScheduledExecutor(), 0, 2);
     return handler;
   }
 
+  public void testViewIsPagedInLastModifiedTimeOrder() throws Exception {
+    // Two wavelets share each last modified time, so pages of two split ties.
+    List<WaveletName> expected = Lists.newArrayList();
+    for (int i = 0; i < 7; i++) {
+      WaveletName waveletName =
+          WaveletName.of(WaveId.of(DOMAIN, "w+wave" + i), WaveletId.of(DOMAIN, "wavelet"));
+      ReadableWaveletData data = mock(ReadableWaveletData.class);
+      when(data.getWaveId()).thenReturn(waveletName.waveId);
+      when(data.getWaveletId()).thenReturn(waveletName.waveletId);
+      when(data.getParticipants()).thenReturn(ImmutableSet.of(OTHER_PARTICIPANT));
+      when(data.getLastModifiedTime()).thenReturn(1000L + i / 2);
+      when(waveletProvider.getReadableWaveletData(waveletName)).thenReturn(data);
+      handler.onParticipantAdded(waveletName, OTHER_PARTICIPANT).get();
+      expected.add(waveletName);
+    }
+    postUpdateHook();
+
+    Multimap<WaveId, WaveletId> view = handler.retrievePerUserWaveView(OTHER_PARTICIPANT);
+    assertEquals(expected.size(), view.size());
+    long lastLmt = Long.MAX_VALUE;
+    for (WaveId waveId : view.keySet()) {
+      long lmt = 1000L + Integer.parseInt(waveId.getId().substring("w+wave".length())) / 2;
+      assertTrue(lmt <= lastLmt);
+      lastLmt = lmt;
+    }
+  }
+
+  public void testUpdatesOfAWaveletAreCoalesced() throws Exception {
+    handler.onParticipantAdded(WAVELET_NAME, OTHER_PARTICIPANT);
+    handler.onParticipantRemoved(WAVELET_NAME, OTHER_PARTICIPANT);
+    handler.onWaveInit(WAVELET_NAME).get();
+    postUpdateHook();
+
+    assertEquals(1, handler.retrievePerUserWaveView(PARTICIPANT).size());
+    assertEquals(0, handler.retrievePerUserWaveView(OTHER_PARTICIPANT).size());
+  }
+
+  public void testViewsSurviveTheRebuildOfAnOlderFormat() throws Exception {
+    IndexDirectory oldDirectory = new RAMIndexDirectory();
+    IndexWriter writer = new IndexWriter(oldDirectory.getDirectory(),
+        new IndexWriterConfig(Version.LUCENE_35, new StandardAnalyzer(Version.LUCENE_35)));
+    Document doc = new Document();
+    doc.add(new Field(IndexFieldType.WITH.toString(), PARTICIPANT.getAddress(), Field.Store.YES,
+        Field.Index.NOT_ANALYZED));
+    writer.addDocument(doc);
+    writer.close();
+    assertFalse(LucenePerUserWaveViewHandlerImpl.isCurrentFormat(oldDirectory));
+
+    // Commits before all the wavelets are added keep the older format.
+    LucenePerUserWaveViewHandlerImpl interrupted =
+        new LucenePerUserWaveViewHandlerImpl(oldDirectory, waveletProvider, DOMAIN,
+          Executors.newSingleThreadScheduledExecutor(), 0, 2);
+    try {
+      interrupted.forceReopen();
+      assertEquals(0, interrupted.retrievePerUserWaveView(PARTICIPANT).size());
+      interrupted.onWaveInit(WAVELET_NAME).get();
+    } finally {
+      interrupted.close();
+    }
+    assertFalse(LucenePerUserWaveViewHandlerImpl.isCurrentFormat(oldDirectory));
+
+    WaveletProvider wavelets = mock(WaveletProvider.class);
+    when(wavelets.getWaveIds()).thenReturn(ExceptionalIterator.FromIterator
+        .<WaveId, WaveServerException>create(ImmutableList.of(WAVE_ID).iterator()));
+    when(wavelets.getWaveletIds(WAVE_ID)).thenReturn(ImmutableSet.of(WAVELET_ID));
+    when(wavelets.getSnapshot(WAVELET_NAME)).thenReturn(
+        new CommittedWaveletSnapshot(waveletData, HashedVersion.unsigned(1)));
+    LucenePerUserWaveViewHandlerImpl rebuilt =
+        new LucenePerUserWaveViewHandlerImpl(oldDirectory, waveletProvider, DOMAIN,
+          Executors.newSingleThreadScheduledExecutor(), 0, 2);
+    try {
+      new LuceneWaveIndexerImpl(mock(WaveMap.class), wavelets, rebuilt).remakeIndex();
+    } finally {
+      rebuilt.close();
+    }
+    assertTrue(LucenePerUserWaveViewHandlerImpl.isCurrentFormat(oldDirectory));
+
+    LucenePerUserWaveViewHandlerImpl upgraded =
+        new LucenePerUserWaveViewHandlerImpl(oldDirectory, waveletProvider, DOMAIN,
+          Executors.newSingleThreadScheduledExecutor(), 0, 2);
+    try {
+      upgraded.forceReopen();
+      Multimap<WaveId, WaveletId> view = upgraded.retrievePerUserWaveView(PARTICIPANT);
+      assertEquals(1, view.size());
+      assertTrue(view.containsEntry(WAVE_ID, WAVELET_ID));
+    } finally {
+      upgraded.close();
+    }
+  }
+
   @Override
   protected void postUpdateHook() {
     try {
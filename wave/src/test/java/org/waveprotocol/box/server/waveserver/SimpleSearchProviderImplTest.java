@@ -53,6 +53,7 @@ import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.Futures;
@@ -167,6 +168,7 @@ public class SimpleSearchProviderImplTest extends TestCase {
   @Mock private DeltaAndSnapshotStore waveletStore;
   @Mock private RemoteWaveletContainer.Factory remoteWaveletContainerFactory;
   @Mock private PerUserWaveViewProvider waveViewProvider;
+  @Mock private FullTextIndex fullTextIndex;
 
   private SearchProvider searchProvider;
   private WaveMap waveMap;
@@ -212,14 +214,16 @@ public class SimpleSearchProviderImplTest extends TestCase {
 
     Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
       "core.wave_cache_size", 1000,
-      "core.wave_cache_expire", "60m")
+      "core.wave_cache_expire", "60m",
+      "core.wave_cache_max_memory", 0)
     );
 
     waveMap =
         new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
             remoteWaveletContainerFactory, DOMAIN, config, lookupExecutor);
 
-    searchProvider = new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, waveViewProvider);
+    searchProvider =
+        new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, waveViewProvider, fullTextIndex);
   }
 
   @Override
@@ -464,6 +468,31 @@ public class SimpleSearchProviderImplTest extends TestCase {
     assertEquals(0, results.getNumResults());
   }
 
+  public void testSearchFilterByTextWorks() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, String.valueOf(i)), WAVELET_ID);
+      submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name));
+    }
+    when(fullTextIndex.isEnabled()).thenReturn(true);
+    when(fullTextIndex.search(ImmutableSet.of("hello", "world"))).thenReturn(ImmutableSet.of(
+        WaveletName.of(WaveId.of(DOMAIN, "1"), WAVELET_ID),
+        WaveletName.of(WaveId.of(DOMAIN, "2"), WAVELET_ID)));
+    SearchResult results = searchProvider.search(USER1, "in:inbox hello text:world", 0, 10);
+    assertEquals(2, results.getNumResults());
+    results = searchProvider.search(USER1, "in:inbox goodbye", 0, 10);
+    assertEquals(0, results.getNumResults());
+  }
+
+  public void testTextIsInvalidWithoutFullTextIndex() throws Exception {
+    WaveletName name = WaveletName.of(WaveId.of(DOMAIN, "1"), WAVELET_ID);
+    submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name));
+    when(fullTextIndex.search(ImmutableSet.of("hello"))).thenReturn(ImmutableSet.of(name));
+
+    assertEquals(0, searchProvider.search(USER1, "in:inbox hello", 0, 10).getNumResults());
+    assertEquals(0, searchProvider.search(USER1, "in:inbox text:hello", 0, 10).getNumResults());
+    assertEquals(1, searchProvider.search(USER1, "in:inbox", 0, 10).getNumResults());
+  }
+
   // *** Helpers
 
   private void submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.mockito.Mock;
+import org.waveprotocol.box.server.persistence.PerUserWaveViewStore;
+import org.waveprotocol.box.server.persistence.memory.MemoryPerUserWaveViewStore;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Tests for {@link StorePerUserWaveViewHandlerImpl}.
+ */
+public class StorePerUserWaveViewProviderTest extends PerUserWaveViewProviderTestBase {
+
+  private final PerUserWaveViewStore store = new MemoryPerUserWaveViewStore();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  @Mock private ReadableWaveletDataProvider waveletProvider;
+
+  private StorePerUserWaveViewHandlerImpl handler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ReadableWaveletData waveletData = mock(ReadableWaveletData.class);
+    when(waveletData.getLastModifiedTime()).thenReturn(1000L);
+    when(waveletProvider.getReadableWaveletData(any(WaveletName.class)))
+        .thenReturn(waveletData);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  @Override
+  protected PerUserWaveViewHandler createPerUserWaveViewHandler() {
+    handler = new StorePerUserWaveViewHandlerImpl(store, waveletProvider, executor, 2);
+    return handler;
+  }
+
+  public void testAddedWaveletsAreOrderedByTheirLastModifiedTime() throws Exception {
+    List<WaveletName> expected = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      WaveletName waveletName =
+          WaveletName.of(WaveId.of(DOMAIN, "w+wave" + i), WaveletId.of(DOMAIN, "wavelet"));
+      ReadableWaveletData data = mock(ReadableWaveletData.class);
+      when(data.getLastModifiedTime()).thenReturn(1000L - i);
+      when(waveletProvider.getReadableWaveletData(waveletName)).thenReturn(data);
+      // Added in the reverse order of their modification, all read in pages of two.
+      handler.onParticipantAdded(waveletName, OTHER_PARTICIPANT).get();
+      expected.add(waveletName);
+    }
+
+    List<WaveletName> view = Lists.newArrayList();
+    for (WaveId waveId : handler.retrievePerUserWaveView(OTHER_PARTICIPANT).keySet()) {
+      view.add(WaveletName.of(waveId, WaveletId.of(DOMAIN, "wavelet")));
+    }
+    assertEquals(expected, view);
+  }
+
+  public void testUpdatedWaveletIsMovedToTheTop() throws Exception {
+    WaveletName other =
+        WaveletName.of(WaveId.of(DOMAIN, "w+other"), WaveletId.of(DOMAIN, "wavelet"));
+    ReadableWaveletData otherData = mock(ReadableWaveletData.class);
+    when(otherData.getLastModifiedTime()).thenReturn(2000L);
+    when(waveletProvider.getReadableWaveletData(other)).thenReturn(otherData);
+    handler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+    handler.onParticipantAdded(other, PARTICIPANT).get();
+
+    ReadableWaveletData updated = mock(ReadableWaveletData.class);
+    when(updated.getWaveId()).thenReturn(WAVELET_NAME.waveId);
+    when(updated.getWaveletId()).thenReturn(WAVELET_NAME.waveletId);
+    when(updated.getParticipants()).thenReturn(ImmutableSet.of(PARTICIPANT));
+    when(updated.getLastModifiedTime()).thenReturn(3000L);
+    handler.onWaveUpdated(updated).get();
+
+    assertEquals(ImmutableList.of(WAVELET_NAME.waveId, other.waveId),
+        ImmutableList.copyOf(handler.retrievePerUserWaveView(PARTICIPANT).keySet()));
+  }
+
+  @Override
+  protected void postUpdateHook() {
+  }
+}
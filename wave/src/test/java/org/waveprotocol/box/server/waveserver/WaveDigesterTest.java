@@ -31,6 +31,7 @@ import junit.framework.TestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.robots.operations.TestingWaveletData;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.wave.model.conversation.ConversationBlip;
@@ -38,8 +39,10 @@ import org.waveprotocol.wave.model.conversation.ObservableConversationView;
 import org.waveprotocol.wave.model.id.IdGenerator;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ObservableWavelet;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
 
 /**
@@ -117,4 +120,39 @@ public class WaveDigesterTest extends TestCase {
     assertEquals(3, digest.getBlipCount());
     assertEquals(2, digest.getUnreadCount());
   }
+
+  public void testDigestIsCachedPerWaveletVersion() {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    Digest digest = digester.build(PARTICIPANT, data.copyViewData());
+    assertEquals("title", digest.getTitle());
+    assertEquals(1, digest.getBlipCount());
+    assertEquals(1, digest.getUnreadCount());
+
+    // The hashed version of the testing wavelet isn't updated by the blip, so
+    // the digest of the first version is still returned.
+    data.appendBlipWithText("blip number 2");
+    WaveViewData wave = data.copyViewData();
+    assertEquals(1, digester.build(PARTICIPANT, wave).getBlipCount());
+
+    ObservableWaveletData conversation = wave.getWavelet(CONVERSATION_WAVELET_ID);
+    conversation.setHashedVersion(HashedVersion.unsigned(conversation.getVersion()));
+    digest = digester.build(PARTICIPANT, wave);
+    assertEquals(2, digest.getBlipCount());
+    assertEquals(2, digest.getUnreadCount());
+  }
+
+  public void testWaveletUpdateInvalidatesDigest() {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    assertEquals(1, digester.build(PARTICIPANT, data.copyViewData()).getBlipCount());
+
+    data.appendBlipWithText("blip number 2");
+    WaveViewData wave = data.copyViewData();
+    digester.waveletUpdate(wave.getWavelet(CONVERSATION_WAVELET_ID), DeltaSequence.empty());
+
+    assertEquals(2, digester.build(PARTICIPANT, wave).getBlipCount());
+  }
 }
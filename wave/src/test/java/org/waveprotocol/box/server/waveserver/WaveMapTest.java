@@ -19,11 +19,13 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -34,6 +36,8 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
@@ -59,6 +63,7 @@ public class WaveMapTest extends TestCase {
   @Mock private RemoteWaveletContainer.Factory remoteWaveletContainerFactory;
 
   private DeltaAndSnapshotStore waveletStore;
+  private LocalWaveletContainer.Factory localWaveletContainerFactory;
   private WaveMap waveMap;
 
   @Override
@@ -70,7 +75,7 @@ public class WaveMapTest extends TestCase {
     final Executor storageContinuationExecutor = MoreExecutors.sameThreadExecutor();
     final AccessController accessController = mock(AccessController.class);
 
-    LocalWaveletContainer.Factory localWaveletContainerFactory =
+    localWaveletContainerFactory =
         new LocalWaveletContainer.Factory() {
           @Override
           public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
@@ -91,7 +96,8 @@ public class WaveMapTest extends TestCase {
     waveletStore = mock(DeltaAndSnapshotStore.class);
     Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
       "core.wave_cache_size", 1000,
-      "core.wave_cache_expire", "60m")
+      "core.wave_cache_expire", "60m",
+      "core.wave_cache_max_memory", 0)
     );
     waveMap =
         new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
@@ -131,6 +137,57 @@ public class WaveMapTest extends TestCase {
     assertSame(wavelet, waveMap.getLocalWavelet(WAVELET_NAME));
   }
 
+  public void testEvictedWaveletsAreUnloaded() throws Exception {
+    Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+      "core.wave_cache_size", 1,
+      "core.wave_cache_expire", "60m",
+      "core.wave_cache_max_memory", 0)
+    );
+    waveMap =
+        new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
+            remoteWaveletContainerFactory, "example.com", config,
+            MoreExecutors.sameThreadExecutor());
+    when(waveletStore.lookup(any(WaveId.class))).thenReturn(ImmutableSet.<WaveletId>of());
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+
+    // Loading another wave evicts the first one.
+    waveMap.getOrCreateLocalWavelet(WaveletName.of(WaveId.of(DOMAIN, "other"), WAVELET_ID));
+    try {
+      wavelet.getSnapshot();
+      fail("Expected the evicted wavelet to be closed");
+    } catch (WaveletStateException expected) {
+    }
+    assertNotSame(wavelet, waveMap.getOrCreateLocalWavelet(WAVELET_NAME));
+  }
+
+  public void testRecentlyAccessedWaveletsAreFirst() throws Exception {
+    final AtomicLong time = new AtomicLong();
+    Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+      "core.wave_cache_size", 1000,
+      "core.wave_cache_expire", "60m",
+      "core.wave_cache_max_memory", 0)
+    );
+    waveMap =
+        new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
+            remoteWaveletContainerFactory, "example.com", config,
+            MoreExecutors.sameThreadExecutor(), new Ticker() {
+              @Override
+              public long read() {
+                return time.get();
+              }
+            });
+    when(waveletStore.lookup(any(WaveId.class))).thenReturn(ImmutableSet.<WaveletId>of());
+    WaveletName other = WaveletName.of(WaveId.of(DOMAIN, "other"), WAVELET_ID);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    time.incrementAndGet();
+    waveMap.getOrCreateLocalWavelet(other);
+    assertEquals(ImmutableList.of(other, WAVELET_NAME), waveMap.getRecentlyAccessedWavelets(2));
+
+    time.incrementAndGet();
+    waveMap.getLocalWavelet(WAVELET_NAME);
+    assertEquals(ImmutableList.of(WAVELET_NAME), waveMap.getRecentlyAccessedWavelets(1));
+  }
+
   private ExceptionalIterator<WaveId, PersistenceException> eitr(WaveId... waves) {
     return ExceptionalIterator.FromIterator.<WaveId, PersistenceException>create(
         Arrays.asList(waves).iterator());
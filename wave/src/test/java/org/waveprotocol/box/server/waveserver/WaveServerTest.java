@@ -129,7 +129,8 @@ public class WaveServerTest extends TestCase {
     Executor lookupExecutor = MoreExecutors.sameThreadExecutor();
     Config config = ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
       "core.wave_cache_size", 1000,
-      "core.wave_cache_expire", "60m")
+      "core.wave_cache_expire", "60m",
+      "core.wave_cache_max_memory", 0)
     );
     waveMap =
         new WaveMap(waveletStore, notifiee, localWaveletContainerFactory,
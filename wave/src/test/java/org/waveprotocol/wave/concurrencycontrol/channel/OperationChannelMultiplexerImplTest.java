@@ -934,6 +934,55 @@ public class OperationChannelMultiplexerImplTest extends TestCase {
     muxListener.verifyNoMoreInteractions();
   }
 
+  /**
+   * Tests that a delta submitted but not acked before the view fails is taken
+   * as acked, rather than resubmitted, when the server had applied it: the
+   * reconnection tells the known version and the current one past the delta,
+   * and the server sends the delta back.
+   */
+  public void testMuxReconnectsAfterDisconnectWithAppliedOutstandingSubmit()
+      throws ChannelException {
+    final ConnectionInfo chInfo1 = new ConnectionInfo(WAVELET_ID_1, 1, SIG1);
+
+    MockViewChannel view = openMux();
+    muxListener.verifyNoMoreInteractions();
+    ViewChannel.Listener viewListener = view.takeListener();
+    viewListener.onConnected();
+
+    // Receive initial snapshots.
+    ConnectedChannel ch = connectChannelSnapshot(viewListener, chInfo1);
+    triggerAndCheckOpenFinished(viewListener);
+
+    // Send but don't ack delta.
+    WaveletDelta delta =
+        checkSendDelta(view, ch.channel, chInfo1.initialHashedVersion, WAVELET_ID_1);
+
+    // Reconnect channel, the server having applied the delta.
+    MockViewChannel view2 = failViewAndExpectReconnection(viewListener, view,
+        "View failed with outstanding submit", createKnownVersions(WAVELET_ID_1, 1, SIG1));
+    ViewChannel.Listener viewListener2 = view2.takeListener();
+    viewListener2.onConnected();
+    reconnectChannel(viewListener2, WAVELET_ID_1, chInfo1.initialVersion, SIG1,
+        chInfo1.initialVersion + 1, SIG2);
+    viewListener2.onOpenFinished();
+    muxListener.verifyNoMoreInteractions(); // No callback on reconnection.
+
+    // Receive the delta back, expect it to ack the submit without a retransmit.
+    HashedVersion appliedVersion = HashedVersion.of(chInfo1.initialVersion + 1, SIG2);
+    viewListener2.onUpdate(WAVELET_ID_1, Collections.singletonList(
+        TransformedWaveletDelta.cloneOperations(appliedVersion, 0L, delta)), null, null);
+    ch.listener.checkOpsReceived(1);
+    ch.listener.clear();
+    assertNotNull(ch.channel.receive());
+    assertNull(ch.channel.receive());
+
+    checkReceiveAndSend(viewListener2, view2, ch, WAVELET_ID_1, chInfo1.initialVersion + 1);
+
+    view.checkExpectationsSatisified();
+    view2.checkExpectationsSatisified();
+    muxListener.verifyNoMoreInteractions();
+  }
+
   public void testMuxReconnectsAfterSubmitFailure() throws ChannelException {
     final ConnectionInfo chInfo1 = new ConnectionInfo(WAVELET_ID_1, 1, SIG1);
 
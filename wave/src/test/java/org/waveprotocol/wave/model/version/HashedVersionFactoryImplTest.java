@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.wave.model.version;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link HashedVersionFactoryImpl}.
+ */
+public class HashedVersionFactoryImplTest extends TestCase {
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "w+wave"), WaveletId.of("example.com", "wavelet"));
+  private static final byte[] DELTA_BYTES = {1, 2, 3, 4, 5};
+
+  private final HashedVersionFactoryImpl factory =
+      new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+
+  public void testHashIsTruncatedDigestOfHistoryAndDelta() throws Exception {
+    HashedVersion v0 = factory.createVersionZero(WAVELET_NAME);
+    HashedVersion v2 = factory.create(DELTA_BYTES, v0, 2);
+
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update(v0.getHistoryHash());
+    digest.update(DELTA_BYTES);
+    assertEquals(HashedVersion.of(2, Arrays.copyOf(digest.digest(),
+        HashedVersionFactoryImpl.hashSizeBits / 8)), v2);
+  }
+
+  public void testSuccessiveHashesAreIndependent() {
+    HashedVersion v0 = factory.createVersionZero(WAVELET_NAME);
+    HashedVersion first = factory.create(DELTA_BYTES, v0, 1);
+    factory.create(new byte[] {9, 9}, first, 1);
+
+    assertEquals(first, factory.create(DELTA_BYTES, v0, 1));
+  }
+
+  public void testHashOfBufferEqualsHashOfArray() {
+    HashedVersion v0 = factory.createVersionZero(WAVELET_NAME);
+    ByteBuffer buffer = ByteBuffer.wrap(DELTA_BYTES).asReadOnlyBuffer();
+
+    assertEquals(factory.create(DELTA_BYTES, v0, 1), factory.create(buffer, v0, 1));
+  }
+}